@@ -0,0 +1,210 @@
+package org.janelia.saalfeldlab.n5.spark;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+
+import net.imglib2.converter.Converter;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Converts flat primitive arrays of 8-bit and 16-bit integer values using a table that holds the converted value
+ * for every possible input value (256 or 65536 entries).
+ *
+ * The table is filled by applying the given imglib2 {@link Converter} to every input value once,
+ * so the results are identical to converting the data through a {@link net.imglib2.converter.Converters#convert} view.
+ */
+class LookupTableConverter
+{
+	private final DataType inputDataType;
+	private final DataType outputDataType;
+	private final Object table;
+
+	public static boolean isSupported( final DataType inputDataType )
+	{
+		switch ( inputDataType )
+		{
+		case INT8:
+		case UINT8:
+		case INT16:
+		case UINT16:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > LookupTableConverter(
+			final DataType inputDataType,
+			final DataType outputDataType,
+			final Converter< I, O > converter )
+	{
+		if ( !isSupported( inputDataType ) )
+			throw new IllegalArgumentException( "Type " + inputDataType.name() + " not supported!" );
+
+		this.inputDataType = inputDataType;
+		this.outputDataType = outputDataType;
+
+		final int tableSize = inputDataType == DataType.INT8 || inputDataType == DataType.UINT8 ? 1 << 8 : 1 << 16;
+		table = DataBlockUtils.createArray( outputDataType, tableSize );
+
+		final I input = N5ConvertSpark.dataTypeToImglibType( inputDataType );
+		final O output = N5ConvertSpark.dataTypeToImglibType( outputDataType );
+		for ( int i = 0; i < tableSize; ++i )
+		{
+			// the table is indexed by the bits of the input value
+			switch ( inputDataType )
+			{
+			case INT8:
+				input.setReal( ( byte ) i );
+				break;
+			case INT16:
+				input.setReal( ( short ) i );
+				break;
+			default:
+				input.setReal( i );
+				break;
+			}
+			converter.convert( input, output );
+			setTableValue( i, output );
+		}
+	}
+
+	public DataType getInputDataType()
+	{
+		return inputDataType;
+	}
+
+	public DataType getOutputDataType()
+	{
+		return outputDataType;
+	}
+
+	/**
+	 * Converts the source array into the target array of the same length.
+	 *
+	 * @param source
+	 * 			byte[] or short[] depending on the input type
+	 * @param target
+	 * 			flat primitive array of the output type
+	 */
+	public void convert( final Object source, final Object target )
+	{
+		if ( source instanceof byte[] )
+			convert( ( byte[] ) source, target );
+		else
+			convert( ( short[] ) source, target );
+	}
+
+	private void convert( final byte[] src, final Object target )
+	{
+		if ( table instanceof byte[] )
+		{
+			final byte[] lut = ( byte[] ) table, dst = ( byte[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xff ];
+		}
+		else if ( table instanceof short[] )
+		{
+			final short[] lut = ( short[] ) table, dst = ( short[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xff ];
+		}
+		else if ( table instanceof int[] )
+		{
+			final int[] lut = ( int[] ) table, dst = ( int[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xff ];
+		}
+		else if ( table instanceof long[] )
+		{
+			final long[] lut = ( long[] ) table, dst = ( long[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xff ];
+		}
+		else if ( table instanceof float[] )
+		{
+			final float[] lut = ( float[] ) table, dst = ( float[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xff ];
+		}
+		else
+		{
+			final double[] lut = ( double[] ) table, dst = ( double[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xff ];
+		}
+	}
+
+	private void convert( final short[] src, final Object target )
+	{
+		if ( table instanceof byte[] )
+		{
+			final byte[] lut = ( byte[] ) table, dst = ( byte[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xffff ];
+		}
+		else if ( table instanceof short[] )
+		{
+			final short[] lut = ( short[] ) table, dst = ( short[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xffff ];
+		}
+		else if ( table instanceof int[] )
+		{
+			final int[] lut = ( int[] ) table, dst = ( int[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xffff ];
+		}
+		else if ( table instanceof long[] )
+		{
+			final long[] lut = ( long[] ) table, dst = ( long[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xffff ];
+		}
+		else if ( table instanceof float[] )
+		{
+			final float[] lut = ( float[] ) table, dst = ( float[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xffff ];
+		}
+		else
+		{
+			final double[] lut = ( double[] ) table, dst = ( double[] ) target;
+			for ( int i = 0; i < src.length; ++i )
+				dst[ i ] = lut[ src[ i ] & 0xffff ];
+		}
+	}
+
+	private < O extends RealType< O > > void setTableValue( final int i, final O output )
+	{
+		switch ( outputDataType )
+		{
+		case INT8:
+		case UINT8:
+			( ( byte[] ) table )[ i ] = ( byte ) ( ( IntegerType< ? > ) output ).getIntegerLong();
+			break;
+		case INT16:
+		case UINT16:
+			( ( short[] ) table )[ i ] = ( short ) ( ( IntegerType< ? > ) output ).getIntegerLong();
+			break;
+		case INT32:
+		case UINT32:
+			( ( int[] ) table )[ i ] = ( int ) ( ( IntegerType< ? > ) output ).getIntegerLong();
+			break;
+		case INT64:
+		case UINT64:
+			( ( long[] ) table )[ i ] = ( ( IntegerType< ? > ) output ).getIntegerLong();
+			break;
+		case FLOAT32:
+			( ( float[] ) table )[ i ] = output.getRealFloat();
+			break;
+		case FLOAT64:
+			( ( double[] ) table )[ i ] = output.getRealDouble();
+			break;
+		default:
+			throw new IllegalArgumentException( "Type " + outputDataType.name() + " not supported!" );
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package org.janelia.saalfeldlab.n5.spark;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+
+/**
+ * Computes the max intensity projections of a 1D/2D/3D block in all directions at once
+ * directly on the flat primitive array of the decoded block.
+ *
+ * The block is traversed once in the flat order, and every value updates the corresponding element
+ * of each projection. The projections are flat primitive arrays of the same type as the block,
+ * and their elements are ordered in the same way as the remaining dimensions of the block.
+ * As with imglib2 images, the projections are initialized with zeros.
+ */
+class MaxIntensityProjectionKernel
+{
+	private MaxIntensityProjectionKernel() { }
+
+	/**
+	 * Creates zero-initialized projections of a block with the given dimensions.
+	 *
+	 * @param dataType
+	 * @param dimensions
+	 * @return flat primitive array for the projection in each dimension
+	 */
+	public static Object[] createProjections( final DataType dataType, final int[] dimensions )
+	{
+		final Object[] projections = new Object[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			projections[ d ] = DataBlockUtils.createArray( dataType, ( int ) ( DataBlockUtils.numElements( dimensions ) / dimensions[ d ] ) );
+		return projections;
+	}
+
+	/**
+	 * Updates the projections with the max values of the given block.
+	 *
+	 * @param dataType
+	 * @param data
+	 * 			flat primitive array of the block
+	 * @param dimensions
+	 * 			dimensions of the block
+	 * @param projections
+	 * 			flat primitive arrays created by {@link #createProjections(DataType, int[])}
+	 */
+	public static void project( final DataType dataType, final Object data, final int[] dimensions, final Object[] projections )
+	{
+		if ( dimensions.length > 3 )
+			throw new IllegalArgumentException( "Max intensity projection is supported for 1D/2D/3D blocks" );
+
+		// missing dimensions have size 1, and the projections in these dimensions are not computed (passed as null)
+		final int nx = dimensions[ 0 ];
+		final int ny = dimensions.length > 1 ? dimensions[ 1 ] : 1;
+		final int nz = dimensions.length > 2 ? dimensions[ 2 ] : 1;
+		final Object px = projections[ 0 ];
+		final Object py = projections.length > 1 ? projections[ 1 ] : null;
+		final Object pz = projections.length > 2 ? projections[ 2 ] : null;
+
+		switch ( dataType )
+		{
+		case INT8:
+			project( ( byte[] ) data, nx, ny, nz, ( byte[] ) px, ( byte[] ) py, ( byte[] ) pz, 0 );
+			break;
+		case UINT8:
+			project( ( byte[] ) data, nx, ny, nz, ( byte[] ) px, ( byte[] ) py, ( byte[] ) pz, 0xff );
+			break;
+		case INT16:
+			project( ( short[] ) data, nx, ny, nz, ( short[] ) px, ( short[] ) py, ( short[] ) pz, 0 );
+			break;
+		case UINT16:
+			project( ( short[] ) data, nx, ny, nz, ( short[] ) px, ( short[] ) py, ( short[] ) pz, 0xffff );
+			break;
+		case INT32:
+			project( ( int[] ) data, nx, ny, nz, ( int[] ) px, ( int[] ) py, ( int[] ) pz, 0 );
+			break;
+		case UINT32:
+			project( ( int[] ) data, nx, ny, nz, ( int[] ) px, ( int[] ) py, ( int[] ) pz, Integer.MIN_VALUE );
+			break;
+		case INT64:
+			project( ( long[] ) data, nx, ny, nz, ( long[] ) px, ( long[] ) py, ( long[] ) pz, 0 );
+			break;
+		case UINT64:
+			project( ( long[] ) data, nx, ny, nz, ( long[] ) px, ( long[] ) py, ( long[] ) pz, Long.MIN_VALUE );
+			break;
+		case FLOAT32:
+			project( ( float[] ) data, nx, ny, nz, ( float[] ) px, ( float[] ) py, ( float[] ) pz );
+			break;
+		case FLOAT64:
+			project( ( double[] ) data, nx, ny, nz, ( double[] ) px, ( double[] ) py, ( double[] ) pz );
+			break;
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	/**
+	 * Merges two projections of the same size by taking the max value at each position.
+	 * The result is stored in dst.
+	 *
+	 * @param dataType
+	 * @param src
+	 * @param dst
+	 */
+	public static void merge( final DataType dataType, final Object src, final Object dst )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+		{
+			final byte[] s = ( byte[] ) src, t = ( byte[] ) dst;
+			final int mask = dataType == DataType.UINT8 ? 0xff : 0;
+			for ( int i = 0; i < t.length; ++i )
+				if ( ( mask == 0 ? s[ i ] : s[ i ] & mask ) > ( mask == 0 ? t[ i ] : t[ i ] & mask ) )
+					t[ i ] = s[ i ];
+			break;
+		}
+		case INT16:
+		case UINT16:
+		{
+			final short[] s = ( short[] ) src, t = ( short[] ) dst;
+			final int mask = dataType == DataType.UINT16 ? 0xffff : 0;
+			for ( int i = 0; i < t.length; ++i )
+				if ( ( mask == 0 ? s[ i ] : s[ i ] & mask ) > ( mask == 0 ? t[ i ] : t[ i ] & mask ) )
+					t[ i ] = s[ i ];
+			break;
+		}
+		case INT32:
+		case UINT32:
+		{
+			final int[] s = ( int[] ) src, t = ( int[] ) dst;
+			final int flip = dataType == DataType.UINT32 ? Integer.MIN_VALUE : 0;
+			for ( int i = 0; i < t.length; ++i )
+				if ( ( s[ i ] ^ flip ) > ( t[ i ] ^ flip ) )
+					t[ i ] = s[ i ];
+			break;
+		}
+		case INT64:
+		case UINT64:
+		{
+			final long[] s = ( long[] ) src, t = ( long[] ) dst;
+			final long flip = dataType == DataType.UINT64 ? Long.MIN_VALUE : 0;
+			for ( int i = 0; i < t.length; ++i )
+				if ( ( s[ i ] ^ flip ) > ( t[ i ] ^ flip ) )
+					t[ i ] = s[ i ];
+			break;
+		}
+		case FLOAT32:
+		{
+			final float[] s = ( float[] ) src, t = ( float[] ) dst;
+			for ( int i = 0; i < t.length; ++i )
+				t[ i ] = Math.max( s[ i ], t[ i ] );
+			break;
+		}
+		case FLOAT64:
+		{
+			final double[] s = ( double[] ) src, t = ( double[] ) dst;
+			for ( int i = 0; i < t.length; ++i )
+				t[ i ] = Math.max( s[ i ], t[ i ] );
+			break;
+		}
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	/*
+	 * For 8-bit and 16-bit types, the values are compared as ints after applying the mask (0 for signed types).
+	 * For 32-bit and 64-bit types, the values are compared after flipping the given bit (the sign bit for unsigned types).
+	 * The projections py and pz are null for 1D/2D blocks, so no dummy projections have to be allocated for every block.
+	 */
+
+	private static void project( final byte[] src, final int nx, final int ny, final int nz, final byte[] px, final byte[] py, final byte[] pz, final int mask )
+	{
+		for ( int z = 0, i = 0; z < nz; ++z )
+		{
+			for ( int y = 0; y < ny; ++y )
+			{
+				final int ix = y + ny * z;
+				for ( int x = 0; x < nx; ++x, ++i )
+				{
+					final byte value = src[ i ];
+					final int v = mask == 0 ? value : value & mask;
+					final int iy = x + nx * z, iz = x + nx * y;
+					if ( v > ( mask == 0 ? px[ ix ] : px[ ix ] & mask ) ) px[ ix ] = value;
+					if ( py != null && v > ( mask == 0 ? py[ iy ] : py[ iy ] & mask ) ) py[ iy ] = value;
+					if ( pz != null && v > ( mask == 0 ? pz[ iz ] : pz[ iz ] & mask ) ) pz[ iz ] = value;
+				}
+			}
+		}
+	}
+
+	private static void project( final short[] src, final int nx, final int ny, final int nz, final short[] px, final short[] py, final short[] pz, final int mask )
+	{
+		for ( int z = 0, i = 0; z < nz; ++z )
+		{
+			for ( int y = 0; y < ny; ++y )
+			{
+				final int ix = y + ny * z;
+				for ( int x = 0; x < nx; ++x, ++i )
+				{
+					final short value = src[ i ];
+					final int v = mask == 0 ? value : value & mask;
+					final int iy = x + nx * z, iz = x + nx * y;
+					if ( v > ( mask == 0 ? px[ ix ] : px[ ix ] & mask ) ) px[ ix ] = value;
+					if ( py != null && v > ( mask == 0 ? py[ iy ] : py[ iy ] & mask ) ) py[ iy ] = value;
+					if ( pz != null && v > ( mask == 0 ? pz[ iz ] : pz[ iz ] & mask ) ) pz[ iz ] = value;
+				}
+			}
+		}
+	}
+
+	private static void project( final int[] src, final int nx, final int ny, final int nz, final int[] px, final int[] py, final int[] pz, final int flip )
+	{
+		for ( int z = 0, i = 0; z < nz; ++z )
+		{
+			for ( int y = 0; y < ny; ++y )
+			{
+				final int ix = y + ny * z;
+				for ( int x = 0; x < nx; ++x, ++i )
+				{
+					final int value = src[ i ];
+					final int v = value ^ flip;
+					final int iy = x + nx * z, iz = x + nx * y;
+					if ( v > ( px[ ix ] ^ flip ) ) px[ ix ] = value;
+					if ( py != null && v > ( py[ iy ] ^ flip ) ) py[ iy ] = value;
+					if ( pz != null && v > ( pz[ iz ] ^ flip ) ) pz[ iz ] = value;
+				}
+			}
+		}
+	}
+
+	private static void project( final long[] src, final int nx, final int ny, final int nz, final long[] px, final long[] py, final long[] pz, final long flip )
+	{
+		for ( int z = 0, i = 0; z < nz; ++z )
+		{
+			for ( int y = 0; y < ny; ++y )
+			{
+				final int ix = y + ny * z;
+				for ( int x = 0; x < nx; ++x, ++i )
+				{
+					final long value = src[ i ];
+					final long v = value ^ flip;
+					final int iy = x + nx * z, iz = x + nx * y;
+					if ( v > ( px[ ix ] ^ flip ) ) px[ ix ] = value;
+					if ( py != null && v > ( py[ iy ] ^ flip ) ) py[ iy ] = value;
+					if ( pz != null && v > ( pz[ iz ] ^ flip ) ) pz[ iz ] = value;
+				}
+			}
+		}
+	}
+
+	private static void project( final float[] src, final int nx, final int ny, final int nz, final float[] px, final float[] py, final float[] pz )
+	{
+		for ( int z = 0, i = 0; z < nz; ++z )
+		{
+			for ( int y = 0; y < ny; ++y )
+			{
+				final int ix = y + ny * z;
+				for ( int x = 0; x < nx; ++x, ++i )
+				{
+					final float value = src[ i ];
+					final int iy = x + nx * z, iz = x + nx * y;
+					px[ ix ] = Math.max( value, px[ ix ] );
+					if ( py != null ) py[ iy ] = Math.max( value, py[ iy ] );
+					if ( pz != null ) pz[ iz ] = Math.max( value, pz[ iz ] );
+				}
+			}
+		}
+	}
+
+	private static void project( final double[] src, final int nx, final int ny, final int nz, final double[] px, final double[] py, final double[] pz )
+	{
+		for ( int z = 0, i = 0; z < nz; ++z )
+		{
+			for ( int y = 0; y < ny; ++y )
+			{
+				final int ix = y + ny * z;
+				for ( int x = 0; x < nx; ++x, ++i )
+				{
+					final double value = src[ i ];
+					final int iy = x + nx * z, iz = x + nx * y;
+					px[ ix ] = Math.max( value, px[ ix ] );
+					if ( py != null ) py[ iy ] = Math.max( value, py[ iy ] );
+					if ( pz != null ) pz[ iz ] = Math.max( value, pz[ iz ] );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package org.janelia.saalfeldlab.n5.spark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
+import org.janelia.saalfeldlab.n5.spark.util.ZstandardCompression;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Benchmarks the available compression schemes on a random sample of non-empty blocks of a dataset.
+ *
+ * Every sampled block is read and decoded only once, and then encoded and decoded with each candidate compression on an executor,
+ * and the compression ratio and the encoding and decoding throughput (in MB/s of uncompressed data) are summed up over all sampled blocks.
+ * The candidate with the fastest decoding among the ones that reach the required compression ratio can be recommended for the conversion.
+ */
+public class N5CompressionAdvisorSpark
+{
+	public static final int DEFAULT_NUM_SAMPLED_BLOCKS = 100;
+
+	private static final int NUM_REPETITIONS = 3;
+
+	/**
+	 * Benchmark results of a single compression accumulated over the sampled blocks.
+	 */
+	public static class CompressionStats implements Serializable
+	{
+		private static final long serialVersionUID = 3059373389216545906L;
+
+		private long uncompressedBytes, compressedBytes;
+		private long encodingNanos, decodingNanos;
+
+		public CompressionStats merge( final CompressionStats other )
+		{
+			uncompressedBytes += other.uncompressedBytes;
+			compressedBytes += other.compressedBytes;
+			encodingNanos += other.encodingNanos;
+			decodingNanos += other.decodingNanos;
+			return this;
+		}
+
+		public double getRatio()
+		{
+			return ( double ) uncompressedBytes / compressedBytes;
+		}
+
+		public double getEncodingThroughput()
+		{
+			return getThroughput( encodingNanos );
+		}
+
+		public double getDecodingThroughput()
+		{
+			return getThroughput( decodingNanos );
+		}
+
+		private double getThroughput( final long nanos )
+		{
+			return uncompressedBytes / 1e6 / Math.max( nanos / 1e9, Double.MIN_VALUE );
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "ratio %.2f, encode %.1f MB/s, decode %.1f MB/s", getRatio(), getEncodingThroughput(), getDecodingThroughput() );
+		}
+	}
+
+	/**
+	 * Decoded non-empty block that is passed from the sampling to the benchmark, so that it does not have to be read again.
+	 */
+	private static class SampledBlock implements Serializable
+	{
+		private static final long serialVersionUID = -7791358230615370478L;
+
+		final long[] gridPosition;
+		final int[] size;
+		final Object data;
+
+		SampledBlock( final DataBlock< ? > block )
+		{
+			this.gridPosition = block.getGridPosition();
+			this.size = block.getSize();
+			this.data = block.getData();
+		}
+	}
+
+	/**
+	 * Returns the compression schemes and levels to be benchmarked.
+	 */
+	public static Map< String, Compression > getCandidateCompressions()
+	{
+		final Map< String, Compression > candidates = new LinkedHashMap<>();
+		candidates.put( "raw", new RawCompression() );
+		candidates.put( "lz4", new Lz4Compression() );
+		candidates.put( "gzip-1", new GzipCompression( 1 ) );
+		candidates.put( "gzip-6", new GzipCompression( 6 ) );
+		candidates.put( "gzip-9", new GzipCompression( 9 ) );
+		candidates.put( "bzip2-9", new Bzip2Compression( 9 ) );
+		candidates.put( "xz-1", new XzCompression( 1 ) );
+		candidates.put( "xz-6", new XzCompression( 6 ) );
+		candidates.put( "zstd-1", new ZstandardCompression( 1 ) );
+		candidates.put( "zstd-3", new ZstandardCompression( 3 ) );
+		candidates.put( "zstd-9", new ZstandardCompression( 9 ) );
+		candidates.put( "zstd-19", new ZstandardCompression( 19 ) );
+		return candidates;
+	}
+
+	/**
+	 * Benchmarks all candidate compressions on the given number of randomly chosen non-empty blocks of the dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param numSampledBlocks
+	 * @return benchmark results for each candidate compression in the same order as {@link #getCandidateCompressions()}
+	 * @throws IOException
+	 */
+	public static Map< String, CompressionStats > benchmark(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath,
+			final int numSampledBlocks ) throws IOException
+	{
+		final DatasetAttributes attributes = n5Supplier.get().getDatasetAttributes( datasetPath );
+		final long[] gridDimensions = new CellGrid( attributes.getDimensions(), attributes.getBlockSize() ).getGridDimensions();
+		final long numBlocks = Intervals.numElements( gridDimensions );
+
+		// oversample the block indexes to account for the blocks that are missing or empty
+		final double sampleFraction = Math.min( 4.0 * numSampledBlocks / numBlocks, 1 );
+		final JavaRDD< Long > allBlocksRDD = BlockIndexRDD.create( sparkContext, numBlocks );
+		final JavaRDD< SampledBlock > nonEmptyBlocksRDD = ( sampleFraction < 1 ? allBlocksRDD.sample( false, sampleFraction, 0 ) : allBlocksRDD )
+				.flatMap( blockIndex ->
+					{
+						final DataBlock< ? > block = readNonEmptyBlock( n5Supplier.get(), datasetPath, attributes, gridDimensions, blockIndex );
+						return block != null ? Collections.singletonList( new SampledBlock( block ) ).iterator() : Collections.< SampledBlock >emptyIterator();
+					} )
+				.cache();
+
+		// pick the blocks uniformly among all non-empty candidates, and not from the first partitions that have enough of them
+		final List< SampledBlock > sampledBlocks = nonEmptyBlocksRDD.takeSample( false, numSampledBlocks, 0 );
+		nonEmptyBlocksRDD.unpersist();
+
+		if ( sampledBlocks.isEmpty() )
+			throw new IllegalArgumentException( "No non-empty blocks found in " + datasetPath );
+		if ( sampledBlocks.size() < numSampledBlocks )
+			System.out.println( "Only " + sampledBlocks.size() + " non-empty blocks found in " + datasetPath + " (requested " + numSampledBlocks + "), the benchmark uses all of them" );
+
+		final List< CompressionStats[] > blockStats = sparkContext
+				.parallelize( sampledBlocks, Math.min( sampledBlocks.size(), BlockIndexRDD.MAX_PARTITIONS ) )
+				.map( sampledBlock -> benchmarkBlock( attributes, sampledBlock ) )
+				.collect();
+
+		final List< String > names = new ArrayList<>( getCandidateCompressions().keySet() );
+		final Map< String, CompressionStats > stats = new LinkedHashMap<>();
+		for ( int i = 0; i < names.size(); ++i )
+		{
+			final CompressionStats compressionStats = new CompressionStats();
+			for ( final CompressionStats[] blockCompressionStats : blockStats )
+				compressionStats.merge( blockCompressionStats[ i ] );
+			stats.put( names.get( i ), compressionStats );
+		}
+		return stats;
+	}
+
+	/**
+	 * Picks the compression with the fastest decoding among the ones that reach the given compression ratio.
+	 * If none of them reaches it, the compression with the highest ratio is picked.
+	 *
+	 * @param stats
+	 * @param minRatio
+	 * @return name of the compression
+	 */
+	public static String selectCompression( final Map< String, CompressionStats > stats, final double minRatio )
+	{
+		String fastest = null, smallest = null;
+		for ( final Map.Entry< String, CompressionStats > entry : stats.entrySet() )
+		{
+			final CompressionStats compressionStats = entry.getValue();
+			if ( compressionStats.getRatio() >= minRatio && ( fastest == null || compressionStats.getDecodingThroughput() > stats.get( fastest ).getDecodingThroughput() ) )
+				fastest = entry.getKey();
+			if ( smallest == null || compressionStats.getRatio() > stats.get( smallest ).getRatio() )
+				smallest = entry.getKey();
+		}
+		return fastest != null ? fastest : smallest;
+	}
+
+	/**
+	 * Benchmarks the dataset and returns the compression with the fastest decoding among the ones that reach the given compression ratio.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param numSampledBlocks
+	 * @param minRatio
+	 * @return
+	 * @throws IOException
+	 */
+	public static Compression recommendCompression(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath,
+			final int numSampledBlocks,
+			final double minRatio ) throws IOException
+	{
+		final Map< String, CompressionStats > stats = benchmark( sparkContext, n5Supplier, datasetPath, numSampledBlocks );
+		print( stats );
+		final String selected = selectCompression( stats, minRatio );
+		System.out.println( "Selected compression: " + selected );
+		return getCandidateCompressions().get( selected );
+	}
+
+	/**
+	 * @return the block with the given flat index, or null if it does not exist or is empty
+	 */
+	private static DataBlock< ? > readNonEmptyBlock(
+			final N5Reader n5,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] gridDimensions,
+			final long blockIndex ) throws IOException
+	{
+		final long[] blockGridPosition = new long[ gridDimensions.length ];
+		IntervalIndexer.indexToPosition( blockIndex, gridDimensions, blockGridPosition );
+		final DataBlock< ? > block = n5.readBlock( datasetPath, attributes, blockGridPosition );
+		return block == null || DataBlockUtils.isEmpty( block.getData() ) ? null : block;
+	}
+
+	/**
+	 * Encodes and decodes the given block with every candidate compression.
+	 *
+	 * @return benchmark results for each candidate compression
+	 */
+	private static CompressionStats[] benchmarkBlock( final DatasetAttributes attributes, final SampledBlock sampledBlock ) throws IOException
+	{
+		final DataBlock< ? > block = DataBlockUtils.createDataBlock( attributes.getDataType(), sampledBlock.size, sampledBlock.gridPosition, sampledBlock.data );
+		final long[] blockGridPosition = block.getGridPosition();
+
+		final List< Compression > candidates = new ArrayList<>( getCandidateCompressions().values() );
+		final CompressionStats[] stats = new CompressionStats[ candidates.size() ];
+		for ( int i = 0; i < candidates.size(); ++i )
+		{
+			final DatasetAttributes candidateAttributes = new DatasetAttributes( attributes.getDimensions(), attributes.getBlockSize(), attributes.getDataType(), candidates.get( i ) );
+			stats[ i ] = new CompressionStats();
+			stats[ i ].uncompressedBytes = block.toByteBuffer().remaining();
+
+			// keep the fastest of several repetitions to reduce the influence of the JIT warmup
+			long encodingNanos = Long.MAX_VALUE, decodingNanos = Long.MAX_VALUE;
+			byte[] encoded = null;
+			for ( int r = 0; r < NUM_REPETITIONS; ++r )
+			{
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				final long encodingStart = System.nanoTime();
+				DefaultBlockWriter.writeBlock( out, candidateAttributes, block );
+				encodingNanos = Math.min( System.nanoTime() - encodingStart, encodingNanos );
+				encoded = out.toByteArray();
+
+				final long decodingStart = System.nanoTime();
+				DefaultBlockReader.readBlock( new ByteArrayInputStream( encoded ), candidateAttributes, blockGridPosition );
+				decodingNanos = Math.min( System.nanoTime() - decodingStart, decodingNanos );
+			}
+
+			stats[ i ].compressedBytes = encoded.length;
+			stats[ i ].encodingNanos = encodingNanos;
+			stats[ i ].decodingNanos = decodingNanos;
+		}
+		return stats;
+	}
+
+	private static void print( final Map< String, CompressionStats > stats )
+	{
+		for ( final Map.Entry< String, CompressionStats > entry : stats.entrySet() )
+			System.out.println( String.format( "%-8s %s", entry.getKey(), entry.getValue() ) );
+	}
+
+	public static void main( final String... args ) throws IOException
+	{
+		final Arguments parsedArgs = new Arguments( args );
+
+		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
+				.setAppName( "N5CompressionAdvisorSpark" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			) )
+		{
+			final N5ReaderSupplier n5Supplier = N5ExecutorCache.fsReaderSupplier( parsedArgs.getN5Path() );
+			final Map< String, CompressionStats > stats = benchmark(
+					sparkContext,
+					n5Supplier,
+					parsedArgs.getInputDatasetPath(),
+					parsedArgs.getNumSampledBlocks()
+				);
+			print( stats );
+
+			if ( parsedArgs.getMinRatio() != null )
+				System.out.println( "Fastest decoding with ratio >= " + parsedArgs.getMinRatio() + ": " + selectCompression( stats, parsedArgs.getMinRatio() ) );
+		}
+	}
+
+	private static class Arguments implements Serializable
+	{
+		private static final long serialVersionUID = -6102461389722301734L;
+
+		@Option(name = "-n", aliases = { "--n5Path" }, required = true,
+				usage = "Path to an N5 container.")
+		private String n5Path;
+
+		@Option(name = "-i", aliases = { "--inputDatasetPath" }, required = true,
+				usage = "Path to an input dataset within the N5 container (e.g. data/group/s0).")
+		private String inputDatasetPath;
+
+		@Option(name = "-s", aliases = { "--samples" }, required = false,
+				usage = "Number of randomly chosen non-empty blocks to be benchmarked.")
+		private int numSampledBlocks = DEFAULT_NUM_SAMPLED_BLOCKS;
+
+		@Option(name = "-r", aliases = { "--minRatio" }, required = false,
+				usage = "If specified, reports the compression with the fastest decoding among the ones that reach the given compression ratio.")
+		private Double minRatio;
+
+		public Arguments( final String... args ) throws IllegalArgumentException
+		{
+			final CmdLineParser parser = new CmdLineParser( this );
+			try
+			{
+				parser.parseArgument( args );
+				if ( numSampledBlocks <= 0 )
+					throw new IllegalArgumentException( "Number of sampled blocks should be positive: " + numSampledBlocks );
+			}
+			catch ( final CmdLineException e )
+			{
+				System.err.println( e.getMessage() );
+				parser.printUsage( System.err );
+				System.exit( 1 );
+			}
+		}
+
+		public String getN5Path() { return n5Path; }
+		public String getInputDatasetPath() { return inputDatasetPath; }
+		public int getNumSampledBlocks() { return numSampledBlocks; }
+		public Double getMinRatio() { return minRatio; }
+	}
+}
@@ -2,19 +2,26 @@ package org.janelia.saalfeldlab.n5.spark;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
+import org.apache.spark.HashPartitioner;
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.n5.Bzip2Compression;
 import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
@@ -26,11 +33,22 @@ import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.RawCompression;
 import org.janelia.saalfeldlab.n5.XzCompression;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
+import org.janelia.saalfeldlab.n5.spark.util.BlockProgress;
+import org.janelia.saalfeldlab.n5.spark.util.BlockProgress.BlockConsumer;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockCache;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils.DataBlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+import org.janelia.saalfeldlab.n5.spark.util.ZstandardCompression;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import com.google.gson.Gson;
+
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
@@ -50,14 +68,21 @@ import net.imglib2.type.numeric.integer.UnsignedLongType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
+import scala.Tuple2;
 
 public class N5ConvertSpark
 {
-	private static final int MAX_PARTITIONS = 15000;
+	public static final long DEFAULT_MAX_SHUFFLE_PARTITION_BYTES = 256L << 20;
+	public static final long DEFAULT_GROUP_TASK_BYTES = 256L << 20;
+
+	// the attributes that are set by N5 itself when a container or a dataset is created, and the completion marker of resumable jobs
+	private static final List< String > NON_COPYABLE_ATTRIBUTE_KEYS = Arrays.asList(
+			"n5", "dimensions", "blockSize", "dataType", "compression", "compressionType", BlockProgress.COMPLETE_ATTRIBUTE_KEY );
 
 	static class ClampingConverter< I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > implements Converter< I, O >
 	{
@@ -133,6 +158,134 @@ public class N5ConvertSpark
 			final Optional< Pair< Double, Double > > valueRangeOptional,
 			final boolean overwriteExisting ) throws IOException
 	{
+		convert(
+				sparkContext,
+				n5InputSupplier,
+				inputDatasetPath,
+				n5OutputSupplier,
+				outputDatasetPath,
+				blockSizeOptional,
+				compressionOptional,
+				dataTypeOptional,
+				valueRangeOptional,
+				overwriteExisting,
+				false );
+	}
+
+	/**
+	 * Converts the given dataset into the output dataset with the given block size, compression, and data type.
+	 *
+	 * If mortonOrder is set, the blocks are ordered and partitioned along the Morton curve,
+	 * and the input blocks are cached within each partition, so that the input blocks shared by
+	 * neighboring processing blocks are read and decoded only once.
+	 */
+	public static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convert(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final Optional< int[] > blockSizeOptional,
+			final Optional< Compression > compressionOptional,
+			final Optional< DataType > dataTypeOptional,
+			final Optional< Pair< Double, Double > > valueRangeOptional,
+			final boolean overwriteExisting,
+			final boolean mortonOrder ) throws IOException
+	{
+		convert(
+				sparkContext,
+				n5InputSupplier,
+				inputDatasetPath,
+				n5OutputSupplier,
+				outputDatasetPath,
+				blockSizeOptional,
+				compressionOptional,
+				dataTypeOptional,
+				valueRangeOptional,
+				overwriteExisting,
+				mortonOrder,
+				false );
+	}
+
+	/**
+	 * Converts the given dataset into the output dataset with the given block size, compression, and data type.
+	 *
+	 * If mortonOrder is set, the blocks are ordered and partitioned along the Morton curve,
+	 * and the input blocks are cached within each partition, so that the input blocks shared by
+	 * neighboring processing blocks are read and decoded only once.
+	 *
+	 * If resume is set, the completed blocks are recorded in a {@link BlockProgress} bitmap.
+	 * If the output dataset already exists and has the bitmap, only the blocks that have not been completed yet are processed
+	 * (in the flat order, mortonOrder is ignored in this case). If the output dataset exists without the bitmap, it is skipped if it has been
+	 * marked as complete by a previous resumable job, otherwise the conversion fails because its progress is unknown.
+	 * Setting overwriteExisting discards the recorded progress and restarts the conversion.
+	 *
+	 * If the input type is an 8-bit or 16-bit integer type, the values are converted through a {@link LookupTableConverter}
+	 * directly on the decoded input blocks instead of converting every pixel through an imglib2 converter view.
+	 */
+	public static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convert(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final Optional< int[] > blockSizeOptional,
+			final Optional< Compression > compressionOptional,
+			final Optional< DataType > dataTypeOptional,
+			final Optional< Pair< Double, Double > > valueRangeOptional,
+			final boolean overwriteExisting,
+			final boolean mortonOrder,
+			final boolean resume ) throws IOException
+	{
+		convert(
+				sparkContext,
+				n5InputSupplier,
+				inputDatasetPath,
+				n5OutputSupplier,
+				outputDatasetPath,
+				blockSizeOptional,
+				compressionOptional,
+				dataTypeOptional,
+				valueRangeOptional,
+				overwriteExisting,
+				mortonOrder,
+				resume,
+				false,
+				DEFAULT_MAX_SHUFFLE_PARTITION_BYTES );
+	}
+
+	/**
+	 * Converts the given dataset into the output dataset with the given block size, compression, and data type.
+	 *
+	 * See {@link #convert(JavaSparkContext, N5ReaderSupplier, String, N5WriterSupplier, String, Optional, Optional, Optional, Optional, boolean, boolean, boolean)}
+	 * for the description of the parameters.
+	 *
+	 * If shuffle is set, the data is rechunked through a Spark shuffle instead: every input block is read exactly once and split into
+	 * the fragments that belong to different output blocks, and the output blocks are assembled from the fragments after the shuffle.
+	 * This is useful if the input and output block grids are badly misaligned (e.g. 64x64x64 into 2048x2048x1),
+	 * where every input block would otherwise be read and decoded by many tasks.
+	 * The number of shuffle partitions is chosen such that the output blocks assembled within a single partition
+	 * take up to maxShufflePartitionBytes of memory. The shuffle mode cannot be resumed, mortonOrder is ignored in this case.
+	 */
+	public static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convert(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final Optional< int[] > blockSizeOptional,
+			final Optional< Compression > compressionOptional,
+			final Optional< DataType > dataTypeOptional,
+			final Optional< Pair< Double, Double > > valueRangeOptional,
+			final boolean overwriteExisting,
+			final boolean mortonOrder,
+			final boolean resume,
+			final boolean shuffle,
+			final long maxShufflePartitionBytes ) throws IOException
+	{
+		if ( shuffle && resume )
+			throw new IllegalArgumentException( "Shuffle-based conversion cannot be resumed" );
+
 		final N5Reader n5Input = n5InputSupplier.get();
 		final DatasetAttributes inputAttributes = n5Input.getDatasetAttributes( inputDatasetPath );
 
@@ -141,55 +294,101 @@ public class N5ConvertSpark
 		final DataType inputDataType = inputAttributes.getDataType();
 
 		final N5Writer n5Output = n5OutputSupplier.get();
+		final BlockProgress existingProgress;
 		if ( !overwriteExisting && n5Output.datasetExists( outputDatasetPath ) )
-			throw new RuntimeException( "Output dataset already exists: " + outputDatasetPath );
+		{
+			if ( !resume )
+				throw new RuntimeException( "Output dataset already exists: " + outputDatasetPath );
+
+			existingProgress = BlockProgress.open( n5Output, outputDatasetPath );
+			if ( existingProgress == null )
+			{
+				if ( !BlockProgress.isComplete( n5Output, outputDatasetPath ) )
+					throw new RuntimeException( "Cannot resume, output dataset has no recorded progress and is not marked as complete (use --force to restart the conversion): " + outputDatasetPath );
+				System.out.println( "Output dataset is already complete: " + outputDatasetPath );
+				return;
+			}
+		}
+		else
+		{
+			existingProgress = null;
+		}
 
 		final int[] outputBlockSize = blockSizeOptional.isPresent() ? blockSizeOptional.get() : inputBlockSize;
 		final Compression outputCompression = compressionOptional.isPresent() ? compressionOptional.get() : inputCompression;
 		final DataType outputDataType = dataTypeOptional.isPresent() ? dataTypeOptional.get() : inputDataType;
 
 		final long[] dimensions = inputAttributes.getDimensions();
-		n5Output.createDataset( outputDatasetPath, dimensions, outputBlockSize, outputDataType, outputCompression );
+		final boolean parallelizeOverOutputBlocks = Intervals.numElements( outputBlockSize ) >= Intervals.numElements( inputBlockSize );
+		final int[] processingBlockSize = parallelizeOverOutputBlocks ? outputBlockSize : getAdjustedBlockSize( inputBlockSize, outputBlockSize );
 
-		// derive input and output value range
-		final double minInputValue, maxInputValue;
-		if ( valueRangeOptional.isPresent() )
+		final BlockProgress progress;
+		if ( existingProgress != null )
 		{
-			minInputValue = valueRangeOptional.get().getA();
-			maxInputValue = valueRangeOptional.get().getB();
+			final DatasetAttributes outputAttributes = n5Output.getDatasetAttributes( outputDatasetPath );
+			if ( !Arrays.equals( dimensions, outputAttributes.getDimensions() ) || !Arrays.equals( outputBlockSize, outputAttributes.getBlockSize() ) || outputDataType != outputAttributes.getDataType() )
+				throw new RuntimeException( "Cannot resume, output dataset has different parameters: " + outputDatasetPath );
+
+			progress = existingProgress;
+			System.out.println( "Resuming conversion into " + outputDatasetPath );
 		}
 		else
 		{
-			if ( inputDataType == DataType.FLOAT32 || inputDataType == DataType.FLOAT64 )
-			{
-				minInputValue = 0;
-				maxInputValue = 1;
-			}
-			else
-			{
-				final I inputType = dataTypeToImglibType( inputDataType );
-				minInputValue = inputType.getMinValue();
-				maxInputValue = inputType.getMaxValue();
-			}
+			progress = resume ? BlockProgress.create( n5Output, outputDatasetPath, Intervals.numElements( new CellGrid( dimensions, processingBlockSize ).getGridDimensions() ) ) : null;
+			n5Output.createDataset( outputDatasetPath, dimensions, outputBlockSize, outputDataType, outputCompression );
+			BlockProgress.clearComplete( n5Output, outputDatasetPath );
 		}
 
-		final double minOutputValue, maxOutputValue;
-		if ( outputDataType == DataType.FLOAT32 || outputDataType == DataType.FLOAT64 )
+		// derive input and output value range
+		final double minInputValue, maxInputValue;
+		if ( valueRangeOptional.isPresent() )
 		{
-			minOutputValue = 0;
-			maxOutputValue = 1;
+			minInputValue = valueRangeOptional.get().getA();
+			maxInputValue = valueRangeOptional.get().getB();
 		}
 		else
 		{
-			final O outputType = dataTypeToImglibType( outputDataType );
-			minOutputValue = outputType.getMinValue();
-			maxOutputValue = outputType.getMaxValue();
+			final Pair< Double, Double > inputValueRange = getDefaultValueRange( inputDataType );
+			minInputValue = inputValueRange.getA();
+			maxInputValue = inputValueRange.getB();
 		}
 
+		final Pair< Double, Double > outputValueRange = getDefaultValueRange( outputDataType );
+		final double minOutputValue = outputValueRange.getA(), maxOutputValue = outputValueRange.getB();
+
 		System.out.println( "Input value range: " + Arrays.toString( new double[] { minInputValue, maxInputValue } ) );
 		System.out.println( "Output value range: " + Arrays.toString( new double[] { minOutputValue, maxOutputValue } ) );
 
-		if ( Intervals.numElements( outputBlockSize ) >= Intervals.numElements( inputBlockSize ) )
+		if ( shuffle )
+		{
+			System.out.println( "Rechunking the input blocks through a shuffle..." );
+			convertWithShuffle(
+					sparkContext,
+					n5InputSupplier,
+					inputDatasetPath,
+					n5OutputSupplier,
+					outputDatasetPath,
+					minInputValue, maxInputValue,
+					minOutputValue, maxOutputValue,
+					overwriteExisting,
+					maxShufflePartitionBytes
+				);
+		}
+		else if ( inputDataType == outputDataType && Arrays.equals( inputBlockSize, outputBlockSize ) )
+		{
+			System.out.println( "Output block size and data type are the same as for the input dataset, recompressing the blocks..." );
+			recompressBlocks(
+					sparkContext,
+					n5InputSupplier,
+					inputDatasetPath,
+					n5OutputSupplier,
+					outputDatasetPath,
+					overwriteExisting,
+					mortonOrder,
+					progress
+				);
+		}
+		else if ( parallelizeOverOutputBlocks )
 		{
 			System.out.println( "Output block size is the same or bigger than the input block size, parallelizing over output blocks..." );
 			convertParallelizingOverOutputBlocks(
@@ -200,7 +399,9 @@ public class N5ConvertSpark
 					outputDatasetPath,
 					minInputValue, maxInputValue,
 					minOutputValue, maxOutputValue,
-					overwriteExisting
+					overwriteExisting,
+					mortonOrder,
+					progress
 				);
 		}
 		else
@@ -214,9 +415,419 @@ public class N5ConvertSpark
 					outputDatasetPath,
 					minInputValue, maxInputValue,
 					minOutputValue, maxOutputValue,
-					overwriteExisting
+					overwriteExisting,
+					mortonOrder,
+					progress
 				);
 		}
+
+		if ( progress != null )
+			progress.remove( n5Output );
+	}
+
+	/**
+	 * Parameters of the conversion of a single dataset within a group.
+	 */
+	private static class DatasetConversion implements Serializable
+	{
+		private static final long serialVersionUID = -2372806404585741519L;
+
+		final String inputDatasetPath;
+		final String outputDatasetPath;
+		final DatasetAttributes inputAttributes;
+		final DatasetAttributes outputAttributes;
+		final double minInputValue, maxInputValue;
+		final double minOutputValue, maxOutputValue;
+
+		DatasetConversion(
+				final String inputDatasetPath,
+				final String outputDatasetPath,
+				final DatasetAttributes inputAttributes,
+				final DatasetAttributes outputAttributes,
+				final double minInputValue, final double maxInputValue,
+				final double minOutputValue, final double maxOutputValue )
+		{
+			this.inputDatasetPath = inputDatasetPath;
+			this.outputDatasetPath = outputDatasetPath;
+			this.inputAttributes = inputAttributes;
+			this.outputAttributes = outputAttributes;
+			this.minInputValue = minInputValue; this.maxInputValue = maxInputValue;
+			this.minOutputValue = minOutputValue; this.maxOutputValue = maxOutputValue;
+		}
+	}
+
+	/**
+	 * Converts all datasets within the given group (including the datasets in nested groups, such as the levels of a scale pyramid)
+	 * into the output group with the given block size, compression, and data type, preserving the relative paths of the datasets.
+	 *
+	 * All datasets are converted within a single Spark job. The output blocks of all datasets are split into tasks
+	 * of roughly the same estimated number of bytes, so the small datasets (e.g. the coarse levels of a scale pyramid)
+	 * do not end up as separate stages that leave most of the cluster idle.
+	 *
+	 * The custom attributes of the input group, its nested groups, and its datasets (such as the downsampling factors of the scale levels)
+	 * are copied to the output. If overwriteExisting is not set, the conversion fails before creating anything if any of the output datasets exists.
+	 *
+	 * See {@link #convert(JavaSparkContext, N5ReaderSupplier, String, N5WriterSupplier, String, Optional, Optional, Optional, Optional, boolean)}
+	 * for the description of the parameters.
+	 *
+	 * @return relative paths of the converted datasets
+	 */
+	public static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > List< String > convertGroup(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputGroupPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputGroupPath,
+			final Optional< int[] > blockSizeOptional,
+			final Optional< Compression > compressionOptional,
+			final Optional< DataType > dataTypeOptional,
+			final Optional< Pair< Double, Double > > valueRangeOptional,
+			final boolean overwriteExisting ) throws IOException
+	{
+		final N5Reader n5Input = n5InputSupplier.get();
+		final N5Writer n5Output = n5OutputSupplier.get();
+
+		final List< String > datasets = new ArrayList<>(), groups = new ArrayList<>();
+		listDatasets( n5Input, inputGroupPath, "", datasets, groups );
+		if ( datasets.isEmpty() )
+			throw new IllegalArgumentException( "No datasets found in " + inputGroupPath );
+
+		if ( !overwriteExisting )
+			for ( final String dataset : datasets )
+				if ( n5Output.datasetExists( Paths.get( outputGroupPath, dataset ).toString() ) )
+					throw new RuntimeException( "Output dataset already exists: " + Paths.get( outputGroupPath, dataset ).toString() );
+
+		for ( final String group : groups )
+		{
+			final String outputPath = Paths.get( outputGroupPath, group ).toString();
+			n5Output.createGroup( outputPath );
+			copyAttributes( n5Input, Paths.get( inputGroupPath, group ).toString(), n5Output, outputPath );
+		}
+
+		final List< DatasetConversion > conversions = new ArrayList<>();
+		for ( final String dataset : datasets )
+		{
+			final String inputDatasetPath = Paths.get( inputGroupPath, dataset ).toString();
+			final String outputDatasetPath = Paths.get( outputGroupPath, dataset ).toString();
+			final DatasetAttributes inputAttributes = n5Input.getDatasetAttributes( inputDatasetPath );
+			n5Output.createDataset(
+					outputDatasetPath,
+					inputAttributes.getDimensions(),
+					blockSizeOptional.isPresent() ? blockSizeOptional.get() : inputAttributes.getBlockSize(),
+					dataTypeOptional.isPresent() ? dataTypeOptional.get() : inputAttributes.getDataType(),
+					compressionOptional.isPresent() ? compressionOptional.get() : inputAttributes.getCompression() );
+			copyAttributes( n5Input, inputDatasetPath, n5Output, outputDatasetPath );
+			final DatasetAttributes outputAttributes = n5Output.getDatasetAttributes( outputDatasetPath );
+
+			final Pair< Double, Double > inputValueRange = valueRangeOptional.isPresent() ? valueRangeOptional.get() : getDefaultValueRange( inputAttributes.getDataType() );
+			final Pair< Double, Double > outputValueRange = getDefaultValueRange( outputAttributes.getDataType() );
+			conversions.add( new DatasetConversion(
+					inputDatasetPath,
+					outputDatasetPath,
+					inputAttributes,
+					outputAttributes,
+					inputValueRange.getA(), inputValueRange.getB(),
+					outputValueRange.getA(), outputValueRange.getB() ) );
+		}
+
+		// estimate the number of bytes read and written per output block of each dataset
+		final long[] numBlocks = new long[ conversions.size() ], blockBytes = new long[ conversions.size() ];
+		long totalBytes = 0;
+		for ( int i = 0; i < conversions.size(); ++i )
+		{
+			final DatasetConversion conversion = conversions.get( i );
+			final int[] outputBlockSize = conversion.outputAttributes.getBlockSize();
+			numBlocks[ i ] = Intervals.numElements( new CellGrid( conversion.outputAttributes.getDimensions(), outputBlockSize ).getGridDimensions() );
+			blockBytes[ i ] = Intervals.numElements( outputBlockSize ) * ( DataBlockUtils.getNumBytes( conversion.inputAttributes.getDataType() ) + DataBlockUtils.getNumBytes( conversion.outputAttributes.getDataType() ) );
+			totalBytes += numBlocks[ i ] * blockBytes[ i ];
+		}
+
+		// split the blocks of all datasets into ranges of roughly the same size
+		final long taskBytes = Math.max( totalBytes / BlockIndexRDD.MAX_PARTITIONS, DEFAULT_GROUP_TASK_BYTES );
+		final List< long[] > tasks = new ArrayList<>();
+		for ( int i = 0; i < conversions.size(); ++i )
+		{
+			final long blocksPerTask = Math.max( taskBytes / blockBytes[ i ], 1 );
+			for ( long from = 0; from < numBlocks[ i ]; from += blocksPerTask )
+				tasks.add( new long[] { i, from, Math.min( from + blocksPerTask, numBlocks[ i ] ) } );
+		}
+
+		System.out.println( "Converting " + conversions.size() + " datasets in " + tasks.size() + " tasks..." );
+
+		sparkContext.parallelize( tasks, Math.min( tasks.size(), BlockIndexRDD.MAX_PARTITIONS ) ).foreach( task ->
+			{
+				final DatasetConversion conversion = conversions.get( ( int ) task[ 0 ] );
+				final DataType inputDataType = conversion.inputAttributes.getDataType();
+				final DataType outputDataType = conversion.outputAttributes.getDataType();
+				final ClampingConverter< I, O > converter = new ClampingConverter<>(
+						conversion.minInputValue, conversion.maxInputValue,
+						conversion.minOutputValue, conversion.maxOutputValue );
+				final LookupTableConverter lookupTableConverter = inputDataType != outputDataType && LookupTableConverter.isSupported( inputDataType ) ? new LookupTableConverter( inputDataType, outputDataType, converter ) : null;
+
+				final N5Reader n5TaskInput = n5InputSupplier.get();
+				final N5Writer n5TaskOutput = n5OutputSupplier.get();
+				final CellGrid outputBlockGrid = new CellGrid( conversion.outputAttributes.getDimensions(), conversion.outputAttributes.getBlockSize() );
+				final int n = outputBlockGrid.numDimensions();
+				final long[] outputBlockGridPosition = new long[ n ], outputBlockMin = new long[ n ], outputBlockMax = new long[ n ];
+				final int[] outputBlockDimensions = new int[ n ];
+
+				for ( long outputBlockIndex = task[ 1 ]; outputBlockIndex < task[ 2 ]; ++outputBlockIndex )
+				{
+					outputBlockGrid.getCellGridPositionFlat( outputBlockIndex, outputBlockGridPosition );
+					outputBlockGrid.getCellDimensions( outputBlockGridPosition, outputBlockMin, outputBlockDimensions );
+
+					if ( inputDataType == outputDataType || lookupTableConverter != null )
+					{
+						final Object inputData = DataBlockUtils.readRegion( n5TaskInput, conversion.inputDatasetPath, conversion.inputAttributes, outputBlockMin, outputBlockDimensions );
+						final Object outputData;
+						if ( lookupTableConverter != null )
+						{
+							outputData = DataBlockUtils.createArray( outputDataType, ( int ) DataBlockUtils.numElements( outputBlockDimensions ) );
+							lookupTableConverter.convert( inputData, outputData );
+						}
+						else
+						{
+							outputData = inputData;
+						}
+						DataBlockUtils.writeRegion( n5TaskOutput, conversion.outputDatasetPath, conversion.outputAttributes, outputData, outputBlockMin, outputBlockDimensions, !overwriteExisting );
+					}
+					else
+					{
+						for ( int d = 0; d < n; ++d )
+							outputBlockMax[ d ] = outputBlockMin[ d ] + outputBlockDimensions[ d ] - 1;
+
+						final O outputType = dataTypeToImglibType( outputDataType );
+						final RandomAccessibleInterval< I > source = N5Utils.open( n5TaskInput, conversion.inputDatasetPath );
+						final RandomAccessibleInterval< O > convertedSource = Views.offsetInterval(
+								Converters.convert( source, converter, outputType.createVariable() ),
+								new FinalInterval( outputBlockMin, outputBlockMax ) );
+
+						if ( overwriteExisting )
+							N5Utils.saveBlock( convertedSource, n5TaskOutput, conversion.outputDatasetPath, outputBlockGridPosition );
+						else
+							N5Utils.saveNonEmptyBlock( convertedSource, n5TaskOutput, conversion.outputDatasetPath, outputBlockGridPosition, outputType.createVariable() );
+					}
+				}
+			} );
+
+		return datasets;
+	}
+
+	/**
+	 * Collects the paths of all datasets and of all groups that contain them within the given group relative to the root group.
+	 */
+	private static void listDatasets( final N5Reader n5, final String rootGroupPath, final String relativePath, final List< String > datasets, final List< String > groups ) throws IOException
+	{
+		final String path = Paths.get( rootGroupPath, relativePath ).toString();
+		if ( n5.datasetExists( path ) )
+		{
+			// the bitmaps of the completed blocks of resumable jobs are not part of the data
+			if ( !BlockProgress.isProgressDataset( n5, path ) )
+				datasets.add( relativePath );
+			return;
+		}
+
+		final int numDatasets = datasets.size(), groupIndex = groups.size();
+		groups.add( relativePath );
+
+		final String[] children = n5.list( path );
+		Arrays.sort( children );
+		for ( final String child : children )
+			listDatasets( n5, rootGroupPath, relativePath.isEmpty() ? child : Paths.get( relativePath, child ).toString(), datasets, groups );
+
+		// the groups without any datasets are not converted
+		if ( datasets.size() == numDatasets )
+			groups.subList( groupIndex, groups.size() ).clear();
+	}
+
+	/**
+	 * Copies the custom attributes of a group or a dataset, the attributes that describe the dataset itself are set when it is created.
+	 */
+	private static void copyAttributes( final N5Reader n5Input, final String inputPath, final N5Writer n5Output, final String outputPath ) throws IOException
+	{
+		final Map< String, Object > attributes = new HashMap<>();
+		for ( final Map.Entry< String, Class< ? > > attribute : n5Input.listAttributes( inputPath ).entrySet() )
+			if ( !NON_COPYABLE_ATTRIBUTE_KEYS.contains( attribute.getKey() ) )
+				attributes.put( attribute.getKey(), n5Input.getAttribute( inputPath, attribute.getKey(), attribute.getValue() ) );
+
+		if ( !attributes.isEmpty() )
+			n5Output.setAttributes( outputPath, attributes );
+	}
+
+	/**
+	 * Copies a dataset between two filesystem-based N5 containers without decoding the blocks.
+	 * The output dataset is created with the same attributes as the input dataset, and the block files are
+	 * streamed directly into the output container.
+	 *
+	 * The work is parallelized over the block directories (all block grid dimensions except the last one),
+	 * so the directories are created in parallel, and each task copies the block files within one directory.
+	 *
+	 * @param sparkContext
+	 * @param inputBasePath
+	 * @param inputDatasetPath
+	 * @param outputBasePath
+	 * @param outputDatasetPath
+	 * @param overwriteExisting
+	 * @throws IOException
+	 */
+	public static void copyBlockFiles(
+			final JavaSparkContext sparkContext,
+			final String inputBasePath,
+			final String inputDatasetPath,
+			final String outputBasePath,
+			final String outputDatasetPath,
+			final boolean overwriteExisting ) throws IOException
+	{
+		if ( Paths.get( inputBasePath, inputDatasetPath ).toAbsolutePath().normalize().equals( Paths.get( outputBasePath, outputDatasetPath ).toAbsolutePath().normalize() ) )
+			throw new IllegalArgumentException( "Input and output datasets are the same: " + inputDatasetPath );
+
+		final DatasetAttributes inputAttributes = new N5FSReader( inputBasePath ).getDatasetAttributes( inputDatasetPath );
+		final long[] dimensions = inputAttributes.getDimensions();
+		final int[] blockSize = inputAttributes.getBlockSize();
+
+		final N5Writer n5Output = new N5FSWriter( outputBasePath );
+		if ( n5Output.datasetExists( outputDatasetPath ) )
+		{
+			if ( !overwriteExisting )
+				throw new RuntimeException( "Output dataset already exists: " + outputDatasetPath );
+			n5Output.remove( outputDatasetPath );
+		}
+		n5Output.createDataset( outputDatasetPath, inputAttributes );
+
+		final long[] gridDimensions = new CellGrid( dimensions, blockSize ).getGridDimensions();
+		final long[] directoryGridDimensions = Arrays.copyOf( gridDimensions, gridDimensions.length - 1 );
+		final long numBlocksPerDirectory = gridDimensions[ gridDimensions.length - 1 ];
+
+		BlockIndexRDD.create( sparkContext, Intervals.numElements( directoryGridDimensions ) ).foreach( directoryIndex ->
+			{
+				final long[] directoryGridPosition = new long[ directoryGridDimensions.length ];
+				IntervalIndexer.indexToPosition( directoryIndex, directoryGridDimensions, directoryGridPosition );
+
+				Path inputDirectory = Paths.get( inputBasePath, inputDatasetPath );
+				Path outputDirectory = Paths.get( outputBasePath, outputDatasetPath );
+				for ( final long p : directoryGridPosition )
+				{
+					inputDirectory = inputDirectory.resolve( Long.toString( p ) );
+					outputDirectory = outputDirectory.resolve( Long.toString( p ) );
+				}
+
+				if ( !Files.isDirectory( inputDirectory ) )
+					return;
+
+				Files.createDirectories( outputDirectory );
+				for ( long p = 0; p < numBlocksPerDirectory; ++p )
+				{
+					final Path inputBlockPath = inputDirectory.resolve( Long.toString( p ) );
+					if ( Files.exists( inputBlockPath ) )
+						copyFile( inputBlockPath, outputDirectory.resolve( Long.toString( p ) ) );
+				}
+			} );
+	}
+
+	private static void copyFile( final Path source, final Path target ) throws IOException
+	{
+		try (
+				final FileChannel sourceChannel = FileChannel.open( source, StandardOpenOption.READ );
+				final FileChannel targetChannel = FileChannel.open( target, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING ) )
+		{
+			final long size = sourceChannel.size();
+			long position = 0;
+			while ( position < size )
+				position += sourceChannel.transferTo( position, size - position, targetChannel );
+		}
+	}
+
+	/**
+	 * Checks if the dataset with the given attributes would be stored in exactly the same way
+	 * with the given block size, compression, and data type (null means unchanged).
+	 */
+	private static boolean isSameLayout(
+			final DatasetAttributes attributes,
+			final int[] blockSize,
+			final Compression compression,
+			final DataType dataType )
+	{
+		if ( blockSize != null && !Arrays.equals( blockSize, attributes.getBlockSize() ) )
+			return false;
+		if ( dataType != null && dataType != attributes.getDataType() )
+			return false;
+		if ( compression != null )
+		{
+			final Compression inputCompression = attributes.getCompression();
+			if ( compression.getClass() != inputCompression.getClass() )
+				return false;
+			// compare the compression parameters
+			final Gson gson = new Gson();
+			if ( !gson.toJson( compression ).equals( gson.toJson( inputCompression ) ) )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the blocks of the input dataset into the output dataset with the same block size and data type,
+	 * decoding and encoding every block only once without touching the individual values.
+	 */
+	private static void recompressBlocks(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final boolean overwriteExisting,
+			final boolean mortonOrder,
+			final BlockProgress progress ) throws IOException
+	{
+		final DatasetAttributes inputAttributes = n5InputSupplier.get().getDatasetAttributes( inputDatasetPath );
+		final long[] dimensions = inputAttributes.getDimensions();
+		final int[] blockSize = inputAttributes.getBlockSize();
+		final DataType dataType = inputAttributes.getDataType();
+
+		final DatasetAttributes outputAttributes = n5OutputSupplier.get().getDatasetAttributes( outputDatasetPath );
+
+		final JavaRDD< Long > rdd = progress != null ? progress.createChunkRDD( sparkContext ) : BlockIndexRDD.create( sparkContext, new CellGrid( dimensions, blockSize ).getGridDimensions(), mortonOrder );
+		rdd.foreachPartition( indexes ->
+		{
+			final N5Reader n5Input = n5InputSupplier.get();
+			final N5Writer n5Output = n5OutputSupplier.get();
+			final BlockConsumer blockConsumer = blockIndex ->
+			{
+				final CellGrid blockGrid = new CellGrid( dimensions, blockSize );
+				final long[] blockGridPosition = new long[ blockGrid.numDimensions() ];
+				blockGrid.getCellGridPositionFlat( blockIndex, blockGridPosition );
+
+				// the blocks that have not been recorded as completed may have been written partially
+				final boolean writeEmptyBlocks = overwriteExisting || ( progress != null && DataBlockUtils.blockExists( n5Output, outputDatasetPath, outputAttributes, blockGridPosition ) );
+
+				final DataBlock< ? > block = n5Input.readBlock( inputDatasetPath, inputAttributes, blockGridPosition );
+				if ( block == null || DataBlockUtils.isEmpty( block.getData() ) )
+				{
+					if ( !writeEmptyBlocks )
+						return;
+
+					if ( block == null )
+					{
+						final long[] blockMin = new long[ blockGrid.numDimensions() ];
+						final int[] blockDimensions = new int[ blockGrid.numDimensions() ];
+						blockGrid.getCellDimensions( blockGridPosition, blockMin, blockDimensions );
+						n5Output.writeBlock( outputDatasetPath, outputAttributes, DataBlockUtils.createDataBlock(
+								dataType,
+								blockDimensions,
+								blockGridPosition,
+								DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( blockDimensions ) ) ) );
+						return;
+					}
+				}
+
+				n5Output.writeBlock( outputDatasetPath, outputAttributes, block );
+			};
+
+			if ( progress != null )
+				progress.processChunks( n5Output, indexes, blockConsumer );
+			else
+				while ( indexes.hasNext() )
+					blockConsumer.accept( indexes.next() );
+		} );
 	}
 
 	@SuppressWarnings( "unchecked" )
@@ -228,7 +839,9 @@ public class N5ConvertSpark
 			final String outputDatasetPath,
 			final double minInputValue, final double maxInputValue,
 			final double minOutputValue, final double maxOutputValue,
-			final boolean overwriteExisting ) throws IOException
+			final boolean overwriteExisting,
+			final boolean mortonOrder,
+			final BlockProgress progress ) throws IOException
 	{
 		final DatasetAttributes inputAttributes = n5InputSupplier.get().getDatasetAttributes( inputDatasetPath );
 		final long[] dimensions = inputAttributes.getDimensions();
@@ -238,54 +851,83 @@ public class N5ConvertSpark
 		final int[] outputBlockSize = outputAttributes.getBlockSize();
 		final DataType outputDataType = outputAttributes.getDataType();
 
-		final long numOutputBlocks = Intervals.numElements( new CellGrid( dimensions, outputBlockSize ).getGridDimensions() );
-		final List< Long > outputBlockIndexes = LongStream.range( 0, numOutputBlocks ).boxed().collect( Collectors.toList() );
+		// keep the input blocks of the last 2^n processed blocks, which is enough to reuse them within a Morton cell (as long as they fit into the memory budget)
+		final int[] inputBlockSize = inputAttributes.getBlockSize();
+		final int blockCacheSize = mortonOrder && progress == null ? DataBlockCache.getMaxNumBlocks( ( long ) getNumCoveredBlocks( outputBlockSize, inputBlockSize ) << dimensions.length, inputBlockSize, inputDataType, DataBlockCache.DEFAULT_MAX_BYTES ) : 0;
+
+		final boolean useLookupTable = inputDataType != outputDataType && LookupTableConverter.isSupported( inputDataType );
 
-		sparkContext.parallelize( outputBlockIndexes, Math.min( outputBlockIndexes.size(), MAX_PARTITIONS ) ).foreach( outputBlockIndex ->
+		final JavaRDD< Long > rdd = progress != null ? progress.createChunkRDD( sparkContext ) : BlockIndexRDD.create( sparkContext, new CellGrid( dimensions, outputBlockSize ).getGridDimensions(), mortonOrder );
+		rdd.foreachPartition( indexes ->
 		{
-			final CellGrid outputBlockGrid = new CellGrid( dimensions, outputBlockSize );
-			final long[] outputBlockGridPosition = new long[ outputBlockGrid.numDimensions() ];
-			outputBlockGrid.getCellGridPositionFlat( outputBlockIndex, outputBlockGridPosition );
-
-			final long[] outputBlockMin = new long[ outputBlockGrid.numDimensions() ], outputBlockMax = new long[ outputBlockGrid.numDimensions() ];
-			final int[] outputBlockDimensions = new int[ outputBlockGrid.numDimensions() ];
-			outputBlockGrid.getCellDimensions( outputBlockGridPosition, outputBlockMin, outputBlockDimensions );
-			for ( int d = 0; d < outputBlockGrid.numDimensions(); ++d )
-				outputBlockMax[ d ] = outputBlockMin[ d ] + outputBlockDimensions[ d ] - 1;
-			final Interval outputBlockInterval = new FinalInterval( outputBlockMin, outputBlockMax );
-
-			final O outputType = dataTypeToImglibType( outputDataType );
-
-			final RandomAccessibleInterval< I > source = N5Utils.open( n5InputSupplier.get(), inputDatasetPath );
-			final RandomAccessible< O > convertedSource;
-			if ( inputDataType == outputDataType )
-			{
-				convertedSource = ( RandomAccessible< O > ) source;
-			}
-			else
+			final LookupTableConverter lookupTableConverter = useLookupTable ? new LookupTableConverter( inputDataType, outputDataType, new ClampingConverter< I, O >(
+					minInputValue, maxInputValue,
+					minOutputValue, maxOutputValue
+				) ) : null;
+			final DataBlockCache sourceBlocks = useLookupTable ? new DataBlockCache( n5InputSupplier.get(), inputDatasetPath, inputAttributes, blockCacheSize ) : null;
+			final RandomAccessibleInterval< I > cachedSource = !useLookupTable && blockCacheSize > 0 ? N5SparkUtils.openWithBoundedCache( n5InputSupplier.get(), inputDatasetPath, blockCacheSize ) : null;
+			final BlockConsumer blockConsumer = outputBlockIndex ->
 			{
-				convertedSource = Converters.convert( source, new ClampingConverter< I, O >(
-						minInputValue, maxInputValue,
-						minOutputValue, maxOutputValue
-					), outputType.createVariable() );
-			}
-			final RandomAccessibleInterval< O > convertedSourceInterval = Views.offsetInterval( convertedSource, outputBlockInterval );
+				final CellGrid outputBlockGrid = new CellGrid( dimensions, outputBlockSize );
+				final long[] outputBlockGridPosition = new long[ outputBlockGrid.numDimensions() ];
+				outputBlockGrid.getCellGridPositionFlat( outputBlockIndex, outputBlockGridPosition );
 
-			if ( overwriteExisting )
-				N5Utils.saveBlock(
-					convertedSourceInterval,
-					n5OutputSupplier.get(),
-					outputDatasetPath,
-					outputBlockGridPosition
-				);
+				final long[] outputBlockMin = new long[ outputBlockGrid.numDimensions() ], outputBlockMax = new long[ outputBlockGrid.numDimensions() ];
+				final int[] outputBlockDimensions = new int[ outputBlockGrid.numDimensions() ];
+				outputBlockGrid.getCellDimensions( outputBlockGridPosition, outputBlockMin, outputBlockDimensions );
+				for ( int d = 0; d < outputBlockGrid.numDimensions(); ++d )
+					outputBlockMax[ d ] = outputBlockMin[ d ] + outputBlockDimensions[ d ] - 1;
+
+				// the blocks that have not been recorded as completed may have been written partially
+				final boolean writeEmptyBlocks = overwriteExisting || ( progress != null && DataBlockUtils.blockExists( n5OutputSupplier.get(), outputDatasetPath, outputAttributes, outputBlockGridPosition ) );
+
+				if ( lookupTableConverter != null )
+				{
+					convertRegion( lookupTableConverter, sourceBlocks, inputAttributes, n5OutputSupplier.get(), outputDatasetPath, outputAttributes, outputBlockMin, outputBlockDimensions, writeEmptyBlocks );
+					return;
+				}
+
+				final Interval outputBlockInterval = new FinalInterval( outputBlockMin, outputBlockMax );
+
+				final O outputType = dataTypeToImglibType( outputDataType );
+
+				final RandomAccessibleInterval< I > source = cachedSource != null ? cachedSource : N5Utils.open( n5InputSupplier.get(), inputDatasetPath );
+				final RandomAccessible< O > convertedSource;
+				if ( inputDataType == outputDataType )
+				{
+					convertedSource = ( RandomAccessible< O > ) source;
+				}
+				else
+				{
+					convertedSource = Converters.convert( source, new ClampingConverter< I, O >(
+							minInputValue, maxInputValue,
+							minOutputValue, maxOutputValue
+						), outputType.createVariable() );
+				}
+				final RandomAccessibleInterval< O > convertedSourceInterval = Views.offsetInterval( convertedSource, outputBlockInterval );
+
+				if ( writeEmptyBlocks )
+					N5Utils.saveBlock(
+						convertedSourceInterval,
+						n5OutputSupplier.get(),
+						outputDatasetPath,
+						outputBlockGridPosition
+					);
+				else
+					N5Utils.saveNonEmptyBlock(
+						convertedSourceInterval,
+						n5OutputSupplier.get(),
+						outputDatasetPath,
+						outputBlockGridPosition,
+						outputType.createVariable()
+					);
+			};
+
+			if ( progress != null )
+				progress.processChunks( n5OutputSupplier.get(), indexes, blockConsumer );
 			else
-				N5Utils.saveNonEmptyBlock(
-					convertedSourceInterval,
-					n5OutputSupplier.get(),
-					outputDatasetPath,
-					outputBlockGridPosition,
-					outputType.createVariable()
-				);
+				while ( indexes.hasNext() )
+					blockConsumer.accept( indexes.next() );
 		} );
 	}
 
@@ -298,7 +940,9 @@ public class N5ConvertSpark
 			final String outputDatasetPath,
 			final double minInputValue, final double maxInputValue,
 			final double minOutputValue, final double maxOutputValue,
-			final boolean overwriteExisting ) throws IOException
+			final boolean overwriteExisting,
+			final boolean mortonOrder,
+			final BlockProgress progress ) throws IOException
 	{
 		final DatasetAttributes inputAttributes = n5InputSupplier.get().getDatasetAttributes( inputDatasetPath );
 		final long[] dimensions = inputAttributes.getDimensions();
@@ -309,69 +953,354 @@ public class N5ConvertSpark
 		final int[] outputBlockSize = outputAttributes.getBlockSize();
 		final DataType outputDataType = outputAttributes.getDataType();
 
-		// adjust the size of the processing block to minimize number of reads of each input block
-		final int[] adjustedBlockSize = new int[ inputBlockSize.length ];
-		for ( int d = 0; d < adjustedBlockSize.length; ++d )
-			adjustedBlockSize[ d ] = ( int ) Math.max( Math.round( ( double ) inputBlockSize[ d ] / outputBlockSize[ d ] ), 1) * outputBlockSize[ d ];
+		final int[] adjustedBlockSize = getAdjustedBlockSize( inputBlockSize, outputBlockSize );
+
+		// keep the input blocks of the last 2^n processed blocks, which is enough to reuse them within a Morton cell (as long as they fit into the memory budget)
+		final int blockCacheSize = mortonOrder && progress == null ? DataBlockCache.getMaxNumBlocks( ( long ) getNumCoveredBlocks( adjustedBlockSize, inputBlockSize ) << dimensions.length, inputBlockSize, inputDataType, DataBlockCache.DEFAULT_MAX_BYTES ) : 0;
 
-		final long numAdjustedBlocks = Intervals.numElements( new CellGrid( dimensions, adjustedBlockSize ).getGridDimensions() );
-		final List< Long > adjustedBlockIndexes = LongStream.range( 0, numAdjustedBlocks ).boxed().collect( Collectors.toList() );
+		final boolean useLookupTable = inputDataType != outputDataType && LookupTableConverter.isSupported( inputDataType );
 
-		sparkContext.parallelize( adjustedBlockIndexes, Math.min( adjustedBlockIndexes.size(), MAX_PARTITIONS ) ).foreach( adjustedBlockIndex ->
+		final JavaRDD< Long > rdd = progress != null ? progress.createChunkRDD( sparkContext ) : BlockIndexRDD.create( sparkContext, new CellGrid( dimensions, adjustedBlockSize ).getGridDimensions(), mortonOrder );
+		rdd.foreachPartition( indexes ->
 		{
-			final CellGrid adjustedBlockGrid = new CellGrid( dimensions, adjustedBlockSize );
-			final long[] adjustedBlockGridPosition = new long[ adjustedBlockGrid.numDimensions() ];
-			adjustedBlockGrid.getCellGridPositionFlat( adjustedBlockIndex, adjustedBlockGridPosition );
-
-			final long[] adjustedBlockMin = new long[ adjustedBlockGrid.numDimensions() ], adjustedBlockMax = new long[ adjustedBlockGrid.numDimensions() ];
-			final int[] adjustedBlockDimensions = new int[ adjustedBlockGrid.numDimensions() ];
-			adjustedBlockGrid.getCellDimensions( adjustedBlockGridPosition, adjustedBlockMin, adjustedBlockDimensions );
-			for ( int d = 0; d < adjustedBlockGrid.numDimensions(); ++d )
-				adjustedBlockMax[ d ] = adjustedBlockMin[ d ] + adjustedBlockDimensions[ d ] - 1;
-			final Interval adjustedBlockInterval = new FinalInterval( adjustedBlockMin, adjustedBlockMax );
-
-			final O outputType = dataTypeToImglibType( outputDataType );
-
-			final RandomAccessibleInterval< I > source = N5Utils.open( n5InputSupplier.get(), inputDatasetPath );
-			final RandomAccessible< O > convertedSource;
-			if ( inputDataType == outputDataType )
-			{
-				convertedSource = ( RandomAccessible< O > ) source;
-			}
-			else
+			final LookupTableConverter lookupTableConverter = useLookupTable ? new LookupTableConverter( inputDataType, outputDataType, new ClampingConverter< I, O >(
+					minInputValue, maxInputValue,
+					minOutputValue, maxOutputValue
+				) ) : null;
+			final DataBlockCache sourceBlocks = useLookupTable ? new DataBlockCache( n5InputSupplier.get(), inputDatasetPath, inputAttributes, blockCacheSize ) : null;
+			final RandomAccessibleInterval< I > cachedSource = !useLookupTable && blockCacheSize > 0 ? N5SparkUtils.openWithBoundedCache( n5InputSupplier.get(), inputDatasetPath, blockCacheSize ) : null;
+			final BlockConsumer blockConsumer = adjustedBlockIndex ->
 			{
-				convertedSource = Converters.convert( source, new ClampingConverter< I, O >(
-						minInputValue, maxInputValue,
-						minOutputValue, maxOutputValue
-					), outputType.createVariable() );
-			}
-			final RandomAccessibleInterval< O > convertedSourceInterval = Views.offsetInterval( convertedSource, adjustedBlockInterval );
+				final CellGrid adjustedBlockGrid = new CellGrid( dimensions, adjustedBlockSize );
+				final long[] adjustedBlockGridPosition = new long[ adjustedBlockGrid.numDimensions() ];
+				adjustedBlockGrid.getCellGridPositionFlat( adjustedBlockIndex, adjustedBlockGridPosition );
 
-			// compute correct output block grid offset
-			final CellGrid outputBlockGrid = new CellGrid( dimensions, outputBlockSize );
-			final long[] outputBlockGridPosition = new long[ outputBlockGrid.numDimensions() ];
-			outputBlockGrid.getCellPosition( adjustedBlockMin, outputBlockGridPosition );
+				final long[] adjustedBlockMin = new long[ adjustedBlockGrid.numDimensions() ], adjustedBlockMax = new long[ adjustedBlockGrid.numDimensions() ];
+				final int[] adjustedBlockDimensions = new int[ adjustedBlockGrid.numDimensions() ];
+				adjustedBlockGrid.getCellDimensions( adjustedBlockGridPosition, adjustedBlockMin, adjustedBlockDimensions );
+				for ( int d = 0; d < adjustedBlockGrid.numDimensions(); ++d )
+					adjustedBlockMax[ d ] = adjustedBlockMin[ d ] + adjustedBlockDimensions[ d ] - 1;
 
-			if ( overwriteExisting )
-				N5Utils.saveBlock(
-					convertedSourceInterval,
-					n5OutputSupplier.get(),
-					outputDatasetPath,
-					outputBlockGridPosition
-				);
+				// the blocks that have not been recorded as completed may have been written partially
+				final boolean writeEmptyBlocks = overwriteExisting || ( progress != null && DataBlockUtils.anyBlockExists( n5OutputSupplier.get(), outputDatasetPath, outputAttributes, adjustedBlockMin, adjustedBlockMax ) );
+
+				if ( lookupTableConverter != null )
+				{
+					convertRegion( lookupTableConverter, sourceBlocks, inputAttributes, n5OutputSupplier.get(), outputDatasetPath, outputAttributes, adjustedBlockMin, adjustedBlockDimensions, writeEmptyBlocks );
+					return;
+				}
+
+				final Interval adjustedBlockInterval = new FinalInterval( adjustedBlockMin, adjustedBlockMax );
+
+				final O outputType = dataTypeToImglibType( outputDataType );
+
+				final RandomAccessibleInterval< I > source = cachedSource != null ? cachedSource : N5Utils.open( n5InputSupplier.get(), inputDatasetPath );
+				final RandomAccessible< O > convertedSource;
+				if ( inputDataType == outputDataType )
+				{
+					convertedSource = ( RandomAccessible< O > ) source;
+				}
+				else
+				{
+					convertedSource = Converters.convert( source, new ClampingConverter< I, O >(
+							minInputValue, maxInputValue,
+							minOutputValue, maxOutputValue
+						), outputType.createVariable() );
+				}
+				final RandomAccessibleInterval< O > convertedSourceInterval = Views.offsetInterval( convertedSource, adjustedBlockInterval );
+
+				// compute correct output block grid offset
+				final CellGrid outputBlockGrid = new CellGrid( dimensions, outputBlockSize );
+				final long[] outputBlockGridPosition = new long[ outputBlockGrid.numDimensions() ];
+				outputBlockGrid.getCellPosition( adjustedBlockMin, outputBlockGridPosition );
+
+				if ( writeEmptyBlocks )
+					N5Utils.saveBlock(
+						convertedSourceInterval,
+						n5OutputSupplier.get(),
+						outputDatasetPath,
+						outputBlockGridPosition
+					);
+				else
+					N5Utils.saveNonEmptyBlock(
+						convertedSourceInterval,
+						n5OutputSupplier.get(),
+						outputDatasetPath,
+						outputBlockGridPosition,
+						outputType.createVariable()
+					);
+			};
+
+			if ( progress != null )
+				progress.processChunks( n5OutputSupplier.get(), indexes, blockConsumer );
 			else
-				N5Utils.saveNonEmptyBlock(
-					convertedSourceInterval,
-					n5OutputSupplier.get(),
-					outputDatasetPath,
-					outputBlockGridPosition,
-					outputType.createVariable()
-				);
+				while ( indexes.hasNext() )
+					blockConsumer.accept( indexes.next() );
 		} );
 	}
 
+	/**
+	 * Part of an input block that belongs to a single output block.
+	 */
+	private static class BlockFragment implements Serializable
+	{
+		private static final long serialVersionUID = 5361796315806622592L;
+
+		/**
+		 * Position of the fragment within the output block.
+		 */
+		final int[] offset;
+		final int[] dimensions;
+
+		/**
+		 * Flat primitive array of the input type, or null if the input block does not exist.
+		 */
+		final Object data;
+
+		BlockFragment( final int[] offset, final int[] dimensions, final Object data )
+		{
+			this.offset = offset;
+			this.dimensions = dimensions;
+			this.data = data;
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void convertWithShuffle(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5InputSupplier,
+			final String inputDatasetPath,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputDatasetPath,
+			final double minInputValue, final double maxInputValue,
+			final double minOutputValue, final double maxOutputValue,
+			final boolean overwriteExisting,
+			final long maxShufflePartitionBytes ) throws IOException
+	{
+		final DatasetAttributes inputAttributes = n5InputSupplier.get().getDatasetAttributes( inputDatasetPath );
+		final long[] dimensions = inputAttributes.getDimensions();
+		final int[] inputBlockSize = inputAttributes.getBlockSize();
+		final DataType inputDataType = inputAttributes.getDataType();
+		final int dim = dimensions.length;
+
+		final DatasetAttributes outputAttributes = n5OutputSupplier.get().getDatasetAttributes( outputDatasetPath );
+		final int[] outputBlockSize = outputAttributes.getBlockSize();
+		final DataType outputDataType = outputAttributes.getDataType();
+
+		final long[] inputGridDimensions = new CellGrid( dimensions, inputBlockSize ).getGridDimensions();
+		final long[] outputGridDimensions = new CellGrid( dimensions, outputBlockSize ).getGridDimensions();
+		final long numOutputBlocks = Intervals.numElements( outputGridDimensions );
+
+		// every partition assembles its output blocks in memory (the shuffle spills to disk if they do not fit)
+		final long outputBlockBytes = Intervals.numElements( outputBlockSize ) * Math.max( DataBlockUtils.getNumBytes( inputDataType ), DataBlockUtils.getNumBytes( outputDataType ) );
+		final long numBlocksPerPartition = Math.max( maxShufflePartitionBytes / outputBlockBytes, 1 );
+		final int numPartitions = ( int ) Math.min(
+				Math.max( ( numOutputBlocks + numBlocksPerPartition - 1 ) / numBlocksPerPartition, sparkContext.defaultParallelism() ),
+				Math.min( numOutputBlocks, Integer.MAX_VALUE ) );
+
+		final boolean useLookupTable = inputDataType != outputDataType && LookupTableConverter.isSupported( inputDataType );
+
+		BlockIndexRDD.create( sparkContext, Intervals.numElements( inputGridDimensions ) )
+			// split every input block into the fragments that belong to different output blocks
+			.flatMapToPair( inputBlockIndex ->
+				{
+					final CellGrid inputGrid = new CellGrid( dimensions, inputBlockSize );
+					final long[] inputBlockGridPosition = new long[ dim ];
+					inputGrid.getCellGridPositionFlat( inputBlockIndex, inputBlockGridPosition );
+					final long[] inputBlockMin = new long[ dim ];
+					final int[] inputBlockDimensions = new int[ dim ];
+					inputGrid.getCellDimensions( inputBlockGridPosition, inputBlockMin, inputBlockDimensions );
+
+					final DataBlock< ? > inputBlock = n5InputSupplier.get().readBlock( inputDatasetPath, inputAttributes, inputBlockGridPosition );
+
+					final long[] outputGridMin = new long[ dim ], outputGridMax = new long[ dim ];
+					for ( int d = 0; d < dim; ++d )
+					{
+						outputGridMin[ d ] = inputBlockMin[ d ] / outputBlockSize[ d ];
+						outputGridMax[ d ] = ( inputBlockMin[ d ] + inputBlockDimensions[ d ] - 1 ) / outputBlockSize[ d ];
+					}
+
+					final List< Tuple2< Long, BlockFragment > > fragments = new ArrayList<>();
+					final long[] outputBlockGridPosition = outputGridMin.clone();
+					do
+					{
+						final int[] fragmentOffset = new int[ dim ], fragmentDimensions = new int[ dim ], inputBlockOffset = new int[ dim ];
+						for ( int d = 0; d < dim; ++d )
+						{
+							final long outputBlockMin = outputBlockGridPosition[ d ] * outputBlockSize[ d ];
+							final long fragmentMin = Math.max( outputBlockMin, inputBlockMin[ d ] );
+							final long fragmentMax = Math.min( outputBlockMin + outputBlockSize[ d ], inputBlockMin[ d ] + inputBlockDimensions[ d ] ) - 1;
+							fragmentOffset[ d ] = ( int ) ( fragmentMin - outputBlockMin );
+							fragmentDimensions[ d ] = ( int ) ( fragmentMax - fragmentMin + 1 );
+							inputBlockOffset[ d ] = ( int ) ( fragmentMin - inputBlockMin[ d ] );
+						}
+
+						final Object fragmentData;
+						if ( inputBlock != null )
+						{
+							fragmentData = DataBlockUtils.createArray( inputDataType, ( int ) DataBlockUtils.numElements( fragmentDimensions ) );
+							DataBlockUtils.copyRegion( inputBlock.getData(), inputBlock.getSize(), inputBlockOffset, fragmentData, fragmentDimensions, new int[ dim ], fragmentDimensions );
+						}
+						else
+						{
+							fragmentData = null;
+						}
+
+						fragments.add( new Tuple2<>(
+								IntervalIndexer.positionToIndex( outputBlockGridPosition, outputGridDimensions ),
+								new BlockFragment( fragmentOffset, fragmentDimensions, fragmentData ) ) );
+					}
+					while ( DataBlockUtils.nextGridPosition( outputBlockGridPosition, outputGridMin, outputGridMax ) );
+
+					return fragments.iterator();
+				} )
+			// assemble the output blocks, the fragments of each output block are disjoint
+			.combineByKey(
+					fragment -> new Object[] { fragment },
+					( fragments, fragment ) ->
+					{
+						final Object[] merged = Arrays.copyOf( fragments, fragments.length + 1 );
+						merged[ fragments.length ] = fragment;
+						return merged;
+					},
+					( fragments1, fragments2 ) ->
+					{
+						final Object[] merged = Arrays.copyOf( fragments1, fragments1.length + fragments2.length );
+						System.arraycopy( fragments2, 0, merged, fragments1.length, fragments2.length );
+						return merged;
+					},
+					new HashPartitioner( numPartitions ),
+					false,
+					null )
+			.foreachPartition( outputBlocks ->
+				{
+					final LookupTableConverter lookupTableConverter = useLookupTable ? new LookupTableConverter( inputDataType, outputDataType, new ClampingConverter< I, O >(
+							minInputValue, maxInputValue,
+							minOutputValue, maxOutputValue
+						) ) : null;
+					final N5Writer n5Output = n5OutputSupplier.get();
+					final CellGrid outputGrid = new CellGrid( dimensions, outputBlockSize );
+
+					while ( outputBlocks.hasNext() )
+					{
+						final Tuple2< Long, Object[] > outputBlockFragments = outputBlocks.next();
+						final long[] outputBlockGridPosition = new long[ dim ], outputBlockMin = new long[ dim ];
+						final int[] outputBlockDimensions = new int[ dim ];
+						outputGrid.getCellGridPositionFlat( outputBlockFragments._1(), outputBlockGridPosition );
+						outputGrid.getCellDimensions( outputBlockGridPosition, outputBlockMin, outputBlockDimensions );
+
+						final Object inputData = DataBlockUtils.createArray( inputDataType, ( int ) DataBlockUtils.numElements( outputBlockDimensions ) );
+						for ( final Object fragmentObject : outputBlockFragments._2() )
+						{
+							final BlockFragment fragment = ( BlockFragment ) fragmentObject;
+							if ( fragment.data != null )
+								DataBlockUtils.copyRegion( fragment.data, fragment.dimensions, new int[ dim ], inputData, outputBlockDimensions, fragment.offset, fragment.dimensions );
+						}
+
+						if ( inputDataType == outputDataType || lookupTableConverter != null )
+						{
+							final Object outputData;
+							if ( lookupTableConverter != null )
+							{
+								outputData = DataBlockUtils.createArray( outputDataType, ( int ) DataBlockUtils.numElements( outputBlockDimensions ) );
+								lookupTableConverter.convert( inputData, outputData );
+							}
+							else
+							{
+								outputData = inputData;
+							}
+							DataBlockUtils.writeRegion( n5Output, outputDatasetPath, outputAttributes, outputData, outputBlockMin, outputBlockDimensions, !overwriteExisting );
+						}
+						else
+						{
+							final RandomAccessibleInterval< I > source = N5SparkUtils.wrapArray( inputDataType, inputData, Arrays.stream( outputBlockDimensions ).asLongStream().toArray() );
+							final O outputType = dataTypeToImglibType( outputDataType );
+							final RandomAccessibleInterval< O > convertedSource = Converters.convert( source, new ClampingConverter< I, O >(
+									minInputValue, maxInputValue,
+									minOutputValue, maxOutputValue
+								), outputType.createVariable() );
+
+							if ( overwriteExisting )
+								N5Utils.saveBlock( convertedSource, n5Output, outputDatasetPath, outputBlockGridPosition );
+							else
+								N5Utils.saveNonEmptyBlock( convertedSource, n5Output, outputDatasetPath, outputBlockGridPosition, outputType.createVariable() );
+						}
+					}
+				} );
+	}
+
+	/**
+	 * Converts the given region of the input dataset using the lookup table and writes it into the output dataset.
+	 * The region is read from the decoded input blocks and converted as a flat primitive array.
+	 *
+	 * @param lookupTableConverter
+	 * @param sourceBlocks
+	 * @param inputAttributes
+	 * @param n5Output
+	 * @param outputDatasetPath
+	 * @param outputAttributes
+	 * @param min
+	 * 			min of the region, aligned with the output block grid
+	 * @param dimensions
+	 * 			dimensions of the region
+	 * @param writeEmptyBlocks
+	 * 			if false, the output blocks that contain only zeros are not written
+	 * @throws IOException
+	 */
+	private static void convertRegion(
+			final LookupTableConverter lookupTableConverter,
+			final DataBlockReader sourceBlocks,
+			final DatasetAttributes inputAttributes,
+			final N5Writer n5Output,
+			final String outputDatasetPath,
+			final DatasetAttributes outputAttributes,
+			final long[] min,
+			final int[] dimensions,
+			final boolean writeEmptyBlocks ) throws IOException
+	{
+		final Object sourceData = DataBlockUtils.readRegion( sourceBlocks, inputAttributes, min, dimensions );
+		final Object targetData = DataBlockUtils.createArray( outputAttributes.getDataType(), ( int ) DataBlockUtils.numElements( dimensions ) );
+		lookupTableConverter.convert( sourceData, targetData );
+		DataBlockUtils.writeRegion( n5Output, outputDatasetPath, outputAttributes, targetData, min, dimensions, !writeEmptyBlocks );
+	}
+
+	/**
+	 * Returns the value range of the given integer type, or [0,1] for real types.
+	 */
+	private static < T extends NativeType< T > & RealType< T > > Pair< Double, Double > getDefaultValueRange( final DataType dataType )
+	{
+		if ( dataType == DataType.FLOAT32 || dataType == DataType.FLOAT64 )
+			return new ValuePair<>( 0.0, 1.0 );
+
+		final T type = dataTypeToImglibType( dataType );
+		return new ValuePair<>( type.getMinValue(), type.getMaxValue() );
+	}
+
+	/**
+	 * Adjusts the size of the processing block to be a multiple of the output block size
+	 * and as close as possible to the input block size, which minimizes the number of reads of each input block.
+	 */
+	private static int[] getAdjustedBlockSize( final int[] inputBlockSize, final int[] outputBlockSize )
+	{
+		final int[] adjustedBlockSize = new int[ inputBlockSize.length ];
+		for ( int d = 0; d < adjustedBlockSize.length; ++d )
+			adjustedBlockSize[ d ] = ( int ) Math.max( Math.round( ( double ) inputBlockSize[ d ] / outputBlockSize[ d ] ), 1) * outputBlockSize[ d ];
+		return adjustedBlockSize;
+	}
+
+	/**
+	 * Max number of blocks of the given size that can be intersected by a box of the given size.
+	 */
+	private static int getNumCoveredBlocks( final int[] boxSize, final int[] blockSize )
+	{
+		int numBlocks = 1;
+		for ( int d = 0; d < boxSize.length; ++d )
+			numBlocks *= ( boxSize[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ] + 1;
+		return numBlocks;
+	}
+
 	@SuppressWarnings( "unchecked" )
-	private static < T extends NativeType< T > & RealType< T > > T dataTypeToImglibType( final DataType dataType )
+	static < T extends NativeType< T > & RealType< T > > T dataTypeToImglibType( final DataType dataType )
 	{
 		switch ( dataType )
 		{
@@ -411,18 +1340,105 @@ public class N5ConvertSpark
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			convert(
-					sparkContext,
-					() -> new N5FSReader( parsedArgs.getInputN5Path() ),
-					parsedArgs.getInputDatasetPath(),
-					() -> new N5FSWriter( parsedArgs.getOutputN5Path() ),
-					parsedArgs.getOutputDatasetPath(),
-					Optional.ofNullable( parsedArgs.getBlockSize() ),
-					Optional.ofNullable( parsedArgs.getCompression() ),
-					Optional.ofNullable( parsedArgs.getDataType() ),
-					Optional.ofNullable( parsedArgs.getValueRange() ),
-					parsedArgs.force
-				);
+			final N5ReaderSupplier n5InputSupplier = N5ExecutorCache.fsReaderSupplier( parsedArgs.getInputN5Path() );
+			final N5WriterSupplier n5OutputSupplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getOutputN5Path() );
+			final double[] percentiles = parsedArgs.getPercentiles();
+
+			Pair< Double, Double > valueRange = parsedArgs.getValueRange();
+			if ( valueRange == null && percentiles != null )
+			{
+				// reuse the value range if it has already been estimated with the same percentiles
+				valueRange = N5ValueRangeSpark.getStoredValueRange( n5InputSupplier.get(), parsedArgs.getInputDatasetPath(), percentiles[ 0 ], percentiles[ 1 ] );
+				if ( valueRange == null )
+				{
+					System.out.println( "Estimating the input value range from percentiles " + Arrays.toString( percentiles ) + "..." );
+					valueRange = N5ValueRangeSpark.estimateValueRange(
+							sparkContext,
+							n5InputSupplier,
+							parsedArgs.getInputDatasetPath(),
+							percentiles[ 0 ],
+							percentiles[ 1 ],
+							parsedArgs.getSampleFraction()
+						);
+
+					if ( parsedArgs.getInputN5Path().equals( parsedArgs.getOutputN5Path() ) )
+						N5ValueRangeSpark.storeValueRange( n5OutputSupplier.get(), parsedArgs.getInputDatasetPath(), valueRange, percentiles[ 0 ], percentiles[ 1 ] );
+				}
+			}
+
+			final Compression compression;
+			if ( parsedArgs.getCompressionMinRatio() != null )
+			{
+				System.out.println( "Benchmarking the compression schemes on the input blocks..." );
+				compression = N5CompressionAdvisorSpark.recommendCompression(
+						sparkContext,
+						n5InputSupplier,
+						parsedArgs.getInputDatasetPath(),
+						N5CompressionAdvisorSpark.DEFAULT_NUM_SAMPLED_BLOCKS,
+						parsedArgs.getCompressionMinRatio()
+					);
+			}
+			else
+			{
+				compression = parsedArgs.getCompression();
+			}
+
+			final boolean copyFiles = !parsedArgs.group && !parsedArgs.resume && isSameLayout(
+					n5InputSupplier.get().getDatasetAttributes( parsedArgs.getInputDatasetPath() ),
+					parsedArgs.getBlockSize(),
+					compression,
+					parsedArgs.getDataType() );
+
+			if ( parsedArgs.group )
+			{
+				final List< String > datasets = convertGroup(
+						sparkContext,
+						n5InputSupplier,
+						parsedArgs.getInputDatasetPath(),
+						n5OutputSupplier,
+						parsedArgs.getOutputDatasetPath(),
+						Optional.ofNullable( parsedArgs.getBlockSize() ),
+						Optional.ofNullable( compression ),
+						Optional.ofNullable( parsedArgs.getDataType() ),
+						Optional.ofNullable( valueRange ),
+						parsedArgs.force
+					);
+				System.out.println( "Converted datasets: " + datasets );
+			}
+			else if ( copyFiles )
+			{
+				System.out.println( "Output dataset has the same layout as the input dataset, copying the block files..." );
+				copyBlockFiles(
+						sparkContext,
+						parsedArgs.getInputN5Path(),
+						parsedArgs.getInputDatasetPath(),
+						parsedArgs.getOutputN5Path(),
+						parsedArgs.getOutputDatasetPath(),
+						parsedArgs.force
+					);
+			}
+			else
+			{
+				convert(
+						sparkContext,
+						n5InputSupplier,
+						parsedArgs.getInputDatasetPath(),
+						n5OutputSupplier,
+						parsedArgs.getOutputDatasetPath(),
+						Optional.ofNullable( parsedArgs.getBlockSize() ),
+						Optional.ofNullable( compression ),
+						Optional.ofNullable( parsedArgs.getDataType() ),
+						Optional.ofNullable( valueRange ),
+						parsedArgs.force,
+						parsedArgs.mortonOrder,
+						parsedArgs.resume,
+						parsedArgs.shuffle,
+						parsedArgs.shuffleMemory << 20
+					);
+			}
+
+			if ( percentiles != null && parsedArgs.getValueRange() == null )
+				N5ValueRangeSpark.storeValueRange( n5OutputSupplier.get(), parsedArgs.getOutputDatasetPath(), valueRange, percentiles[ 0 ], percentiles[ 1 ] );
 		}
 
 		System.out.println( System.lineSeparator() + "Done" );
@@ -453,9 +1469,13 @@ public class N5ConvertSpark
 		private String blockSizeStr;
 
 		@Option(name = "-c", aliases = { "--compression" }, required = false,
-				usage = "Compression to be used for the converted dataset (by default the same compression is used as for the input dataset).")
+				usage = "Compression to be used for the converted dataset: raw, gzip, bzip2, lz4, xz, zstd, or a scheme with an explicit level such as gzip-9 or zstd-19 (by default the same compression is used as for the input dataset).")
 		private String compressionStr;
 
+		@Option(name = "--compressionMinRatio", required = false,
+				usage = "Benchmark the compression schemes on a sample of the input blocks, and use the one with the fastest decoding among the ones that reach the given compression ratio (cannot be used together with -c).")
+		private Double compressionMinRatio;
+
 		@Option(name = "-t", aliases = { "--type" }, required = false,
 				usage = "Type to be used for the converted dataset (by default the same type is used as for the input dataset)."
 						+ "If a different type is used, the values are mapped to the range of the output type, rounding to the nearest integer value if necessary.")
@@ -469,11 +1489,42 @@ public class N5ConvertSpark
 				usage = "Maximum value of the input range to be used for the conversion (default is max type value for integer types, or 1 for real types).")
 		private Double maxValue;
 
+		@Option(name = "-p", aliases = { "--percentiles" }, required = false,
+				usage = "Lower and upper percentiles of the input values to be used as the input range for the conversion (e.g. 0.5,99.5). "
+						+ "The values are counted in a distributed pre-pass, and the resulting range is stored in the attributes of the output dataset "
+						+ "(and of the input dataset if it is in the same container), so it can be reused.")
+		private String percentilesStr;
+
+		@Option(name = "--sampleFraction", required = false,
+				usage = "Fraction of randomly chosen input blocks to be used for estimating the percentiles (by default all blocks are used).")
+		private double sampleFraction = 1;
+
 		@Option(name = "-f", aliases = { "--force" }, required = false, usage = "Will overwrite existing output dataset if specified.")
 		private Boolean force;
 
+		@Option(name = "--mortonOrder", required = false,
+				usage = "Process the blocks in Morton order and cache the input blocks within each partition (useful when the output block size is not aligned with the input block size). Cannot be combined with --resume.")
+		private boolean mortonOrder;
+
+		@Option(name = "--resume", required = false,
+				usage = "Record the completed blocks, and continue an interrupted job instead of failing if the output dataset already exists (only the jobs started with this flag can be resumed).")
+		private boolean resume;
+
+		@Option(name = "--group", required = false,
+				usage = "Treat the input and output paths as groups, and convert all datasets within the input group (including nested groups) in a single job.")
+		private boolean group;
+
+		@Option(name = "--shuffle", required = false,
+				usage = "Rechunk the data through a shuffle, reading every input block only once (useful when the output block size is badly misaligned with the input block size). Cannot be combined with --resume.")
+		private boolean shuffle;
+
+		@Option(name = "--shuffleMemory", required = false,
+				usage = "Memory in MB for assembling the output blocks within a single shuffle partition (default is 256).")
+		private long shuffleMemory = DEFAULT_MAX_SHUFFLE_PARTITION_BYTES >> 20;
+
 		private int[] blockSize;
 		private Compression compression;
+		private double[] percentiles;
 
 		private boolean parsedSuccessfully = false;
 
@@ -486,6 +1537,7 @@ public class N5ConvertSpark
 			defaultCompressions.put( "bzip2", new Bzip2Compression() );
 			defaultCompressions.put( "lz4", new Lz4Compression() );
 			defaultCompressions.put( "xz", new XzCompression() );
+			defaultCompressions.put( "zstd", new ZstandardCompression() );
 		}
 
 		public Arguments( final String... args )
@@ -503,14 +1555,33 @@ public class N5ConvertSpark
 				}
 				else
 				{
-					compression = defaultCompressions.get( compressionStr.toLowerCase() );
+					// the schemes with explicit levels are named as in the compression advisor (e.g. gzip-9, zstd-19)
+					final Map< String, Compression > candidateCompressions = N5CompressionAdvisorSpark.getCandidateCompressions();
+					compression = defaultCompressions.containsKey( compressionStr.toLowerCase() ) ? defaultCompressions.get( compressionStr.toLowerCase() ) : candidateCompressions.get( compressionStr.toLowerCase() );
 					if ( compression == null )
-						throw new IllegalArgumentException( "Incorrect compression argument specified. Supported compression schemes are: " + Arrays.toString( defaultCompressions.keySet().toArray( new String[ 0 ] ) ) );
+						throw new IllegalArgumentException( "Incorrect compression argument specified. Supported compression schemes are: " + Arrays.toString( defaultCompressions.keySet().toArray( new String[ 0 ] ) ) + " " + Arrays.toString( candidateCompressions.keySet().toArray( new String[ 0 ] ) ) );
 				}
 
+				if ( compression != null && compressionMinRatio != null )
+					throw new IllegalArgumentException( "Compression and compressionMinRatio cannot be specified together." );
+				if ( group && compressionMinRatio != null )
+					throw new IllegalArgumentException( "Group mode cannot be used together with compressionMinRatio." );
+
 				if ( Objects.isNull( minValue ) != Objects.isNull( maxValue ) )
 					throw new IllegalArgumentException( "minValue and maxValue should be either both specified or omitted." );
 
+				percentiles = CmdUtils.parseDoubleArray( percentilesStr );
+				if ( percentiles != null && percentiles.length != 2 )
+					throw new IllegalArgumentException( "Two percentiles are expected: " + percentilesStr );
+				if ( percentiles != null && Objects.nonNull( minValue ) )
+					throw new IllegalArgumentException( "Percentiles cannot be used together with minValue and maxValue." );
+
+				if ( resume && mortonOrder )
+					throw new CmdLineException( parser, "--mortonOrder cannot be combined with --resume, the resumed blocks are processed in the flat order.", null );
+
+				if ( group && ( percentiles != null || resume || shuffle || mortonOrder ) )
+					throw new IllegalArgumentException( "Group mode cannot be used together with percentiles, resume, shuffle, or mortonOrder." );
+
 				this.force = Optional.ofNullable( this.force ).orElse( false );
 
 				parsedSuccessfully = true;
@@ -529,7 +1600,10 @@ public class N5ConvertSpark
 		public String getOutputDatasetPath() { return outputDatasetPath; }
 		public int[] getBlockSize() { return blockSize; }
 		public Compression getCompression() { return compression; }
+		public Double getCompressionMinRatio() { return compressionMinRatio; }
 		public DataType getDataType() { return dataType; }
+		public double[] getPercentiles() { return percentiles; }
+		public double getSampleFraction() { return sampleFraction; }
 		public Pair< Double, Double > getValueRange() { return Objects.nonNull( minValue ) && Objects.nonNull( maxValue ) ? new ValuePair<>( minValue, maxValue ) : null; }
 	}
 }
@@ -2,20 +2,27 @@ package org.janelia.saalfeldlab.n5.spark;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
+import java.util.UUID;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
-import org.apache.spark.broadcast.Broadcast;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
 import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
 import org.janelia.saalfeldlab.n5.spark.util.TiffUtils;
 import org.janelia.saalfeldlab.n5.spark.util.TiffUtils.TiffCompression;
@@ -27,15 +34,10 @@ import com.esotericsoftware.kryo.Kryo;
 
 import ij.ImagePlus;
 import net.imglib2.Cursor;
-import net.imglib2.FinalDimensions;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.img.CachedCellImg;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
-import net.imglib2.iterator.IntervalIterator;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
@@ -51,18 +53,15 @@ public class N5MaxIntensityProjection
 
 		public final int dimension;
 		public final int mipStep;
-
-		public MipKey( final int dimension, final int mipStep )
-		{
-			this( dimension, mipStep, null );
-		}
+		public final long[] coords;
 
 		public MipKey( final int dimension, final int mipStep, final long[] coords )
 		{
 			this.dimension = dimension;
 			this.mipStep = mipStep;
+			this.coords = coords;
 
-			key = dimension + ":" + mipStep + ( coords != null ? "=" + Arrays.toString( coords ) : "" );
+			key = dimension + ":" + mipStep + "=" + Arrays.toString( coords );
 		}
 
 		@Override
@@ -87,9 +86,8 @@ public class N5MaxIntensityProjection
 		}
 	}
 
-	private static final int MAX_PARTITIONS = 15000;
-
 	private static final String[] AXES = new String[] { "x", "y", "z" };
+	private static final String TEMP_N5_PREFIX = "mips-tmp-";
 
 	/**
 	 * Generates max intensity projection of the given dataset in X/Y/Z directions.
@@ -128,6 +126,9 @@ public class N5MaxIntensityProjection
 	 * Generates max intensity projection of the given dataset in X/Y/Z directions using the specified MIP step.
 	 * Saves the resulting MIPs as TIFF images in the specified output folder.
 	 *
+	 * The MIPs are first stored as chunked N5 datasets in a temporary container with a unique name within the output folder,
+	 * which is removed after the TIFF images have been exported (or if the export has failed).
+	 *
 	 * @param sparkContext
 	 * 			Spark context instantiated with {@link Kryo} serializer
 	 * @param n5Supplier
@@ -149,141 +150,264 @@ public class N5MaxIntensityProjection
 			final int[] cellsInSingleMIP,
 			final String outputPath,
 			final TiffCompression compression ) throws IOException
+	{
+		final Path tempN5Path = Paths.get( outputPath, TEMP_N5_PREFIX + UUID.randomUUID() + ".n5" );
+		if ( Files.exists( tempN5Path ) )
+			throw new IllegalArgumentException( "Temporary N5 container already exists: " + tempN5Path );
+
+		// the temporary container is not cached, so its attributes cannot be mixed up with a container that existed at the same path before
+		final String tempN5BasePath = tempN5Path.toString();
+		final N5WriterSupplier tempN5Supplier = () -> new N5FSWriter( tempN5BasePath );
+
+		try
+		{
+			createMaxIntensityProjection(
+					sparkContext,
+					n5Supplier,
+					datasetPath,
+					cellsInSingleMIP,
+					tempN5Supplier,
+					""
+				);
+
+			saveMaxIntensityProjectionsAsTiff(
+					sparkContext,
+					tempN5Supplier,
+					"",
+					outputPath,
+					compression
+				);
+		}
+		finally
+		{
+			if ( Files.exists( tempN5Path ) )
+				tempN5Supplier.get().remove();
+		}
+	}
+
+	/**
+	 * Generates max intensity projection of the given dataset in X/Y/Z directions using the specified MIP step.
+	 * Saves the resulting MIPs as chunked N5 datasets named as {@code <outputGroupPath>/<x|y|z>/<MIP coordinate>},
+	 * with the same block size in the remaining dimensions, data type, and compression as the input dataset.
+	 *
+	 * Each block of the output datasets is reduced independently from the corresponding column of input blocks,
+	 * so the MIPs are never assembled in a single task and are not limited in size.
+	 *
+	 * @param sparkContext
+	 * 			Spark context instantiated with {@link Kryo} serializer
+	 * @param n5Supplier
+	 * 			{@link N5Reader} supplier
+	 * @param datasetPath
+	 * 			Path to the input dataset
+	 * @param cellsInSingleMIP
+	 * 			MIP step in X/Y/Z directions specified as the number of N5 blocks included in a single MIP
+	 * @param n5OutputSupplier
+	 * 			{@link N5Writer} supplier for the output container
+	 * @param outputGroupPath
+	 * 			Path to the output group for saving resulting MIPs
+	 * @return paths to the resulting MIP datasets
+	 * @throws IOException
+	 */
+	public static List< String > createMaxIntensityProjection(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath,
+			final int[] cellsInSingleMIP,
+			final N5WriterSupplier n5OutputSupplier,
+			final String outputGroupPath ) throws IOException
 	{
 		final N5Reader n5 = n5Supplier.get();
 		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
 		final long[] dimensions = attributes.getDimensions();
 		final int[] blockSize = attributes.getBlockSize();
+		final DataType dataType = attributes.getDataType();
 
 		final int dim = dimensions.length;
-		if ( dim > 3 )
-			throw new RuntimeException( "MaxIntensityProjection is supported for 1D/2D/3D datasets" );
-
-		final long numCells;
-		final T type;
+		// the MIP of a 1D dataset would be a 0D dataset, which cannot be stored in N5
+		if ( dim < 2 || dim > 3 )
+			throw new IllegalArgumentException( "MaxIntensityProjection is supported for 2D/3D datasets" );
+
+		final CellGrid cellGrid = new CellGrid( dimensions, blockSize );
+		final long[] cellGridDimensions = cellGrid.getGridDimensions();
+		final long numCells = Intervals.numElements( cellGridDimensions );
+
+		// create output datasets for all MIPs
+		final N5Writer n5Output = n5OutputSupplier.get();
+		final List< String > mipDatasetPaths = new ArrayList<>();
+		long numMipBlocks = 0;
+		for ( int d = 0; d < dim; ++d )
 		{
-			final CachedCellImg< T, ? > cellImg = N5SparkUtils.openWithBoundedCache( n5, datasetPath, 1 );
-			final long[] cellGridDimensions = cellImg.getCellGrid().getGridDimensions();
-			numCells = Intervals.numElements( cellGridDimensions );
-			type = Util.getTypeFromInterval( cellImg ).createVariable();
+			final long numMipSteps = cellsInSingleMIP == null ? 1 : ( cellGridDimensions[ d ] + cellsInSingleMIP[ d ] - 1 ) / cellsInSingleMIP[ d ];
+			for ( int mipStep = 0; mipStep < numMipSteps; ++mipStep )
+			{
+				final String mipDatasetPath = getMipDatasetPath( outputGroupPath, d, mipStep, cellsInSingleMIP, blockSize );
+				n5Output.createDataset(
+						mipDatasetPath,
+						getMipPosition( dimensions, d ),
+						getMipPosition( blockSize, d ),
+						dataType,
+						attributes.getCompression()
+					);
+				mipDatasetPaths.add( mipDatasetPath );
+			}
+			numMipBlocks += numMipSteps * Intervals.numElements( getMipPosition( cellGridDimensions, d ) );
 		}
 
-		for ( int d = 0; d < dim; ++d )
-			Paths.get( outputPath, AXES[ d ] ).toFile().mkdirs();
-
-		final Broadcast< T > typeBroadcast = sparkContext.broadcast( type );
-
-		sparkContext
-			// distribute flat cell indexes
-			.parallelize(
-					LongStream.range( 0, numCells ).boxed().collect( Collectors.toList() ),
-					Math.min( ( int ) numCells, MAX_PARTITIONS )
-				)
+		// distribute flat cell indexes
+		BlockIndexRDD.create( sparkContext, numCells )
 			// compute MIPs for x/y/z of each cell
 			.flatMapToPair( cellIndex ->
 					{
 						final N5Reader n5Local = n5Supplier.get();
-						final CachedCellImg< T, ? > cellImg = N5SparkUtils.openWithBoundedCache( n5Local, datasetPath, 1 );
-						final RandomAccess< T > cellImgRandomAccess = cellImg.randomAccess();
 
-						final long[] cellMin = new long[ dim ], cellMax = new long[ dim ];
+						final long[] cellMin = new long[ dim ];
 						final int[] cellDims = new int[ dim ];
 						final long[] cellGridPosition = new long[ dim ];
-						final CellGrid cellGrid = cellImg.getCellGrid();
-						cellGrid.getCellGridPositionFlat( cellIndex, cellGridPosition );
-						cellGrid.getCellDimensions( cellGridPosition, cellMin, cellDims );
-						for ( int d = 0; d < dim; ++d )
-							cellMax[ d ] = cellMin[ d ] + cellDims[ d ] - 1;
-
-						final List< RandomAccessibleInterval< T > > cellMips = new ArrayList<>();
-						final List< RandomAccess< T > > cellMipsRandomAccess = new ArrayList<>();
-						for ( int d = 0; d < dim; ++d )
-						{
-							final RandomAccessibleInterval< T > cellMip = Views.translate(
-									new ArrayImgFactory< T >().create(
-											getMipPosition(
-													Intervals.dimensionsAsLongArray( new FinalDimensions( cellDims ) ), // ugly conversion from int[] to long[]
-													d
-												),
-											typeBroadcast.value()
-										),
-									getMipPosition( cellMin, d )
-								);
-							cellMips.add( cellMip );
-							cellMipsRandomAccess.add( cellMip.randomAccess() );
-						}
+						final CellGrid localCellGrid = new CellGrid( dimensions, blockSize );
+						localCellGrid.getCellGridPositionFlat( cellIndex, cellGridPosition );
+						localCellGrid.getCellDimensions( cellGridPosition, cellMin, cellDims );
 
-						final IntervalIterator cellIterator = new IntervalIterator( cellMin, cellMax );
-						final long[] cellPos = new long[ cellIterator.numDimensions() ];
-						while ( cellIterator.hasNext() )
-						{
-							cellIterator.fwd();
-							cellIterator.localize( cellPos );
-							cellImgRandomAccess.setPosition( cellPos );
-							final double cellVal = cellImgRandomAccess.get().getRealDouble();
-							for ( int d = 0; d < dim; ++d )
-							{
-								final RandomAccess< T > cellMipRandomAccess = cellMipsRandomAccess.get( d );
-								final long[] cellMipPos = getMipPosition( cellPos, d );
-								cellMipRandomAccess.setPosition( cellMipPos );
-								final double cellMipVal = cellMipRandomAccess.get().getRealDouble();
-								cellMipRandomAccess.get().setReal( Math.max( cellVal, cellMipVal ) );
-							}
-						}
+						// compute all MIPs of the cell in a single pass over the block data (missing blocks are treated as zeros)
+						final Object[] cellMipsData = MaxIntensityProjectionKernel.createProjections( dataType, cellDims );
+						final DataBlock< ? > block = n5Local.readBlock( datasetPath, attributes, cellGridPosition );
+						if ( block != null )
+							MaxIntensityProjectionKernel.project( dataType, block.getData(), cellDims, cellMipsData );
 
-						final List< Tuple2< MipKey, RandomAccessibleInterval< T > > > ret = new ArrayList<>();
+						final List< Tuple2< MipKey, Object > > ret = new ArrayList<>();
 						for ( int d = 0; d < dim; ++d )
 						{
 							final int mipStep = cellsInSingleMIP == null ? 0 : ( int ) ( cellGridPosition[ d ] / cellsInSingleMIP[ d ] );
-							ret.add( new Tuple2<>( new MipKey( d, mipStep, getMipPosition( cellGridPosition, d ) ), cellMips.get( d ) ) );
+							ret.add( new Tuple2<>( new MipKey( d, mipStep, getMipPosition( cellGridPosition, d ) ), cellMipsData[ d ] ) );
 						}
 						return ret.iterator();
 					}
 				)
-			// join all cells on top of each other that should go to the same MIP
-			.reduceByKey( ( mip1, mip2 ) ->
-					{
-						final Cursor< T > mip1Cursor = Views.flatIterable( mip1 ).cursor();
-						final Cursor< T > mip2Cursor = Views.flatIterable( mip2 ).cursor();
-						while ( mip1Cursor.hasNext() || mip2Cursor.hasNext() )
+			// join all cells on top of each other that should go to the same output block
+			// (cell MIPs are first merged within each partition, and then the partial results are merged across partitions)
+			.reduceByKey(
+					( mip1, mip2 ) ->
 						{
-							mip1Cursor.fwd();
-							mip2Cursor.fwd();
-							mip1Cursor.get().setReal( Math.max( mip1Cursor.get().getRealDouble(), mip2Cursor.get().getRealDouble() ) );
-						}
-						return mip1;
-					}
+							MaxIntensityProjectionKernel.merge( dataType, mip2, mip1 );
+							return mip1;
+						},
+					( int ) Math.min( Math.max( numMipBlocks, 1 ), BlockIndexRDD.MAX_PARTITIONS )
 				)
-			// group by dimension and MIP index
-			.mapToPair( keyAndMip -> new Tuple2<>( new MipKey( keyAndMip._1().dimension, keyAndMip._1().mipStep ), keyAndMip._2() ) )
-			.groupByKey()
-			// join cells into a single MIP for each dimension and MIP index
-			.foreach( keyAndMips ->
+			// save each output block
+			.foreach( keyAndMip ->
 					{
-						final int mipDimension = keyAndMips._1().dimension;
-						final long mipCoordinate = cellsInSingleMIP == null ? 0 : ( long ) keyAndMips._1().mipStep * cellsInSingleMIP[ mipDimension ] * blockSize[ mipDimension ];
-
-						final ImagePlusImg< T, ? > mip = new ImagePlusImgFactory< T >().create(
-								getMipPosition( dimensions, mipDimension ),
-								typeBroadcast.value()
+						final MipKey mipKey = keyAndMip._1();
+						final String mipDatasetPath = getMipDatasetPath( outputGroupPath, mipKey.dimension, mipKey.mipStep, cellsInSingleMIP, blockSize );
+
+						final N5Writer n5Local = n5OutputSupplier.get();
+						final DatasetAttributes mipAttributes = n5Local.getDatasetAttributes( mipDatasetPath );
+						final CellGrid mipGrid = new CellGrid( mipAttributes.getDimensions(), mipAttributes.getBlockSize() );
+						final long[] mipBlockMin = new long[ mipGrid.numDimensions() ];
+						final int[] mipBlockDims = new int[ mipGrid.numDimensions() ];
+						mipGrid.getCellDimensions( mipKey.coords, mipBlockMin, mipBlockDims );
+
+						n5Local.writeBlock(
+								mipDatasetPath,
+								mipAttributes,
+								DataBlockUtils.createDataBlock( dataType, mipBlockDims, mipKey.coords, keyAndMip._2() )
 							);
-
-						for ( final RandomAccessibleInterval< T > cellMip : keyAndMips._2() )
-						{
-							final RandomAccessibleInterval< T > mipInterval = Views.interval( mip, cellMip );
-							final Cursor< T > mipCursor = Views.flatIterable( mipInterval ).cursor();
-							final Cursor< T > cellMipCursor = Views.flatIterable( cellMip ).cursor();
-							while ( mipCursor.hasNext() || cellMipCursor.hasNext() )
-								mipCursor.next().set( cellMipCursor.next() );
-						}
-
-						final ImagePlus mipImp = mip.getImagePlus();
-						final String outputMipPath = Paths.get( outputPath, AXES[ mipDimension ], mipCoordinate + ".tif" ).toString();
-						TiffUtils.saveAsTiff( mipImp, outputMipPath, compression );
 					}
 				);
 
-		typeBroadcast.destroy();
+		return mipDatasetPaths;
+	}
+
+	/**
+	 * Exports MIPs generated by {@link #createMaxIntensityProjection(JavaSparkContext, N5ReaderSupplier, String, int[], N5WriterSupplier, String)}
+	 * as TIFF images named as {@code <outputPath>/<x|y|z>/<MIP coordinate>.tif}.
+	 * Each MIP is assembled in a single task, so it has to fit into a single ImageJ image.
+	 *
+	 * @param sparkContext
+	 * 			Spark context instantiated with {@link Kryo} serializer
+	 * @param n5Supplier
+	 * 			{@link N5Reader} supplier for the container with the MIP datasets
+	 * @param mipGroupPath
+	 * 			Path to the group with the MIP datasets
+	 * @param outputPath
+	 * 			Path to the output folder for saving resulting MIPs
+	 * @param compression
+	 * 			TIFF compression to be used for the resulting MIPs
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void saveMaxIntensityProjectionsAsTiff(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String mipGroupPath,
+			final String outputPath,
+			final TiffCompression compression ) throws IOException
+	{
+		final N5Reader n5 = n5Supplier.get();
+		final List< String > mipDatasets = new ArrayList<>();
+		for ( final String axis : AXES )
+		{
+			final String axisGroupPath = Paths.get( mipGroupPath, axis ).toString();
+			if ( !n5.exists( axisGroupPath ) )
+				continue;
+
+			for ( final String mipDataset : n5.list( axisGroupPath ) )
+			{
+				final String mipDatasetPath = Paths.get( axisGroupPath, mipDataset ).toString();
+				if ( Intervals.numElements( n5.getDatasetAttributes( mipDatasetPath ).getDimensions() ) > Integer.MAX_VALUE )
+					throw new IllegalArgumentException( "MIP " + mipDatasetPath + " is too large to be saved as a TIFF image, use the N5 output instead" );
+				mipDatasets.add( Paths.get( axis, mipDataset ).toString() );
+			}
+
+			Paths.get( outputPath, axis ).toFile().mkdirs();
+		}
+
+		if ( mipDatasets.isEmpty() )
+			return;
+
+		sparkContext.parallelize( mipDatasets, mipDatasets.size() ).foreach( mipDataset ->
+			{
+				final N5Reader n5Local = n5Supplier.get();
+				final String mipDatasetPath = Paths.get( mipGroupPath, mipDataset ).toString();
+				final DatasetAttributes mipAttributes = n5Local.getDatasetAttributes( mipDatasetPath );
+				final DataType dataType = mipAttributes.getDataType();
+				final T type = Util.getTypeFromInterval( N5Utils.< T >open( n5Local, mipDatasetPath ) ).createVariable();
+
+				final ImagePlusImg< T, ? > mip = new ImagePlusImgFactory< T >().create( mipAttributes.getDimensions(), type );
+
+				// copy the existing blocks, the missing blocks are left filled with zeros
+				final CellGrid mipGrid = new CellGrid( mipAttributes.getDimensions(), mipAttributes.getBlockSize() );
+				final long numMipBlocks = Intervals.numElements( mipGrid.getGridDimensions() );
+				final long[] mipBlockGridPosition = new long[ mipGrid.numDimensions() ];
+				final long[] mipBlockMin = new long[ mipGrid.numDimensions() ];
+				final int[] mipBlockDims = new int[ mipGrid.numDimensions() ];
+				for ( long mipBlockIndex = 0; mipBlockIndex < numMipBlocks; ++mipBlockIndex )
+				{
+					mipGrid.getCellGridPositionFlat( mipBlockIndex, mipBlockGridPosition );
+					final DataBlock< ? > block = n5Local.readBlock( mipDatasetPath, mipAttributes, mipBlockGridPosition );
+					if ( block == null )
+						continue;
+
+					mipGrid.getCellDimensions( mipBlockGridPosition, mipBlockMin, mipBlockDims );
+					final RandomAccessibleInterval< T > mipBlock = Views.translate(
+							N5SparkUtils.< T >wrapArray( dataType, block.getData(), Arrays.stream( mipBlockDims ).asLongStream().toArray() ),
+							mipBlockMin
+						);
+
+					final Cursor< T > mipCursor = Views.flatIterable( Views.interval( mip, mipBlock ) ).cursor();
+					final Cursor< T > mipBlockCursor = Views.flatIterable( mipBlock ).cursor();
+					while ( mipCursor.hasNext() || mipBlockCursor.hasNext() )
+						mipCursor.next().set( mipBlockCursor.next() );
+				}
+
+				final ImagePlus mipImp = mip.getImagePlus();
+				final String outputMipPath = Paths.get( outputPath, mipDataset + ".tif" ).toString();
+				TiffUtils.saveAsTiff( mipImp, outputMipPath, compression );
+			}
+		);
+	}
+
+	private static String getMipDatasetPath( final String groupPath, final int mipDimension, final int mipStep, final int[] cellsInSingleMIP, final int[] blockSize )
+	{
+		final long mipCoordinate = cellsInSingleMIP == null ? 0 : ( long ) mipStep * cellsInSingleMIP[ mipDimension ] * blockSize[ mipDimension ];
+		return Paths.get( groupPath, AXES[ mipDimension ], Long.toString( mipCoordinate ) ).toString();
 	}
 
 	private static long[] getMipPosition( final long[] pos, final int mipDim )
@@ -294,6 +418,14 @@ public class N5MaxIntensityProjection
 		return mipPos;
 	}
 
+	private static int[] getMipPosition( final int[] pos, final int mipDim )
+	{
+		final int[] mipPos = new int[ pos.length - 1 ];
+		System.arraycopy( pos, 0, mipPos, 0, mipDim );
+		System.arraycopy( pos, mipDim + 1, mipPos, mipDim, mipPos.length - mipDim );
+		return mipPos;
+	}
+
 
 	public static void main( final String... args ) throws IOException
 	{
@@ -306,15 +438,41 @@ public class N5MaxIntensityProjection
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			final N5ReaderSupplier n5Supplier = () -> new N5FSReader( parsedArgs.getN5Path() );
-			createMaxIntensityProjection(
-					sparkContext,
-					n5Supplier,
-					parsedArgs.getInputDatasetPath(),
-					parsedArgs.getMipCellsStep(),
-					parsedArgs.getOutputPath(),
-					parsedArgs.getTiffCompression()
-				);
+			final N5ReaderSupplier n5Supplier = N5ExecutorCache.fsReaderSupplier( parsedArgs.getN5Path() );
+			if ( parsedArgs.getOutputGroupPath() != null )
+			{
+				final N5WriterSupplier n5OutputSupplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getOutputN5Path() );
+				createMaxIntensityProjection(
+						sparkContext,
+						n5Supplier,
+						parsedArgs.getInputDatasetPath(),
+						parsedArgs.getMipCellsStep(),
+						n5OutputSupplier,
+						parsedArgs.getOutputGroupPath()
+					);
+
+				if ( parsedArgs.getOutputPath() != null )
+				{
+					saveMaxIntensityProjectionsAsTiff(
+							sparkContext,
+							n5OutputSupplier,
+							parsedArgs.getOutputGroupPath(),
+							parsedArgs.getOutputPath(),
+							parsedArgs.getTiffCompression()
+						);
+				}
+			}
+			else
+			{
+				createMaxIntensityProjection(
+						sparkContext,
+						n5Supplier,
+						parsedArgs.getInputDatasetPath(),
+						parsedArgs.getMipCellsStep(),
+						parsedArgs.getOutputPath(),
+						parsedArgs.getTiffCompression()
+					);
+			}
 		}
 
 		System.out.println( System.lineSeparator() + "Done" );
@@ -332,10 +490,19 @@ public class N5MaxIntensityProjection
 				usage = "Path to an input dataset within the N5 container (e.g. data/group/s0).")
 		private String inputDatasetPath;
 
-		@Option(name = "-o", aliases = { "--outputPath" }, required = true,
+		@Option(name = "-o", aliases = { "--outputPath" }, required = false,
 				usage = "Output path for storing TIFF max intensity projections.")
 		private String outputPath;
 
+		@Option(name = "-no", aliases = { "--outputN5Path" }, required = false,
+				usage = "Path to the output N5 container (by default the input container is used).")
+		private String outputN5Path;
+
+		@Option(name = "-g", aliases = { "--outputGroupPath" }, required = false,
+				usage = "Output group within the output N5 container for storing max intensity projections as chunked N5 datasets. "
+						+ "If the output path for TIFF images is also specified, the TIFF images are exported from these datasets.")
+		private String outputGroupPath;
+
 		@Option(name = "-c", aliases = { "--tiffCompression" }, required = false,
 				usage = "Tiff compression (LZW or NONE).")
 		private TiffCompression tiffCompression = TiffCompression.LZW;
@@ -352,6 +519,10 @@ public class N5MaxIntensityProjection
 			try
 			{
 				parser.parseArgument( args );
+
+				if ( outputPath == null && outputGroupPath == null )
+					throw new CmdLineException( parser, "Either outputPath or outputGroupPath should be specified.", null );
+
 				parsedSuccessfully = true;
 			}
 			catch ( final CmdLineException e )
@@ -366,6 +537,8 @@ public class N5MaxIntensityProjection
 		public String getN5Path() { return n5Path; }
 		public String getInputDatasetPath() { return inputDatasetPath; }
 		public String getOutputPath() { return outputPath; }
+		public String getOutputN5Path() { return outputN5Path != null ? outputN5Path : n5Path; }
+		public String getOutputGroupPath() { return outputGroupPath; }
 		public TiffCompression getTiffCompression() { return tiffCompression; }
 		public int[] getMipCellsStep() { return CmdUtils.parseIntArray( mipCellsStep ); }
 	}
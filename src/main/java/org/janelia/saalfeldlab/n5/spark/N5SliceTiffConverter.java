@@ -11,8 +11,8 @@ import java.util.stream.LongStream;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
 import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
 import org.janelia.saalfeldlab.n5.spark.util.TiffUtils;
 import org.janelia.saalfeldlab.n5.spark.util.TiffUtils.TiffCompression;
@@ -145,7 +145,7 @@ public class N5SliceTiffConverter
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			final N5ReaderSupplier n5Supplier = () -> new N5FSReader( parsedArgs.getN5Path() );
+			final N5ReaderSupplier n5Supplier = N5ExecutorCache.fsReaderSupplier( parsedArgs.getN5Path() );
 			convertToSliceTiff(
 					sparkContext,
 					n5Supplier,
@@ -0,0 +1,438 @@
+package org.janelia.saalfeldlab.n5.spark;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.function.DoubleConsumer;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
+import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+
+/**
+ * Estimates the value range of a dataset from the given lower and upper percentiles of its values.
+ *
+ * The values are counted in a histogram that is computed for each Spark partition and merged afterwards.
+ * For 8-bit and 16-bit integer types, every value has its own bin and the percentiles are exact.
+ * For other types, the min and max values are found in a separate pass first, and the range between them
+ * is split into {@link Histogram#NUM_BINS} bins, so the percentiles are accurate up to the bin width.
+ * Only the existing blocks are taken into account, and the values that are not finite (NaN and infinity) are ignored.
+ */
+public class N5ValueRangeSpark
+{
+	public static final String VALUE_RANGE_ATTRIBUTE_KEY = "valueRange";
+	public static final String VALUE_RANGE_PERCENTILES_ATTRIBUTE_KEY = "valueRangePercentiles";
+
+	/**
+	 * Mergeable histogram of the values in the range [min,max] with equally sized bins.
+	 * For integer types, the bin width is integer, so every bin contains a fixed set of values.
+	 */
+	static class Histogram implements Serializable
+	{
+		private static final long serialVersionUID = -4360522546553003722L;
+
+		static final int NUM_BINS = 1 << 16;
+
+		private final double min, max, binWidth;
+		private final boolean integer;
+		private final long[] counts;
+
+		public Histogram( final double min, final double max, final boolean integer )
+		{
+			this.min = min;
+			this.max = max;
+			this.integer = integer;
+
+			if ( integer )
+			{
+				binWidth = Math.max( Math.ceil( ( max - min + 1 ) / NUM_BINS ), 1 );
+				counts = new long[ ( int ) Math.min( Math.ceil( ( max - min + 1 ) / binWidth ), NUM_BINS ) ];
+			}
+			else
+			{
+				binWidth = ( max - min ) / NUM_BINS;
+				counts = new long[ NUM_BINS ];
+			}
+		}
+
+		public void add( final double value )
+		{
+			if ( !Double.isFinite( value ) || value < min || value > max )
+				return;
+			final int bin = binWidth > 0 ? ( int ) Math.min( ( value - min ) / binWidth, counts.length - 1 ) : 0;
+			++counts[ bin ];
+		}
+
+		public Histogram merge( final Histogram other )
+		{
+			for ( int i = 0; i < counts.length; ++i )
+				counts[ i ] += other.counts[ i ];
+			return this;
+		}
+
+		public long getTotalCount()
+		{
+			long totalCount = 0;
+			for ( final long count : counts )
+				totalCount += count;
+			return totalCount;
+		}
+
+		/**
+		 * Returns the smallest value of the bin that contains the given percentile.
+		 *
+		 * @param percentile
+		 * 			in the range [0,100]
+		 * @return
+		 */
+		public double getLowerPercentile( final double percentile )
+		{
+			final double threshold = getTotalCount() * percentile / 100;
+			long cumulativeCount = 0;
+			for ( int i = 0; i < counts.length; ++i )
+			{
+				cumulativeCount += counts[ i ];
+				if ( cumulativeCount > threshold )
+					return min + i * binWidth;
+			}
+			return max;
+		}
+
+		/**
+		 * Returns the largest value of the bin that contains the given percentile.
+		 *
+		 * @param percentile
+		 * 			in the range [0,100]
+		 * @return
+		 */
+		public double getUpperPercentile( final double percentile )
+		{
+			final double threshold = getTotalCount() * percentile / 100;
+			long cumulativeCount = 0;
+			for ( int i = 0; i < counts.length; ++i )
+			{
+				cumulativeCount += counts[ i ];
+				if ( cumulativeCount > 0 && cumulativeCount >= threshold )
+					return Math.min( min + ( i + 1 ) * binWidth - ( integer ? 1 : 0 ), max );
+			}
+			return max;
+		}
+	}
+
+	/**
+	 * Estimates the value range of the dataset as the given lower and upper percentiles of its values.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param minPercentile
+	 * 			lower percentile in the range [0,100]
+	 * @param maxPercentile
+	 * 			upper percentile in the range [0,100]
+	 * @param sampleFraction
+	 * 			fraction of randomly chosen blocks to be used for the estimation (1 to use all blocks)
+	 * @return value range
+	 * @throws IOException
+	 */
+	public static Pair< Double, Double > estimateValueRange(
+			final JavaSparkContext sparkContext,
+			final N5ReaderSupplier n5Supplier,
+			final String datasetPath,
+			final double minPercentile,
+			final double maxPercentile,
+			final double sampleFraction ) throws IOException
+	{
+		if ( minPercentile < 0 || maxPercentile > 100 || minPercentile > maxPercentile )
+			throw new IllegalArgumentException( "Invalid percentiles: " + minPercentile + ", " + maxPercentile );
+		if ( sampleFraction <= 0 || sampleFraction > 1 )
+			throw new IllegalArgumentException( "Sample fraction should be in the range (0,1]: " + sampleFraction );
+
+		final N5Reader n5 = n5Supplier.get();
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+		final DataType dataType = attributes.getDataType();
+		final long[] gridDimensions = new CellGrid( attributes.getDimensions(), attributes.getBlockSize() ).getGridDimensions();
+
+		final JavaRDD< Long > allBlocksRDD = BlockIndexRDD.create( sparkContext, Intervals.numElements( gridDimensions ) );
+		final JavaRDD< Long > rdd = sampleFraction < 1 ? allBlocksRDD.sample( false, sampleFraction, 0 ) : allBlocksRDD;
+
+		final double minValue, maxValue;
+		switch ( dataType )
+		{
+		case INT8:
+			minValue = Byte.MIN_VALUE;
+			maxValue = Byte.MAX_VALUE;
+			break;
+		case UINT8:
+			minValue = 0;
+			maxValue = 0xff;
+			break;
+		case INT16:
+			minValue = Short.MIN_VALUE;
+			maxValue = Short.MAX_VALUE;
+			break;
+		case UINT16:
+			minValue = 0;
+			maxValue = 0xffff;
+			break;
+		default:
+		{
+			final double[] minMax = rdd.treeAggregate(
+					new double[] { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY },
+					( result, blockIndex ) ->
+					{
+						final Object data = readBlockData( n5Supplier.get(), datasetPath, attributes, gridDimensions, blockIndex );
+						if ( data != null )
+						{
+							forEachValue( dataType, data, value ->
+								{
+									result[ 0 ] = Math.min( result[ 0 ], value );
+									result[ 1 ] = Math.max( result[ 1 ], value );
+								} );
+						}
+						return result;
+					},
+					( a, b ) -> new double[] { Math.min( a[ 0 ], b[ 0 ] ), Math.max( a[ 1 ], b[ 1 ] ) }
+				);
+			minValue = minMax[ 0 ];
+			maxValue = minMax[ 1 ];
+			break;
+		}
+		}
+
+		if ( minValue > maxValue )
+			throw new IllegalArgumentException( "No values found in the " + ( sampleFraction < 1 ? "sampled " : "" ) + "blocks of " + datasetPath );
+
+		final boolean integer = dataType != DataType.FLOAT32 && dataType != DataType.FLOAT64;
+		final Histogram histogram = rdd.treeAggregate(
+				new Histogram( minValue, maxValue, integer ),
+				( result, blockIndex ) ->
+				{
+					final Object data = readBlockData( n5Supplier.get(), datasetPath, attributes, gridDimensions, blockIndex );
+					if ( data != null )
+						forEachValue( dataType, data, result::add );
+					return result;
+				},
+				Histogram::merge
+			);
+
+		if ( histogram.getTotalCount() == 0 )
+			throw new IllegalArgumentException( "No values found in the " + ( sampleFraction < 1 ? "sampled " : "" ) + "blocks of " + datasetPath );
+
+		return new ValuePair<>( histogram.getLowerPercentile( minPercentile ), histogram.getUpperPercentile( maxPercentile ) );
+	}
+
+	/**
+	 * Returns the value range stored in the attributes of the given dataset if it has been estimated with the same percentiles, or null otherwise.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param minPercentile
+	 * @param maxPercentile
+	 * @return value range or null
+	 * @throws IOException
+	 */
+	public static Pair< Double, Double > getStoredValueRange(
+			final N5Reader n5,
+			final String datasetPath,
+			final double minPercentile,
+			final double maxPercentile ) throws IOException
+	{
+		final double[] valueRange = n5.getAttribute( datasetPath, VALUE_RANGE_ATTRIBUTE_KEY, double[].class );
+		final double[] percentiles = n5.getAttribute( datasetPath, VALUE_RANGE_PERCENTILES_ATTRIBUTE_KEY, double[].class );
+		if ( valueRange == null || percentiles == null || !Arrays.equals( percentiles, new double[] { minPercentile, maxPercentile } ) )
+			return null;
+		return new ValuePair<>( valueRange[ 0 ], valueRange[ 1 ] );
+	}
+
+	/**
+	 * Stores the value range and the percentiles it has been estimated with in the attributes of the given dataset.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param valueRange
+	 * @param minPercentile
+	 * @param maxPercentile
+	 * @throws IOException
+	 */
+	public static void storeValueRange(
+			final N5Writer n5,
+			final String datasetPath,
+			final Pair< Double, Double > valueRange,
+			final double minPercentile,
+			final double maxPercentile ) throws IOException
+	{
+		n5.setAttribute( datasetPath, VALUE_RANGE_ATTRIBUTE_KEY, new double[] { valueRange.getA(), valueRange.getB() } );
+		n5.setAttribute( datasetPath, VALUE_RANGE_PERCENTILES_ATTRIBUTE_KEY, new double[] { minPercentile, maxPercentile } );
+	}
+
+	/**
+	 * Reads the given block.
+	 *
+	 * @return data of the block, or null if the block does not exist
+	 */
+	private static Object readBlockData(
+			final N5Reader n5,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] gridDimensions,
+			final long blockIndex ) throws IOException
+	{
+		final long[] blockGridPosition = new long[ gridDimensions.length ];
+		IntervalIndexer.indexToPosition( blockIndex, gridDimensions, blockGridPosition );
+		final DataBlock< ? > block = n5.readBlock( datasetPath, attributes, blockGridPosition );
+		return block != null ? block.getData() : null;
+	}
+
+	/**
+	 * Passes the values of the given block data to the consumer directly from the typed array (unsigned types are zero-extended).
+	 * The values that are not finite (NaN and infinity) are skipped.
+	 */
+	private static void forEachValue( final DataType dataType, final Object data, final DoubleConsumer consumer )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+			for ( final byte value : ( byte[] ) data )
+				consumer.accept( value );
+			break;
+		case UINT8:
+			for ( final byte value : ( byte[] ) data )
+				consumer.accept( value & 0xff );
+			break;
+		case INT16:
+			for ( final short value : ( short[] ) data )
+				consumer.accept( value );
+			break;
+		case UINT16:
+			for ( final short value : ( short[] ) data )
+				consumer.accept( value & 0xffff );
+			break;
+		case INT32:
+			for ( final int value : ( int[] ) data )
+				consumer.accept( value );
+			break;
+		case UINT32:
+			for ( final int value : ( int[] ) data )
+				consumer.accept( value & 0xffffffffL );
+			break;
+		case INT64:
+			for ( final long value : ( long[] ) data )
+				consumer.accept( value );
+			break;
+		case UINT64:
+			for ( final long value : ( long[] ) data )
+				consumer.accept( value >= 0 ? value : value + 0x1p64 );
+			break;
+		case FLOAT32:
+			for ( final float value : ( float[] ) data )
+				if ( Float.isFinite( value ) )
+					consumer.accept( value );
+			break;
+		case FLOAT64:
+			for ( final double value : ( double[] ) data )
+				if ( Double.isFinite( value ) )
+					consumer.accept( value );
+			break;
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	public static void main( final String... args ) throws IOException
+	{
+		final Arguments parsedArgs = new Arguments( args );
+
+		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
+				.setAppName( "N5ValueRangeSpark" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			) )
+		{
+			final N5WriterSupplier n5Supplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getN5Path() );
+			final double[] percentiles = parsedArgs.getPercentiles();
+			final Pair< Double, Double > valueRange = estimateValueRange(
+					sparkContext,
+					n5Supplier,
+					parsedArgs.getInputDatasetPath(),
+					percentiles[ 0 ],
+					percentiles[ 1 ],
+					parsedArgs.getSampleFraction()
+				);
+			storeValueRange( n5Supplier.get(), parsedArgs.getInputDatasetPath(), valueRange, percentiles[ 0 ], percentiles[ 1 ] );
+			System.out.println( "Value range: " + Arrays.toString( new double[] { valueRange.getA(), valueRange.getB() } ) );
+		}
+	}
+
+	private static class Arguments implements Serializable
+	{
+		private static final long serialVersionUID = 2714958104719330146L;
+
+		@Option(name = "-n", aliases = { "--n5Path" }, required = true,
+				usage = "Path to an N5 container.")
+		private String n5Path;
+
+		@Option(name = "-i", aliases = { "--inputDatasetPath" }, required = true,
+				usage = "Path to an input dataset within the N5 container (e.g. data/group/s0).")
+		private String inputDatasetPath;
+
+		@Option(name = "-p", aliases = { "--percentiles" }, required = true,
+				usage = "Lower and upper percentiles of the values that define the value range (e.g. 0.5,99.5).")
+		private String percentiles;
+
+		@Option(name = "--sampleFraction", required = false,
+				usage = "Fraction of randomly chosen blocks to be used for the estimation (by default all blocks are used).")
+		private double sampleFraction = 1;
+
+		public Arguments( final String... args ) throws IllegalArgumentException
+		{
+			final CmdLineParser parser = new CmdLineParser( this );
+			try
+			{
+				parser.parseArgument( args );
+
+				final double[] parsedPercentiles;
+				try
+				{
+					parsedPercentiles = getPercentiles();
+				}
+				catch ( final NumberFormatException e )
+				{
+					throw new CmdLineException( parser, "Invalid percentiles: " + percentiles, e );
+				}
+				if ( parsedPercentiles == null || parsedPercentiles.length != 2 )
+					throw new CmdLineException( parser, "Two percentiles are expected: " + percentiles, null );
+				if ( parsedPercentiles[ 0 ] < 0 || parsedPercentiles[ 1 ] > 100 || parsedPercentiles[ 0 ] > parsedPercentiles[ 1 ] )
+					throw new CmdLineException( parser, "Percentiles should be in the range [0,100] in ascending order: " + percentiles, null );
+				if ( sampleFraction <= 0 || sampleFraction > 1 )
+					throw new CmdLineException( parser, "Sample fraction should be in the range (0,1]: " + sampleFraction, null );
+			}
+			catch ( final CmdLineException e )
+			{
+				System.err.println( e.getMessage() );
+				parser.printUsage( System.err );
+				System.exit( 1 );
+			}
+		}
+
+		public String getN5Path() { return n5Path; }
+		public String getInputDatasetPath() { return inputDatasetPath; }
+		public double[] getPercentiles() { return CmdUtils.parseDoubleArray( percentiles ); }
+		public double getSampleFraction() { return sampleFraction; }
+	}
+}
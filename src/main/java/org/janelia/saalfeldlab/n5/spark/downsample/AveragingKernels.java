@@ -0,0 +1,510 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import org.janelia.saalfeldlab.n5.DataType;
+
+import net.imglib2.util.Util;
+
+/**
+ * Averaging downsampling kernels that work directly on the flat primitive arrays of N5 data blocks.
+ *
+ * The results are identical to {@link bdv.export.Downsample}: the values of each neighborhood are summed up
+ * in flat order (integer types accumulate in a long), the sum is multiplied by the reciprocal of the neighborhood size,
+ * and the result is rounded half away from zero for integer types.
+ *
+ * 64-bit integer types are not supported because their sums may not be represented exactly,
+ * use {@link #isSupported(DataType)} to fall back to {@link bdv.export.Downsample} for them.
+ */
+public class AveragingKernels
+{
+	private AveragingKernels() { }
+
+	public static boolean isSupported( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+		case INT16:
+		case UINT16:
+		case INT32:
+		case UINT32:
+		case FLOAT32:
+		case FLOAT64:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Downsamples the source array into the target array.
+	 * The source array has to cover at least {@code targetDimensions * downsamplingFactors} elements in every dimension
+	 * starting at the origin, any excess elements are ignored.
+	 *
+	 * @param dataType
+	 * @param source
+	 * @param sourceDimensions
+	 * @param target
+	 * @param targetDimensions
+	 * @param downsamplingFactors
+	 */
+	public static void downsample(
+			final DataType dataType,
+			final Object source,
+			final int[] sourceDimensions,
+			final Object target,
+			final int[] targetDimensions,
+			final int[] downsamplingFactors )
+	{
+		final int n = sourceDimensions.length;
+		for ( int d = 0; d < n; ++d )
+			if ( ( long ) targetDimensions[ d ] * downsamplingFactors[ d ] > sourceDimensions[ d ] )
+				throw new IllegalArgumentException( "Source is too small in dimension " + d + ": " + sourceDimensions[ d ] );
+
+		final int[] sourceSteps = new int[ n ];
+		final int[] neighborhoodDimensions = downsamplingFactors.clone();
+		for ( int d = 0, stride = 1; d < n; ++d )
+		{
+			sourceSteps[ d ] = stride * downsamplingFactors[ d ];
+			stride *= sourceDimensions[ d ];
+		}
+
+		final int[] offsets = neighborhoodOffsets( sourceDimensions, neighborhoodDimensions );
+		final double scale = 1.0 / offsets.length;
+		final int width = targetDimensions[ 0 ];
+		final int step = sourceSteps[ 0 ];
+		int numRows = 1;
+		for ( int d = 1; d < n; ++d )
+			numRows *= targetDimensions[ d ];
+
+		switch ( dataType )
+		{
+		case INT8:
+		{
+			final byte[] src = ( byte[] ) source;
+			final byte[] dst = ( byte[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					long sum = 0;
+					for ( final int offset : offsets )
+						sum += src[ s + offset ];
+					dst[ t ] = ( byte ) Util.round( sum * scale );
+				}
+			break;
+		}
+		case UINT8:
+		{
+			final byte[] src = ( byte[] ) source;
+			final byte[] dst = ( byte[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					long sum = 0;
+					for ( final int offset : offsets )
+						sum += src[ s + offset ] & 0xff;
+					dst[ t ] = ( byte ) Util.round( sum * scale );
+				}
+			break;
+		}
+		case INT16:
+		{
+			final short[] src = ( short[] ) source;
+			final short[] dst = ( short[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					long sum = 0;
+					for ( final int offset : offsets )
+						sum += src[ s + offset ];
+					dst[ t ] = ( short ) Util.round( sum * scale );
+				}
+			break;
+		}
+		case UINT16:
+		{
+			final short[] src = ( short[] ) source;
+			final short[] dst = ( short[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					long sum = 0;
+					for ( final int offset : offsets )
+						sum += src[ s + offset ] & 0xffff;
+					dst[ t ] = ( short ) Util.round( sum * scale );
+				}
+			break;
+		}
+		case INT32:
+		{
+			final int[] src = ( int[] ) source;
+			final int[] dst = ( int[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					long sum = 0;
+					for ( final int offset : offsets )
+						sum += src[ s + offset ];
+					dst[ t ] = ( int ) Util.round( sum * scale );
+				}
+			break;
+		}
+		case UINT32:
+		{
+			final int[] src = ( int[] ) source;
+			final int[] dst = ( int[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					long sum = 0;
+					for ( final int offset : offsets )
+						sum += src[ s + offset ] & 0xffffffffL;
+					dst[ t ] = ( int ) Util.round( sum * scale );
+				}
+			break;
+		}
+		case FLOAT32:
+		{
+			final float[] src = ( float[] ) source;
+			final float[] dst = ( float[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					double sum = 0;
+					for ( final int offset : offsets )
+						sum += src[ s + offset ];
+					dst[ t ] = ( float ) ( sum * scale );
+				}
+			break;
+		}
+		case FLOAT64:
+		{
+			final double[] src = ( double[] ) source;
+			final double[] dst = ( double[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					double sum = 0;
+					for ( final int offset : offsets )
+						sum += src[ s + offset ];
+					dst[ t ] = sum * scale;
+				}
+			break;
+		}
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	/**
+	 * Downsamples a source array that covers only a part of the downsampling grid into the target array.
+	 * Every target element is the average of the source elements within its neighborhood that are covered
+	 * by the source array, target elements without any covered source elements are left unchanged.
+	 *
+	 * The covered range of each neighborhood is computed per dimension, so the neighborhoods are clipped
+	 * without checking every source element, and the elements are summed up in flat order as in
+	 * {@link #downsample(DataType, Object, int[], Object, int[], int[])}.
+	 *
+	 * @param dataType
+	 * @param source
+	 * @param sourceDimensions
+	 * @param sourceMin
+	 * 			position of the first source element in the downsampling grid,
+	 * 			that is, the neighborhood of target element {@code t} starts at {@code t * downsamplingFactors - sourceMin} in the source array
+	 * @param target
+	 * @param targetDimensions
+	 * @param downsamplingFactors
+	 */
+	public static void downsampleClipped(
+			final DataType dataType,
+			final Object source,
+			final int[] sourceDimensions,
+			final int[] sourceMin,
+			final Object target,
+			final int[] targetDimensions,
+			final int[] downsamplingFactors )
+	{
+		final int n = sourceDimensions.length;
+		final int width = targetDimensions[ 0 ];
+		int numRows = 1, maxNumRowOffsets = 1;
+		for ( int d = 1; d < n; ++d )
+		{
+			numRows *= targetDimensions[ d ];
+			maxNumRowOffsets *= downsamplingFactors[ d ];
+		}
+
+		// covered range of the neighborhood of every target element along a row
+		final int[] minX = new int[ width ], maxX = new int[ width ];
+		for ( int x = 0; x < width; ++x )
+		{
+			minX[ x ] = Math.max( x * downsamplingFactors[ 0 ] - sourceMin[ 0 ], 0 );
+			maxX[ x ] = Math.min( ( x + 1 ) * downsamplingFactors[ 0 ] - 1 - sourceMin[ 0 ], sourceDimensions[ 0 ] - 1 );
+		}
+
+		final int[] rowOffsets = new int[ maxNumRowOffsets ];
+		final int[] position = new int[ n ], min = new int[ n ], max = new int[ n ];
+
+		switch ( dataType )
+		{
+		case INT8:
+		{
+			final byte[] src = ( byte[] ) source;
+			final byte[] dst = ( byte[] ) target;
+			for ( int row = 0; row < numRows; ++row )
+			{
+				final int numRowOffsets = clippedRowOffsets( row, targetDimensions, sourceDimensions, sourceMin, downsamplingFactors, rowOffsets, position, min, max );
+				for ( int x = 0, t = row * width; x < width && numRowOffsets > 0; ++x, ++t )
+				{
+					if ( maxX[ x ] < minX[ x ] )
+						continue;
+					long sum = 0;
+					for ( int k = 0; k < numRowOffsets; ++k )
+						for ( int s = rowOffsets[ k ] + minX[ x ], e = rowOffsets[ k ] + maxX[ x ]; s <= e; ++s )
+							sum += src[ s ];
+					final double scale = 1.0 / ( numRowOffsets * ( maxX[ x ] - minX[ x ] + 1 ) );
+					dst[ t ] = ( byte ) Util.round( sum * scale );
+				}
+			}
+			break;
+		}
+		case UINT8:
+		{
+			final byte[] src = ( byte[] ) source;
+			final byte[] dst = ( byte[] ) target;
+			for ( int row = 0; row < numRows; ++row )
+			{
+				final int numRowOffsets = clippedRowOffsets( row, targetDimensions, sourceDimensions, sourceMin, downsamplingFactors, rowOffsets, position, min, max );
+				for ( int x = 0, t = row * width; x < width && numRowOffsets > 0; ++x, ++t )
+				{
+					if ( maxX[ x ] < minX[ x ] )
+						continue;
+					long sum = 0;
+					for ( int k = 0; k < numRowOffsets; ++k )
+						for ( int s = rowOffsets[ k ] + minX[ x ], e = rowOffsets[ k ] + maxX[ x ]; s <= e; ++s )
+							sum += src[ s ] & 0xff;
+					final double scale = 1.0 / ( numRowOffsets * ( maxX[ x ] - minX[ x ] + 1 ) );
+					dst[ t ] = ( byte ) Util.round( sum * scale );
+				}
+			}
+			break;
+		}
+		case INT16:
+		{
+			final short[] src = ( short[] ) source;
+			final short[] dst = ( short[] ) target;
+			for ( int row = 0; row < numRows; ++row )
+			{
+				final int numRowOffsets = clippedRowOffsets( row, targetDimensions, sourceDimensions, sourceMin, downsamplingFactors, rowOffsets, position, min, max );
+				for ( int x = 0, t = row * width; x < width && numRowOffsets > 0; ++x, ++t )
+				{
+					if ( maxX[ x ] < minX[ x ] )
+						continue;
+					long sum = 0;
+					for ( int k = 0; k < numRowOffsets; ++k )
+						for ( int s = rowOffsets[ k ] + minX[ x ], e = rowOffsets[ k ] + maxX[ x ]; s <= e; ++s )
+							sum += src[ s ];
+					final double scale = 1.0 / ( numRowOffsets * ( maxX[ x ] - minX[ x ] + 1 ) );
+					dst[ t ] = ( short ) Util.round( sum * scale );
+				}
+			}
+			break;
+		}
+		case UINT16:
+		{
+			final short[] src = ( short[] ) source;
+			final short[] dst = ( short[] ) target;
+			for ( int row = 0; row < numRows; ++row )
+			{
+				final int numRowOffsets = clippedRowOffsets( row, targetDimensions, sourceDimensions, sourceMin, downsamplingFactors, rowOffsets, position, min, max );
+				for ( int x = 0, t = row * width; x < width && numRowOffsets > 0; ++x, ++t )
+				{
+					if ( maxX[ x ] < minX[ x ] )
+						continue;
+					long sum = 0;
+					for ( int k = 0; k < numRowOffsets; ++k )
+						for ( int s = rowOffsets[ k ] + minX[ x ], e = rowOffsets[ k ] + maxX[ x ]; s <= e; ++s )
+							sum += src[ s ] & 0xffff;
+					final double scale = 1.0 / ( numRowOffsets * ( maxX[ x ] - minX[ x ] + 1 ) );
+					dst[ t ] = ( short ) Util.round( sum * scale );
+				}
+			}
+			break;
+		}
+		case INT32:
+		{
+			final int[] src = ( int[] ) source;
+			final int[] dst = ( int[] ) target;
+			for ( int row = 0; row < numRows; ++row )
+			{
+				final int numRowOffsets = clippedRowOffsets( row, targetDimensions, sourceDimensions, sourceMin, downsamplingFactors, rowOffsets, position, min, max );
+				for ( int x = 0, t = row * width; x < width && numRowOffsets > 0; ++x, ++t )
+				{
+					if ( maxX[ x ] < minX[ x ] )
+						continue;
+					long sum = 0;
+					for ( int k = 0; k < numRowOffsets; ++k )
+						for ( int s = rowOffsets[ k ] + minX[ x ], e = rowOffsets[ k ] + maxX[ x ]; s <= e; ++s )
+							sum += src[ s ];
+					final double scale = 1.0 / ( numRowOffsets * ( maxX[ x ] - minX[ x ] + 1 ) );
+					dst[ t ] = ( int ) Util.round( sum * scale );
+				}
+			}
+			break;
+		}
+		case UINT32:
+		{
+			final int[] src = ( int[] ) source;
+			final int[] dst = ( int[] ) target;
+			for ( int row = 0; row < numRows; ++row )
+			{
+				final int numRowOffsets = clippedRowOffsets( row, targetDimensions, sourceDimensions, sourceMin, downsamplingFactors, rowOffsets, position, min, max );
+				for ( int x = 0, t = row * width; x < width && numRowOffsets > 0; ++x, ++t )
+				{
+					if ( maxX[ x ] < minX[ x ] )
+						continue;
+					long sum = 0;
+					for ( int k = 0; k < numRowOffsets; ++k )
+						for ( int s = rowOffsets[ k ] + minX[ x ], e = rowOffsets[ k ] + maxX[ x ]; s <= e; ++s )
+							sum += src[ s ] & 0xffffffffL;
+					final double scale = 1.0 / ( numRowOffsets * ( maxX[ x ] - minX[ x ] + 1 ) );
+					dst[ t ] = ( int ) Util.round( sum * scale );
+				}
+			}
+			break;
+		}
+		case FLOAT32:
+		{
+			final float[] src = ( float[] ) source;
+			final float[] dst = ( float[] ) target;
+			for ( int row = 0; row < numRows; ++row )
+			{
+				final int numRowOffsets = clippedRowOffsets( row, targetDimensions, sourceDimensions, sourceMin, downsamplingFactors, rowOffsets, position, min, max );
+				for ( int x = 0, t = row * width; x < width && numRowOffsets > 0; ++x, ++t )
+				{
+					if ( maxX[ x ] < minX[ x ] )
+						continue;
+					double sum = 0;
+					for ( int k = 0; k < numRowOffsets; ++k )
+						for ( int s = rowOffsets[ k ] + minX[ x ], e = rowOffsets[ k ] + maxX[ x ]; s <= e; ++s )
+							sum += src[ s ];
+					final double scale = 1.0 / ( numRowOffsets * ( maxX[ x ] - minX[ x ] + 1 ) );
+					dst[ t ] = ( float ) ( sum * scale );
+				}
+			}
+			break;
+		}
+		case FLOAT64:
+		{
+			final double[] src = ( double[] ) source;
+			final double[] dst = ( double[] ) target;
+			for ( int row = 0; row < numRows; ++row )
+			{
+				final int numRowOffsets = clippedRowOffsets( row, targetDimensions, sourceDimensions, sourceMin, downsamplingFactors, rowOffsets, position, min, max );
+				for ( int x = 0, t = row * width; x < width && numRowOffsets > 0; ++x, ++t )
+				{
+					if ( maxX[ x ] < minX[ x ] )
+						continue;
+					double sum = 0;
+					for ( int k = 0; k < numRowOffsets; ++k )
+						for ( int s = rowOffsets[ k ] + minX[ x ], e = rowOffsets[ k ] + maxX[ x ]; s <= e; ++s )
+							sum += src[ s ];
+					final double scale = 1.0 / ( numRowOffsets * ( maxX[ x ] - minX[ x ] + 1 ) );
+					dst[ t ] = sum * scale;
+				}
+			}
+			break;
+		}
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	/**
+	 * Flat indices in the source array of the first elements of the covered source rows of the neighborhoods
+	 * of the given row of the target array, in flat order. Returns the number of covered source rows.
+	 */
+	private static int clippedRowOffsets(
+			final int row,
+			final int[] targetDimensions,
+			final int[] sourceDimensions,
+			final int[] sourceMin,
+			final int[] downsamplingFactors,
+			final int[] rowOffsets,
+			final int[] position,
+			final int[] min,
+			final int[] max )
+	{
+		final int n = sourceDimensions.length;
+		for ( int d = 1, r = row; d < n; ++d )
+		{
+			final int t = r % targetDimensions[ d ];
+			r /= targetDimensions[ d ];
+			min[ d ] = Math.max( t * downsamplingFactors[ d ] - sourceMin[ d ], 0 );
+			max[ d ] = Math.min( ( t + 1 ) * downsamplingFactors[ d ] - 1 - sourceMin[ d ], sourceDimensions[ d ] - 1 );
+			if ( max[ d ] < min[ d ] )
+				return 0;
+			position[ d ] = min[ d ];
+		}
+
+		for ( int numRowOffsets = 0; ; )
+		{
+			int offset = 0;
+			for ( int d = n - 1; d > 0; --d )
+				offset = ( offset + position[ d ] ) * sourceDimensions[ d - 1 ];
+			rowOffsets[ numRowOffsets++ ] = offset;
+
+			int d = 1;
+			for ( ; d < n; ++d )
+			{
+				if ( ++position[ d ] <= max[ d ] )
+					break;
+				position[ d ] = min[ d ];
+			}
+			if ( d == n )
+				return numRowOffsets;
+		}
+	}
+
+	/**
+	 * Flat offsets of all elements of a neighborhood relative to its min in the source array, in flat order.
+	 */
+	static int[] neighborhoodOffsets( final int[] sourceDimensions, final int[] neighborhoodDimensions )
+	{
+		final int n = sourceDimensions.length;
+		int size = 1;
+		for ( int d = 0; d < n; ++d )
+			size *= neighborhoodDimensions[ d ];
+
+		final int[] offsets = new int[ size ];
+		final int[] position = new int[ n ];
+		for ( int i = 0; i < size; ++i )
+		{
+			int offset = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				offset = offset * sourceDimensions[ d ] + position[ d ];
+			offsets[ i ] = offset;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++position[ d ] < neighborhoodDimensions[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+		}
+		return offsets;
+	}
+
+	/**
+	 * Flat index in the source array of the first neighborhood of the given row of the target array.
+	 */
+	static int rowOffset( final int row, final int[] targetDimensions, final int[] sourceSteps )
+	{
+		int offset = 0;
+		for ( int d = 1, r = row; d < targetDimensions.length; ++d )
+		{
+			offset += ( r % targetDimensions[ d ] ) * sourceSteps[ d ];
+			r /= targetDimensions[ d ];
+		}
+		return offset;
+	}
+}
@@ -0,0 +1,157 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import java.util.Arrays;
+
+/**
+ * Reusable histogram of label counts backed by an open-addressing hash table of primitive longs and ints.
+ *
+ * Clearing does not touch the table: every slot is tagged with the generation it was written in,
+ * so the same instance can be used for every output pixel without allocating or resetting memory.
+ * The table grows automatically if more distinct labels are added than expected.
+ */
+public class LabelCounts
+{
+	private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	private long[] labels;
+	private int[] counts;
+	private int[] generations;
+	private int[] usedSlots;
+	private int shift;
+	private int size;
+	private int generation = 1;
+
+	/**
+	 * @param expectedNumLabels
+	 * 			expected maximum number of distinct labels between two calls to {@link #clear()}
+	 */
+	public LabelCounts( final int expectedNumLabels )
+	{
+		allocate( Math.max( expectedNumLabels, 1 ) );
+	}
+
+	/**
+	 * Removes all labels.
+	 */
+	public void clear()
+	{
+		size = 0;
+		if ( ++generation == 0 )
+		{
+			Arrays.fill( generations, 0 );
+			generation = 1;
+		}
+	}
+
+	public void add( final long label )
+	{
+		add( label, 1 );
+	}
+
+	public void add( final long label, final int count )
+	{
+		final int mask = labels.length - 1;
+		int slot = slot( label );
+		while ( generations[ slot ] == generation )
+		{
+			if ( labels[ slot ] == label )
+			{
+				counts[ slot ] += count;
+				return;
+			}
+			slot = ( slot + 1 ) & mask;
+		}
+
+		generations[ slot ] = generation;
+		labels[ slot ] = label;
+		counts[ slot ] = count;
+		usedSlots[ size++ ] = slot;
+
+		if ( size * 2 > labels.length )
+			grow();
+	}
+
+	/**
+	 * @return the number of distinct labels
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param i
+	 * 			index of the label in insertion order, {@code 0 <= i < size()}
+	 */
+	public long getLabel( final int i )
+	{
+		return labels[ usedSlots[ i ] ];
+	}
+
+	/**
+	 * @param i
+	 * 			index of the label in insertion order, {@code 0 <= i < size()}
+	 */
+	public int getCount( final int i )
+	{
+		return counts[ usedSlots[ i ] ];
+	}
+
+	/**
+	 * Finds the most frequent label, or in case of multiple labels with the same frequency, the smallest label among them.
+	 * Returns {@link Long#MIN_VALUE} if the histogram is empty.
+	 *
+	 * @return
+	 */
+	public long getMostFrequentLabel()
+	{
+		int maxCount = Integer.MIN_VALUE;
+		long labelWithMaxCount = Long.MIN_VALUE;
+		for ( int i = 0; i < size; ++i )
+		{
+			final int slot = usedSlots[ i ];
+			final int count = counts[ slot ];
+			final long label = labels[ slot ];
+			if ( maxCount < count || ( maxCount == count && labelWithMaxCount > label ) )
+			{
+				maxCount = count;
+				labelWithMaxCount = label;
+			}
+		}
+		return labelWithMaxCount;
+	}
+
+	private int slot( final long label )
+	{
+		return ( int ) ( ( label * HASH_MULTIPLIER ) >>> shift );
+	}
+
+	private void allocate( final int expectedNumLabels )
+	{
+		int capacity = 4, log2Capacity = 2;
+		while ( capacity < expectedNumLabels * 2 )
+		{
+			capacity <<= 1;
+			++log2Capacity;
+		}
+		labels = new long[ capacity ];
+		counts = new int[ capacity ];
+		generations = new int[ capacity ];
+		usedSlots = new int[ capacity / 2 + 1 ];
+		shift = 64 - log2Capacity;
+		size = 0;
+		generation = 1;
+	}
+
+	private void grow()
+	{
+		final long[] oldLabels = labels;
+		final int[] oldCounts = counts;
+		final int[] oldUsedSlots = usedSlots;
+		final int oldSize = size;
+
+		allocate( labels.length );
+		for ( int i = 0; i < oldSize; ++i )
+			add( oldLabels[ oldUsedSlots[ i ] ], oldCounts[ oldUsedSlots[ i ] ] );
+	}
+}
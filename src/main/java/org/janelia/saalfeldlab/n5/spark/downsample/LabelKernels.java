@@ -0,0 +1,340 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * Label downsampling kernels that work directly on the flat primitive arrays of N5 data blocks.
+ *
+ * Every output value is the most frequent label in the corresponding neighborhood,
+ * or in case of multiple labels with the same frequency, the smallest label among them.
+ * Labels are compared as longs, unsigned types up to 32 bits are zero-extended and 64-bit types are taken as is.
+ *
+ * Small neighborhoods (such as 2x2x2) are sorted in place and scanned for the longest run,
+ * larger neighborhoods are counted in a reusable {@link LabelCounts} table, so no memory is allocated per output pixel.
+ */
+public class LabelKernels
+{
+	/**
+	 * Neighborhoods up to this size are sorted instead of hashed.
+	 */
+	static final int MAX_SORTED_NEIGHBORHOOD_SIZE = 16;
+
+	private LabelKernels() { }
+
+	public static boolean isSupported( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+		case INT16:
+		case UINT16:
+		case INT32:
+		case UINT32:
+		case INT64:
+		case UINT64:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Downsamples the source array into the target array.
+	 * The source array has to cover at least {@code targetDimensions * downsamplingFactors} elements in every dimension
+	 * starting at the origin, any excess elements are ignored.
+	 *
+	 * @param dataType
+	 * @param source
+	 * @param sourceDimensions
+	 * @param target
+	 * @param targetDimensions
+	 * @param downsamplingFactors
+	 */
+	public static void downsample(
+			final DataType dataType,
+			final Object source,
+			final int[] sourceDimensions,
+			final Object target,
+			final int[] targetDimensions,
+			final int[] downsamplingFactors )
+	{
+		final int n = sourceDimensions.length;
+		for ( int d = 0; d < n; ++d )
+			if ( ( long ) targetDimensions[ d ] * downsamplingFactors[ d ] > sourceDimensions[ d ] )
+				throw new IllegalArgumentException( "Source is too small in dimension " + d + ": " + sourceDimensions[ d ] );
+
+		final int[] sourceSteps = new int[ n ];
+		for ( int d = 0, stride = 1; d < n; ++d )
+		{
+			sourceSteps[ d ] = stride * downsamplingFactors[ d ];
+			stride *= sourceDimensions[ d ];
+		}
+
+		final int[] offsets = AveragingKernels.neighborhoodOffsets( sourceDimensions, downsamplingFactors );
+		final long[] values = new long[ offsets.length ];
+		final LabelCounts labelCounts = offsets.length > MAX_SORTED_NEIGHBORHOOD_SIZE ? new LabelCounts( offsets.length ) : null;
+		final int width = targetDimensions[ 0 ];
+		final int step = sourceSteps[ 0 ];
+		int numRows = 1;
+		for ( int d = 1; d < n; ++d )
+			numRows *= targetDimensions[ d ];
+
+		switch ( dataType )
+		{
+		case INT8:
+		{
+			final byte[] src = ( byte[] ) source;
+			final byte[] dst = ( byte[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = AveragingKernels.rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					for ( int i = 0; i < offsets.length; ++i )
+						values[ i ] = src[ s + offsets[ i ] ];
+					dst[ t ] = ( byte ) mostFrequentLabel( values, labelCounts );
+				}
+			break;
+		}
+		case UINT8:
+		{
+			final byte[] src = ( byte[] ) source;
+			final byte[] dst = ( byte[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = AveragingKernels.rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					for ( int i = 0; i < offsets.length; ++i )
+						values[ i ] = src[ s + offsets[ i ] ] & 0xff;
+					dst[ t ] = ( byte ) mostFrequentLabel( values, labelCounts );
+				}
+			break;
+		}
+		case INT16:
+		{
+			final short[] src = ( short[] ) source;
+			final short[] dst = ( short[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = AveragingKernels.rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					for ( int i = 0; i < offsets.length; ++i )
+						values[ i ] = src[ s + offsets[ i ] ];
+					dst[ t ] = ( short ) mostFrequentLabel( values, labelCounts );
+				}
+			break;
+		}
+		case UINT16:
+		{
+			final short[] src = ( short[] ) source;
+			final short[] dst = ( short[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = AveragingKernels.rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					for ( int i = 0; i < offsets.length; ++i )
+						values[ i ] = src[ s + offsets[ i ] ] & 0xffff;
+					dst[ t ] = ( short ) mostFrequentLabel( values, labelCounts );
+				}
+			break;
+		}
+		case INT32:
+		{
+			final int[] src = ( int[] ) source;
+			final int[] dst = ( int[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = AveragingKernels.rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					for ( int i = 0; i < offsets.length; ++i )
+						values[ i ] = src[ s + offsets[ i ] ];
+					dst[ t ] = ( int ) mostFrequentLabel( values, labelCounts );
+				}
+			break;
+		}
+		case UINT32:
+		{
+			final int[] src = ( int[] ) source;
+			final int[] dst = ( int[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = AveragingKernels.rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					for ( int i = 0; i < offsets.length; ++i )
+						values[ i ] = src[ s + offsets[ i ] ] & 0xffffffffL;
+					dst[ t ] = ( int ) mostFrequentLabel( values, labelCounts );
+				}
+			break;
+		}
+		case INT64:
+		case UINT64:
+		{
+			final long[] src = ( long[] ) source;
+			final long[] dst = ( long[] ) target;
+			for ( int row = 0, t = 0; row < numRows; ++row )
+				for ( int x = 0, s = AveragingKernels.rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += step )
+				{
+					for ( int i = 0; i < offsets.length; ++i )
+						values[ i ] = src[ s + offsets[ i ] ];
+					dst[ t ] = mostFrequentLabel( values, labelCounts );
+				}
+			break;
+		}
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	/**
+	 * Converts a flat primitive array of labels into longs in the same way as {@link #downsample(DataType, Object, int[], Object, int[], int[])}.
+	 *
+	 * @param dataType
+	 * @param data
+	 * @return
+	 */
+	static long[] getLabels( final DataType dataType, final Object data )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		{
+			final byte[] src = ( byte[] ) data;
+			final long[] labels = new long[ src.length ];
+			for ( int i = 0; i < src.length; ++i )
+				labels[ i ] = src[ i ];
+			return labels;
+		}
+		case UINT8:
+		{
+			final byte[] src = ( byte[] ) data;
+			final long[] labels = new long[ src.length ];
+			for ( int i = 0; i < src.length; ++i )
+				labels[ i ] = src[ i ] & 0xff;
+			return labels;
+		}
+		case INT16:
+		{
+			final short[] src = ( short[] ) data;
+			final long[] labels = new long[ src.length ];
+			for ( int i = 0; i < src.length; ++i )
+				labels[ i ] = src[ i ];
+			return labels;
+		}
+		case UINT16:
+		{
+			final short[] src = ( short[] ) data;
+			final long[] labels = new long[ src.length ];
+			for ( int i = 0; i < src.length; ++i )
+				labels[ i ] = src[ i ] & 0xffff;
+			return labels;
+		}
+		case INT32:
+		{
+			final int[] src = ( int[] ) data;
+			final long[] labels = new long[ src.length ];
+			for ( int i = 0; i < src.length; ++i )
+				labels[ i ] = src[ i ];
+			return labels;
+		}
+		case UINT32:
+		{
+			final int[] src = ( int[] ) data;
+			final long[] labels = new long[ src.length ];
+			for ( int i = 0; i < src.length; ++i )
+				labels[ i ] = src[ i ] & 0xffffffffL;
+			return labels;
+		}
+		case INT64:
+		case UINT64:
+			return ( ( long[] ) data ).clone();
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	/**
+	 * Stores the given labels in a flat primitive array of the given type.
+	 *
+	 * @param dataType
+	 * @param labels
+	 * @param data
+	 */
+	static void setLabels( final DataType dataType, final long[] labels, final Object data )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+		{
+			final byte[] dst = ( byte[] ) data;
+			for ( int i = 0; i < labels.length; ++i )
+				dst[ i ] = ( byte ) labels[ i ];
+			break;
+		}
+		case INT16:
+		case UINT16:
+		{
+			final short[] dst = ( short[] ) data;
+			for ( int i = 0; i < labels.length; ++i )
+				dst[ i ] = ( short ) labels[ i ];
+			break;
+		}
+		case INT32:
+		case UINT32:
+		{
+			final int[] dst = ( int[] ) data;
+			for ( int i = 0; i < labels.length; ++i )
+				dst[ i ] = ( int ) labels[ i ];
+			break;
+		}
+		case INT64:
+		case UINT64:
+			System.arraycopy( labels, 0, data, 0, labels.length );
+			break;
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	/**
+	 * Finds the most frequent value, or in case of multiple values with the same frequency, the smallest value among them.
+	 * If {@code labelCounts} is null, the values are sorted in place, otherwise they are counted in {@code labelCounts}.
+	 *
+	 * @param values
+	 * @param labelCounts
+	 * @return
+	 */
+	static long mostFrequentLabel( final long[] values, final LabelCounts labelCounts )
+	{
+		if ( labelCounts != null )
+		{
+			labelCounts.clear();
+			for ( final long value : values )
+				labelCounts.add( value );
+			return labelCounts.getMostFrequentLabel();
+		}
+
+		// insertion sort, then take the longest run (the first one wins ties because it has the smallest value)
+		for ( int i = 1; i < values.length; ++i )
+		{
+			final long value = values[ i ];
+			int j = i - 1;
+			while ( j >= 0 && values[ j ] > value )
+			{
+				values[ j + 1 ] = values[ j ];
+				--j;
+			}
+			values[ j + 1 ] = value;
+		}
+
+		long labelWithMaxCount = values[ 0 ];
+		int maxCount = 0;
+		for ( int i = 0; i < values.length; )
+		{
+			int j = i + 1;
+			while ( j < values.length && values[ j ] == values[ i ] )
+				++j;
+			if ( j - i > maxCount )
+			{
+				maxCount = j - i;
+				labelWithMaxCount = values[ i ];
+			}
+			i = j;
+		}
+		return labelWithMaxCount;
+	}
+}
@@ -0,0 +1,408 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils.DataBlockReader;
+
+/**
+ * Flat array of label multisets, one per pixel. Each multiset lists the distinct labels of the full resolution pixels
+ * that the pixel was downsampled from, together with the number of those pixels.
+ *
+ * Downsampling the multisets again merges the counts, so the most frequent label at every scale level
+ * is computed with respect to all full resolution pixels covered by it, and not from the most frequent labels of the previous level.
+ * Ties are resolved in the same way as in {@link LabelKernels}.
+ *<p>
+ * Label multisets can be stored in N5 datasets of type {@link DataType#UINT8} where every block holds the serialized multisets
+ * of its pixels (see {@link #toByteArray()}). Such datasets are marked with the {@link #LABEL_MULTISETS_ATTRIBUTE_KEY} attribute.
+ * The serialization is not compatible with the label multisets of Paintera, so a different attribute key is used.
+ * The blocks that do not exist are treated as background: every pixel contains only label 0.
+ */
+public class LabelMultisets
+{
+	public static final String LABEL_MULTISETS_ATTRIBUTE_KEY = "n5SparkLabelMultiset";
+
+	/* entries of the pixel i are stored at the indices offsets[i] ... offsets[i+1]-1 */
+	private final int[] offsets;
+	private final long[] labels;
+	private final int[] counts;
+
+	LabelMultisets( final int[] offsets, final long[] labels, final int[] counts )
+	{
+		this.offsets = offsets;
+		this.labels = labels;
+		this.counts = counts;
+	}
+
+	/**
+	 * @return number of pixels
+	 */
+	public int numElements()
+	{
+		return offsets.length - 1;
+	}
+
+	/**
+	 * @param i
+	 * 			pixel index
+	 * @return number of distinct labels of the given pixel
+	 */
+	public int size( final int i )
+	{
+		return offsets[ i + 1 ] - offsets[ i ];
+	}
+
+	public long getLabel( final int i, final int j )
+	{
+		return labels[ offsets[ i ] + j ];
+	}
+
+	public int getCount( final int i, final int j )
+	{
+		return counts[ offsets[ i ] + j ];
+	}
+
+	/**
+	 * @return true if every pixel contains only label 0
+	 */
+	public boolean isEmpty()
+	{
+		for ( int i = 0; i < numElements(); ++i )
+			if ( size( i ) != 1 || labels[ offsets[ i ] ] != 0 )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Serializes the multisets into a compact byte array: the number of pixels, the number of distinct labels of every pixel,
+	 * and then the (label, count) pairs of every pixel sorted by label, all in big-endian order.
+	 *
+	 * @return
+	 */
+	public byte[] toByteArray()
+	{
+		final int numPixels = numElements();
+		final ByteBuffer buffer = ByteBuffer.allocate( Integer.BYTES * ( numPixels + 1 ) + ( Long.BYTES + Integer.BYTES ) * offsets[ numPixels ] );
+		buffer.putInt( numPixels );
+		for ( int i = 0; i < numPixels; ++i )
+			buffer.putInt( size( i ) );
+
+		final int[] order = new int[ labels.length ];
+		for ( int i = 0; i < numPixels; ++i )
+		{
+			// insertion sort of the entries of the pixel by label
+			for ( int j = offsets[ i ]; j < offsets[ i + 1 ]; ++j )
+			{
+				int k = j - 1;
+				while ( k >= offsets[ i ] && labels[ order[ k ] ] > labels[ j ] )
+				{
+					order[ k + 1 ] = order[ k ];
+					--k;
+				}
+				order[ k + 1 ] = j;
+			}
+
+			for ( int j = offsets[ i ]; j < offsets[ i + 1 ]; ++j )
+			{
+				buffer.putLong( labels[ order[ j ] ] );
+				buffer.putInt( counts[ order[ j ] ] );
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Deserializes the multisets from a byte array created by {@link #toByteArray()}.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static LabelMultisets fromByteArray( final byte[] bytes )
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		final int numPixels = buffer.getInt();
+		final int[] offsets = new int[ numPixels + 1 ];
+		for ( int i = 0; i < numPixels; ++i )
+			offsets[ i + 1 ] = offsets[ i ] + buffer.getInt();
+
+		final long[] labels = new long[ offsets[ numPixels ] ];
+		final int[] counts = new int[ labels.length ];
+		for ( int j = 0; j < labels.length; ++j )
+		{
+			labels[ j ] = buffer.getLong();
+			counts[ j ] = buffer.getInt();
+		}
+		return new LabelMultisets( offsets, labels, counts );
+	}
+
+	/**
+	 * Creates an N5 data block that holds the serialized multisets of the given block.
+	 *
+	 * @param blockSize
+	 * @param gridPosition
+	 * @return
+	 */
+	public DataBlock< byte[] > toDataBlock( final int[] blockSize, final long[] gridPosition )
+	{
+		if ( DataBlockUtils.numElements( blockSize ) != numElements() )
+			throw new IllegalArgumentException( "Block size does not match the number of pixels: " + Arrays.toString( blockSize ) );
+		return new ByteArrayDataBlock( blockSize, gridPosition, toByteArray() );
+	}
+
+	/**
+	 * Reads the given region of an N5 dataset of label multisets.
+	 * The pixels that belong to blocks that do not exist contain only label 0 with the given count.
+	 *
+	 * @param blockReader
+	 * @param attributes
+	 * @param min
+	 * 			min of the region in pixel coordinates
+	 * @param dimensions
+	 * 			dimensions of the region
+	 * @param backgroundCount
+	 * 			number of full resolution pixels that correspond to a single pixel of the dataset
+	 * @return
+	 * @throws IOException
+	 */
+	public static LabelMultisets readRegion(
+			final DataBlockReader blockReader,
+			final DatasetAttributes attributes,
+			final long[] min,
+			final int[] dimensions,
+			final int backgroundCount ) throws IOException
+	{
+		final int n = dimensions.length;
+		final int[] blockSize = attributes.getBlockSize();
+		final int numPixels = ( int ) DataBlockUtils.numElements( dimensions );
+
+		// the multisets of the block and the index within the block for every pixel of the region
+		final LabelMultisets[] sources = new LabelMultisets[ numPixels ];
+		final int[] sourceIndices = new int[ numPixels ];
+
+		if ( numPixels > 0 )
+		{
+			final long[] gridMin = new long[ n ], gridMax = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				gridMin[ d ] = min[ d ] / blockSize[ d ];
+				gridMax[ d ] = ( min[ d ] + dimensions[ d ] - 1 ) / blockSize[ d ];
+			}
+
+			final long[] gridPosition = gridMin.clone();
+			final int[] blockOffset = new int[ n ], regionOffset = new int[ n ], size = new int[ n ], position = new int[ n ];
+			do
+			{
+				final DataBlock< ? > block = blockReader.readBlock( gridPosition );
+				if ( block == null )
+					continue;
+
+				final LabelMultisets blockMultisets = fromByteArray( ( byte[] ) block.getData() );
+				final int[] blockDimensions = block.getSize();
+				for ( int d = 0; d < n; ++d )
+				{
+					final long blockMin = gridPosition[ d ] * blockSize[ d ];
+					final long intersectionMin = Math.max( blockMin, min[ d ] );
+					final long intersectionMax = Math.min( blockMin + blockDimensions[ d ], min[ d ] + dimensions[ d ] ) - 1;
+					blockOffset[ d ] = ( int ) ( intersectionMin - blockMin );
+					regionOffset[ d ] = ( int ) ( intersectionMin - min[ d ] );
+					size[ d ] = ( int ) ( intersectionMax - intersectionMin + 1 );
+				}
+
+				Arrays.fill( position, 0 );
+				for ( long k = DataBlockUtils.numElements( size ); k > 0; --k )
+				{
+					int blockIndex = 0, regionIndex = 0;
+					for ( int d = n - 1; d >= 0; --d )
+					{
+						blockIndex = blockIndex * blockDimensions[ d ] + blockOffset[ d ] + position[ d ];
+						regionIndex = regionIndex * dimensions[ d ] + regionOffset[ d ] + position[ d ];
+					}
+					sources[ regionIndex ] = blockMultisets;
+					sourceIndices[ regionIndex ] = blockIndex;
+
+					for ( int d = 0; d < n && ++position[ d ] == size[ d ]; ++d )
+						position[ d ] = 0;
+				}
+			}
+			while ( DataBlockUtils.nextGridPosition( gridPosition, gridMin, gridMax ) );
+		}
+
+		final int[] offsets = new int[ numPixels + 1 ];
+		for ( int i = 0; i < numPixels; ++i )
+			offsets[ i + 1 ] = offsets[ i ] + ( sources[ i ] != null ? sources[ i ].size( sourceIndices[ i ] ) : 1 );
+
+		final long[] labels = new long[ offsets[ numPixels ] ];
+		final int[] counts = new int[ labels.length ];
+		for ( int i = 0; i < numPixels; ++i )
+		{
+			if ( sources[ i ] == null )
+			{
+				counts[ offsets[ i ] ] = backgroundCount;
+			}
+			else
+			{
+				final int sourceOffset = sources[ i ].offsets[ sourceIndices[ i ] ];
+				System.arraycopy( sources[ i ].labels, sourceOffset, labels, offsets[ i ], offsets[ i + 1 ] - offsets[ i ] );
+				System.arraycopy( sources[ i ].counts, sourceOffset, counts, offsets[ i ], offsets[ i + 1 ] - offsets[ i ] );
+			}
+		}
+		return new LabelMultisets( offsets, labels, counts );
+	}
+
+	/**
+	 * Creates the multisets of the target pixels from a flat primitive array of labels.
+	 * The source array has to cover at least {@code targetDimensions * downsamplingFactors} elements in every dimension
+	 * starting at the origin, any excess elements are ignored.
+	 *
+	 * @param dataType
+	 * @param source
+	 * @param sourceDimensions
+	 * @param targetDimensions
+	 * @param downsamplingFactors
+	 * @return
+	 */
+	public static LabelMultisets downsample(
+			final DataType dataType,
+			final Object source,
+			final int[] sourceDimensions,
+			final int[] targetDimensions,
+			final int[] downsamplingFactors )
+	{
+		final long[] sourceLabels = LabelKernels.getLabels( dataType, source );
+		final int[] starts = neighborhoodStarts( sourceDimensions, targetDimensions, downsamplingFactors );
+		final int[] neighborhoodOffsets = AveragingKernels.neighborhoodOffsets( sourceDimensions, downsamplingFactors );
+		final LabelCounts labelCounts = new LabelCounts( neighborhoodOffsets.length );
+
+		final int[] targetOffsets = new int[ starts.length + 1 ];
+		final long[] targetLabels = new long[ starts.length * neighborhoodOffsets.length ];
+		final int[] targetCounts = new int[ targetLabels.length ];
+		int k = 0;
+		for ( int t = 0; t < starts.length; ++t )
+		{
+			labelCounts.clear();
+			for ( final int offset : neighborhoodOffsets )
+				labelCounts.add( sourceLabels[ starts[ t ] + offset ] );
+
+			targetOffsets[ t ] = k;
+			for ( int j = 0; j < labelCounts.size(); ++j, ++k )
+			{
+				targetLabels[ k ] = labelCounts.getLabel( j );
+				targetCounts[ k ] = labelCounts.getCount( j );
+			}
+		}
+		targetOffsets[ starts.length ] = k;
+
+		return new LabelMultisets( targetOffsets, Arrays.copyOf( targetLabels, k ), Arrays.copyOf( targetCounts, k ) );
+	}
+
+	/**
+	 * Merges the multisets of these pixels into the multisets of the target pixels.
+	 * These pixels have to cover at least {@code targetDimensions * downsamplingFactors} elements in every dimension
+	 * starting at the origin, any excess elements are ignored.
+	 *
+	 * @param dimensions
+	 * 			dimensions of these pixels
+	 * @param targetDimensions
+	 * @param downsamplingFactors
+	 * @return
+	 */
+	public LabelMultisets downsample(
+			final int[] dimensions,
+			final int[] targetDimensions,
+			final int[] downsamplingFactors )
+	{
+		final int[] starts = neighborhoodStarts( dimensions, targetDimensions, downsamplingFactors );
+		final int[] neighborhoodOffsets = AveragingKernels.neighborhoodOffsets( dimensions, downsamplingFactors );
+		final LabelCounts labelCounts = new LabelCounts( neighborhoodOffsets.length );
+
+		final int[] targetOffsets = new int[ starts.length + 1 ];
+		final long[] targetLabels = new long[ labels.length ];
+		final int[] targetCounts = new int[ labels.length ];
+		int k = 0;
+		for ( int t = 0; t < starts.length; ++t )
+		{
+			labelCounts.clear();
+			for ( final int offset : neighborhoodOffsets )
+			{
+				final int i = starts[ t ] + offset;
+				for ( int j = offsets[ i ]; j < offsets[ i + 1 ]; ++j )
+					labelCounts.add( labels[ j ], counts[ j ] );
+			}
+
+			targetOffsets[ t ] = k;
+			for ( int j = 0; j < labelCounts.size(); ++j, ++k )
+			{
+				targetLabels[ k ] = labelCounts.getLabel( j );
+				targetCounts[ k ] = labelCounts.getCount( j );
+			}
+		}
+		targetOffsets[ starts.length ] = k;
+
+		return new LabelMultisets( targetOffsets, Arrays.copyOf( targetLabels, k ), Arrays.copyOf( targetCounts, k ) );
+	}
+
+	/**
+	 * Stores the most frequent label of every pixel, or in case of multiple labels with the same frequency,
+	 * the smallest label among them, in a flat primitive array of the given type.
+	 *
+	 * @param dataType
+	 * @param target
+	 */
+	public void getMostFrequentLabels( final DataType dataType, final Object target )
+	{
+		final long[] mostFrequentLabels = new long[ numElements() ];
+		for ( int i = 0; i < mostFrequentLabels.length; ++i )
+		{
+			int maxCount = Integer.MIN_VALUE;
+			long labelWithMaxCount = Long.MIN_VALUE;
+			for ( int j = offsets[ i ]; j < offsets[ i + 1 ]; ++j )
+			{
+				if ( maxCount < counts[ j ] || ( maxCount == counts[ j ] && labelWithMaxCount > labels[ j ] ) )
+				{
+					maxCount = counts[ j ];
+					labelWithMaxCount = labels[ j ];
+				}
+			}
+			mostFrequentLabels[ i ] = labelWithMaxCount;
+		}
+		LabelKernels.setLabels( dataType, mostFrequentLabels, target );
+	}
+
+	/**
+	 * Flat index in the source array of the first element of the neighborhood of every target pixel.
+	 */
+	private static int[] neighborhoodStarts(
+			final int[] sourceDimensions,
+			final int[] targetDimensions,
+			final int[] downsamplingFactors )
+	{
+		final int n = sourceDimensions.length;
+		for ( int d = 0; d < n; ++d )
+			if ( ( long ) targetDimensions[ d ] * downsamplingFactors[ d ] > sourceDimensions[ d ] )
+				throw new IllegalArgumentException( "Source is too small in dimension " + d + ": " + sourceDimensions[ d ] );
+
+		final int[] sourceSteps = new int[ n ];
+		for ( int d = 0, stride = 1; d < n; ++d )
+		{
+			sourceSteps[ d ] = stride * downsamplingFactors[ d ];
+			stride *= sourceDimensions[ d ];
+		}
+
+		final int width = targetDimensions[ 0 ];
+		int numRows = 1;
+		for ( int d = 1; d < n; ++d )
+			numRows *= targetDimensions[ d ];
+
+		final int[] starts = new int[ width * numRows ];
+		for ( int row = 0, t = 0; row < numRows; ++row )
+			for ( int x = 0, s = AveragingKernels.rowOffset( row, targetDimensions, sourceSteps ); x < width; ++x, ++t, s += sourceSteps[ 0 ] )
+				starts[ t ] = s;
+		return starts;
+	}
+}
@@ -3,18 +3,23 @@ package org.janelia.saalfeldlab.n5.spark.downsample;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
+import org.janelia.saalfeldlab.n5.spark.util.BlockProgress;
+import org.janelia.saalfeldlab.n5.spark.util.BlockProgress.BlockConsumer;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockCache;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils.DataBlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -28,14 +33,13 @@ import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 public class N5DownsamplerSpark
 {
-	private static final int MAX_PARTITIONS = 15000;
-
 	/**
 	 * Downsamples the given input dataset of an N5 container with respect to the given downsampling factors.
 	 * The output dataset will be created within the same N5 container with the same block size as the input dataset.
@@ -83,12 +87,114 @@ public class N5DownsamplerSpark
 			final String outputDatasetPath,
 			final int[] downsamplingFactors,
 			final int[] blockSize ) throws IOException
+	{
+		downsample(
+				sparkContext,
+				n5Supplier,
+				inputDatasetPath,
+				outputDatasetPath,
+				downsamplingFactors,
+				blockSize,
+				false
+			);
+	}
+
+	/**
+	 * Downsamples the given input dataset of an N5 container with respect to the given downsampling factors.
+	 * The output dataset will be created within the same N5 container with given block size.
+	 *
+	 * If mortonOrder is set, the output blocks are ordered and partitioned along the Morton curve,
+	 * and the source blocks are cached within each partition, so that the source blocks shared by
+	 * neighboring output blocks (e.g. when the output block size is not aligned with the input block size)
+	 * are read and decoded only once.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param blockSize
+	 * @param mortonOrder
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void downsample(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final int[] blockSize,
+			final boolean mortonOrder ) throws IOException
+	{
+		downsample(
+				sparkContext,
+				n5Supplier,
+				inputDatasetPath,
+				outputDatasetPath,
+				downsamplingFactors,
+				blockSize,
+				mortonOrder,
+				false
+			);
+	}
+
+	/**
+	 * Downsamples the given input dataset of an N5 container with respect to the given downsampling factors.
+	 * The output dataset will be created within the same N5 container with given block size.
+	 *
+	 * If mortonOrder is set, the output blocks are ordered and partitioned along the Morton curve,
+	 * and the source blocks are cached within each partition, so that the source blocks shared by
+	 * neighboring output blocks (e.g. when the output block size is not aligned with the input block size)
+	 * are read and decoded only once.
+	 *
+	 * If resume is set, the completed output blocks are recorded in a {@link BlockProgress} bitmap.
+	 * If the output dataset already exists and has the bitmap, only the blocks that have not been completed yet are processed
+	 * (in the flat order, mortonOrder is ignored in this case). If the output dataset exists without the bitmap, it is skipped if it has been
+	 * marked as complete by a previous resumable job, otherwise the downsampling fails because its progress is unknown.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param blockSize
+	 * @param mortonOrder
+	 * @param resume
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void downsample(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final int[] blockSize,
+			final boolean mortonOrder,
+			final boolean resume ) throws IOException
 	{
 		final N5Writer n5 = n5Supplier.get();
 		if ( !n5.datasetExists( inputDatasetPath ) )
 			throw new IllegalArgumentException( "Input N5 dataset " + inputDatasetPath + " does not exist" );
+
+		final BlockProgress existingProgress;
 		if ( n5.datasetExists( outputDatasetPath ) )
-			throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
+		{
+			if ( !resume )
+				throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
+
+			existingProgress = BlockProgress.open( n5, outputDatasetPath );
+			if ( existingProgress == null )
+			{
+				if ( !BlockProgress.isComplete( n5, outputDatasetPath ) )
+					throw new IllegalArgumentException( "Cannot resume, output N5 dataset " + outputDatasetPath + " has no recorded progress and is not marked as complete (remove it to restart the downsampling)" );
+				System.out.println( "Output N5 dataset " + outputDatasetPath + " is already complete" );
+				return;
+			}
+		}
+		else
+		{
+			existingProgress = null;
+		}
 
 		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
 		final int dim = inputAttributes.getNumDimensions();
@@ -103,59 +209,296 @@ public class N5DownsamplerSpark
 		if ( Arrays.stream( outputDimensions ).min().getAsLong() < 1 )
 			throw new IllegalArgumentException( "Degenerate output dimensions: " + Arrays.toString( outputDimensions ) );
 
-		final int[] outputBlockSize = blockSize != null ? blockSize : inputAttributes.getBlockSize();
-		n5.createDataset(
-				outputDatasetPath,
-				outputDimensions,
-				outputBlockSize,
-				inputAttributes.getDataType(),
-				inputAttributes.getCompression()
-			);
+		final int[] outputBlockSize;
+		final BlockProgress progress;
+		if ( existingProgress != null )
+		{
+			final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+			if ( !Arrays.equals( outputDimensions, outputAttributes.getDimensions() ) || ( blockSize != null && !Arrays.equals( blockSize, outputAttributes.getBlockSize() ) ) )
+				throw new IllegalArgumentException( "Cannot resume, output N5 dataset " + outputDatasetPath + " has different parameters" );
 
-		final CellGrid outputCellGrid = new CellGrid( outputDimensions, outputBlockSize );
-		final long numDownsampledBlocks = Intervals.numElements( outputCellGrid.getGridDimensions() );
-		final List< Long > blockIndexes = LongStream.range( 0, numDownsampledBlocks ).boxed().collect( Collectors.toList() );
+			outputBlockSize = outputAttributes.getBlockSize();
+			progress = existingProgress;
+			System.out.println( "Resuming downsampling into " + outputDatasetPath );
+		}
+		else
+		{
+			outputBlockSize = blockSize != null ? blockSize : inputAttributes.getBlockSize();
+			progress = resume ? BlockProgress.create( n5, outputDatasetPath, Intervals.numElements( new CellGrid( outputDimensions, outputBlockSize ).getGridDimensions() ) ) : null;
+			n5.createDataset(
+					outputDatasetPath,
+					outputDimensions,
+					outputBlockSize,
+					inputAttributes.getDataType(),
+					inputAttributes.getCompression()
+				);
+			BlockProgress.clearComplete( n5, outputDatasetPath );
+		}
+
+		// keep the source blocks of the last 2^n processed output blocks, which is enough to reuse them within a Morton cell (as long as they fit into the memory budget)
+		final int blockCacheSize;
+		if ( mortonOrder && progress == null )
+		{
+			long numSourceBlocksPerTask = 1;
+			for ( int d = 0; d < dim; ++d )
+				numSourceBlocksPerTask *= ( outputBlockSize[ d ] * downsamplingFactors[ d ] + inputAttributes.getBlockSize()[ d ] - 1 ) / inputAttributes.getBlockSize()[ d ] + 1;
+			blockCacheSize = DataBlockCache.getMaxNumBlocks( numSourceBlocksPerTask << dim, inputAttributes.getBlockSize(), inputAttributes.getDataType(), DataBlockCache.DEFAULT_MAX_BYTES );
+		}
+		else
+		{
+			blockCacheSize = 0;
+		}
 
-		sparkContext.parallelize( blockIndexes, Math.min( blockIndexes.size(), MAX_PARTITIONS ) ).foreach( blockIndex ->
+		final CellGrid outputCellGrid = new CellGrid( outputDimensions, outputBlockSize );
+		final JavaRDD< Long > rdd = progress != null ? progress.createChunkRDD( sparkContext ) : BlockIndexRDD.create( sparkContext, outputCellGrid.getGridDimensions(), mortonOrder );
+		rdd.foreachPartition( indexes ->
 		{
+			final N5Writer n5Local = n5Supplier.get();
+			final DatasetAttributes sourceAttributes = n5Local.getDatasetAttributes( inputDatasetPath );
+			final DatasetAttributes targetAttributes = n5Local.getDatasetAttributes( outputDatasetPath );
 			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
-			final long[] blockGridPosition = new long[ cellGrid.numDimensions() ];
-			cellGrid.getCellGridPositionFlat( blockIndex, blockGridPosition );
 
-			final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], targetMin = new long[ dim ], targetMax = new long[ dim ];
-			final int[] cellDimensions = new int[ dim ];
-			cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
-			for ( int d = 0; d < dim; ++d )
+			// source blocks are shared by all output blocks of the partition
+			final DataBlockCache sourceBlockCache = new DataBlockCache( n5Local, inputDatasetPath, sourceAttributes, blockCacheSize );
+			final RandomAccessibleInterval< T > source;
+			if ( AveragingKernels.isSupported( sourceAttributes.getDataType() ) )
+				source = null;
+			else if ( blockCacheSize > 0 )
+				source = N5SparkUtils.openWithBoundedCache( n5Local, inputDatasetPath, blockCacheSize );
+			else
+				source = N5Utils.open( n5Local, inputDatasetPath );
+
+			final BlockConsumer blockConsumer = blockIndex ->
 			{
-				targetMax[ d ] = targetMin[ d ] + cellDimensions[ d ] - 1;
-				sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
-				sourceMax[ d ] = targetMax[ d ] * downsamplingFactors[ d ] + downsamplingFactors[ d ] - 1;
-			}
-			final Interval sourceInterval = new FinalInterval( sourceMin, sourceMax );
-			final Interval targetInterval = new FinalInterval( targetMin, targetMax );
+				final long[] blockGridPosition = new long[ dim ];
+				cellGrid.getCellGridPositionFlat( blockIndex, blockGridPosition );
+				downsampleBlock(
+						n5Local,
+						inputDatasetPath,
+						sourceAttributes,
+						sourceBlockCache,
+						source,
+						outputDatasetPath,
+						targetAttributes,
+						cellGrid,
+						blockGridPosition,
+						downsamplingFactors,
+						// the blocks that have not been recorded as completed may have been written partially
+						progress != null
+					);
+			};
+
+			if ( progress != null )
+				progress.processChunks( n5Local, indexes, blockConsumer );
+			else
+				while ( indexes.hasNext() )
+					blockConsumer.accept( indexes.next() );
+		} );
+
+		if ( progress != null )
+			progress.remove( n5 );
+	}
 
+	/**
+	 * Recomputes the blocks of an existing output dataset that intersect with the given region (in output pixel coordinates).
+	 * The blocks are overwritten in place. The blocks that became empty are overwritten with zeros if they existed before.
+	 * Can be used to update a downsampled dataset after a part of the input dataset has been modified,
+	 * see {@link #getDownsampledInterval(Interval, int[])} for mapping the modified region into the output pixel coordinates.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param outputRegion
+	 * @throws IOException
+	 */
+	public static < T extends NativeType< T > & RealType< T > > void downsampleRegion(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final Interval outputRegion ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		if ( !n5.datasetExists( inputDatasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + inputDatasetPath + " does not exist" );
+		if ( !n5.datasetExists( outputDatasetPath ) )
+			throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " does not exist" );
+
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final DatasetAttributes outputAttributes = n5.getDatasetAttributes( outputDatasetPath );
+		final int dim = inputAttributes.getNumDimensions();
+
+		if ( dim != downsamplingFactors.length || dim != outputRegion.numDimensions() )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+
+		final long[] outputDimensions = outputAttributes.getDimensions();
+		for ( int d = 0; d < dim; ++d )
+			if ( outputDimensions[ d ] != inputAttributes.getDimensions()[ d ] / downsamplingFactors[ d ] )
+				throw new IllegalArgumentException( "Output dataset dimensions " + Arrays.toString( outputDimensions ) + " do not match the downsampling factors " + Arrays.toString( downsamplingFactors ) );
+
+		final int[] outputBlockSize = outputAttributes.getBlockSize();
+		final long[] regionGridMin = new long[ dim ], regionGridDimensions = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+		{
+			final long min = Math.max( outputRegion.min( d ), 0 ), max = Math.min( outputRegion.max( d ), outputDimensions[ d ] - 1 );
+			if ( min > max )
+				return;
+			regionGridMin[ d ] = min / outputBlockSize[ d ];
+			regionGridDimensions[ d ] = max / outputBlockSize[ d ] - regionGridMin[ d ] + 1;
+		}
+
+		BlockIndexRDD.create( sparkContext, Intervals.numElements( regionGridDimensions ) ).foreachPartition( blockIndexes ->
+		{
 			final N5Writer n5Local = n5Supplier.get();
+			final DatasetAttributes sourceAttributes = n5Local.getDatasetAttributes( inputDatasetPath );
+			final DatasetAttributes targetAttributes = n5Local.getDatasetAttributes( outputDatasetPath );
+			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
 
-			final RandomAccessibleInterval< T > source = N5Utils.open( n5Local, inputDatasetPath );
-			final RandomAccessibleInterval< T > sourceBlock = Views.offsetInterval( source, sourceInterval );
+			final DataBlockCache sourceBlockReader = new DataBlockCache( n5Local, inputDatasetPath, sourceAttributes, 0 );
+			final RandomAccessibleInterval< T > source = AveragingKernels.isSupported( sourceAttributes.getDataType() ) ? null : N5Utils.open( n5Local, inputDatasetPath );
 
-			/* test if empty */
-			final T defaultValue = Util.getTypeFromInterval( sourceBlock ).createVariable();
-			boolean isEmpty = true;
-			for ( final T t : Views.iterable( sourceBlock ) )
+			while ( blockIndexes.hasNext() )
 			{
-				isEmpty &= defaultValue.valueEquals( t );
-				if ( !isEmpty ) break;
+				final long[] blockGridPosition = new long[ dim ];
+				IntervalIndexer.indexToPositionWithOffset( blockIndexes.next(), regionGridDimensions, regionGridMin, blockGridPosition );
+				downsampleBlock(
+						n5Local,
+						inputDatasetPath,
+						sourceAttributes,
+						sourceBlockReader,
+						source,
+						outputDatasetPath,
+						targetAttributes,
+						cellGrid,
+						blockGridPosition,
+						downsamplingFactors,
+						true
+					);
 			}
-			if ( isEmpty )
-				return;
+		} );
+	}
+
+	/**
+	 * Returns the region of the input dataset that is required to recompute all output blocks intersecting with the given region.
+	 *
+	 * @param outputRegion
+	 * @param outputDimensions
+	 * @param outputBlockSize
+	 * @param downsamplingFactors
+	 * @return region of the input dataset, or null if the given region does not intersect with the output dataset
+	 */
+	public static Interval getSourceInterval(
+			final Interval outputRegion,
+			final long[] outputDimensions,
+			final int[] outputBlockSize,
+			final int[] downsamplingFactors )
+	{
+		final long[] min = new long[ outputDimensions.length ], max = new long[ outputDimensions.length ];
+		for ( int d = 0; d < min.length; ++d )
+		{
+			final long regionMin = Math.max( outputRegion.min( d ), 0 ), regionMax = Math.min( outputRegion.max( d ), outputDimensions[ d ] - 1 );
+			if ( regionMin > regionMax )
+				return null;
+			final long blockMin = regionMin / outputBlockSize[ d ] * outputBlockSize[ d ];
+			final long blockMax = Math.min( ( regionMax / outputBlockSize[ d ] + 1 ) * outputBlockSize[ d ], outputDimensions[ d ] ) - 1;
+			min[ d ] = blockMin * downsamplingFactors[ d ];
+			max[ d ] = blockMax * downsamplingFactors[ d ] + downsamplingFactors[ d ] - 1;
+		}
+		return new FinalInterval( min, max );
+	}
 
-			/* do if not empty */
-			final RandomAccessibleInterval< T > targetBlock = new ArrayImgFactory< T >().create( targetInterval, defaultValue );
-			Downsample.downsample( sourceBlock, targetBlock, downsamplingFactors );
+	/**
+	 * Maps the given region of the input dataset into the region of the downsampled dataset that depends on it.
+	 *
+	 * @param inputRegion
+	 * @param downsamplingFactors
+	 * @return
+	 */
+	public static Interval getDownsampledInterval( final Interval inputRegion, final int[] downsamplingFactors )
+	{
+		final long[] min = new long[ inputRegion.numDimensions() ], max = new long[ inputRegion.numDimensions() ];
+		for ( int d = 0; d < min.length; ++d )
+		{
+			min[ d ] = Math.floorDiv( inputRegion.min( d ), downsamplingFactors[ d ] );
+			max[ d ] = Math.floorDiv( inputRegion.max( d ), downsamplingFactors[ d ] );
+		}
+		return new FinalInterval( min, max );
+	}
 
-			N5Utils.saveNonEmptyBlock( targetBlock, n5Local, outputDatasetPath, blockGridPosition, defaultValue );
-		} );
+	/**
+	 * Downsamples a single output block.
+	 * The source data is read from the given block reader for the types supported by {@link AveragingKernels},
+	 * and from the given source image otherwise.
+	 * If overwriteExisting is set, the output block is written even if it is empty, as long as it already exists,
+	 * so that the outdated data is not left behind.
+	 */
+	private static < T extends NativeType< T > & RealType< T > > void downsampleBlock(
+			final N5Writer n5,
+			final String inputDatasetPath,
+			final DatasetAttributes sourceAttributes,
+			final DataBlockReader sourceBlockReader,
+			final RandomAccessibleInterval< T > source,
+			final String outputDatasetPath,
+			final DatasetAttributes targetAttributes,
+			final CellGrid cellGrid,
+			final long[] blockGridPosition,
+			final int[] downsamplingFactors,
+			final boolean overwriteExisting ) throws IOException
+	{
+		final int dim = cellGrid.numDimensions();
+		final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], targetMin = new long[ dim ], targetMax = new long[ dim ];
+		final int[] cellDimensions = new int[ dim ];
+		cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
+		for ( int d = 0; d < dim; ++d )
+		{
+			targetMax[ d ] = targetMin[ d ] + cellDimensions[ d ] - 1;
+			sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
+			sourceMax[ d ] = targetMax[ d ] * downsamplingFactors[ d ] + downsamplingFactors[ d ] - 1;
+		}
+		final Interval sourceInterval = new FinalInterval( sourceMin, sourceMax );
+		final Interval targetInterval = new FinalInterval( targetMin, targetMax );
+
+		final boolean overwriteEmpty = overwriteExisting && DataBlockUtils.blockExists( n5, outputDatasetPath, targetAttributes, blockGridPosition );
+
+		/* skip if none of the covering source blocks exist */
+		if ( !DataBlockUtils.anyBlockExists( n5, inputDatasetPath, sourceAttributes, sourceMin, sourceMax ) )
+		{
+			if ( overwriteEmpty )
+				n5.writeBlock( outputDatasetPath, targetAttributes, DataBlockUtils.createDataBlock( targetAttributes.getDataType(), cellDimensions, blockGridPosition, DataBlockUtils.createArray( targetAttributes.getDataType(), ( int ) DataBlockUtils.numElements( cellDimensions ) ) ) );
+			return;
+		}
+
+		if ( AveragingKernels.isSupported( sourceAttributes.getDataType() ) )
+		{
+			/* work on the primitive arrays of the data blocks directly */
+			final int[] sourceDimensions = new int[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				sourceDimensions[ d ] = ( int ) ( sourceMax[ d ] - sourceMin[ d ] + 1 );
+
+			final Object sourceData = DataBlockUtils.readRegion( sourceBlockReader, sourceAttributes, sourceMin, sourceDimensions );
+			final Object targetData = DataBlockUtils.createArray( sourceAttributes.getDataType(), ( int ) DataBlockUtils.numElements( cellDimensions ) );
+			if ( !DataBlockUtils.isEmpty( sourceData ) )
+				AveragingKernels.downsample( sourceAttributes.getDataType(), sourceData, sourceDimensions, targetData, cellDimensions, downsamplingFactors );
+
+			if ( overwriteEmpty || !DataBlockUtils.isEmpty( targetData ) )
+				n5.writeBlock( outputDatasetPath, targetAttributes, DataBlockUtils.createDataBlock( targetAttributes.getDataType(), cellDimensions, blockGridPosition, targetData ) );
+			return;
+		}
+
+		final RandomAccessibleInterval< T > sourceBlock = Views.offsetInterval( source, sourceInterval );
+
+		final T defaultValue = Util.getTypeFromInterval( sourceBlock ).createVariable();
+
+		final RandomAccessibleInterval< T > targetBlock = new ArrayImgFactory< T >().create( targetInterval, defaultValue );
+		Downsample.downsample( sourceBlock, targetBlock, downsamplingFactors );
+
+		if ( overwriteEmpty )
+			N5Utils.saveBlock( targetBlock, n5, outputDatasetPath, blockGridPosition );
+		else
+			N5Utils.saveNonEmptyBlock( targetBlock, n5, outputDatasetPath, blockGridPosition, defaultValue );
 	}
 
 
@@ -168,7 +511,7 @@ public class N5DownsamplerSpark
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
+			final N5WriterSupplier n5Supplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getN5Path() );
 			
 			final String[] outputDatasetPath = parsedArgs.getOutputDatasetPath();
 			final int[][] downsamplingFactors = parsedArgs.getDownsamplingFactors();
@@ -182,7 +525,9 @@ public class N5DownsamplerSpark
 					parsedArgs.getInputDatasetPath(),
 					outputDatasetPath[0],
 					downsamplingFactors[0],
-					parsedArgs.getBlockSize()
+					parsedArgs.getBlockSize(),
+					parsedArgs.useMortonOrder(),
+					parsedArgs.resume()
 				);
 			
 			for ( int i = 1; i < downsamplingFactors.length; i++ )
@@ -193,7 +538,9 @@ public class N5DownsamplerSpark
 						outputDatasetPath[ i - 1 ],
 						outputDatasetPath[ i ],
 						downsamplingFactors[ i ],
-						parsedArgs.getBlockSize() );
+						parsedArgs.getBlockSize(),
+						parsedArgs.useMortonOrder(),
+						parsedArgs.resume() );
 			}
 		}
 		System.out.println( "Done" );
@@ -223,12 +570,23 @@ public class N5DownsamplerSpark
 				usage = "Block size for the output dataset (by default same as for input dataset).")
 		private String blockSize;
 
+		@Option(name = "--mortonOrder", required = false,
+				usage = "Process the blocks in Morton order and cache the source blocks within each partition (useful when the output block size is not aligned with the input block size). Cannot be combined with --resume.")
+		private boolean mortonOrder;
+
+		@Option(name = "--resume", required = false,
+				usage = "Record the completed blocks, and continue an interrupted job instead of failing if the output dataset already exists (only the jobs started with this flag can be resumed).")
+		private boolean resume;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
 			try
 			{
 				parser.parseArgument( args );
+
+				if ( mortonOrder && resume )
+					throw new CmdLineException( parser, "--mortonOrder cannot be combined with --resume, the resumed blocks are processed in the flat order.", null );
 			}
 			catch ( final CmdLineException e )
 			{
@@ -243,5 +601,7 @@ public class N5DownsamplerSpark
 		public String[] getOutputDatasetPath() { return outputDatasetPath; }
 		public int[][] getDownsamplingFactors() { return CmdUtils.parseMultipleIntArrays( downsamplingFactors ); }
 		public int[] getBlockSize() { return CmdUtils.parseIntArray( blockSize ); }
+		public boolean useMortonOrder() { return mortonOrder; }
+		public boolean resume() { return resume; }
 	}
 }
@@ -3,47 +3,29 @@ package org.janelia.saalfeldlab.n5.spark.downsample;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockCache;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
-import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.neighborhood.Neighborhood;
-import net.imglib2.algorithm.neighborhood.RectangleNeighborhoodFactory;
-import net.imglib2.algorithm.neighborhood.RectangleNeighborhoodUnsafe;
-import net.imglib2.algorithm.neighborhood.RectangleShape;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.util.Intervals;
-import net.imglib2.util.Util;
-import net.imglib2.view.Views;
 
 public class N5LabelDownsamplerSpark
 {
-	private static final int MAX_PARTITIONS = 15000;
-
 	/**
 	 * Downsamples the given input dataset with respect to the given downsampling factors.
 	 * Instead of averaging, it uses the value that is the most frequent in the neighborhood.
@@ -108,6 +90,9 @@ public class N5LabelDownsamplerSpark
 		if ( dim != downsamplingFactors.length )
 			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
 
+		if ( !LabelKernels.isSupported( inputAttributes.getDataType() ) )
+			throw new IllegalArgumentException( "Label downsampling is not supported for " + inputAttributes.getDataType() + " data" );
+
 		final long[] outputDimensions = new long[ dim ];
 		for ( int d = 0; d < dim; ++d )
 			outputDimensions[ d ] = inputAttributes.getDimensions()[ d ] / downsamplingFactors[ d ];
@@ -126,115 +111,61 @@ public class N5LabelDownsamplerSpark
 
 		final CellGrid outputCellGrid = new CellGrid( outputDimensions, outputBlockSize );
 		final long numDownsampledBlocks = Intervals.numElements( outputCellGrid.getGridDimensions() );
-		final List< Long > blockIndexes = LongStream.range( 0, numDownsampledBlocks ).boxed().collect( Collectors.toList() );
-
-		sparkContext.parallelize( blockIndexes, Math.min( blockIndexes.size(), MAX_PARTITIONS ) ).foreach( blockIndex ->
+		BlockIndexRDD.create( sparkContext, numDownsampledBlocks ).foreach( blockIndex ->
 		{
 			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
 			final long[] blockGridPosition = new long[ cellGrid.numDimensions() ];
 			cellGrid.getCellGridPositionFlat( blockIndex, blockGridPosition );
 
-			final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], targetMin = new long[ dim ], targetMax = new long[ dim ];
-			final int[] cellDimensions = new int[ dim ];
+			final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], targetMin = new long[ dim ];
+			final int[] cellDimensions = new int[ dim ], sourceDimensions = new int[ dim ];
 			cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
 			for ( int d = 0; d < dim; ++d )
 			{
-				targetMax[ d ] = targetMin[ d ] + cellDimensions[ d ] - 1;
+				sourceDimensions[ d ] = cellDimensions[ d ] * downsamplingFactors[ d ];
 				sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
-				sourceMax[ d ] = targetMax[ d ] * downsamplingFactors[ d ] + downsamplingFactors[ d ] - 1;
+				sourceMax[ d ] = sourceMin[ d ] + sourceDimensions[ d ] - 1;
 			}
-			final Interval sourceInterval = new FinalInterval( sourceMin, sourceMax );
-			final Interval targetInterval = new FinalInterval( targetMin, targetMax );
 
 			final N5Writer n5Local = n5Supplier.get();
-			final RandomAccessibleInterval< T > source = N5Utils.open( n5Local, inputDatasetPath );
-			final RandomAccessibleInterval< T > sourceBlock = Views.offsetInterval( source, sourceInterval );
+			final DatasetAttributes sourceAttributes = n5Local.getDatasetAttributes( inputDatasetPath );
 
-			/* test if empty */
-			final T defaultValue = Util.getTypeFromInterval( sourceBlock ).createVariable();
-			boolean isEmpty = true;
-			for ( final T t : Views.iterable( sourceBlock ) )
-			{
-				isEmpty &= defaultValue.valueEquals( t );
-				if ( !isEmpty ) break;
-			}
-			if ( isEmpty )
+			/* skip if none of the covering source blocks exist */
+			if ( !DataBlockUtils.anyBlockExists( n5Local, inputDatasetPath, sourceAttributes, sourceMin, sourceMax ) )
 				return;
 
-			/* do if not empty */
-			final RandomAccessibleInterval< T > targetBlock = new ArrayImgFactory< T >().create( targetInterval, defaultValue );
-			downsampleLabel( sourceBlock, targetBlock, downsamplingFactors );
-
-			N5Utils.saveNonEmptyBlock( targetBlock, n5Local, outputDatasetPath, blockGridPosition, defaultValue );
-		} );
-	}
-
-	/**
-	 * Based on {@link bdv.export.Downsample}.
-	 */
-	private static < T extends IntegerType< T > > void downsampleLabel(
-			final RandomAccessible< T > input,
-			final RandomAccessibleInterval< T > output,
-			final int[] factor )
-	{
-		assert input.numDimensions() == output.numDimensions();
-		assert input.numDimensions() == factor.length;
-
-		final int n = input.numDimensions();
-		final RectangleNeighborhoodFactory< T > f = RectangleNeighborhoodUnsafe.< T >factory();
-		final long[] dim = new long[ n ];
-		for ( int d = 0; d < n; ++d )
-			dim[ d ] = factor[ d ];
-		final Interval spanInterval = new FinalInterval( dim );
-
-		final long[] minRequiredInput = new long[ n ];
-		final long[] maxRequiredInput = new long[ n ];
-		output.min( minRequiredInput );
-		output.max( maxRequiredInput );
-		for ( int d = 0; d < n; ++d )
-		{
-			minRequiredInput[ d ] *= factor[ d ];
-			maxRequiredInput[ d ] *= factor[ d ];
-			maxRequiredInput[ d ] += factor[ d ] - 1;
-		}
-		final RandomAccessibleInterval< T > requiredInput = Views.interval( input, new FinalInterval( minRequiredInput, maxRequiredInput ) );
-
-		final RectangleShape.NeighborhoodsAccessible< T > neighborhoods = new RectangleShape.NeighborhoodsAccessible<>( requiredInput, spanInterval, f );
-		final RandomAccess< Neighborhood< T > > block = neighborhoods.randomAccess();
-
-		final Cursor< T > out = Views.iterable( output ).localizingCursor();
-
-		final Map< Long, Integer > labelCount = new HashMap<>();
-
-		while( out.hasNext() )
-		{
-			final T o = out.next();
-			for ( int d = 0; d < n; ++d )
-				block.setPosition( out.getLongPosition( d ) * factor[ d ], d );
+			/* keep all covering source blocks so that they are decoded only once even if the uniformity check fails */
+			int numSourceBlocks = 1;
+			for ( int d = 0; d < dim; ++d )
+				numSourceBlocks *= sourceMax[ d ] / sourceAttributes.getBlockSize()[ d ] - sourceMin[ d ] / sourceAttributes.getBlockSize()[ d ] + 1;
+			final DataBlockCache sourceBlocks = new DataBlockCache( n5Local, inputDatasetPath, sourceAttributes, numSourceBlocks );
 
-			// find count for each label
-			labelCount.clear();
-			for ( final T i : block.get() )
-				labelCount.put( i.getIntegerLong(), labelCount.getOrDefault( i.getIntegerLong(), 0 ) + 1 );
+			final DataType dataType = sourceAttributes.getDataType();
+			final Object targetData = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( cellDimensions ) );
 
-			// find the most frequent label, or in case of multiple labels with the same frequency, the smallest label among them
-			int maxCount = Integer.MIN_VALUE;
-			long labelWithMaxCount = Long.MIN_VALUE;
-			for ( final Entry< Long, Integer > entry : labelCount.entrySet() )
+			/* a uniform source region is downsampled into a constant block, first check the decoded blocks, then the region itself */
+			final Object uniformValue = DataBlockUtils.getUniformValue( sourceBlocks, sourceAttributes, sourceMin, sourceDimensions );
+			if ( uniformValue != null )
+			{
+				if ( DataBlockUtils.isEmpty( uniformValue ) )
+					return;
+				DataBlockUtils.fill( targetData, uniformValue, 0 );
+			}
+			else
 			{
-				if ( maxCount < entry.getValue() )
-				{
-					maxCount = entry.getValue();
-					labelWithMaxCount = entry.getKey();
-				}
-				else if ( maxCount == entry.getValue() && labelWithMaxCount > entry.getKey() )
-				{
-					labelWithMaxCount = entry.getKey();
-				}
+				final Object sourceData = DataBlockUtils.readRegion( sourceBlocks, sourceAttributes, sourceMin, sourceDimensions );
+				if ( DataBlockUtils.isUniform( sourceData ) )
+					DataBlockUtils.fill( targetData, sourceData, 0 );
+				else
+					LabelKernels.downsample( dataType, sourceData, sourceDimensions, targetData, cellDimensions, downsamplingFactors );
 			}
 
-			o.setInteger( labelWithMaxCount );
-		}
+			if ( !DataBlockUtils.isEmpty( targetData ) )
+			{
+				final DatasetAttributes targetAttributes = n5Local.getDatasetAttributes( outputDatasetPath );
+				n5Local.writeBlock( outputDatasetPath, targetAttributes, DataBlockUtils.createDataBlock( dataType, cellDimensions, blockGridPosition, targetData ) );
+			}
+		} );
 	}
 
 
@@ -247,7 +178,7 @@ public class N5LabelDownsamplerSpark
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
+			final N5WriterSupplier n5Supplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getN5Path() );
 			downsampleLabel(
 					sparkContext,
 					n5Supplier,
@@ -3,18 +3,18 @@ package org.janelia.saalfeldlab.n5.spark.downsample;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -40,8 +40,6 @@ import net.imglib2.view.Views;
 
 public class N5OffsetDownsamplerSpark
 {
-	private static final int MAX_PARTITIONS = 15000;
-
 	/**
 	 * Downsamples the given input dataset with respect to the given downsampling factors and the given offset.
 	 * The output dataset will be created within the same N5 container with the same block size as the input dataset.
@@ -133,9 +131,7 @@ public class N5OffsetDownsamplerSpark
 
 		final CellGrid outputCellGrid = new CellGrid( outputDimensions, outputBlockSize );
 		final long numDownsampledBlocks = Intervals.numElements( outputCellGrid.getGridDimensions() );
-		final List< Long > blockIndexes = LongStream.range( 0, numDownsampledBlocks ).boxed().collect( Collectors.toList() );
-
-		sparkContext.parallelize( blockIndexes, Math.min( blockIndexes.size(), MAX_PARTITIONS ) ).foreach( blockIndex ->
+		BlockIndexRDD.create( sparkContext, numDownsampledBlocks ).foreach( blockIndex ->
 		{
 			// downsampled block index to grid position
 			final CellGrid cellGrid = new CellGrid( outputDimensions, outputBlockSize );
@@ -156,34 +152,62 @@ public class N5OffsetDownsamplerSpark
 			final Interval targetInterval = new FinalInterval( targetMin, targetMax );
 
 			final N5Writer n5Local = n5Supplier.get();
-			final RandomAccessibleInterval< T > source = N5Utils.open( n5Local, inputDatasetPath );
+			final DatasetAttributes sourceAttributes = n5Local.getDatasetAttributes( inputDatasetPath );
 
-			// apply offset to source to align it with respect to the target block
-			final RandomAccessibleInterval< T > translatedSource = Views.translate( source, offset );
-			final RandomAccessibleInterval< T > sourceBlock = Views.offsetInterval( translatedSource, sourceInterval );
-
-			// now that the source block is aligned, find the interval where it is defined within the target block
+			// the source is translated by the offset to align it with respect to the target block,
+			// find the interval where it is defined within the target block
 			final long[] definedSourceBlockMin = new long[ dim ], definedSourceBlockMax = new long[ dim ];
 			for ( int d = 0; d < dim; ++d )
 			{
-				definedSourceBlockMin[ d ] = Math.max( translatedSource.min( d ) - sourceMin[ d ], 0 );
-				definedSourceBlockMax[ d ] = Math.min( translatedSource.max( d ), sourceMax[ d ] ) - sourceMin[ d ];
+				definedSourceBlockMin[ d ] = Math.max( offset[ d ] - sourceMin[ d ], 0 );
+				definedSourceBlockMax[ d ] = Math.min( sourceAttributes.getDimensions()[ d ] - 1 + offset[ d ], sourceMax[ d ] ) - sourceMin[ d ];
+				if ( definedSourceBlockMax[ d ] < definedSourceBlockMin[ d ] )
+					return;
 			}
 			final Interval definedSourceBlockInterval = new FinalInterval( definedSourceBlockMin, definedSourceBlockMax );
-			final RandomAccessibleInterval< T > definedSourceBlock = Views.interval( sourceBlock, definedSourceBlockInterval );
 
-			/* test if empty */
-			final T defaultValue = Util.getTypeFromInterval( source ).createVariable();
-			boolean isEmpty = true;
-			for ( final T t : Views.iterable( definedSourceBlock ) )
+			// skip if none of the source blocks covering the defined interval exist
+			final long[] definedSourceMin = new long[ dim ], definedSourceMax = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
 			{
-				isEmpty &= defaultValue.valueEquals( t );
-				if ( !isEmpty ) break;
+				definedSourceMin[ d ] = sourceMin[ d ] + definedSourceBlockMin[ d ] - offset[ d ];
+				definedSourceMax[ d ] = sourceMin[ d ] + definedSourceBlockMax[ d ] - offset[ d ];
 			}
-			if ( isEmpty )
+			if ( !DataBlockUtils.anyBlockExists( n5Local, inputDatasetPath, sourceAttributes, definedSourceMin, definedSourceMax ) )
+				return;
+
+			final DataType dataType = sourceAttributes.getDataType();
+			if ( AveragingKernels.isSupported( dataType ) )
+			{
+				/* work on the primitive arrays of the data blocks directly, border blocks are clipped analytically */
+				final int[] definedSourceDimensions = new int[ dim ], definedSourceBlockMinInt = new int[ dim ];
+				for ( int d = 0; d < dim; ++d )
+				{
+					definedSourceDimensions[ d ] = ( int ) ( definedSourceMax[ d ] - definedSourceMin[ d ] + 1 );
+					definedSourceBlockMinInt[ d ] = ( int ) definedSourceBlockMin[ d ];
+				}
+
+				final Object sourceData = DataBlockUtils.readRegion( n5Local, inputDatasetPath, sourceAttributes, definedSourceMin, definedSourceDimensions );
+				final Object targetData = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( cellDimensions ) );
+				if ( !DataBlockUtils.isEmpty( sourceData ) )
+				{
+					if ( Intervals.equalDimensions( definedSourceBlockInterval, sourceInterval ) )
+						AveragingKernels.downsample( dataType, sourceData, definedSourceDimensions, targetData, cellDimensions, downsamplingFactors );
+					else
+						AveragingKernels.downsampleClipped( dataType, sourceData, definedSourceDimensions, definedSourceBlockMinInt, targetData, cellDimensions, downsamplingFactors );
+				}
+
+				if ( !DataBlockUtils.isEmpty( targetData ) )
+					n5Local.writeBlock( outputDatasetPath, n5Local.getDatasetAttributes( outputDatasetPath ), DataBlockUtils.createDataBlock( dataType, cellDimensions, blockGridPosition, targetData ) );
 				return;
+			}
+
+			// apply offset to source to align it with respect to the target block
+			final RandomAccessibleInterval< T > source = N5Utils.open( n5Local, inputDatasetPath );
+			final RandomAccessibleInterval< T > sourceBlock = Views.offsetInterval( Views.translate( source, offset ), sourceInterval );
+
+			final T defaultValue = Util.getTypeFromInterval( source ).createVariable();
 
-			/* do if not empty */
 			final RandomAccessibleInterval< T > targetBlock = new ArrayImgFactory< T >().create( targetInterval, defaultValue );
 
 			if ( Intervals.equalDimensions( definedSourceBlockInterval, sourceInterval ) )
@@ -197,6 +221,7 @@ public class N5OffsetDownsamplerSpark
 
 	/**
 	 * Based on {@link bdv.export.Downsample}.
+	 * Only used for the types that are not supported by {@link AveragingKernels#downsampleClipped(DataType, Object, int[], int[], Object, int[], int[])}.
 	 */
 	private static < T extends RealType< T > > void downsampleIntervalOutOfBoundsCheck(
 			final RandomAccessible< T > input,
@@ -263,7 +288,7 @@ public class N5OffsetDownsamplerSpark
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
+			final N5WriterSupplier n5Supplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getN5Path() );
 			downsampleWithOffset(
 					sparkContext,
 					n5Supplier,
@@ -0,0 +1,549 @@
+package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.downsample.AveragingKernels;
+import org.janelia.saalfeldlab.n5.spark.downsample.LabelMultisets;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils.DataBlockReader;
+import org.janelia.saalfeldlab.n5.spark.util.N5SparkUtils;
+
+import bdv.export.Downsample;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * Generates the scale levels whose downsampling factors are not divisible by the factors of the previous scale level,
+ * such as the scale levels of a non-isotropic scale pyramid once the dependent dimension(s) are downsampled as well.
+ *<p>
+ * Every such scale level is downsampled from an intermediate level, and every intermediate level is downsampled from the previous one
+ * (the first one from the base dataset, which is the last scale level with divisible downsampling factors).
+ * Each task reads a super-block of the base dataset that is aligned with the blocks of all output datasets,
+ * computes the whole chain of intermediate levels of this super-block in memory, and writes the output blocks that it covers.
+ * The intermediate levels are therefore never shuffled, cached or written to the N5 container,
+ * but the super-block (the output block size times the absolute downsampling factors of the coarsest output level) has to fit into a single array.
+ */
+class IntermediateDownsampling
+{
+	/**
+	 * Downsamples the base dataset or an intermediate level into the next intermediate level or into an output dataset.
+	 */
+	static interface Kernel extends Serializable
+	{
+		/**
+		 * @return data type of the blocks of the intermediate levels
+		 */
+		public DataType getIntermediateDataType();
+
+		/**
+		 * Reads the given region of the base dataset or of an intermediate level and downsamples it.
+		 *
+		 * @param blockReader
+		 * 			blocks of the source level, the missing blocks are empty
+		 * @param sourceAttributes
+		 * 			block grid and data type of the source level
+		 * @param sourceFactors
+		 * 			downsampling factors of the source level relative to the base dataset
+		 * @param sourceMin
+		 * @param sourceDimensions
+		 * @param targetDimensions
+		 * @param downsamplingFactors
+		 * @return downsampled data in the form of the blocks of the intermediate levels, or null if it is empty
+		 * @throws IOException
+		 */
+		public Object downsample(
+				DataBlockReader blockReader,
+				DatasetAttributes sourceAttributes,
+				int[] sourceFactors,
+				long[] sourceMin,
+				int[] sourceDimensions,
+				int[] targetDimensions,
+				int[] downsamplingFactors ) throws IOException;
+
+		/**
+		 * Creates a block of an output dataset from the downsampled data.
+		 *
+		 * @param data
+		 * @param blockSize
+		 * @param gridPosition
+		 * @return the block, or null if it is empty
+		 */
+		public DataBlock< ? > createOutputBlock( Object data, int[] blockSize, long[] gridPosition );
+	}
+
+	/**
+	 * Averages the values, the intermediate levels have the same data type as the base dataset.
+	 */
+	static class AveragingKernel implements Kernel
+	{
+		private static final long serialVersionUID = -2453651640815862386L;
+
+		private final DataType dataType;
+
+		public AveragingKernel( final DataType dataType )
+		{
+			this.dataType = dataType;
+		}
+
+		@Override
+		public DataType getIntermediateDataType()
+		{
+			return dataType;
+		}
+
+		@Override
+		public Object downsample(
+				final DataBlockReader blockReader,
+				final DatasetAttributes sourceAttributes,
+				final int[] sourceFactors,
+				final long[] sourceMin,
+				final int[] sourceDimensions,
+				final int[] targetDimensions,
+				final int[] downsamplingFactors ) throws IOException
+		{
+			final Object sourceData = DataBlockUtils.readRegion( blockReader, sourceAttributes, sourceMin, sourceDimensions );
+			if ( DataBlockUtils.isEmpty( sourceData ) )
+				return null;
+
+			final Object targetData = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( targetDimensions ) );
+			if ( AveragingKernels.isSupported( dataType ) )
+				AveragingKernels.downsample( dataType, sourceData, sourceDimensions, targetData, targetDimensions, downsamplingFactors );
+			else
+				downsampleImg( dataType, sourceData, sourceDimensions, targetData, targetDimensions, downsamplingFactors );
+
+			return DataBlockUtils.isEmpty( targetData ) ? null : targetData;
+		}
+
+		@Override
+		public DataBlock< ? > createOutputBlock( final Object data, final int[] blockSize, final long[] gridPosition )
+		{
+			return DataBlockUtils.createDataBlock( dataType, blockSize, gridPosition, data );
+		}
+
+		private static < T extends NativeType< T > & RealType< T > > void downsampleImg(
+				final DataType dataType,
+				final Object sourceData,
+				final int[] sourceDimensions,
+				final Object targetData,
+				final int[] targetDimensions,
+				final int[] downsamplingFactors )
+		{
+			final RandomAccessibleInterval< T > source = N5SparkUtils.wrapArray( dataType, sourceData, Util.int2long( sourceDimensions ) );
+			final RandomAccessibleInterval< T > target = N5SparkUtils.wrapArray( dataType, targetData, Util.int2long( targetDimensions ) );
+			Downsample.downsample( source, target, downsamplingFactors );
+		}
+	}
+
+	/**
+	 * Merges the label multisets, so the output is voted with respect to all pixels of the base dataset that it covers.
+	 * The intermediate levels store serialized {@link LabelMultisets}, the output datasets store either the most frequent labels
+	 * or the label multisets as well.
+	 */
+	static class LabelMultisetKernel implements Kernel
+	{
+		private static final long serialVersionUID = 4179281725367092814L;
+
+		private final DataType labelDataType;
+		private final int baseBackgroundCount;
+		private final boolean multisetOutput;
+
+		/**
+		 * @param labelDataType
+		 * 			data type of the labels
+		 * @param baseBackgroundCount
+		 * 			number of full resolution pixels per pixel if the base dataset stores label multisets, 0 if it stores labels
+		 * @param multisetOutput
+		 * 			whether the output datasets store label multisets instead of the most frequent labels
+		 */
+		public LabelMultisetKernel( final DataType labelDataType, final int baseBackgroundCount, final boolean multisetOutput )
+		{
+			this.labelDataType = labelDataType;
+			this.baseBackgroundCount = baseBackgroundCount;
+			this.multisetOutput = multisetOutput;
+		}
+
+		@Override
+		public DataType getIntermediateDataType()
+		{
+			return DataType.UINT8;
+		}
+
+		@Override
+		public Object downsample(
+				final DataBlockReader blockReader,
+				final DatasetAttributes sourceAttributes,
+				final int[] sourceFactors,
+				final long[] sourceMin,
+				final int[] sourceDimensions,
+				final int[] targetDimensions,
+				final int[] downsamplingFactors ) throws IOException
+		{
+			final long numSourceFactors = DataBlockUtils.numElements( sourceFactors );
+			final LabelMultisets targetMultisets;
+			if ( baseBackgroundCount == 0 && numSourceFactors == 1 )
+			{
+				final Object sourceData = DataBlockUtils.readRegion( blockReader, sourceAttributes, sourceMin, sourceDimensions );
+				targetMultisets = LabelMultisets.downsample( labelDataType, sourceData, sourceDimensions, targetDimensions, downsamplingFactors );
+			}
+			else
+			{
+				final LabelMultisets sourceMultisets = LabelMultisets.readRegion(
+						blockReader,
+						sourceAttributes,
+						sourceMin,
+						sourceDimensions,
+						( int ) ( Math.max( baseBackgroundCount, 1 ) * numSourceFactors ) );
+				targetMultisets = sourceMultisets.downsample( sourceDimensions, targetDimensions, downsamplingFactors );
+			}
+			return targetMultisets.isEmpty() ? null : targetMultisets.toByteArray();
+		}
+
+		@Override
+		public DataBlock< ? > createOutputBlock( final Object data, final int[] blockSize, final long[] gridPosition )
+		{
+			if ( multisetOutput )
+				return new ByteArrayDataBlock( blockSize, gridPosition, ( byte[] ) data );
+
+			final Object labels = DataBlockUtils.createArray( labelDataType, ( int ) DataBlockUtils.numElements( blockSize ) );
+			LabelMultisets.fromByteArray( ( byte[] ) data ).getMostFrequentLabels( labelDataType, labels );
+			return DataBlockUtils.isEmpty( labels ) ? null : DataBlockUtils.createDataBlock( labelDataType, blockSize, gridPosition, labels );
+		}
+	}
+
+	private IntermediateDownsampling() { }
+
+	/**
+	 * Generates the output datasets from a chain of intermediate levels. The output datasets have to exist.
+	 *
+	 * If the output regions are given, only the blocks of the output datasets that intersect with them are recomputed,
+	 * and only the super-blocks of the base dataset that contain them are processed.
+	 * The recomputed blocks are overwritten in place, and the blocks that became empty are overwritten with zeros if they existed before
+	 * (which requires the output datasets to store flat primitive arrays).
+	 * Otherwise, only the non-empty blocks of the output datasets are written.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param baseDatasetPath
+	 * @param intermediateFactors
+	 * 			downsampling factors of every intermediate level relative to the previous one (or to the base dataset for the first one)
+	 * @param outputDatasetPaths
+	 * 			one output dataset for every intermediate level
+	 * @param outputFactors
+	 * 			downsampling factors of every output dataset relative to its intermediate level
+	 * @param outputRegions
+	 * 			region of every output dataset to be recomputed (in its pixel coordinates), or null to generate the output datasets entirely
+	 * @param kernel
+	 * @throws IOException
+	 */
+	public static void downsample(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String baseDatasetPath,
+			final List< int[] > intermediateFactors,
+			final List< String > outputDatasetPaths,
+			final List< int[] > outputFactors,
+			final List< Interval > outputRegions,
+			final Kernel kernel ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes baseAttributes = n5.getDatasetAttributes( baseDatasetPath );
+		final long[] baseDimensions = baseAttributes.getDimensions();
+		final int dim = baseAttributes.getNumDimensions();
+		final int numLevels = intermediateFactors.size() + 1;
+
+		if ( outputDatasetPaths.size() != numLevels - 1 || outputFactors.size() != numLevels - 1 || ( outputRegions != null && outputRegions.size() != numLevels - 1 ) )
+			throw new IllegalArgumentException( "Expected a single output dataset for every intermediate level" );
+
+		// dimensions and downsampling factors relative to the base dataset of every level, index 0 corresponds to the base dataset
+		final long[][] levelDimensions = new long[ numLevels ][ dim ];
+		final int[][] levelFactors = new int[ numLevels ][ dim ];
+		levelDimensions[ 0 ] = baseDimensions;
+		Arrays.fill( levelFactors[ 0 ], 1 );
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			for ( int d = 0; d < dim; ++d )
+			{
+				levelDimensions[ level ][ d ] = levelDimensions[ level - 1 ][ d ] / intermediateFactors.get( level - 1 )[ d ];
+				levelFactors[ level ][ d ] = levelFactors[ level - 1 ][ d ] * intermediateFactors.get( level - 1 )[ d ];
+			}
+		}
+
+		final DatasetAttributes[] outputAttributes = new DatasetAttributes[ numLevels ];
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			outputAttributes[ level ] = n5.getDatasetAttributes( outputDatasetPaths.get( level - 1 ) );
+			final long[] expectedDimensions = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				expectedDimensions[ d ] = levelDimensions[ level ][ d ] / outputFactors.get( level - 1 )[ d ];
+			if ( !Arrays.equals( outputAttributes[ level ].getDimensions(), expectedDimensions ) )
+				throw new IllegalArgumentException( "Output dataset dimensions " + Arrays.toString( outputAttributes[ level ].getDimensions() ) + " do not match the downsampling factors " + Arrays.toString( outputFactors.get( level - 1 ) ) );
+		}
+
+		// find the output blocks to be written, and the region of the base dataset that is required for them
+		final long[][][] outputGridRanges = new long[ numLevels ][][];
+		Interval requiredRegion = null;
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			final Interval outputRegion = outputRegions != null ? outputRegions.get( level - 1 ) : new FinalInterval( outputAttributes[ level ].getDimensions() );
+			outputGridRanges[ level ] = getGridRange( outputRegion, outputAttributes[ level ] );
+			if ( outputGridRanges[ level ] == null )
+				continue;
+
+			final long[] outputDimensions = outputAttributes[ level ].getDimensions();
+			final int[] outputBlockSize = outputAttributes[ level ].getBlockSize();
+			final long[] baseMin = new long[ dim ], baseMax = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+			{
+				final long baseFactor = ( long ) outputFactors.get( level - 1 )[ d ] * levelFactors[ level ][ d ];
+				baseMin[ d ] = outputGridRanges[ level ][ 0 ][ d ] * outputBlockSize[ d ] * baseFactor;
+				baseMax[ d ] = Math.min( ( outputGridRanges[ level ][ 1 ][ d ] + 1 ) * outputBlockSize[ d ], outputDimensions[ d ] ) * baseFactor - 1;
+			}
+			final Interval baseRegion = new FinalInterval( baseMin, baseMax );
+			requiredRegion = requiredRegion != null ? Intervals.union( requiredRegion, baseRegion ) : baseRegion;
+		}
+		if ( requiredRegion == null )
+			return;
+
+		// the super-blocks are aligned with the blocks of all output datasets, in the dimensions where this is not possible
+		// within the base dataset a single super-block spans the entire dataset
+		final long[] superBlockSize = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+		{
+			superBlockSize[ d ] = 1;
+			for ( int level = 1; level < numLevels && superBlockSize[ d ] < baseDimensions[ d ]; ++level )
+			{
+				final long outputBlockBaseSize = ( long ) outputAttributes[ level ].getBlockSize()[ d ] * outputFactors.get( level - 1 )[ d ] * levelFactors[ level ][ d ];
+				superBlockSize[ d ] = superBlockSize[ d ] / gcd( superBlockSize[ d ], outputBlockBaseSize ) * outputBlockBaseSize;
+			}
+			superBlockSize[ d ] = Math.max( Math.min( superBlockSize[ d ], baseDimensions[ d ] ), 1 );
+		}
+		if ( Arrays.stream( superBlockSize ).asDoubleStream().reduce( 1, ( a, b ) -> a * b ) > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many intermediate levels, the processing region of " + Arrays.toString( superBlockSize ) + " pixels does not fit into memory" );
+
+		final long[][] superBlockGridRange = new long[ 2 ][ dim ];
+		for ( int d = 0; d < dim; ++d )
+		{
+			superBlockGridRange[ 0 ][ d ] = requiredRegion.min( d ) / superBlockSize[ d ];
+			superBlockGridRange[ 1 ][ d ] = requiredRegion.max( d ) / superBlockSize[ d ];
+		}
+		final long[] superBlockGridRangeDimensions = getRangeDimensions( superBlockGridRange );
+		final boolean overwriteExisting = outputRegions != null;
+		final String[] outputPaths = outputDatasetPaths.toArray( new String[ 0 ] );
+		final int[][] stepFactors = intermediateFactors.toArray( new int[ 0 ][] ), outputStepFactors = outputFactors.toArray( new int[ 0 ][] );
+
+		BlockIndexRDD.create( sparkContext, Intervals.numElements( superBlockGridRangeDimensions ) ).foreach( superBlockIndex ->
+		{
+			final long[] superBlockGridPosition = new long[ dim ];
+			IntervalIndexer.indexToPositionWithOffset( superBlockIndex, superBlockGridRangeDimensions, superBlockGridRange[ 0 ], superBlockGridPosition );
+
+			final long[] regionMin = new long[ dim ], regionMax = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+			{
+				regionMin[ d ] = superBlockGridPosition[ d ] * superBlockSize[ d ];
+				regionMax[ d ] = Math.min( regionMin[ d ] + superBlockSize[ d ], baseDimensions[ d ] ) - 1;
+			}
+
+			final N5Writer n5Local = n5Supplier.get();
+
+			/* skip if none of the covering source blocks exist, unless the existing output blocks have to be overwritten */
+			if ( !overwriteExisting && !DataBlockUtils.anyBlockExists( n5Local, baseDatasetPath, baseAttributes, regionMin, regionMax ) )
+				return;
+
+			// the blocks of the previous level, its block grid and the min of its blocks in its pixel coordinates,
+			// the base dataset is read from the N5 container and every intermediate level is a single block in memory
+			DataBlockReader levelReader = gridPosition -> n5Local.readBlock( baseDatasetPath, baseAttributes, gridPosition );
+			DatasetAttributes levelAttributes = baseAttributes;
+			long[] levelOffset = new long[ dim ];
+
+			for ( int level = 1; level < numLevels; ++level )
+			{
+				final int[] factors = stepFactors[ level - 1 ];
+				final long[] levelMin = new long[ dim ];
+				final int[] levelRegionDimensions = new int[ dim ];
+				boolean isEmptyRegion = levelReader == null;
+				for ( int d = 0; d < dim; ++d )
+				{
+					levelMin[ d ] = regionMin[ d ] / levelFactors[ level ][ d ];
+					levelRegionDimensions[ d ] = ( int ) ( Math.min( ( regionMax[ d ] + 1 ) / levelFactors[ level ][ d ], levelDimensions[ level ][ d ] ) - levelMin[ d ] );
+					isEmptyRegion |= levelRegionDimensions[ d ] <= 0;
+				}
+
+				Object levelData = null;
+				if ( !isEmptyRegion )
+				{
+					final long[] sourceMin = new long[ dim ];
+					final int[] sourceDimensions = new int[ dim ];
+					for ( int d = 0; d < dim; ++d )
+					{
+						sourceMin[ d ] = levelMin[ d ] * factors[ d ] - levelOffset[ d ];
+						sourceDimensions[ d ] = levelRegionDimensions[ d ] * factors[ d ];
+					}
+					levelData = kernel.downsample( levelReader, levelAttributes, levelFactors[ level - 1 ], sourceMin, sourceDimensions, levelRegionDimensions, factors );
+				}
+
+				if ( levelData != null )
+				{
+					levelAttributes = new DatasetAttributes( Util.int2long( levelRegionDimensions ), levelRegionDimensions, kernel.getIntermediateDataType(), new RawCompression() );
+					levelReader = createLevelReader( kernel.getIntermediateDataType(), levelRegionDimensions, levelData );
+					levelOffset = levelMin;
+				}
+				else
+				{
+					/* all following levels are empty as well */
+					if ( !overwriteExisting )
+						return;
+					levelReader = null;
+				}
+
+				if ( outputGridRanges[ level ] != null )
+				{
+					final String outputDatasetPath = outputPaths[ level - 1 ];
+					final DatasetAttributes outputDatasetAttributes = n5Local.getDatasetAttributes( outputDatasetPath );
+					final long[] outputDimensions = outputDatasetAttributes.getDimensions();
+					final int[] outputBlockSize = outputDatasetAttributes.getBlockSize();
+					final int[] levelOutputFactors = outputStepFactors[ level - 1 ];
+
+					// the output blocks within the super-block
+					final long[] outputGridMin = new long[ dim ], outputGridMax = new long[ dim ];
+					boolean isEmptyGrid = false;
+					for ( int d = 0; d < dim; ++d )
+					{
+						final long outputMin = levelMin[ d ] / levelOutputFactors[ d ];
+						final long outputMax = Math.min( ( regionMax[ d ] + 1 ) / levelFactors[ level ][ d ] / levelOutputFactors[ d ], outputDimensions[ d ] ) - 1;
+						outputGridMin[ d ] = Math.max( outputMin / outputBlockSize[ d ], outputGridRanges[ level ][ 0 ][ d ] );
+						outputGridMax[ d ] = outputMax < outputMin ? -1 : Math.min( outputMax / outputBlockSize[ d ], outputGridRanges[ level ][ 1 ][ d ] );
+						isEmptyGrid |= outputGridMax[ d ] < outputGridMin[ d ];
+					}
+					if ( isEmptyGrid )
+						continue;
+
+					final CellGrid outputGrid = new CellGrid( outputDimensions, outputBlockSize );
+					final long[] gridPosition = outputGridMin.clone();
+					do
+					{
+						final long[] cellMin = new long[ dim ];
+						final int[] cellDimensions = new int[ dim ];
+						outputGrid.getCellDimensions( gridPosition, cellMin, cellDimensions );
+
+						Object data = null;
+						if ( levelReader != null )
+						{
+							final long[] sourceMin = new long[ dim ];
+							final int[] sourceDimensions = new int[ dim ];
+							for ( int d = 0; d < dim; ++d )
+							{
+								sourceMin[ d ] = cellMin[ d ] * levelOutputFactors[ d ] - levelOffset[ d ];
+								sourceDimensions[ d ] = cellDimensions[ d ] * levelOutputFactors[ d ];
+							}
+							data = kernel.downsample( levelReader, levelAttributes, levelFactors[ level ], sourceMin, sourceDimensions, cellDimensions, levelOutputFactors );
+						}
+
+						final DataBlock< ? > outputBlock = data != null ? kernel.createOutputBlock( data, cellDimensions, gridPosition.clone() ) : null;
+						if ( outputBlock != null )
+							n5Local.writeBlock( outputDatasetPath, outputDatasetAttributes, outputBlock );
+						else if ( overwriteExisting && DataBlockUtils.blockExists( n5Local, outputDatasetPath, outputDatasetAttributes, gridPosition ) )
+							n5Local.writeBlock( outputDatasetPath, outputDatasetAttributes, DataBlockUtils.createDataBlock(
+									outputDatasetAttributes.getDataType(),
+									cellDimensions,
+									gridPosition.clone(),
+									DataBlockUtils.createArray( outputDatasetAttributes.getDataType(), ( int ) DataBlockUtils.numElements( cellDimensions ) ) ) );
+					}
+					while ( DataBlockUtils.nextGridPosition( gridPosition, outputGridMin, outputGridMax ) );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Returns the intermediate factors for the given absolute downsampling factors: the first scale level has to be divisible
+	 * by the factors of the base dataset, and every other scale level has to be divisible in every dimension by its intermediate level.
+	 *
+	 * @param baseFactors
+	 * 			absolute downsampling factors of the base dataset
+	 * @param intermediateFactors
+	 * 			downsampling factors of every intermediate level relative to the previous one (or to the base dataset for the first one)
+	 * @param scaleFactors
+	 * 			absolute downsampling factors of every scale level
+	 * @return downsampling factors of every scale level relative to its intermediate level
+	 */
+	public static List< int[] > getOutputFactors( final int[] baseFactors, final List< int[] > intermediateFactors, final List< int[] > scaleFactors )
+	{
+		final List< int[] > outputFactors = new ArrayList<>();
+		final int[] levelFactors = baseFactors.clone();
+		for ( int level = 0; level < intermediateFactors.size(); ++level )
+		{
+			final int[] factors = new int[ levelFactors.length ];
+			for ( int d = 0; d < factors.length; ++d )
+			{
+				levelFactors[ d ] *= intermediateFactors.get( level )[ d ];
+				if ( scaleFactors.get( level )[ d ] % levelFactors[ d ] != 0 )
+					throw new IllegalArgumentException( "Downsampling factors " + Arrays.toString( scaleFactors.get( level ) ) + " are not divisible by the intermediate factors " + Arrays.toString( levelFactors ) );
+				factors[ d ] = scaleFactors.get( level )[ d ] / levelFactors[ d ];
+			}
+			outputFactors.add( factors );
+		}
+		return outputFactors;
+	}
+
+	/**
+	 * Provides the data of an intermediate level that is held in memory as a single block at the origin of its block grid.
+	 */
+	private static DataBlockReader createLevelReader( final DataType dataType, final int[] dimensions, final Object data )
+	{
+		final DataBlock< ? > block = DataBlockUtils.createDataBlock( dataType, dimensions, new long[ dimensions.length ], data );
+		return gridPosition -> Arrays.stream( gridPosition ).allMatch( p -> p == 0 ) ? block : null;
+	}
+
+	/**
+	 * Returns the min and max grid position of the blocks that intersect with the given region,
+	 * or null if the region does not intersect with the dataset.
+	 */
+	private static long[][] getGridRange( final Interval region, final DatasetAttributes attributes )
+	{
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+		final long[][] gridRange = new long[ 2 ][ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			final long min = Math.max( region.min( d ), 0 ), max = Math.min( region.max( d ), dimensions[ d ] - 1 );
+			if ( min > max )
+				return null;
+			gridRange[ 0 ][ d ] = min / blockSize[ d ];
+			gridRange[ 1 ][ d ] = max / blockSize[ d ];
+		}
+		return gridRange;
+	}
+
+	private static long[] getRangeDimensions( final long[][] gridRange )
+	{
+		final long[] rangeDimensions = new long[ gridRange[ 0 ].length ];
+		for ( int d = 0; d < rangeDimensions.length; ++d )
+			rangeDimensions[ d ] = gridRange[ 1 ][ d ] - gridRange[ 0 ][ d ] + 1;
+		return rangeDimensions;
+	}
+
+	private static long gcd( final long a, final long b )
+	{
+		return b == 0 ? a : gcd( b, a % b );
+	}
+}
@@ -0,0 +1,930 @@
+package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.downsample.LabelKernels;
+import org.janelia.saalfeldlab.n5.spark.downsample.LabelMultisets;
+import org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid.N5NonIsotropicScalePyramidSpark3D.NonIsotropicScalePyramidMetadata;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
+import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * Generates scale pyramids for label data. Instead of averaging, every scale level uses the most frequent label,
+ * or in case of multiple labels with the same frequency, the smallest label among them.
+ *<p>
+ * Several consecutive scale levels can be generated in a single pass over their input dataset ("fused" levels).
+ * In this case each task keeps the per-pixel label counts in memory, so the most frequent label at every fused scale level
+ * is voted with respect to all pixels of the input dataset that it covers, and not from the labels of the previous scale level.
+ */
+public class N5LabelScalePyramidSpark
+{
+	/**
+	 * Generates a label scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the same group as the input dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param downsamplingStepFactors
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleLabelScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final int[] downsamplingStepFactors ) throws IOException
+	{
+		final String outputGroupPath = ( Paths.get( datasetPath ).getParent() != null ? Paths.get( datasetPath ).getParent().toString() : "" );
+		return downsampleLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors,
+				1
+			);
+	}
+
+	/**
+	 * Generates a label scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
+	 *<p>
+	 * The scale levels are generated in groups of the given number of fused levels, each group in a single pass over its input dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param numFusedLevels
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleLabelScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final int numFusedLevels ) throws IOException
+	{
+		final DatasetAttributes fullScaleAttributes = n5Supplier.get().getDatasetAttributes( datasetPath );
+		final List< int[] > scaleFactors = new ArrayList<>(), scaleBlockSizes = new ArrayList<>(), scaleIntermediateFactors = new ArrayList<>();
+		createScales( fullScaleAttributes, downsamplingStepFactors, scaleFactors, scaleBlockSizes, scaleIntermediateFactors );
+
+		return downsampleLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				scaleFactors,
+				scaleBlockSizes,
+				scaleIntermediateFactors,
+				numFusedLevels
+			);
+	}
+
+	/**
+	 * Generates a label scale pyramid for a given dataset (3D only) using the same scale levels and block sizes
+	 * as {@link N5NonIsotropicScalePyramidSpark3D#downsampleNonIsotropicScalePyramid(JavaSparkContext, N5WriterSupplier, String, String, double[], boolean)}.
+	 * Assumes that the pixel resolution is the same in X and Y. Stores the resulting datasets in the given output group.
+	 *<p>
+	 * The scale levels that require intermediate downsampling are generated from a chain of intermediate levels of label multisets
+	 * that are computed in memory within each task and are never written to the N5 container, see {@link IntermediateDownsampling}.
+	 * They are voted with respect to all pixels of the last scale level before them.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param fullScaleDatasetPath
+	 * @param outputGroupPath
+	 * @param pixelResolution
+	 * @param isPowerOfTwo
+	 * @param numFusedLevels
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleNonIsotropicLabelScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String fullScaleDatasetPath,
+			final String outputGroupPath,
+			final double[] pixelResolution,
+			final boolean isPowerOfTwo,
+			final int numFusedLevels ) throws IOException
+	{
+		if ( !Util.isApproxEqual( pixelResolution[ 0 ], pixelResolution[ 1 ], 1e-10 ) )
+			throw new IllegalArgumentException( "Pixel resolution is different in X/Y" );
+
+		final N5Writer n5 = n5Supplier.get();
+		final List< int[] > scaleFactors = new ArrayList<>(), scaleBlockSizes = new ArrayList<>(), scaleIntermediateFactors = new ArrayList<>();
+		createNonIsotropicScales( n5.getDatasetAttributes( fullScaleDatasetPath ), pixelResolution, isPowerOfTwo, scaleFactors, scaleBlockSizes, scaleIntermediateFactors );
+
+		final List< String > downsampledDatasets = downsampleLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				fullScaleDatasetPath,
+				outputGroupPath,
+				scaleFactors,
+				scaleBlockSizes,
+				scaleIntermediateFactors,
+				numFusedLevels
+			);
+
+		for ( final String outputDatasetPath : downsampledDatasets )
+			n5.setAttribute( outputDatasetPath, N5NonIsotropicScalePyramidSpark3D.PIXEL_RESOLUTION_ATTRIBUTE_KEY, pixelResolution );
+
+		return downsampledDatasets;
+	}
+
+	/**
+	 * Generates a scale pyramid of label multisets for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Instead of a single label, every pixel of the output datasets stores the distinct labels of the full resolution pixels that it covers
+	 * together with their counts, see {@link LabelMultisets}. Each scale level is generated from the multisets of the previous one.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleLabelMultisetScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors ) throws IOException
+	{
+		final DatasetAttributes fullScaleAttributes = n5Supplier.get().getDatasetAttributes( datasetPath );
+		final List< int[] > scaleFactors = new ArrayList<>(), scaleBlockSizes = new ArrayList<>(), scaleIntermediateFactors = new ArrayList<>();
+		createScales( fullScaleAttributes, downsamplingStepFactors, scaleFactors, scaleBlockSizes, scaleIntermediateFactors );
+
+		return downsampleLabelMultisetScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				scaleFactors,
+				scaleBlockSizes,
+				scaleIntermediateFactors
+			);
+	}
+
+	/**
+	 * Generates a scale pyramid of label multisets for a given dataset (3D only) using the same scale levels and block sizes
+	 * as {@link N5NonIsotropicScalePyramidSpark3D#downsampleNonIsotropicScalePyramid(JavaSparkContext, N5WriterSupplier, String, String, double[], boolean)}.
+	 * Every pixel of the output datasets stores the distinct labels of the full resolution pixels that it covers
+	 * together with their counts, see {@link LabelMultisets}. Stores the resulting datasets in the given output group.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param fullScaleDatasetPath
+	 * @param outputGroupPath
+	 * @param pixelResolution
+	 * @param isPowerOfTwo
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleNonIsotropicLabelMultisetScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String fullScaleDatasetPath,
+			final String outputGroupPath,
+			final double[] pixelResolution,
+			final boolean isPowerOfTwo ) throws IOException
+	{
+		if ( !Util.isApproxEqual( pixelResolution[ 0 ], pixelResolution[ 1 ], 1e-10 ) )
+			throw new IllegalArgumentException( "Pixel resolution is different in X/Y" );
+
+		final N5Writer n5 = n5Supplier.get();
+		final List< int[] > scaleFactors = new ArrayList<>(), scaleBlockSizes = new ArrayList<>(), scaleIntermediateFactors = new ArrayList<>();
+		createNonIsotropicScales( n5.getDatasetAttributes( fullScaleDatasetPath ), pixelResolution, isPowerOfTwo, scaleFactors, scaleBlockSizes, scaleIntermediateFactors );
+
+		final List< String > downsampledDatasets = downsampleLabelMultisetScalePyramid(
+				sparkContext,
+				n5Supplier,
+				fullScaleDatasetPath,
+				outputGroupPath,
+				scaleFactors,
+				scaleBlockSizes,
+				scaleIntermediateFactors
+			);
+
+		for ( final String outputDatasetPath : downsampledDatasets )
+			n5.setAttribute( outputDatasetPath, N5NonIsotropicScalePyramidSpark3D.PIXEL_RESOLUTION_ATTRIBUTE_KEY, pixelResolution );
+
+		return downsampledDatasets;
+	}
+
+	/**
+	 * Generates the scale levels with the given absolute downsampling factors, block sizes, and intermediate downsampling factors
+	 * (index 0 corresponds to the input dataset).
+	 */
+	private static List< String > downsampleLabelScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final List< int[] > scaleFactors,
+			final List< int[] > scaleBlockSizes,
+			final List< int[] > scaleIntermediateFactors,
+			final int numFusedLevels ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		if ( !n5.datasetExists( datasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + datasetPath + " does not exist" );
+
+		final DataType dataType = n5.getDatasetAttributes( datasetPath ).getDataType();
+		if ( !LabelKernels.isSupported( dataType ) )
+			throw new IllegalArgumentException( "Label downsampling is not supported for " + dataType + " data" );
+
+		// check for existence of output datasets and fail if any of them already exist
+		// it is safer to do so because otherwise the user may accidentally overwrite useful data
+		final int numScales = scaleFactors.size();
+		for ( int scale = 1; scale < numScales; ++scale )
+		{
+			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+			if ( n5.datasetExists( outputDatasetPath ) )
+				throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
+		}
+
+		final int firstIntermediateScale = getFirstIntermediateScale( scaleIntermediateFactors );
+		final List< String > downsampledDatasets = new ArrayList<>();
+		for ( int scale = 1; scale < firstIntermediateScale; )
+		{
+			final String inputDatasetPath = scale == 1 ? datasetPath : Paths.get( outputGroupPath, "s" + ( scale - 1 ) ).toString();
+
+			final List< String > outputDatasetPaths = new ArrayList<>();
+			final List< int[] > relativeFactors = new ArrayList<>(), blockSizes = new ArrayList<>();
+			for ( int fusedScale = scale; fusedScale < firstIntermediateScale && outputDatasetPaths.size() < Math.max( numFusedLevels, 1 ); ++fusedScale )
+			{
+				final int[] previousScaleFactors = scaleFactors.get( fusedScale - 1 );
+				if ( !isDivisible( scaleFactors.get( fusedScale ), previousScaleFactors ) )
+					throw new RuntimeException( "something went wrong, expected divisible downsampling factors" );
+
+				final int[] factors = new int[ previousScaleFactors.length ];
+				for ( int d = 0; d < factors.length; ++d )
+					factors[ d ] = scaleFactors.get( fusedScale )[ d ] / previousScaleFactors[ d ];
+
+				outputDatasetPaths.add( Paths.get( outputGroupPath, "s" + fusedScale ).toString() );
+				relativeFactors.add( factors );
+				blockSizes.add( scaleBlockSizes.get( fusedScale ) );
+			}
+
+			downsampleLabelFused(
+					sparkContext,
+					n5Supplier,
+					inputDatasetPath,
+					outputDatasetPaths,
+					relativeFactors,
+					blockSizes
+				);
+
+			for ( final String outputDatasetPath : outputDatasetPaths )
+			{
+				n5.setAttribute( outputDatasetPath, N5ScalePyramidSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scaleFactors.get( scale ) );
+				downsampledDatasets.add( outputDatasetPath );
+				++scale;
+			}
+		}
+
+		if ( firstIntermediateScale < numScales )
+		{
+			downsampledDatasets.addAll( downsampleLabelIntermediateScales(
+					sparkContext,
+					n5Supplier,
+					datasetPath,
+					outputGroupPath,
+					scaleFactors,
+					scaleBlockSizes,
+					scaleIntermediateFactors,
+					false
+				) );
+		}
+
+		return downsampledDatasets;
+	}
+
+	/**
+	 * Generates several consecutive scale levels in a single pass over the input dataset.
+	 * Each task is responsible for a region of the input dataset that spans a whole number of blocks at every scale level,
+	 * and keeps the label counts of all pixels of this region in memory.
+	 * The output datasets are created with the given block sizes and the same data type and compression as the input dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPaths
+	 * @param relativeFactors
+	 * 			downsampling factors of every scale level relative to the previous one (or to the input dataset for the first one)
+	 * @param blockSizes
+	 * @throws IOException
+	 */
+	private static void downsampleLabelFused(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final List< String > outputDatasetPaths,
+			final List< int[] > relativeFactors,
+			final List< int[] > blockSizes ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final int dim = inputAttributes.getNumDimensions();
+		final int numScales = outputDatasetPaths.size();
+
+		// dimensions and downsampling factors relative to the input dataset, index 0 corresponds to the input dataset
+		final long[][] scaleDimensions = new long[ numScales + 1 ][ dim ];
+		final int[][] scaleFactors = new int[ numScales + 1 ][ dim ];
+		scaleDimensions[ 0 ] = inputAttributes.getDimensions();
+		scaleFactors[ 0 ] = ones( dim );
+		for ( int scale = 1; scale <= numScales; ++scale )
+		{
+			for ( int d = 0; d < dim; ++d )
+			{
+				scaleDimensions[ scale ][ d ] = scaleDimensions[ scale - 1 ][ d ] / relativeFactors.get( scale - 1 )[ d ];
+				scaleFactors[ scale ][ d ] = scaleFactors[ scale - 1 ][ d ] * relativeFactors.get( scale - 1 )[ d ];
+			}
+
+			n5.createDataset(
+					outputDatasetPaths.get( scale - 1 ),
+					scaleDimensions[ scale ],
+					blockSizes.get( scale - 1 ),
+					inputAttributes.getDataType(),
+					inputAttributes.getCompression()
+				);
+		}
+
+		// each task processes a region of the input dataset that corresponds to a whole number of blocks at every scale level
+		final int[] superBlockSize = ones( dim );
+		for ( int scale = 1; scale <= numScales; ++scale )
+		{
+			for ( int d = 0; d < dim; ++d )
+			{
+				final long size = lcm( superBlockSize[ d ], ( long ) scaleFactors[ scale ][ d ] * blockSizes.get( scale - 1 )[ d ] );
+				if ( size > Integer.MAX_VALUE )
+					throw new IllegalArgumentException( "Too many fused scale levels, the processing region does not fit into memory" );
+				superBlockSize[ d ] = ( int ) size;
+			}
+		}
+		if ( Intervals.numElements( superBlockSize ) > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many fused scale levels, the processing region does not fit into memory" );
+
+		final long[] inputDimensions = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			inputDimensions[ d ] = scaleDimensions[ 1 ][ d ] * relativeFactors.get( 0 )[ d ];
+
+		final long numSuperBlocks = Intervals.numElements( new CellGrid( inputDimensions, superBlockSize ).getGridDimensions() );
+		BlockIndexRDD.create( sparkContext, numSuperBlocks ).foreach( superBlockIndex ->
+		{
+			final CellGrid superBlockGrid = new CellGrid( inputDimensions, superBlockSize );
+			final long[] superBlockGridPosition = new long[ dim ];
+			superBlockGrid.getCellGridPositionFlat( superBlockIndex, superBlockGridPosition );
+
+			// find the region of each scale level that is covered by the super block
+			final long[][] regionMin = new long[ numScales + 1 ][ dim ];
+			final int[][] regionSize = new int[ numScales + 1 ][ dim ];
+			for ( int scale = 1; scale <= numScales; ++scale )
+			{
+				for ( int d = 0; d < dim; ++d )
+				{
+					final long regionMax = Math.min( ( superBlockGridPosition[ d ] + 1 ) * superBlockSize[ d ] / scaleFactors[ scale ][ d ], scaleDimensions[ scale ][ d ] );
+					regionMin[ scale ][ d ] = superBlockGridPosition[ d ] * superBlockSize[ d ] / scaleFactors[ scale ][ d ];
+					regionSize[ scale ][ d ] = ( int ) Math.max( regionMax - regionMin[ scale ][ d ], 0 );
+				}
+			}
+			for ( int d = 0; d < dim; ++d )
+			{
+				regionMin[ 0 ][ d ] = regionMin[ 1 ][ d ] * relativeFactors.get( 0 )[ d ];
+				regionSize[ 0 ][ d ] = regionSize[ 1 ][ d ] * relativeFactors.get( 0 )[ d ];
+			}
+
+			final N5Writer n5Local = n5Supplier.get();
+			final DatasetAttributes sourceAttributes = n5Local.getDatasetAttributes( inputDatasetPath );
+			final DataType dataType = sourceAttributes.getDataType();
+
+			/* skip if none of the covering source blocks exist */
+			final long[] sourceRegionMax = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				sourceRegionMax[ d ] = regionMin[ 0 ][ d ] + regionSize[ 0 ][ d ] - 1;
+			if ( !DataBlockUtils.anyBlockExists( n5Local, inputDatasetPath, sourceAttributes, regionMin[ 0 ], sourceRegionMax ) )
+				return;
+
+			/* a uniform source region results in constant blocks at all scale levels,
+			 * the region is read once without caching the blocks as it may span many of them */
+			final Object sourceData = DataBlockUtils.readRegion( n5Local, inputDatasetPath, sourceAttributes, regionMin[ 0 ], regionSize[ 0 ] );
+			Object uniformValue = null;
+			if ( DataBlockUtils.isUniform( sourceData ) )
+			{
+				uniformValue = DataBlockUtils.createArray( dataType, 1 );
+				System.arraycopy( sourceData, 0, uniformValue, 0, 1 );
+				if ( DataBlockUtils.isEmpty( uniformValue ) )
+					return;
+			}
+
+			LabelMultisets labelMultisets = null;
+			for ( int scale = 1; scale <= numScales; ++scale )
+			{
+				if ( Arrays.stream( regionSize[ scale ] ).min().getAsInt() < 1 )
+					break;
+
+				final Object targetData = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( regionSize[ scale ] ) );
+				if ( uniformValue != null )
+				{
+					DataBlockUtils.fill( targetData, uniformValue, 0 );
+				}
+				else if ( numScales == 1 )
+				{
+					LabelKernels.downsample( dataType, sourceData, regionSize[ 0 ], targetData, regionSize[ 1 ], relativeFactors.get( 0 ) );
+				}
+				else
+				{
+					if ( scale == 1 )
+						labelMultisets = LabelMultisets.downsample( dataType, sourceData, regionSize[ 0 ], regionSize[ 1 ], relativeFactors.get( 0 ) );
+					else
+						labelMultisets = labelMultisets.downsample( regionSize[ scale - 1 ], regionSize[ scale ], relativeFactors.get( scale - 1 ) );
+					labelMultisets.getMostFrequentLabels( dataType, targetData );
+				}
+
+				final String outputDatasetPath = outputDatasetPaths.get( scale - 1 );
+				DataBlockUtils.writeRegion( n5Local, outputDatasetPath, n5Local.getDatasetAttributes( outputDatasetPath ), targetData, regionMin[ scale ], regionSize[ scale ], true );
+			}
+		} );
+	}
+
+	/**
+	 * Generates the scale levels of label multisets with the given absolute downsampling factors, block sizes, and intermediate downsampling factors
+	 * (index 0 corresponds to the input dataset).
+	 */
+	private static List< String > downsampleLabelMultisetScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final List< int[] > scaleFactors,
+			final List< int[] > scaleBlockSizes,
+			final List< int[] > scaleIntermediateFactors ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		if ( !n5.datasetExists( datasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + datasetPath + " does not exist" );
+
+		final DataType dataType = n5.getDatasetAttributes( datasetPath ).getDataType();
+		if ( !LabelKernels.isSupported( dataType ) )
+			throw new IllegalArgumentException( "Label downsampling is not supported for " + dataType + " data" );
+
+		final int numScales = scaleFactors.size();
+		for ( int scale = 1; scale < numScales; ++scale )
+		{
+			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+			if ( n5.datasetExists( outputDatasetPath ) )
+				throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
+		}
+
+		final int firstIntermediateScale = getFirstIntermediateScale( scaleIntermediateFactors );
+		final List< String > downsampledDatasets = new ArrayList<>();
+		for ( int scale = 1; scale < firstIntermediateScale; ++scale )
+		{
+			final String inputDatasetPath = scale == 1 ? datasetPath : Paths.get( outputGroupPath, "s" + ( scale - 1 ) ).toString();
+			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+
+			if ( !isDivisible( scaleFactors.get( scale ), scaleFactors.get( scale - 1 ) ) )
+				throw new RuntimeException( "something went wrong, expected divisible downsampling factors" );
+			final int[] relativeFactors = new int[ scaleFactors.get( scale ).length ];
+			for ( int d = 0; d < relativeFactors.length; ++d )
+				relativeFactors[ d ] = scaleFactors.get( scale )[ d ] / scaleFactors.get( scale - 1 )[ d ];
+
+			downsampleLabelMultisets(
+					sparkContext,
+					n5Supplier,
+					inputDatasetPath,
+					scale == 1 ? 0 : ( int ) Intervals.numElements( scaleFactors.get( scale - 1 ) ),
+					outputDatasetPath,
+					relativeFactors,
+					scaleBlockSizes.get( scale )
+				);
+
+			n5.setAttribute( outputDatasetPath, N5ScalePyramidSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scaleFactors.get( scale ) );
+			downsampledDatasets.add( outputDatasetPath );
+		}
+
+		if ( firstIntermediateScale < numScales )
+		{
+			downsampledDatasets.addAll( downsampleLabelIntermediateScales(
+					sparkContext,
+					n5Supplier,
+					datasetPath,
+					outputGroupPath,
+					scaleFactors,
+					scaleBlockSizes,
+					scaleIntermediateFactors,
+					true
+				) );
+		}
+
+		return downsampledDatasets;
+	}
+
+	/**
+	 * Generates the scale levels that require intermediate downsampling (see {@link #getFirstIntermediateScale(List)})
+	 * from the last scale level before them. The intermediate levels store label multisets, so the output scale levels
+	 * store either the most frequent labels voted with respect to all pixels of that scale level, or the label multisets.
+	 * The output datasets are created with the same compression as the input dataset.
+	 */
+	private static List< String > downsampleLabelIntermediateScales(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final List< int[] > scaleFactors,
+			final List< int[] > scaleBlockSizes,
+			final List< int[] > scaleIntermediateFactors,
+			final boolean multisetOutput ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( datasetPath );
+		final int numScales = scaleFactors.size();
+		final int firstIntermediateScale = getFirstIntermediateScale( scaleIntermediateFactors );
+		final int baseScale = firstIntermediateScale - 1;
+		final String baseDatasetPath = baseScale == 0 ? datasetPath : Paths.get( outputGroupPath, "s" + baseScale ).toString();
+
+		final List< int[] > intermediateFactors = new ArrayList<>(), outputScaleFactors = new ArrayList<>();
+		final List< String > outputDatasetPaths = new ArrayList<>();
+		for ( int scale = firstIntermediateScale; scale < numScales; ++scale )
+		{
+			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+			final long[] outputDimensions = new long[ inputAttributes.getNumDimensions() ];
+			for ( int d = 0; d < outputDimensions.length; ++d )
+				outputDimensions[ d ] = inputAttributes.getDimensions()[ d ] / scaleFactors.get( scale )[ d ];
+
+			if ( multisetOutput )
+			{
+				n5.createDataset( outputDatasetPath, outputDimensions, scaleBlockSizes.get( scale ), DataType.UINT8, inputAttributes.getCompression() );
+				n5.setAttribute( outputDatasetPath, LabelMultisets.LABEL_MULTISETS_ATTRIBUTE_KEY, true );
+			}
+			else
+			{
+				n5.createDataset( outputDatasetPath, outputDimensions, scaleBlockSizes.get( scale ), inputAttributes.getDataType(), inputAttributes.getCompression() );
+			}
+
+			intermediateFactors.add( scaleIntermediateFactors.get( scale ) );
+			outputScaleFactors.add( scaleFactors.get( scale ) );
+			outputDatasetPaths.add( outputDatasetPath );
+		}
+
+		// the base scale level stores label multisets only if it has been generated as part of a label multiset scale pyramid
+		final int baseBackgroundCount = multisetOutput && baseScale != 0 ? ( int ) Intervals.numElements( scaleFactors.get( baseScale ) ) : 0;
+		IntermediateDownsampling.downsample(
+				sparkContext,
+				n5Supplier,
+				baseDatasetPath,
+				intermediateFactors,
+				outputDatasetPaths,
+				IntermediateDownsampling.getOutputFactors( scaleFactors.get( baseScale ), intermediateFactors, outputScaleFactors ),
+				null,
+				new IntermediateDownsampling.LabelMultisetKernel( inputAttributes.getDataType(), baseBackgroundCount, multisetOutput )
+			);
+
+		for ( int scale = firstIntermediateScale; scale < numScales; ++scale )
+			n5.setAttribute( outputDatasetPaths.get( scale - firstIntermediateScale ), N5ScalePyramidSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scaleFactors.get( scale ) );
+
+		return outputDatasetPaths;
+	}
+
+	/**
+	 * Generates a single scale level of label multisets block by block, either from a dataset of labels
+	 * or from a dataset of label multisets.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param inputBackgroundCount
+	 * 			number of full resolution pixels per pixel if the input dataset stores label multisets, 0 if it stores labels
+	 * @param outputDatasetPath
+	 * @param downsamplingFactors
+	 * @param blockSize
+	 * @throws IOException
+	 */
+	private static void downsampleLabelMultisets(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final int inputBackgroundCount,
+			final String outputDatasetPath,
+			final int[] downsamplingFactors,
+			final int[] blockSize ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final int dim = inputAttributes.getNumDimensions();
+
+		final long[] outputDimensions = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			outputDimensions[ d ] = inputAttributes.getDimensions()[ d ] / downsamplingFactors[ d ];
+
+		n5.createDataset( outputDatasetPath, outputDimensions, blockSize, DataType.UINT8, inputAttributes.getCompression() );
+		n5.setAttribute( outputDatasetPath, LabelMultisets.LABEL_MULTISETS_ATTRIBUTE_KEY, true );
+
+		final long numBlocks = Intervals.numElements( new CellGrid( outputDimensions, blockSize ).getGridDimensions() );
+		BlockIndexRDD.create( sparkContext, numBlocks ).foreach( blockIndex ->
+		{
+			final CellGrid cellGrid = new CellGrid( outputDimensions, blockSize );
+			final long[] blockGridPosition = new long[ dim ];
+			cellGrid.getCellGridPositionFlat( blockIndex, blockGridPosition );
+
+			final long[] sourceMin = new long[ dim ], sourceMax = new long[ dim ], targetMin = new long[ dim ];
+			final int[] cellDimensions = new int[ dim ], sourceDimensions = new int[ dim ];
+			cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
+			for ( int d = 0; d < dim; ++d )
+			{
+				sourceDimensions[ d ] = cellDimensions[ d ] * downsamplingFactors[ d ];
+				sourceMin[ d ] = targetMin[ d ] * downsamplingFactors[ d ];
+				sourceMax[ d ] = sourceMin[ d ] + sourceDimensions[ d ] - 1;
+			}
+
+			final N5Writer n5Local = n5Supplier.get();
+			final DatasetAttributes sourceAttributes = n5Local.getDatasetAttributes( inputDatasetPath );
+
+			/* skip if none of the covering source blocks exist, the output block is then background as well */
+			if ( !DataBlockUtils.anyBlockExists( n5Local, inputDatasetPath, sourceAttributes, sourceMin, sourceMax ) )
+				return;
+
+			final LabelMultisets targetMultisets;
+			if ( inputBackgroundCount > 0 )
+			{
+				final LabelMultisets sourceMultisets = LabelMultisets.readRegion(
+						gridPosition -> n5Local.readBlock( inputDatasetPath, sourceAttributes, gridPosition ),
+						sourceAttributes,
+						sourceMin,
+						sourceDimensions,
+						inputBackgroundCount );
+				targetMultisets = sourceMultisets.downsample( sourceDimensions, cellDimensions, downsamplingFactors );
+			}
+			else
+			{
+				final Object sourceData = DataBlockUtils.readRegion( n5Local, inputDatasetPath, sourceAttributes, sourceMin, sourceDimensions );
+				targetMultisets = LabelMultisets.downsample( sourceAttributes.getDataType(), sourceData, sourceDimensions, cellDimensions, downsamplingFactors );
+			}
+
+			if ( !targetMultisets.isEmpty() )
+				n5Local.writeBlock( outputDatasetPath, n5Local.getDatasetAttributes( outputDatasetPath ), targetMultisets.toDataBlock( cellDimensions, blockGridPosition ) );
+		} );
+	}
+
+	/**
+	 * Fills the absolute downsampling factors and block sizes of the scale levels of an N-dimensional scale pyramid
+	 * (index 0 corresponds to the input dataset). None of the scale levels require intermediate downsampling.
+	 */
+	private static void createScales(
+			final DatasetAttributes fullScaleAttributes,
+			final int[] downsamplingStepFactors,
+			final List< int[] > scaleFactors,
+			final List< int[] > scaleBlockSizes,
+			final List< int[] > scaleIntermediateFactors )
+	{
+		final long[] dimensions = fullScaleAttributes.getDimensions();
+		final int dim = dimensions.length;
+
+		if ( dim != downsamplingStepFactors.length )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+
+		scaleFactors.add( ones( dim ) );
+		scaleBlockSizes.add( fullScaleAttributes.getBlockSize() );
+		scaleIntermediateFactors.add( null );
+		for ( int scale = 1; ; ++scale )
+		{
+			final int[] factors = new int[ dim ];
+			final long[] downsampledDimensions = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+			{
+				factors[ d ] = scaleFactors.get( scale - 1 )[ d ] * downsamplingStepFactors[ d ];
+				downsampledDimensions[ d ] = dimensions[ d ] / factors[ d ];
+			}
+			if ( Arrays.stream( downsampledDimensions ).min().getAsLong() < 1 )
+				break;
+			scaleFactors.add( factors );
+			scaleBlockSizes.add( fullScaleAttributes.getBlockSize() );
+			scaleIntermediateFactors.add( null );
+		}
+	}
+
+	/**
+	 * Fills the absolute downsampling factors and block sizes of the scale levels of a 3D non-isotropic scale pyramid
+	 * (index 0 corresponds to the input dataset), and the intermediate downsampling factors of the scale levels that require
+	 * intermediate downsampling (null for the others).
+	 */
+	private static void createNonIsotropicScales(
+			final DatasetAttributes fullScaleAttributes,
+			final double[] pixelResolution,
+			final boolean isPowerOfTwo,
+			final List< int[] > scaleFactors,
+			final List< int[] > scaleBlockSizes,
+			final List< int[] > scaleIntermediateFactors )
+	{
+		final NonIsotropicScalePyramidMetadata scalePyramidMetadata = new NonIsotropicScalePyramidMetadata(
+				fullScaleAttributes.getDimensions(),
+				fullScaleAttributes.getBlockSize(),
+				pixelResolution,
+				isPowerOfTwo
+			);
+
+		final int firstIntermediateScale = scalePyramidMetadata.getFirstIntermediateScale();
+		for ( int scale = 0; scale < scalePyramidMetadata.getNumScales(); ++scale )
+		{
+			scaleFactors.add( scalePyramidMetadata.getScaleMetadata( scale ).downsamplingFactors );
+			scaleBlockSizes.add( scalePyramidMetadata.getScaleMetadata( scale ).cellSize );
+			scaleIntermediateFactors.add( scale >= firstIntermediateScale ? scalePyramidMetadata.getIntermediateDownsamplingFactors( scale ) : null );
+		}
+	}
+
+	/**
+	 * Returns the first scale level that requires intermediate downsampling, or the number of scale levels if there is no such level.
+	 */
+	private static int getFirstIntermediateScale( final List< int[] > scaleIntermediateFactors )
+	{
+		for ( int scale = 1; scale < scaleIntermediateFactors.size(); ++scale )
+			if ( scaleIntermediateFactors.get( scale ) != null )
+				return scale;
+		return scaleIntermediateFactors.size();
+	}
+
+	private static boolean isDivisible( final int[] factors, final int[] divisorFactors )
+	{
+		for ( int d = 0; d < factors.length; ++d )
+			if ( factors[ d ] % divisorFactors[ d ] != 0 )
+				return false;
+		return true;
+	}
+
+	private static long lcm( final long a, final long b )
+	{
+		long x = a, y = b;
+		while ( y != 0 )
+		{
+			final long t = x % y;
+			x = y;
+			y = t;
+		}
+		return a / x * b;
+	}
+
+	private static int[] ones( final int n )
+	{
+		final int[] ones = new int[ n ];
+		Arrays.fill( ones, 1 );
+		return ones;
+	}
+
+
+	public static void main( final String... args ) throws IOException
+	{
+		final Arguments parsedArgs = new Arguments( args );
+
+		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
+				.setAppName( "N5LabelScalePyramidSpark" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			) )
+		{
+			final N5WriterSupplier n5Supplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getN5Path() );
+
+			final String outputGroupPath;
+			if ( parsedArgs.getOutputGroupPath() != null )
+				outputGroupPath = parsedArgs.getOutputGroupPath();
+			else
+				outputGroupPath = ( Paths.get( parsedArgs.getInputDatasetPath() ).getParent() != null ? Paths.get( parsedArgs.getInputDatasetPath() ).getParent().toString() : "" );
+
+			if ( parsedArgs.getMultisets() && parsedArgs.getPixelResolution() != null )
+			{
+				downsampleNonIsotropicLabelMultisetScalePyramid(
+						sparkContext,
+						n5Supplier,
+						parsedArgs.getInputDatasetPath(),
+						outputGroupPath,
+						parsedArgs.getPixelResolution(),
+						parsedArgs.getIsPowerOfTwo()
+					);
+			}
+			else if ( parsedArgs.getMultisets() )
+			{
+				downsampleLabelMultisetScalePyramid(
+						sparkContext,
+						n5Supplier,
+						parsedArgs.getInputDatasetPath(),
+						outputGroupPath,
+						parsedArgs.getDownsamplingFactors()
+					);
+			}
+			else if ( parsedArgs.getPixelResolution() != null )
+			{
+				downsampleNonIsotropicLabelScalePyramid(
+						sparkContext,
+						n5Supplier,
+						parsedArgs.getInputDatasetPath(),
+						outputGroupPath,
+						parsedArgs.getPixelResolution(),
+						parsedArgs.getIsPowerOfTwo(),
+						parsedArgs.getNumFusedLevels()
+					);
+			}
+			else
+			{
+				downsampleLabelScalePyramid(
+						sparkContext,
+						n5Supplier,
+						parsedArgs.getInputDatasetPath(),
+						outputGroupPath,
+						parsedArgs.getDownsamplingFactors(),
+						parsedArgs.getNumFusedLevels()
+					);
+			}
+		}
+		System.out.println( "Done" );
+	}
+
+	private static class Arguments implements Serializable
+	{
+		private static final long serialVersionUID = -1467734459169624759L;
+
+		@Option(name = "-n", aliases = { "--n5Path" }, required = true,
+				usage = "Path to an N5 container.")
+		private String n5Path;
+
+		@Option(name = "-i", aliases = { "--inputDatasetPath" }, required = true,
+				usage = "Path to an input dataset within the N5 container (e.g. data/group/s0).")
+		private String inputDatasetPath;
+
+		@Option(name = "-o", aliases = { "--outputGroupPath" }, required = false,
+				usage = "Path to a group within the N5 container to store the output datasets (e.g. data/group/scale-pyramid).")
+		private String outputGroupPath;
+
+		@Option(name = "-f", aliases = { "--factors" }, required = false,
+				usage = "Downsampling factors between two consecutive scale levels (required unless the pixel resolution is specified).")
+		private String downsamplingFactors;
+
+		@Option(name = "-r", aliases = { "--pixelResolution" }, required = false,
+				usage = "Pixel resolution of 3D data. If specified, generates a non-isotropic scale pyramid with the same scale levels as the non-isotropic scale pyramid for intensity data.")
+		private String pixelResolution;
+
+		@Option(name = "-p", aliases = { "--powerOfTwo" }, required = false, depends = { "-r" },
+				usage = "Forces to generate a power-of-two non-isotropic scale pyramid that is as close to isotropic as possible.")
+		private boolean isPowerOfTwo;
+
+		@Option(name = "-l", aliases = { "--fusedLevels" }, required = false,
+				usage = "Number of scale levels to generate in a single pass over their input dataset (by default each scale level is generated separately).")
+		private int numFusedLevels = 1;
+
+		@Option(name = "-m", aliases = { "--multisets" }, required = false,
+				usage = "Stores the distinct labels and their counts for every pixel instead of the most frequent label. Each scale level is generated from the previous one, the number of fused levels is ignored.")
+		private boolean multisets;
+
+		public Arguments( final String... args ) throws IllegalArgumentException
+		{
+			final CmdLineParser parser = new CmdLineParser( this );
+			try
+			{
+				parser.parseArgument( args );
+
+				if ( ( downsamplingFactors == null ) == ( pixelResolution == null ) )
+					throw new CmdLineException( parser, "Either downsampling factors or pixel resolution have to be specified", null );
+			}
+			catch ( final CmdLineException e )
+			{
+				System.err.println( e.getMessage() );
+				parser.printUsage( System.err );
+				System.exit( 1 );
+			}
+		}
+
+		public String getN5Path() { return n5Path; }
+		public String getInputDatasetPath() { return inputDatasetPath; }
+		public String getOutputGroupPath() { return outputGroupPath; }
+		public int[] getDownsamplingFactors() { return CmdUtils.parseIntArray( downsamplingFactors ); }
+		public double[] getPixelResolution() { return CmdUtils.parseDoubleArray( pixelResolution ); }
+		public boolean getIsPowerOfTwo() { return isPowerOfTwo; }
+		public int getNumFusedLevels() { return numFusedLevels; }
+		public boolean getMultisets() { return multisets; }
+	}
+}
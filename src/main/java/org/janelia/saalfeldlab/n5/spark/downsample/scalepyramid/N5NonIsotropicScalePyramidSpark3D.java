@@ -10,16 +10,17 @@ import java.util.List;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.spark.N5RemoveSpark;
 import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
 import org.janelia.saalfeldlab.n5.spark.downsample.N5DownsamplerSpark;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.util.Util;
 
 public class N5NonIsotropicScalePyramidSpark3D
@@ -161,6 +162,36 @@ public class N5NonIsotropicScalePyramidSpark3D
 				return new int[] { 1, 1, scaleMetadata.downsamplingFactors[ 2 ] / previousScaleMetadata.downsamplingFactors[ 2 ] };
 		}
 
+		/**
+		 * Returns the first scale level that requires intermediate downsampling, or the number of scale levels if there is no such level.
+		 * The dependent downsampling factor does not decrease with scale, so all subsequent scale levels require it as well.
+		 */
+		public int getFirstIntermediateScale()
+		{
+			int firstIntermediateScale = getNumScales();
+			if ( !isPowerOfTwo )
+				for ( int scale = getNumScales() - 1; scale >= 1 && getDependentDownsamplingFactor( scale ) != 1; --scale )
+					firstIntermediateScale = scale;
+			return firstIntermediateScale;
+		}
+
+		/**
+		 * Returns the downsampling factors of the given scale level relative to the previous scale level.
+		 * Only applicable to the scale levels before the first one that requires intermediate downsampling (see {@link #getFirstIntermediateScale()}).
+		 */
+		public int[] getRelativeDownsamplingFactors( final int scale )
+		{
+			final NonIsotropicMetadata scaleMetadata = getScaleMetadata( scale ), previousScaleMetadata = getScaleMetadata( scale - 1 );
+			final int[] relativeDownsamplingFactors = new int[ scaleMetadata.downsamplingFactors.length ];
+			for ( int d = 0; d < relativeDownsamplingFactors.length; ++d )
+			{
+				if ( scaleMetadata.downsamplingFactors[ d ] % previousScaleMetadata.downsamplingFactors[ d ] != 0 )
+					throw new RuntimeException( "something went wrong, expected divisible downsampling factors" );
+				relativeDownsamplingFactors[ d ] = scaleMetadata.downsamplingFactors[ d ] / previousScaleMetadata.downsamplingFactors[ d ];
+			}
+			return relativeDownsamplingFactors;
+		}
+
 		public static double getPixelResolutionRatioZtoXY( final double[] pixelResolution )
 		{
 			if ( pixelResolution == null )
@@ -175,7 +206,7 @@ public class N5NonIsotropicScalePyramidSpark3D
 	}
 
 	private static final String DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY = "downsamplingFactors";
-	private static final String PIXEL_RESOLUTION_ATTRIBUTE_KEY = "pixelResolution";
+	static final String PIXEL_RESOLUTION_ATTRIBUTE_KEY = "pixelResolution";
 
 	/**
 	 * Generates a scale pyramid for a given dataset (3D only). Assumes that the pixel resolution is the same in X and Y.
@@ -251,21 +282,10 @@ public class N5NonIsotropicScalePyramidSpark3D
 				isPowerOfTwo
 			);
 
-		// prepare for intermediate downsampling if required
-		final String intermediateGroupPath;
 		if ( !scalePyramidMetadata.isPowerOfTwo )
-		{
-			System.out.println( "Not a power of two, intermediate downsampling in " + scalePyramidMetadata.mainDimension + " is required" );
-			intermediateGroupPath = Paths.get( outputGroupPath, "intermediate-downsampling-" + scalePyramidMetadata.mainDimension ).toString();
-			if ( n5.exists( intermediateGroupPath ) )
-				throw new RuntimeException( "Group for intermediate downsampling in " + scalePyramidMetadata.mainDimension + " already exists: " + intermediateGroupPath );
-			n5.createGroup( intermediateGroupPath );
-		}
+			System.out.println( "Not a power of two, intermediate downsampling in " + scalePyramidMetadata.mainDimension + " is performed in memory" );
 		else
-		{
 			System.out.println( "Power of two, skip intermediate downsampling in " + scalePyramidMetadata.mainDimension );
-			intermediateGroupPath = null;
-		}
 
 		// check for existence of output datasets and fail if any of them already exist
 		// it is safer to do so because otherwise the user may accidentally overwrite useful data
@@ -276,87 +296,173 @@ public class N5NonIsotropicScalePyramidSpark3D
 				throw new RuntimeException( "Output dataset already exists: " + outputDatasetPath );
 		}
 
+		final int firstIntermediateScale = scalePyramidMetadata.getFirstIntermediateScale();
 		final List< String > downsampledDatasets = new ArrayList<>();
 		for ( int scale = 1; scale < scalePyramidMetadata.getNumScales(); ++scale )
 		{
 			final NonIsotropicMetadata scaleMetadata = scalePyramidMetadata.getScaleMetadata( scale );
 			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
 
-			if ( scalePyramidMetadata.isPowerOfTwo || scalePyramidMetadata.getDependentDownsamplingFactor( scale ) == 1 )
+			if ( scale < firstIntermediateScale )
 			{
-				final String inputDatasetPath = scale == 1 ? fullScaleDatasetPath : Paths.get( outputGroupPath, "s" + ( scale - 1 ) ).toString();
-
 				// intermediate downsampling is not happening yet at this scale level, or is not required at all
-				final NonIsotropicMetadata previousScaleMetadata = scalePyramidMetadata.getScaleMetadata( scale - 1 );
-				final int[] relativeDownsamplingFactors = new int[ scaleMetadata.downsamplingFactors.length ];
-				for ( int d = 0; d < relativeDownsamplingFactors.length; ++d )
-				{
-					if ( scaleMetadata.downsamplingFactors[ d ] % previousScaleMetadata.downsamplingFactors[ d ] != 0 )
-						throw new RuntimeException( "something went wrong, expected divisible downsampling factors" );
-					relativeDownsamplingFactors[ d ] = scaleMetadata.downsamplingFactors[ d ] / previousScaleMetadata.downsamplingFactors[ d ];
-				}
-
+				final String inputDatasetPath = scale == 1 ? fullScaleDatasetPath : Paths.get( outputGroupPath, "s" + ( scale - 1 ) ).toString();
 				N5DownsamplerSpark.downsample(
 						sparkContext,
 						n5Supplier,
 						inputDatasetPath,
 						outputDatasetPath,
-						relativeDownsamplingFactors,
+						scalePyramidMetadata.getRelativeDownsamplingFactors( scale ),
 						scaleMetadata.cellSize
 					);
 			}
 			else
 			{
-				final String inputDatasetPath;
-				if ( scalePyramidMetadata.getDependentDownsamplingFactor( scale - 1 ) == 1 )
-				{
-					// this is the first scale level where intermediate downsampling is required
-					inputDatasetPath = scale == 1 ? fullScaleDatasetPath : Paths.get( outputGroupPath, "s" + ( scale - 1 ) ).toString();
-				}
-				else
-				{
-					// there exists an intermediate downsampled export
-					inputDatasetPath = Paths.get( intermediateGroupPath, "s" + ( scale - 1 ) ).toString();
-				}
+				// generated from the intermediate levels below
+				n5.createDataset(
+						outputDatasetPath,
+						scaleMetadata.dimensions,
+						scaleMetadata.cellSize,
+						fullScaleAttributes.getDataType(),
+						fullScaleAttributes.getCompression()
+					);
+			}
 
-				final String intermediateDatasetPath = Paths.get( intermediateGroupPath, "s" + scale ).toString();
-				final int[] intermediateDownsamplingFactors = scalePyramidMetadata.getIntermediateDownsamplingFactors( scale );
+			n5.setAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scaleMetadata.downsamplingFactors );
+			n5.setAttribute( outputDatasetPath, PIXEL_RESOLUTION_ATTRIBUTE_KEY, pixelResolution );
 
-				// downsample and store in the intermediate export group
-				N5DownsamplerSpark.downsample(
-						sparkContext,
-						n5Supplier,
-						inputDatasetPath,
-						intermediateDatasetPath,
-						intermediateDownsamplingFactors,
-						scaleMetadata.cellSize
-					);
+			downsampledDatasets.add( outputDatasetPath );
+		}
 
-				final int[] relativeDownsamplingFactors = new int[ intermediateDownsamplingFactors.length ];
-				for ( int d = 0; d < relativeDownsamplingFactors.length; ++d )
-					relativeDownsamplingFactors[ d ] = intermediateDownsamplingFactors[ d ] == 1 ? scaleMetadata.downsamplingFactors[ d ] : 1;
+		if ( firstIntermediateScale < scalePyramidMetadata.getNumScales() )
+			downsampleIntermediateScales( sparkContext, n5Supplier, fullScaleDatasetPath, outputGroupPath, scalePyramidMetadata, null );
 
-				// downsample and store in the output group
-				N5DownsamplerSpark.downsample(
+		return downsampledDatasets;
+	}
+
+
+	/**
+	 * Updates an existing non-isotropic scale pyramid (3D only) after a region of the full scale dataset has been modified.
+	 * The scale pyramid is expected to have been generated by {@link #downsampleNonIsotropicScalePyramid(JavaSparkContext, N5WriterSupplier, String, String, double[], boolean)}
+	 * with the same parameters. Only the blocks that depend on the modified region are recomputed at each scale level.
+	 *<p>
+	 * If intermediate downsampling is required, the affected output blocks are recomputed in the same way as they were generated,
+	 * and only the super-blocks of the intermediate levels that contain them are computed.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param fullScaleDatasetPath
+	 * @param outputGroupPath
+	 * @param pixelResolution
+	 * @param isPowerOfTwo
+	 * @param modifiedRegion
+	 * 			modified region of the full scale dataset in pixel coordinates
+	 * @return N5 paths to updated datasets
+	 * @throws IOException
+	 */
+	public static List< String > updateNonIsotropicScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String fullScaleDatasetPath,
+			final String outputGroupPath,
+			final double[] pixelResolution,
+			final boolean isPowerOfTwo,
+			final Interval modifiedRegion ) throws IOException
+	{
+		if ( !Util.isApproxEqual( pixelResolution[ 0 ], pixelResolution[ 1 ], 1e-10 ) )
+			throw new IllegalArgumentException( "Pixel resolution is different in X/Y" );
+
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( fullScaleDatasetPath );
+		final long[] fullScaleDimensions = fullScaleAttributes.getDimensions();
+		final int[] fullScaleCellSize = fullScaleAttributes.getBlockSize();
+
+		if ( modifiedRegion.numDimensions() != fullScaleDimensions.length )
+			throw new IllegalArgumentException( "Modified region does not match data dimensionality." );
+
+		final NonIsotropicScalePyramidMetadata scalePyramidMetadata = new NonIsotropicScalePyramidMetadata(
+				fullScaleDimensions,
+				fullScaleCellSize,
+				pixelResolution,
+				isPowerOfTwo
+			);
+		final int numScales = scalePyramidMetadata.getNumScales();
+
+		for ( int scale = 1; scale < numScales; ++scale )
+		{
+			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+			if ( !n5.datasetExists( outputDatasetPath ) )
+				throw new RuntimeException( "Output dataset does not exist: " + outputDatasetPath );
+			if ( !Arrays.equals( n5.getAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ), scalePyramidMetadata.getScaleMetadata( scale ).downsamplingFactors ) )
+				throw new RuntimeException( "Downsampling factors of " + outputDatasetPath + " do not match the scale pyramid parameters" );
+		}
+
+		final int firstIntermediateScale = scalePyramidMetadata.getFirstIntermediateScale();
+		final List< String > updatedDatasets = new ArrayList<>();
+		for ( int scale = 1; scale < numScales; ++scale )
+		{
+			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+			if ( scale < firstIntermediateScale )
+			{
+				final String inputDatasetPath = scale == 1 ? fullScaleDatasetPath : Paths.get( outputGroupPath, "s" + ( scale - 1 ) ).toString();
+				N5DownsamplerSpark.downsampleRegion(
 						sparkContext,
 						n5Supplier,
-						intermediateDatasetPath,
+						inputDatasetPath,
 						outputDatasetPath,
-						relativeDownsamplingFactors,
-						scaleMetadata.cellSize
+						scalePyramidMetadata.getRelativeDownsamplingFactors( scale ),
+						N5DownsamplerSpark.getDownsampledInterval( modifiedRegion, scalePyramidMetadata.getScaleMetadata( scale ).downsamplingFactors )
 					);
 			}
+			updatedDatasets.add( outputDatasetPath );
+		}
 
-			n5.setAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scaleMetadata.downsamplingFactors );
-			n5.setAttribute( outputDatasetPath, PIXEL_RESOLUTION_ATTRIBUTE_KEY, pixelResolution );
+		if ( firstIntermediateScale < numScales )
+			downsampleIntermediateScales( sparkContext, n5Supplier, fullScaleDatasetPath, outputGroupPath, scalePyramidMetadata, modifiedRegion );
 
-			downsampledDatasets.add( outputDatasetPath );
-		}
+		return updatedDatasets;
+	}
 
-		if ( !scalePyramidMetadata.isPowerOfTwo )
-			N5RemoveSpark.remove( sparkContext, n5Supplier, intermediateGroupPath );
 
-		return downsampledDatasets;
+	/**
+	 * Generates (or updates within the given modified region of the full scale dataset) the scale levels that require intermediate downsampling.
+	 * The intermediate levels are downsampled in the main dimension(s) one after another starting from the last scale level
+	 * that does not require intermediate downsampling, and every scale level is downsampled from its intermediate level
+	 * in the dependent dimension(s), see {@link IntermediateDownsampling}.
+	 */
+	private static void downsampleIntermediateScales(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String fullScaleDatasetPath,
+			final String outputGroupPath,
+			final NonIsotropicScalePyramidMetadata scalePyramidMetadata,
+			final Interval modifiedRegion ) throws IOException
+	{
+		final int firstIntermediateScale = scalePyramidMetadata.getFirstIntermediateScale();
+		final String baseDatasetPath = firstIntermediateScale == 1 ? fullScaleDatasetPath : Paths.get( outputGroupPath, "s" + ( firstIntermediateScale - 1 ) ).toString();
+
+		final List< int[] > intermediateFactors = new ArrayList<>(), scaleFactors = new ArrayList<>();
+		final List< String > outputDatasetPaths = new ArrayList<>();
+		final List< Interval > outputRegions = modifiedRegion != null ? new ArrayList<>() : null;
+		for ( int scale = firstIntermediateScale; scale < scalePyramidMetadata.getNumScales(); ++scale )
+		{
+			intermediateFactors.add( scalePyramidMetadata.getIntermediateDownsamplingFactors( scale ) );
+			scaleFactors.add( scalePyramidMetadata.getScaleMetadata( scale ).downsamplingFactors );
+			outputDatasetPaths.add( Paths.get( outputGroupPath, "s" + scale ).toString() );
+			if ( outputRegions != null )
+				outputRegions.add( N5DownsamplerSpark.getDownsampledInterval( modifiedRegion, scalePyramidMetadata.getScaleMetadata( scale ).downsamplingFactors ) );
+		}
+
+		IntermediateDownsampling.downsample(
+				sparkContext,
+				n5Supplier,
+				baseDatasetPath,
+				intermediateFactors,
+				outputDatasetPaths,
+				IntermediateDownsampling.getOutputFactors( scalePyramidMetadata.getScaleMetadata( firstIntermediateScale - 1 ).downsamplingFactors, intermediateFactors, scaleFactors ),
+				outputRegions,
+				new IntermediateDownsampling.AveragingKernel( n5Supplier.get().getDatasetAttributes( fullScaleDatasetPath ).getDataType() )
+			);
 	}
 
 
@@ -369,17 +475,24 @@ public class N5NonIsotropicScalePyramidSpark3D
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
+			final N5WriterSupplier n5Supplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getN5Path() );
 
+			final String outputGroupPath;
 			if ( parsedArgs.getOutputGroupPath() != null )
+				outputGroupPath = parsedArgs.getOutputGroupPath();
+			else
+				outputGroupPath = ( Paths.get( parsedArgs.getInputDatasetPath() ).getParent() != null ? Paths.get( parsedArgs.getInputDatasetPath() ).getParent().toString() : "" );
+
+			if ( parsedArgs.getUpdateRegion() != null )
 			{
-				downsampleNonIsotropicScalePyramid(
+				updateNonIsotropicScalePyramid(
 						sparkContext,
 						n5Supplier,
 						parsedArgs.getInputDatasetPath(),
-						parsedArgs.getOutputGroupPath(),
+						outputGroupPath,
 						parsedArgs.getPixelResolution(),
-						parsedArgs.getIsPowerOfTwo()
+						parsedArgs.getIsPowerOfTwo(),
+						parsedArgs.getUpdateRegion()
 					);
 			}
 			else
@@ -388,6 +501,7 @@ public class N5NonIsotropicScalePyramidSpark3D
 						sparkContext,
 						n5Supplier,
 						parsedArgs.getInputDatasetPath(),
+						outputGroupPath,
 						parsedArgs.getPixelResolution(),
 						parsedArgs.getIsPowerOfTwo()
 					);
@@ -419,6 +533,14 @@ public class N5NonIsotropicScalePyramidSpark3D
 				usage = "Forces to generate a power-of-two scale pyramid that is as close to isotropic as possible.")
 		private boolean isPowerOfTwo;
 
+		@Option(name = "--updateMin", required = false, depends = { "--updateMax" },
+				usage = "Min of the modified region of the input dataset in pixel coordinates. If specified, the existing scale pyramid is updated in place instead of generating a new one.")
+		private String updateMin;
+
+		@Option(name = "--updateMax", required = false, depends = { "--updateMin" },
+				usage = "Max of the modified region of the input dataset in pixel coordinates (inclusive).")
+		private String updateMax;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
@@ -439,5 +561,6 @@ public class N5NonIsotropicScalePyramidSpark3D
 		public String getOutputGroupPath() { return outputGroupPath; }
 		public double[] getPixelResolution() { return CmdUtils.parseDoubleArray( pixelResolution ); }
 		public boolean getIsPowerOfTwo() { return isPowerOfTwo; }
+		public Interval getUpdateRegion() { return updateMin != null ? new FinalInterval( CmdUtils.parseLongArray( updateMin ), CmdUtils.parseLongArray( updateMax ) ) : null; }
 	}
 }
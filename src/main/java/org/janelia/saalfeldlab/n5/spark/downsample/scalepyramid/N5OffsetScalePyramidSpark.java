@@ -9,22 +9,32 @@ import java.util.List;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.spark.N5RemoveSpark;
 import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.downsample.AveragingKernels;
 import org.janelia.saalfeldlab.n5.spark.downsample.N5OffsetDownsamplerSpark;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
 public class N5OffsetScalePyramidSpark
 {
 	public static final String DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY = "downsamplingFactors";
 	public static final String OFFSETS_ATTRIBUTE_KEY = "offsets";
 
+	public static final int DEFAULT_NUM_FUSED_LEVELS = 2;
+
 	/**
 	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors with half-pixel offset.
 	 * Reuses the block size of the input dataset. Stores the resulting datasets in the same group as the input dataset.
@@ -58,6 +68,49 @@ public class N5OffsetScalePyramidSpark
 	/**
 	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors with half-pixel offset.
 	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
+	 * Generates {@link #DEFAULT_NUM_FUSED_LEVELS} scale levels in a single pass over their input.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param dimensionsWithOffset
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleOffsetScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final boolean[] dimensionsWithOffset ) throws IOException
+	{
+		return downsampleOffsetScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors,
+				dimensionsWithOffset,
+				DEFAULT_NUM_FUSED_LEVELS
+			);
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors with half-pixel offset.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
+	 *<p>
+	 * Scale level k is the regular (non-shifted) scale level k-1 downsampled with the offset of one pixel. The scale levels are generated
+	 * in groups of numFusedLevels in a single pass over the input of the group: each task reads a region of the input that corresponds
+	 * to a single block of the regular scale level at the end of the group (plus the margin required by the offset),
+	 * and computes the required regular scale levels and all offset blocks within this region in memory.
+	 * Only the last regular scale level of each group is stored temporarily as the input for the next group.
+	 * The results are identical to downsampling the regular scale pyramid level by level.
+	 *<p>
+	 * Each task keeps a region of (blockSize * downsamplingStepFactors^numFusedLevels) pixels of its input in memory.
+	 * 64-bit integer types are generated from a temporary regular scale pyramid.
 	 *
 	 * @param sparkContext
 	 * @param n5Supplier
@@ -65,10 +118,94 @@ public class N5OffsetScalePyramidSpark
 	 * @param outputGroupPath
 	 * @param downsamplingStepFactors
 	 * @param dimensionsWithOffset
+	 * @param numFusedLevels
 	 * @return N5 paths to downsampled datasets
 	 * @throws IOException
 	 */
 	public static List< String > downsampleOffsetScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final boolean[] dimensionsWithOffset,
+			final int numFusedLevels ) throws IOException
+	{
+		if ( numFusedLevels < 1 )
+			throw new IllegalArgumentException( "Number of fused levels should be positive" );
+
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( datasetPath );
+		final long[] dimensions = fullScaleAttributes.getDimensions();
+		final int dim = dimensions.length;
+
+		if ( dim != downsamplingStepFactors.length || dim != dimensionsWithOffset.length )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
+
+		if ( !AveragingKernels.isSupported( fullScaleAttributes.getDataType() ) )
+			return downsampleOffsetScalePyramidFromRegularScalePyramid( sparkContext, n5Supplier, datasetPath, outputGroupPath, downsamplingStepFactors, dimensionsWithOffset );
+
+		final long[] relativeOffset = getRelativeOffset( dimensionsWithOffset );
+		final String intermediateOutputGroupPath = Paths.get( outputGroupPath, "intermediate-downsampling" ).toString();
+
+		// same number of scale levels as when downsampling the regular scale pyramid level by level
+		int numScales = 0;
+		while ( isValidScale( dimensions, downsamplingStepFactors, relativeOffset, numScales + 1 ) )
+			++numScales;
+
+		for ( int scale = 1; scale <= numScales; ++scale )
+		{
+			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+			if ( n5.datasetExists( outputDatasetPath ) )
+				throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
+		}
+		if ( numScales > numFusedLevels && n5.exists( intermediateOutputGroupPath ) )
+			throw new IllegalArgumentException( "Group for intermediate downsampling already exists: " + intermediateOutputGroupPath );
+
+		final List< String > downsampledDatasets = new ArrayList<>();
+		for ( int firstScale = 1; firstScale <= numScales; firstScale += numFusedLevels )
+		{
+			final int lastScale = Math.min( firstScale + numFusedLevels - 1, numScales );
+			final String inputDatasetPath = firstScale == 1 ? datasetPath : Paths.get( intermediateOutputGroupPath, "s" + ( firstScale - 1 ) ).toString();
+			final String regularOutputDatasetPath = lastScale < numScales ? Paths.get( intermediateOutputGroupPath, "s" + lastScale ).toString() : null;
+
+			final List< String > outputDatasetPaths = new ArrayList<>();
+			for ( int scale = firstScale; scale <= lastScale; ++scale )
+				outputDatasetPaths.add( Paths.get( outputGroupPath, "s" + scale ).toString() );
+
+			downsampleOffsetFused(
+					sparkContext,
+					n5Supplier,
+					inputDatasetPath,
+					outputDatasetPaths,
+					regularOutputDatasetPath,
+					downsamplingStepFactors,
+					relativeOffset
+				);
+
+			for ( int scale = firstScale; scale <= lastScale; ++scale )
+			{
+				final String outputDatasetPath = outputDatasetPaths.get( scale - firstScale );
+				n5.setAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, getScaleFactors( downsamplingStepFactors, scale ) );
+				n5.setAttribute( outputDatasetPath, OFFSETS_ATTRIBUTE_KEY, getOffset( downsamplingStepFactors, scale ) );
+				downsampledDatasets.add( outputDatasetPath );
+			}
+
+			// the regular scale level is not needed anymore after the next group has been generated from it
+			if ( firstScale != 1 )
+				N5RemoveSpark.remove( sparkContext, n5Supplier, inputDatasetPath );
+		}
+
+		if ( numScales > numFusedLevels )
+			n5.remove( intermediateOutputGroupPath );
+
+		return downsampledDatasets;
+	}
+
+	/**
+	 * Generates the scale pyramid from a temporary regular scale pyramid that is generated first and removed afterwards.
+	 */
+	private static List< String > downsampleOffsetScalePyramidFromRegularScalePyramid(
 			final JavaSparkContext sparkContext,
 			final N5WriterSupplier n5Supplier,
 			final String datasetPath,
@@ -92,20 +229,14 @@ public class N5OffsetScalePyramidSpark
 				downsamplingStepFactors
 			);
 
-		final long[] relativeOffset = new long[ dim ];
-		for ( int d = 0; d < dim; ++d )
-			if ( dimensionsWithOffset[ d ] )
-				relativeOffset[ d ] = 1;
+		final long[] relativeOffset = getRelativeOffset( dimensionsWithOffset );
 
 		final List< String > downsampledDatasets = new ArrayList<>();
 
 		// generate half-pixel shifted scale pyramid
 		for ( int scale = 1; ; ++scale )
 		{
-			final int[] scaleFactors = new int[ dim ];
-			for ( int d = 0; d < dim; ++d )
-				scaleFactors[ d ] = ( int ) Math.round( Math.pow( downsamplingStepFactors[ d ], scale ) );
-
+			final int[] scaleFactors = getScaleFactors( downsamplingStepFactors, scale );
 			final long[] downsampledDimensions = new long[ dim ];
 			for ( int d = 0; d < dim; ++d )
 				downsampledDimensions[ d ] = ( dimensions[ d ] + relativeOffset[ d ] ) / scaleFactors[ d ];
@@ -128,12 +259,8 @@ public class N5OffsetScalePyramidSpark
 					relativeOffset
 				);
 
-			final long[] offset = new long[ dim ];
-			for ( int d = 0; d < dim; ++d )
-				offset[ d ] = Math.round( Math.pow( downsamplingStepFactors[ d ], scale - 1 ) );
-
 			n5.setAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scaleFactors );
-			n5.setAttribute( outputDatasetPath, OFFSETS_ATTRIBUTE_KEY, offset );
+			n5.setAttribute( outputDatasetPath, OFFSETS_ATTRIBUTE_KEY, getOffset( downsamplingStepFactors, scale ) );
 
 			downsampledDatasets.add( outputDatasetPath );
 		}
@@ -142,6 +269,300 @@ public class N5OffsetScalePyramidSpark
 		return downsampledDatasets;
 	}
 
+	/**
+	 * Generates several consecutive offset scale levels in a single pass over the input dataset, which is a regular scale level
+	 * (or the full scale dataset). Each task is responsible for a region of the input dataset that corresponds to a single block of the
+	 * regular scale level at the end of the group, and produces all offset blocks whose origin lies within this region.
+	 * The regular scale levels are computed in memory from the region extended by the offset of the last scale level.
+	 * If regularOutputDatasetPath is specified, the regular scale level at the end of the group is stored there.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPaths
+	 * @param regularOutputDatasetPath
+	 * @param downsamplingStepFactors
+	 * @param relativeOffset
+	 * @throws IOException
+	 */
+	private static void downsampleOffsetFused(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final List< String > outputDatasetPaths,
+			final String regularOutputDatasetPath,
+			final int[] downsamplingStepFactors,
+			final long[] relativeOffset ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final long[] inputDimensions = inputAttributes.getDimensions();
+		final int[] blockSize = inputAttributes.getBlockSize();
+		final int dim = inputDimensions.length;
+		final int numScales = outputDatasetPaths.size();
+
+		// dimensions of the regular and offset scale levels relative to the input dataset, index 0 of the regular scale levels corresponds to the input dataset
+		final long[][] regularDimensions = new long[ numScales + 1 ][], offsetDimensions = new long[ numScales + 1 ][];
+		for ( int scale = 0; scale <= numScales; ++scale )
+			regularDimensions[ scale ] = getOffsetDownsampledDimensions( inputDimensions, downsamplingStepFactors, new long[ dim ], scale );
+		for ( int scale = 1; scale <= numScales; ++scale )
+			offsetDimensions[ scale ] = getOffsetDownsampledDimensions( inputDimensions, downsamplingStepFactors, relativeOffset, scale );
+
+		// each task processes a region that spans a single block of the last regular scale level,
+		// and additionally the margin that is covered by the offset of the last offset scale level
+		final int[] lastScaleFactors = getScaleFactors( downsamplingStepFactors, numScales );
+		final long[] tileSize = new long[ dim ], margin = new long[ dim ];
+		final long[] tileGridDimensions = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+		{
+			tileSize[ d ] = ( long ) blockSize[ d ] * lastScaleFactors[ d ];
+			margin[ d ] = relativeOffset[ d ] * lastScaleFactors[ d ] / downsamplingStepFactors[ d ];
+
+			// the tiles have to cover the origins of all output blocks
+			tileGridDimensions[ d ] = ( regularDimensions[ numScales ][ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			for ( int scale = 1; scale <= numScales; ++scale )
+			{
+				final long scaleFactor = getScaleFactors( downsamplingStepFactors, scale )[ d ];
+				tileGridDimensions[ d ] = Math.max( tileGridDimensions[ d ], ( offsetDimensions[ scale ][ d ] * scaleFactor + tileSize[ d ] - 1 ) / tileSize[ d ] );
+			}
+		}
+
+		// the region of the input dataset that is processed by each task has to fit into a single array
+		final long[] inputRegionSize = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			inputRegionSize[ d ] = Math.min( tileSize[ d ] + margin[ d ], inputDimensions[ d ] );
+		if ( Arrays.stream( inputRegionSize ).anyMatch( size -> size > Integer.MAX_VALUE ) || Arrays.stream( inputRegionSize ).asDoubleStream().reduce( 1, ( a, b ) -> a * b ) > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many fused scale levels, the processing region of " + Arrays.toString( inputRegionSize ) + " pixels does not fit into memory" );
+
+		for ( int scale = 1; scale <= numScales; ++scale )
+			n5.createDataset( outputDatasetPaths.get( scale - 1 ), offsetDimensions[ scale ], blockSize, inputAttributes.getDataType(), inputAttributes.getCompression() );
+		if ( regularOutputDatasetPath != null )
+			n5.createDataset( regularOutputDatasetPath, regularDimensions[ numScales ], blockSize, inputAttributes.getDataType(), inputAttributes.getCompression() );
+
+		BlockIndexRDD.create( sparkContext, Intervals.numElements( tileGridDimensions ) ).foreach( tileIndex ->
+		{
+			final long[] tileGridPosition = new long[ dim ];
+			IntervalIndexer.indexToPosition( tileIndex, tileGridDimensions, tileGridPosition );
+
+			// the region of the input dataset that is processed by this task
+			final long[] regionMin = new long[ dim ], regionMax = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+			{
+				regionMin[ d ] = Math.max( tileGridPosition[ d ] * tileSize[ d ] - margin[ d ], 0 );
+				regionMax[ d ] = Math.min( ( tileGridPosition[ d ] + 1 ) * tileSize[ d ], inputDimensions[ d ] ) - 1;
+				if ( regionMax[ d ] < regionMin[ d ] )
+					return;
+			}
+
+			final N5Writer n5Local = n5Supplier.get();
+			final DatasetAttributes sourceAttributes = n5Local.getDatasetAttributes( inputDatasetPath );
+			final DataType dataType = sourceAttributes.getDataType();
+
+			/* skip if none of the covering source blocks exist */
+			if ( !DataBlockUtils.anyBlockExists( n5Local, inputDatasetPath, sourceAttributes, regionMin, regionMax ) )
+				return;
+
+			// regular scale levels of the region, the region min is divisible by the scale factors of all regular scale levels that are needed for the offset scale levels
+			final Object[] regularData = new Object[ numScales ];
+			final long[][] regularMin = new long[ numScales ][ dim ];
+			final int[][] regularSize = new int[ numScales ][ dim ];
+			for ( int d = 0; d < dim; ++d )
+			{
+				regularMin[ 0 ][ d ] = regionMin[ d ];
+				regularSize[ 0 ][ d ] = ( int ) ( regionMax[ d ] - regionMin[ d ] + 1 );
+			}
+			regularData[ 0 ] = DataBlockUtils.readRegion( n5Local, inputDatasetPath, sourceAttributes, regionMin, regularSize[ 0 ] );
+			if ( DataBlockUtils.isEmpty( regularData[ 0 ] ) )
+				return;
+
+			for ( int scale = 1; scale < numScales; ++scale )
+			{
+				for ( int d = 0; d < dim; ++d )
+				{
+					regularMin[ scale ][ d ] = regularMin[ scale - 1 ][ d ] / downsamplingStepFactors[ d ];
+					regularSize[ scale ][ d ] = ( int ) ( ( regularMin[ scale - 1 ][ d ] + regularSize[ scale - 1 ][ d ] ) / downsamplingStepFactors[ d ] - regularMin[ scale ][ d ] );
+				}
+				regularData[ scale ] = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( regularSize[ scale ] ) );
+				AveragingKernels.downsample( dataType, regularData[ scale - 1 ], regularSize[ scale - 1 ], regularData[ scale ], regularSize[ scale ], downsamplingStepFactors );
+			}
+
+			// offset scale levels
+			for ( int scale = 1; scale <= numScales; ++scale )
+			{
+				final String outputDatasetPath = outputDatasetPaths.get( scale - 1 );
+				final DatasetAttributes outputAttributes = n5Local.getDatasetAttributes( outputDatasetPath );
+				final CellGrid cellGrid = new CellGrid( offsetDimensions[ scale ], blockSize );
+				final long[] cellGridDimensions = cellGrid.getGridDimensions();
+
+				// the output blocks whose origin is within the tile
+				final long[] gridMin = new long[ dim ], gridMax = new long[ dim ];
+				boolean isEmptyGrid = false;
+				for ( int d = 0; d < dim; ++d )
+				{
+					final long numBlocksPerTile = lastScaleFactors[ d ] / getScaleFactors( downsamplingStepFactors, scale )[ d ];
+					gridMin[ d ] = tileGridPosition[ d ] * numBlocksPerTile;
+					gridMax[ d ] = Math.min( gridMin[ d ] + numBlocksPerTile, cellGridDimensions[ d ] ) - 1;
+					isEmptyGrid |= gridMax[ d ] < gridMin[ d ];
+				}
+				if ( isEmptyGrid )
+					continue;
+
+				final long[] blockGridPosition = gridMin.clone();
+				do
+				{
+					downsampleOffsetBlock(
+							n5Local,
+							outputDatasetPath,
+							outputAttributes,
+							cellGrid,
+							blockGridPosition,
+							regularData[ scale - 1 ],
+							regularMin[ scale - 1 ],
+							regularSize[ scale - 1 ],
+							regularDimensions[ scale - 1 ],
+							downsamplingStepFactors,
+							relativeOffset );
+				}
+				while ( DataBlockUtils.nextGridPosition( blockGridPosition, gridMin, gridMax ) );
+			}
+
+			// regular scale level at the end of the group (a single block)
+			if ( regularOutputDatasetPath != null )
+			{
+				final long[] targetMin = new long[ dim ];
+				final int[] cellDimensions = new int[ dim ], sourceMin = new int[ dim ], sourceDimensions = new int[ dim ];
+				for ( int d = 0; d < dim; ++d )
+				{
+					targetMin[ d ] = tileGridPosition[ d ] * blockSize[ d ];
+					cellDimensions[ d ] = ( int ) Math.min( blockSize[ d ], regularDimensions[ numScales ][ d ] - targetMin[ d ] );
+					if ( cellDimensions[ d ] <= 0 )
+						return;
+					sourceMin[ d ] = ( int ) ( targetMin[ d ] * downsamplingStepFactors[ d ] - regularMin[ numScales - 1 ][ d ] );
+					sourceDimensions[ d ] = cellDimensions[ d ] * downsamplingStepFactors[ d ];
+				}
+
+				final Object sourceData = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( sourceDimensions ) );
+				DataBlockUtils.copyRegion( regularData[ numScales - 1 ], regularSize[ numScales - 1 ], sourceMin, sourceData, sourceDimensions, new int[ dim ], sourceDimensions );
+
+				final Object targetData = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( cellDimensions ) );
+				AveragingKernels.downsample( dataType, sourceData, sourceDimensions, targetData, cellDimensions, downsamplingStepFactors );
+
+				if ( !DataBlockUtils.isEmpty( targetData ) )
+					n5Local.writeBlock( regularOutputDatasetPath, n5Local.getDatasetAttributes( regularOutputDatasetPath ), DataBlockUtils.createDataBlock( dataType, cellDimensions, tileGridPosition, targetData ) );
+			}
+		} );
+	}
+
+	/**
+	 * Downsamples a single offset block from the given region of the previous regular scale level in the same way as
+	 * {@link N5OffsetDownsamplerSpark#downsampleWithOffset(JavaSparkContext, N5WriterSupplier, String, String, int[], long[])}.
+	 */
+	private static void downsampleOffsetBlock(
+			final N5Writer n5,
+			final String outputDatasetPath,
+			final DatasetAttributes outputAttributes,
+			final CellGrid cellGrid,
+			final long[] blockGridPosition,
+			final Object regionData,
+			final long[] regionMin,
+			final int[] regionSize,
+			final long[] sourceDimensions,
+			final int[] downsamplingFactors,
+			final long[] offset ) throws IOException
+	{
+		final int dim = cellGrid.numDimensions();
+		final long[] targetMin = new long[ dim ];
+		final int[] cellDimensions = new int[ dim ];
+		cellGrid.getCellDimensions( blockGridPosition, targetMin, cellDimensions );
+
+		// the part of the neighborhoods of the block that is defined in the source, relative to the region and to the block
+		final int[] definedMin = new int[ dim ], definedDimensions = new int[ dim ], definedBlockMin = new int[ dim ];
+		boolean isClipped = false;
+		for ( int d = 0; d < dim; ++d )
+		{
+			final long sourceMin = targetMin[ d ] * downsamplingFactors[ d ] - offset[ d ];
+			final long sourceMax = sourceMin + ( long ) cellDimensions[ d ] * downsamplingFactors[ d ] - 1;
+			final long min = Math.max( sourceMin, 0 ), max = Math.min( sourceMax, sourceDimensions[ d ] - 1 );
+			if ( max < min )
+				return;
+			if ( min < regionMin[ d ] || max >= regionMin[ d ] + regionSize[ d ] )
+				throw new IllegalStateException( "Source region does not cover the block " + Arrays.toString( blockGridPosition ) );
+
+			definedMin[ d ] = ( int ) ( min - regionMin[ d ] );
+			definedDimensions[ d ] = ( int ) ( max - min + 1 );
+			definedBlockMin[ d ] = ( int ) ( min - sourceMin );
+			isClipped |= min != sourceMin || max != sourceMax;
+		}
+
+		final DataType dataType = outputAttributes.getDataType();
+		final Object definedData = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( definedDimensions ) );
+		DataBlockUtils.copyRegion( regionData, regionSize, definedMin, definedData, definedDimensions, new int[ dim ], definedDimensions );
+		if ( DataBlockUtils.isEmpty( definedData ) )
+			return;
+
+		final Object targetData = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( cellDimensions ) );
+		if ( isClipped )
+			AveragingKernels.downsampleClipped( dataType, definedData, definedDimensions, definedBlockMin, targetData, cellDimensions, downsamplingFactors );
+		else
+			AveragingKernels.downsample( dataType, definedData, definedDimensions, targetData, cellDimensions, downsamplingFactors );
+
+		if ( !DataBlockUtils.isEmpty( targetData ) )
+			n5.writeBlock( outputDatasetPath, outputAttributes, DataBlockUtils.createDataBlock( dataType, cellDimensions, blockGridPosition, targetData ) );
+	}
+
+	private static long[] getRelativeOffset( final boolean[] dimensionsWithOffset )
+	{
+		final long[] relativeOffset = new long[ dimensionsWithOffset.length ];
+		for ( int d = 0; d < relativeOffset.length; ++d )
+			if ( dimensionsWithOffset[ d ] )
+				relativeOffset[ d ] = 1;
+		return relativeOffset;
+	}
+
+	private static int[] getScaleFactors( final int[] downsamplingStepFactors, final int scale )
+	{
+		final int[] scaleFactors = new int[ downsamplingStepFactors.length ];
+		for ( int d = 0; d < scaleFactors.length; ++d )
+			scaleFactors[ d ] = ( int ) Math.round( Math.pow( downsamplingStepFactors[ d ], scale ) );
+		return scaleFactors;
+	}
+
+	private static long[] getOffset( final int[] downsamplingStepFactors, final int scale )
+	{
+		final long[] offset = new long[ downsamplingStepFactors.length ];
+		for ( int d = 0; d < offset.length; ++d )
+			offset[ d ] = Math.round( Math.pow( downsamplingStepFactors[ d ], scale - 1 ) );
+		return offset;
+	}
+
+	private static boolean isValidScale( final long[] dimensions, final int[] downsamplingStepFactors, final long[] relativeOffset, final int scale )
+	{
+		final int[] scaleFactors = getScaleFactors( downsamplingStepFactors, scale );
+		for ( int d = 0; d < dimensions.length; ++d )
+			if ( ( dimensions[ d ] + relativeOffset[ d ] ) / scaleFactors[ d ] < 1 )
+				return false;
+		return
+				Arrays.stream( getOffsetDownsampledDimensions( dimensions, downsamplingStepFactors, new long[ dimensions.length ], scale - 1 ) ).min().getAsLong() >= 1 &&
+				Arrays.stream( getOffsetDownsampledDimensions( dimensions, downsamplingStepFactors, relativeOffset, scale ) ).min().getAsLong() >= 1;
+	}
+
+	/**
+	 * Dimensions of the scale level that is obtained by downsampling the regular scale level (scale - 1) with the given relative offset.
+	 * With zero offset, these are the dimensions of the regular scale level.
+	 */
+	private static long[] getOffsetDownsampledDimensions( final long[] dimensions, final int[] downsamplingStepFactors, final long[] relativeOffset, final int scale )
+	{
+		final long[] downsampledDimensions = dimensions.clone();
+		for ( int d = 0; d < downsampledDimensions.length; ++d )
+		{
+			for ( int s = 1; s < scale; ++s )
+				downsampledDimensions[ d ] /= downsamplingStepFactors[ d ];
+			if ( scale > 0 )
+				downsampledDimensions[ d ] = ( downsampledDimensions[ d ] + relativeOffset[ d ] ) / downsamplingStepFactors[ d ];
+		}
+		return downsampledDimensions;
+	}
+
 
 	public static void main( final String... args ) throws IOException
 	{
@@ -163,29 +584,23 @@ public class N5OffsetScalePyramidSpark
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
+			final N5WriterSupplier n5Supplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getN5Path() );
 
+			final String outputGroupPath;
 			if ( parsedArgs.getOutputGroupPath() != null )
-			{
-				downsampleOffsetScalePyramid(
-						sparkContext,
-						n5Supplier,
-						parsedArgs.getInputDatasetPath(),
-						parsedArgs.getOutputGroupPath(),
-						parsedArgs.getDownsamplingFactors(),
-						dimensionsWithOffset
-					);
-			}
+				outputGroupPath = parsedArgs.getOutputGroupPath();
 			else
-			{
-				downsampleOffsetScalePyramid(
-						sparkContext,
-						n5Supplier,
-						parsedArgs.getInputDatasetPath(),
-						parsedArgs.getDownsamplingFactors(),
-						dimensionsWithOffset
-					);
-			}
+				outputGroupPath = ( Paths.get( parsedArgs.getInputDatasetPath() ).getParent() != null ? Paths.get( parsedArgs.getInputDatasetPath() ).getParent().toString() : "" );
+
+			downsampleOffsetScalePyramid(
+					sparkContext,
+					n5Supplier,
+					parsedArgs.getInputDatasetPath(),
+					outputGroupPath,
+					parsedArgs.getDownsamplingFactors(),
+					dimensionsWithOffset,
+					parsedArgs.getNumFusedLevels()
+				);
 		}
 	}
 
@@ -213,6 +628,11 @@ public class N5OffsetScalePyramidSpark
 				usage = "Offset.")
 		private String offset;
 
+		@Option(name = "-l", aliases = { "--fusedLevels" }, required = false,
+				usage = "Number of scale levels that are generated in a single pass over their input (default: 2). "
+						+ "Each task keeps a region of (blockSize * downsamplingFactors^fusedLevels) input pixels in memory, which cannot exceed 2^31-1 pixels.")
+		private int numFusedLevels = DEFAULT_NUM_FUSED_LEVELS;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
@@ -233,5 +653,6 @@ public class N5OffsetScalePyramidSpark
 		public String getOutputGroupPath() { return outputGroupPath; }
 		public int[] getDownsamplingFactors() { return CmdUtils.parseIntArray( downsamplingFactors ); }
 		public long[] getOffset() { return CmdUtils.parseLongArray( offset ); }
+		public int getNumFusedLevels() { return numFusedLevels; }
 	}
 }
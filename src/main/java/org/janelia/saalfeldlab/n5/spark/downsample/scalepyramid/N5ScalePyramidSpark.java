@@ -10,19 +10,36 @@ import java.util.List;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.downsample.AveragingKernels;
 import org.janelia.saalfeldlab.n5.spark.downsample.N5DownsamplerSpark;
+import org.janelia.saalfeldlab.n5.spark.util.BlockIndexRDD;
 import org.janelia.saalfeldlab.n5.spark.util.CmdUtils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.N5ExecutorCache;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import bdv.export.Downsample;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
 public class N5ScalePyramidSpark
 {
 	public static final String DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY = "downsamplingFactors";
 
+
 	/**
 	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
 	 * Reuses the block size of the input dataset. Stores the resulting datasets in the same group as the input dataset.
@@ -53,7 +70,6 @@ public class N5ScalePyramidSpark
 	/**
 	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
 	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
-	 * Stores the resulting datasets in the given output group.
 	 *
 	 * @param sparkContext
 	 * @param n5Supplier
@@ -69,27 +85,88 @@ public class N5ScalePyramidSpark
 			final String datasetPath,
 			final String outputGroupPath,
 			final int[] downsamplingStepFactors ) throws IOException
+	{
+		return downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				outputGroupPath,
+				downsamplingStepFactors,
+				1
+			);
+	}
+
+	/**
+	 * Generates a scale pyramid for a given dataset. Each scale level is downsampled by the specified factors.
+	 * Reuses the block size of the input dataset. Stores the resulting datasets in the given output group.
+	 *<p>
+	 * If the number of fused levels is greater than 1, the first scale levels are generated in a single pass:
+	 * each task reads a region of the input dataset that corresponds to a single block of the last fused scale level,
+	 * and produces all blocks of the fused scale levels within this region in memory.
+	 * The remaining coarser scale levels are generated one by one from the last fused scale level.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param downsamplingStepFactors
+	 * @param numFusedLevels
+	 * @return N5 paths to downsampled datasets
+	 * @throws IOException
+	 */
+	public static List< String > downsampleScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final int[] downsamplingStepFactors,
+			final int numFusedLevels ) throws IOException
 	{
 		final N5Writer n5 = n5Supplier.get();
 		final DatasetAttributes fullScaleAttributes = n5.getDatasetAttributes( datasetPath );
 		final long[] dimensions = fullScaleAttributes.getDimensions();
 		final int dim = dimensions.length;
 
-		final List< String > downsampledDatasets = new ArrayList<>();
+		if ( dim != downsamplingStepFactors.length )
+			throw new IllegalArgumentException( "Downsampling parameters do not match data dimensionality." );
 
+		// find the number of scale levels that can be generated
+		int numScales = 0;
 		for ( int scale = 1; ; ++scale )
 		{
-			final int[] scaleFactors = new int[ dim ];
-			for ( int d = 0; d < dim; ++d )
-				scaleFactors[ d ] = ( int ) Math.round( Math.pow( downsamplingStepFactors[ d ], scale ) );
-
-			final long[] downsampledDimensions = new long[ dim ];
-			for ( int d = 0; d < dim; ++d )
-				downsampledDimensions[ d ] = dimensions[ d ] / scaleFactors[ d ];
-
+			final long[] downsampledDimensions = getDownsampledDimensions( dimensions, downsamplingStepFactors, scale );
 			if ( Arrays.stream( downsampledDimensions ).min().getAsLong() < 1 )
 				break;
+			numScales = scale;
+		}
+
+		final List< String > downsampledDatasets = new ArrayList<>();
+
+		final int numFusedScales = Math.min( numFusedLevels, numScales );
+		if ( numFusedScales > 1 )
+		{
+			final List< String > fusedDatasets = new ArrayList<>();
+			for ( int scale = 1; scale <= numFusedScales; ++scale )
+				fusedDatasets.add( Paths.get( outputGroupPath, "s" + scale ).toString() );
 
+			downsampleFused(
+					sparkContext,
+					n5Supplier,
+					datasetPath,
+					fusedDatasets,
+					downsamplingStepFactors
+				);
+
+			for ( int scale = 1; scale <= numFusedScales; ++scale )
+			{
+				final String outputDatasetPath = fusedDatasets.get( scale - 1 );
+				n5.setAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, getScaleFactors( downsamplingStepFactors, scale ) );
+				downsampledDatasets.add( outputDatasetPath );
+			}
+		}
+
+		for ( int scale = downsampledDatasets.size() + 1; scale <= numScales; ++scale )
+		{
 			final String inputDatasetPath = scale == 1 ? datasetPath : Paths.get( outputGroupPath, "s" + ( scale - 1 ) ).toString();
 			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
 
@@ -101,13 +178,253 @@ public class N5ScalePyramidSpark
 					downsamplingStepFactors
 				);
 
-			n5.setAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, scaleFactors );
+			n5.setAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, getScaleFactors( downsamplingStepFactors, scale ) );
 			downsampledDatasets.add( outputDatasetPath );
 		}
 
 		return downsampledDatasets;
 	}
 
+	/**
+	 * Updates an existing scale pyramid after a region of the full scale dataset has been modified.
+	 * Only the blocks that depend on the modified region are recomputed at each scale level, the rest of the data is left untouched.
+	 * The scale levels are expected to be stored as s1, s2, ... in the given output group
+	 * and to have the downsampling factors attribute as written by {@link #downsampleScalePyramid(JavaSparkContext, N5WriterSupplier, String, String, int[])}.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param datasetPath
+	 * @param outputGroupPath
+	 * @param modifiedRegion
+	 * 			modified region of the full scale dataset in pixel coordinates
+	 * @return N5 paths to updated datasets
+	 * @throws IOException
+	 */
+	public static List< String > updateScalePyramid(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String datasetPath,
+			final String outputGroupPath,
+			final Interval modifiedRegion ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final int dim = n5.getDatasetAttributes( datasetPath ).getNumDimensions();
+
+		if ( dim != modifiedRegion.numDimensions() )
+			throw new IllegalArgumentException( "Modified region does not match data dimensionality." );
+
+		final List< String > updatedDatasets = new ArrayList<>();
+		String inputDatasetPath = datasetPath;
+		int[] inputScaleFactors = new int[ dim ];
+		Arrays.fill( inputScaleFactors, 1 );
+		Interval region = modifiedRegion;
+
+		for ( int scale = 1; ; ++scale )
+		{
+			final String outputDatasetPath = Paths.get( outputGroupPath, "s" + scale ).toString();
+			if ( !n5.datasetExists( outputDatasetPath ) )
+				break;
+
+			final int[] scaleFactors = n5.getAttribute( outputDatasetPath, DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class );
+			if ( scaleFactors == null || scaleFactors.length != dim )
+				throw new IllegalArgumentException( "Downsampling factors are not specified for " + outputDatasetPath );
+
+			final int[] relativeFactors = new int[ dim ];
+			for ( int d = 0; d < dim; ++d )
+			{
+				if ( scaleFactors[ d ] % inputScaleFactors[ d ] != 0 )
+					throw new IllegalArgumentException( "Downsampling factors of " + outputDatasetPath + " are not divisible by the downsampling factors of " + inputDatasetPath );
+				relativeFactors[ d ] = scaleFactors[ d ] / inputScaleFactors[ d ];
+			}
+
+			region = N5DownsamplerSpark.getDownsampledInterval( region, relativeFactors );
+			N5DownsamplerSpark.downsampleRegion(
+					sparkContext,
+					n5Supplier,
+					inputDatasetPath,
+					outputDatasetPath,
+					relativeFactors,
+					region
+				);
+
+			updatedDatasets.add( outputDatasetPath );
+			inputDatasetPath = outputDatasetPath;
+			inputScaleFactors = scaleFactors;
+		}
+
+		return updatedDatasets;
+	}
+
+	/**
+	 * Generates several consecutive scale levels in a single pass over the input dataset.
+	 * Each task is responsible for a region of the input dataset that corresponds to a single block of the last scale level,
+	 * and produces all blocks of all scale levels within this region keeping the intermediate results in memory.
+	 * The output datasets are created with the same block size, data type, and compression as the input dataset.
+	 *
+	 * @param sparkContext
+	 * @param n5Supplier
+	 * @param inputDatasetPath
+	 * @param outputDatasetPaths
+	 * @param downsamplingStepFactors
+	 * @throws IOException
+	 */
+	private static < T extends NativeType< T > & RealType< T > > void downsampleFused(
+			final JavaSparkContext sparkContext,
+			final N5WriterSupplier n5Supplier,
+			final String inputDatasetPath,
+			final List< String > outputDatasetPaths,
+			final int[] downsamplingStepFactors ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		if ( !n5.datasetExists( inputDatasetPath ) )
+			throw new IllegalArgumentException( "Input N5 dataset " + inputDatasetPath + " does not exist" );
+		for ( final String outputDatasetPath : outputDatasetPaths )
+			if ( n5.datasetExists( outputDatasetPath ) )
+				throw new IllegalArgumentException( "Output N5 dataset " + outputDatasetPath + " already exists" );
+
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( inputDatasetPath );
+		final long[] inputDimensions = inputAttributes.getDimensions();
+		final int[] blockSize = inputAttributes.getBlockSize();
+		final int dim = inputDimensions.length;
+		final int numScales = outputDatasetPaths.size();
+
+		// dimensions of the scale levels, index 0 corresponds to the input dataset
+		final long[][] scaleDimensions = new long[ numScales + 1 ][];
+		for ( int scale = 0; scale <= numScales; ++scale )
+			scaleDimensions[ scale ] = getDownsampledDimensions( inputDimensions, downsamplingStepFactors, scale );
+
+		// the region of the input dataset that is processed by each task (blockSize * factor^numScales) has to fit into a single array
+		final long[] inputRegionSize = new long[ dim ];
+		for ( int d = 0; d < dim; ++d )
+		{
+			inputRegionSize[ d ] = blockSize[ d ];
+			for ( int scale = 0; scale < numScales && inputRegionSize[ d ] <= Integer.MAX_VALUE; ++scale )
+				inputRegionSize[ d ] *= downsamplingStepFactors[ d ];
+			inputRegionSize[ d ] = Math.min( inputRegionSize[ d ], Math.max( inputDimensions[ d ], 1 ) );
+		}
+		if ( Arrays.stream( inputRegionSize ).anyMatch( size -> size > Integer.MAX_VALUE ) || Arrays.stream( inputRegionSize ).asDoubleStream().reduce( 1, ( a, b ) -> a * b ) > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many fused scale levels, the processing region of " + Arrays.toString( inputRegionSize ) + " pixels does not fit into memory" );
+
+		for ( int scale = 1; scale <= numScales; ++scale )
+		{
+			n5.createDataset(
+					outputDatasetPaths.get( scale - 1 ),
+					scaleDimensions[ scale ],
+					blockSize,
+					inputAttributes.getDataType(),
+					inputAttributes.getCompression()
+				);
+		}
+
+		// each task processes a region that spans a single block of the last scale level,
+		// which corresponds to a grid of (factor^(numScales-1)) blocks of the first scale level
+		final int[] superBlockSize = new int[ dim ];
+		for ( int d = 0; d < dim; ++d )
+			superBlockSize[ d ] = blockSize[ d ] * getScaleFactors( downsamplingStepFactors, numScales - 1 )[ d ];
+
+		final long numSuperBlocks = Intervals.numElements( new CellGrid( scaleDimensions[ 1 ], superBlockSize ).getGridDimensions() );
+		BlockIndexRDD.create( sparkContext, numSuperBlocks ).foreach( superBlockIndex ->
+		{
+			final CellGrid superBlockGrid = new CellGrid( scaleDimensions[ 1 ], superBlockSize );
+			final long[] superBlockGridPosition = new long[ dim ];
+			superBlockGrid.getCellGridPositionFlat( superBlockIndex, superBlockGridPosition );
+
+			// find the region of each scale level that is covered by the super block
+			final long[][] regionMin = new long[ numScales + 1 ][ dim ], regionDimensions = new long[ numScales + 1 ][ dim ];
+			for ( int scale = 1; scale <= numScales; ++scale )
+			{
+				final int[] relativeScaleFactors = getScaleFactors( downsamplingStepFactors, numScales - scale );
+				for ( int d = 0; d < dim; ++d )
+				{
+					final long regionSize = ( long ) blockSize[ d ] * relativeScaleFactors[ d ];
+					regionMin[ scale ][ d ] = superBlockGridPosition[ d ] * regionSize;
+					regionDimensions[ scale ][ d ] = Math.max( Math.min( regionMin[ scale ][ d ] + regionSize, scaleDimensions[ scale ][ d ] ) - regionMin[ scale ][ d ], 0 );
+				}
+			}
+			for ( int d = 0; d < dim; ++d )
+			{
+				regionMin[ 0 ][ d ] = regionMin[ 1 ][ d ] * downsamplingStepFactors[ d ];
+				regionDimensions[ 0 ][ d ] = regionDimensions[ 1 ][ d ] * downsamplingStepFactors[ d ];
+			}
+
+			final N5Writer n5Local = n5Supplier.get();
+			final DatasetAttributes sourceAttributes = n5Local.getDatasetAttributes( inputDatasetPath );
+
+			/* skip if none of the covering source blocks exist */
+			final long[] sourceRegionMax = new long[ dim ];
+			for ( int d = 0; d < dim; ++d )
+				sourceRegionMax[ d ] = regionMin[ 0 ][ d ] + regionDimensions[ 0 ][ d ] - 1;
+			if ( !DataBlockUtils.anyBlockExists( n5Local, inputDatasetPath, sourceAttributes, regionMin[ 0 ], sourceRegionMax ) )
+				return;
+
+			if ( AveragingKernels.isSupported( sourceAttributes.getDataType() ) )
+			{
+				/* work on the primitive arrays of the data blocks directly */
+				final int[][] regionSize = new int[ numScales + 1 ][ dim ];
+				for ( int scale = 0; scale <= numScales; ++scale )
+					for ( int d = 0; d < dim; ++d )
+						regionSize[ scale ][ d ] = ( int ) regionDimensions[ scale ][ d ];
+
+				Object sourceData = DataBlockUtils.readRegion( n5Local, inputDatasetPath, sourceAttributes, regionMin[ 0 ], regionSize[ 0 ] );
+				if ( DataBlockUtils.isEmpty( sourceData ) )
+					return;
+
+				for ( int scale = 1; scale <= numScales; ++scale )
+				{
+					if ( Arrays.stream( regionDimensions[ scale ] ).min().getAsLong() < 1 )
+						break;
+
+					final Object targetData = DataBlockUtils.createArray( sourceAttributes.getDataType(), ( int ) DataBlockUtils.numElements( regionSize[ scale ] ) );
+					AveragingKernels.downsample( sourceAttributes.getDataType(), sourceData, regionSize[ scale - 1 ], targetData, regionSize[ scale ], downsamplingStepFactors );
+
+					final String outputDatasetPath = outputDatasetPaths.get( scale - 1 );
+					DataBlockUtils.writeRegion( n5Local, outputDatasetPath, n5Local.getDatasetAttributes( outputDatasetPath ), targetData, regionMin[ scale ], regionSize[ scale ], true );
+
+					sourceData = targetData;
+				}
+				return;
+			}
+
+			final RandomAccessibleInterval< T > source = N5Utils.open( n5Local, inputDatasetPath );
+			RandomAccessibleInterval< T > sourceRegion = Views.offsetInterval( source, regionMin[ 0 ], regionDimensions[ 0 ] );
+
+			final T defaultValue = Util.getTypeFromInterval( sourceRegion ).createVariable();
+
+			for ( int scale = 1; scale <= numScales; ++scale )
+			{
+				if ( Arrays.stream( regionDimensions[ scale ] ).min().getAsLong() < 1 )
+					break;
+
+				final RandomAccessibleInterval< T > targetRegion = new ArrayImgFactory< T >().create( regionDimensions[ scale ], defaultValue );
+				Downsample.downsample( sourceRegion, targetRegion, downsamplingStepFactors );
+
+				final long[] gridOffset = new long[ dim ];
+				for ( int d = 0; d < dim; ++d )
+					gridOffset[ d ] = regionMin[ scale ][ d ] / blockSize[ d ];
+
+				N5Utils.saveNonEmptyBlock( targetRegion, n5Local, outputDatasetPaths.get( scale - 1 ), gridOffset, defaultValue );
+
+				sourceRegion = targetRegion;
+			}
+		} );
+	}
+
+	private static int[] getScaleFactors( final int[] downsamplingStepFactors, final int scale )
+	{
+		final int[] scaleFactors = new int[ downsamplingStepFactors.length ];
+		for ( int d = 0; d < scaleFactors.length; ++d )
+			scaleFactors[ d ] = ( int ) Math.round( Math.pow( downsamplingStepFactors[ d ], scale ) );
+		return scaleFactors;
+	}
+
+	private static long[] getDownsampledDimensions( final long[] dimensions, final int[] downsamplingStepFactors, final int scale )
+	{
+		final int[] scaleFactors = getScaleFactors( downsamplingStepFactors, scale );
+		final long[] downsampledDimensions = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			downsampledDimensions[ d ] = dimensions[ d ] / scaleFactors[ d ];
+		return downsampledDimensions;
+	}
 
 	public static void main( final String... args ) throws IOException
 	{
@@ -118,16 +435,22 @@ public class N5ScalePyramidSpark
 				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
 			) )
 		{
-			final N5WriterSupplier n5Supplier = () -> new N5FSWriter( parsedArgs.getN5Path() );
+			final N5WriterSupplier n5Supplier = N5ExecutorCache.fsWriterSupplier( parsedArgs.getN5Path() );
 
+			final String outputGroupPath;
 			if ( parsedArgs.getOutputGroupPath() != null )
+				outputGroupPath = parsedArgs.getOutputGroupPath();
+			else
+				outputGroupPath = ( Paths.get( parsedArgs.getInputDatasetPath() ).getParent() != null ? Paths.get( parsedArgs.getInputDatasetPath() ).getParent().toString() : "" );
+
+			if ( parsedArgs.getUpdateRegion() != null )
 			{
-				downsampleScalePyramid(
+				updateScalePyramid(
 						sparkContext,
 						n5Supplier,
 						parsedArgs.getInputDatasetPath(),
-						parsedArgs.getOutputGroupPath(),
-						parsedArgs.getDownsamplingFactors()
+						outputGroupPath,
+						parsedArgs.getUpdateRegion()
 					);
 			}
 			else
@@ -136,7 +459,9 @@ public class N5ScalePyramidSpark
 						sparkContext,
 						n5Supplier,
 						parsedArgs.getInputDatasetPath(),
-						parsedArgs.getDownsamplingFactors()
+						outputGroupPath,
+						parsedArgs.getDownsamplingFactors(),
+						parsedArgs.getNumFusedLevels()
 					);
 			}
 		}
@@ -158,16 +483,32 @@ public class N5ScalePyramidSpark
 				usage = "Path to a group within the N5 container to store the output datasets (e.g. data/group/scale-pyramid).")
 		private String outputGroupPath;
 
-		@Option(name = "-f", aliases = { "--factors" }, required = true,
-				usage = "Downsampling factors.")
+		@Option(name = "-f", aliases = { "--factors" }, required = false,
+				usage = "Downsampling factors (required unless an existing scale pyramid is updated).")
 		private String downsamplingFactors;
 
+		@Option(name = "-l", aliases = { "--fusedLevels" }, required = false,
+				usage = "Number of scale levels to generate in a single pass over the input dataset (by default each scale level is generated separately). "
+						+ "Each task keeps a region of (blockSize * downsamplingFactors^fusedLevels) input pixels in memory, which cannot exceed 2^31-1 pixels.")
+		private int numFusedLevels = 1;
+
+		@Option(name = "--updateMin", required = false, depends = { "--updateMax" },
+				usage = "Min of the modified region of the input dataset in pixel coordinates. If specified, the existing scale pyramid is updated in place instead of generating a new one.")
+		private String updateMin;
+
+		@Option(name = "--updateMax", required = false, depends = { "--updateMin" },
+				usage = "Max of the modified region of the input dataset in pixel coordinates (inclusive).")
+		private String updateMax;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
 			try
 			{
 				parser.parseArgument( args );
+
+				if ( downsamplingFactors == null && updateMin == null )
+					throw new CmdLineException( parser, "Downsampling factors are required to generate a new scale pyramid", null );
 			}
 			catch ( final CmdLineException e )
 			{
@@ -181,5 +522,7 @@ public class N5ScalePyramidSpark
 		public String getInputDatasetPath() { return inputDatasetPath; }
 		public String getOutputGroupPath() { return outputGroupPath; }
 		public int[] getDownsamplingFactors() { return CmdUtils.parseIntArray( downsamplingFactors ); }
+		public int getNumFusedLevels() { return numFusedLevels; }
+		public Interval getUpdateRegion() { return updateMin != null ? new FinalInterval( CmdUtils.parseLongArray( updateMin ), CmdUtils.parseLongArray( updateMax ) ) : null; }
 	}
 }
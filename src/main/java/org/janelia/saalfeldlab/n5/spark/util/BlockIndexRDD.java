@@ -0,0 +1,170 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+/**
+ * Creates RDDs of flat block indexes without materializing the indexes on the driver.
+ * Only the bounds of the index range of each partition are shipped to the executors,
+ * and the indexes are generated lazily within the partitions.
+ * The memory required on the driver therefore does not depend on the number of blocks.
+ *
+ * The blocks can be optionally ordered along the Morton curve (Z-order). Then each partition contains
+ * a compact region of the block grid, so that neighboring blocks that share source data are processed
+ * by the same partition one after another.
+ */
+public class BlockIndexRDD
+{
+	public static final int MAX_PARTITIONS = 15000;
+
+	private BlockIndexRDD() { }
+
+	/**
+	 * Creates an RDD containing block indexes from 0 to numBlocks-1
+	 * split into at most {@link #MAX_PARTITIONS} partitions.
+	 *
+	 * @param sparkContext
+	 * @param numBlocks
+	 * @return
+	 */
+	public static JavaRDD< Long > create( final JavaSparkContext sparkContext, final long numBlocks )
+	{
+		return create( sparkContext, numBlocks, MAX_PARTITIONS );
+	}
+
+	/**
+	 * Creates an RDD containing block indexes from 0 to numBlocks-1
+	 * split into at most the given number of partitions.
+	 *
+	 * @param sparkContext
+	 * @param numBlocks
+	 * @param maxPartitions
+	 * @return
+	 */
+	public static JavaRDD< Long > create( final JavaSparkContext sparkContext, final long numBlocks, final int maxPartitions )
+	{
+		final List< long[] > ranges = getRanges( numBlocks, maxPartitions );
+		return sparkContext
+				.parallelize( ranges, Math.max( ranges.size(), 1 ) )
+				.flatMap( range -> LongStream.range( range[ 0 ], range[ 1 ] ).iterator() );
+	}
+
+	/**
+	 * Creates an RDD containing flat indexes of all blocks of the given block grid
+	 * split into at most {@link #MAX_PARTITIONS} partitions.
+	 *
+	 * @param sparkContext
+	 * @param gridDimensions
+	 * @param mortonOrder
+	 * 			if true, the blocks are ordered and partitioned along the Morton curve instead of the flat order
+	 * @return
+	 */
+	public static JavaRDD< Long > create( final JavaSparkContext sparkContext, final long[] gridDimensions, final boolean mortonOrder )
+	{
+		long numBlocks = 1;
+		for ( final long gridDimension : gridDimensions )
+			numBlocks *= gridDimension;
+
+		if ( !mortonOrder )
+			return create( sparkContext, numBlocks );
+
+		final int[] bits = new int[ gridDimensions.length ];
+		int totalBits = 0;
+		for ( int d = 0; d < gridDimensions.length; ++d )
+		{
+			bits[ d ] = 64 - Long.numberOfLeadingZeros( Math.max( gridDimensions[ d ] - 1, 0 ) );
+			totalBits += bits[ d ];
+		}
+		if ( totalBits > 62 )
+			throw new IllegalArgumentException( "Block grid is too large for Morton ordering: " + Arrays.toString( gridDimensions ) );
+
+		// partition the Morton code space, the codes that fall outside of the block grid are skipped
+		final long numCodes = numBlocks == 0 ? 0 : 1L << totalBits;
+		final List< long[] > ranges = getRanges( numCodes, ( int ) Math.min( numBlocks, MAX_PARTITIONS ) );
+		return sparkContext
+				.parallelize( ranges, Math.max( ranges.size(), 1 ) )
+				.flatMap( range ->
+					{
+						final int[][] shifts = getMortonShifts( bits );
+						return LongStream.range( range[ 0 ], range[ 1 ] )
+								.map( code -> mortonCodeToIndex( code, gridDimensions, shifts ) )
+								.filter( index -> index >= 0 )
+								.iterator();
+					}
+				);
+	}
+
+	/**
+	 * Splits the range of indexes [0, numElements) into at most the given number of contiguous ranges of nearly equal size.
+	 *
+	 * @param numElements
+	 * @param maxRanges
+	 * @return list of ranges represented as [from, to)
+	 */
+	public static List< long[] > getRanges( final long numElements, final int maxRanges )
+	{
+		final int numRanges = ( int ) Math.min( numElements, maxRanges );
+		final List< long[] > ranges = new ArrayList<>( numRanges );
+		for ( int i = 0; i < numRanges; ++i )
+			ranges.add( new long[] { numElements * i / numRanges, numElements * ( i + 1 ) / numRanges } );
+		return ranges;
+	}
+
+	/**
+	 * Positions of the bits of each dimension in the Morton code.
+	 * The bits of all dimensions are interleaved starting from the least significant one,
+	 * dimensions that have run out of bits are skipped.
+	 *
+	 * @param bits
+	 * 			number of bits per dimension
+	 * @return
+	 */
+	static int[][] getMortonShifts( final int[] bits )
+	{
+		final int[][] shifts = new int[ bits.length ][];
+		int maxBits = 0;
+		for ( int d = 0; d < bits.length; ++d )
+		{
+			shifts[ d ] = new int[ bits[ d ] ];
+			maxBits = Math.max( bits[ d ], maxBits );
+		}
+
+		for ( int b = 0, shift = 0; b < maxBits; ++b )
+			for ( int d = 0; d < bits.length; ++d )
+				if ( b < bits[ d ] )
+					shifts[ d ][ b ] = shift++;
+
+		return shifts;
+	}
+
+	/**
+	 * Converts the given Morton code into the flat index of the block.
+	 *
+	 * @param code
+	 * @param gridDimensions
+	 * @param shifts
+	 * @return flat index of the block, or -1 if the code corresponds to the position outside of the grid
+	 */
+	static long mortonCodeToIndex( final long code, final long[] gridDimensions, final int[][] shifts )
+	{
+		long index = 0, stride = 1;
+		for ( int d = 0; d < gridDimensions.length; ++d )
+		{
+			long position = 0;
+			for ( int b = 0; b < shifts[ d ].length; ++b )
+				position |= ( ( code >>> shifts[ d ][ b ] ) & 1L ) << b;
+
+			if ( position >= gridDimensions[ d ] )
+				return -1;
+
+			index += position * stride;
+			stride *= gridDimensions[ d ];
+		}
+		return index;
+	}
+}
@@ -0,0 +1,255 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Iterator;
+
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+/**
+ * Tracks the completed blocks of a job in a compact bitmap, so that an interrupted job can be resumed
+ * without recomputing the blocks that have already been written.
+ *<p>
+ * The bitmap is stored as an N5 dataset next to the output dataset (with the {@link #PROGRESS_DATASET_SUFFIX} suffix).
+ * It is split into chunks of consecutive flat block indexes, and each chunk is processed by a single Spark partition,
+ * so the chunks are updated by the tasks without any synchronization.
+ * The bitmap dataset is removed once the job has finished, and the output dataset is marked as complete with the {@link #COMPLETE_ATTRIBUTE_KEY} attribute.
+ * An output dataset without the bitmap and without the marker has not been generated by a resumable job (or its progress has been lost),
+ * so it cannot be resumed.
+ */
+public class BlockProgress implements Serializable
+{
+	private static final long serialVersionUID = 6330227232553413472L;
+
+	@FunctionalInterface
+	public static interface BlockConsumer
+	{
+		public void accept( long blockIndex ) throws IOException;
+	}
+
+	public static final String PROGRESS_DATASET_SUFFIX = "-progress";
+	public static final String COMPLETE_ATTRIBUTE_KEY = "complete";
+
+	private static final String NUM_BLOCKS_ATTRIBUTE_KEY = "numBlocks";
+	private static final int MIN_BLOCKS_PER_CHUNK = 1024;
+
+	// number of blocks that are processed before the bitmap chunk is written again
+	private static final int FLUSH_INTERVAL = 64;
+
+	private final String progressDatasetPath;
+	private final long numBlocks;
+	private final int blocksPerChunk;
+
+	private BlockProgress( final String progressDatasetPath, final long numBlocks, final int blocksPerChunk )
+	{
+		this.progressDatasetPath = progressDatasetPath;
+		this.numBlocks = numBlocks;
+		this.blocksPerChunk = blocksPerChunk;
+	}
+
+	/**
+	 * Creates an empty bitmap for tracking the completion of the blocks of the given dataset.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param numBlocks
+	 * @return
+	 * @throws IOException
+	 */
+	public static BlockProgress create( final N5Writer n5, final String datasetPath, final long numBlocks ) throws IOException
+	{
+		// the number of chunks should not exceed the max number of partitions
+		final long minBlocksPerChunk = Math.max( MIN_BLOCKS_PER_CHUNK, ( numBlocks + BlockIndexRDD.MAX_PARTITIONS - 1 ) / BlockIndexRDD.MAX_PARTITIONS );
+		final int blocksPerChunk = ( int ) ( ( minBlocksPerChunk + 7 ) / 8 * 8 );
+
+		// discard the progress of the previous run
+		final String progressDatasetPath = getProgressDatasetPath( datasetPath );
+		if ( n5.exists( progressDatasetPath ) )
+			n5.remove( progressDatasetPath );
+
+		n5.createDataset(
+				progressDatasetPath,
+				new long[] { Math.max( ( numBlocks + 7 ) / 8, 1 ) },
+				new int[] { blocksPerChunk / 8 },
+				DataType.UINT8,
+				new RawCompression()
+			);
+		n5.setAttribute( progressDatasetPath, NUM_BLOCKS_ATTRIBUTE_KEY, numBlocks );
+
+		return new BlockProgress( progressDatasetPath, numBlocks, blocksPerChunk );
+	}
+
+	/**
+	 * Opens the bitmap of the completed blocks of the given dataset.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @return the bitmap, or null if the completion of the blocks of the given dataset is not tracked
+	 * @throws IOException
+	 */
+	public static BlockProgress open( final N5Reader n5, final String datasetPath ) throws IOException
+	{
+		final String progressDatasetPath = getProgressDatasetPath( datasetPath );
+		if ( !n5.datasetExists( progressDatasetPath ) )
+			return null;
+
+		final Long numBlocks = n5.getAttribute( progressDatasetPath, NUM_BLOCKS_ATTRIBUTE_KEY, Long.class );
+		if ( numBlocks == null )
+			throw new IllegalArgumentException( "Number of blocks is not specified for " + progressDatasetPath );
+
+		return new BlockProgress( progressDatasetPath, numBlocks, n5.getDatasetAttributes( progressDatasetPath ).getBlockSize()[ 0 ] * 8 );
+	}
+
+	/**
+	 * Checks whether the given dataset has been marked as complete by a resumable job.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isComplete( final N5Reader n5, final String datasetPath ) throws IOException
+	{
+		return Boolean.TRUE.equals( n5.getAttribute( datasetPath, COMPLETE_ATTRIBUTE_KEY, Boolean.class ) );
+	}
+
+	/**
+	 * Discards the completion marker of a previous job if the given dataset is generated again.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @throws IOException
+	 */
+	public static void clearComplete( final N5Writer n5, final String datasetPath ) throws IOException
+	{
+		if ( isComplete( n5, datasetPath ) )
+			n5.setAttribute( datasetPath, COMPLETE_ATTRIBUTE_KEY, false );
+	}
+
+	public static String getProgressDatasetPath( final String datasetPath )
+	{
+		return datasetPath.replaceAll( "/+$", "" ) + PROGRESS_DATASET_SUFFIX;
+	}
+
+	/**
+	 * Checks whether the given dataset is a bitmap of the completed blocks of another dataset
+	 * (as opposed to a regular dataset whose name happens to end with {@link #PROGRESS_DATASET_SUFFIX}).
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isProgressDataset( final N5Reader n5, final String datasetPath ) throws IOException
+	{
+		final String path = datasetPath.replaceAll( "/+$", "" );
+		return path.endsWith( PROGRESS_DATASET_SUFFIX )
+				&& n5.datasetExists( path )
+				&& n5.getAttribute( path, NUM_BLOCKS_ATTRIBUTE_KEY, Long.class ) != null
+				&& n5.datasetExists( path.substring( 0, path.length() - PROGRESS_DATASET_SUFFIX.length() ) );
+	}
+
+	public long getNumBlocks()
+	{
+		return numBlocks;
+	}
+
+	public long getNumChunks()
+	{
+		return ( numBlocks + blocksPerChunk - 1 ) / blocksPerChunk;
+	}
+
+	/**
+	 * Creates an RDD containing the indexes of the bitmap chunks, each chunk is assigned to a separate partition.
+	 *
+	 * @param sparkContext
+	 * @return
+	 */
+	public JavaRDD< Long > createChunkRDD( final JavaSparkContext sparkContext )
+	{
+		return BlockIndexRDD.create( sparkContext, getNumChunks() );
+	}
+
+	/**
+	 * Passes the blocks of the given chunks that have not been completed yet to the given consumer,
+	 * and records them as completed once the consumer has returned.
+	 * If a chunk cannot be read (e.g. because it was being written when the job was interrupted),
+	 * all of its blocks are processed again.
+	 *
+	 * @param n5
+	 * @param chunkIndexes
+	 * @param blockConsumer
+	 * @throws IOException
+	 */
+	public void processChunks( final N5Writer n5, final Iterator< Long > chunkIndexes, final BlockConsumer blockConsumer ) throws IOException
+	{
+		final DatasetAttributes attributes = n5.getDatasetAttributes( progressDatasetPath );
+		while ( chunkIndexes.hasNext() )
+		{
+			final long chunkIndex = chunkIndexes.next();
+			final long firstBlockIndex = chunkIndex * blocksPerChunk;
+			final long lastBlockIndex = Math.min( firstBlockIndex + blocksPerChunk, numBlocks );
+			final byte[] bitmap = readChunk( n5, attributes, chunkIndex, ( int ) ( ( lastBlockIndex - firstBlockIndex + 7 ) / 8 ) );
+
+			int numPendingBlocks = 0;
+			for ( long blockIndex = firstBlockIndex; blockIndex < lastBlockIndex; ++blockIndex )
+			{
+				final int bit = ( int ) ( blockIndex - firstBlockIndex );
+				if ( ( bitmap[ bit >>> 3 ] & ( 1 << ( bit & 7 ) ) ) != 0 )
+					continue;
+
+				blockConsumer.accept( blockIndex );
+
+				bitmap[ bit >>> 3 ] |= 1 << ( bit & 7 );
+				if ( ++numPendingBlocks == FLUSH_INTERVAL )
+				{
+					writeChunk( n5, attributes, chunkIndex, bitmap );
+					numPendingBlocks = 0;
+				}
+			}
+
+			if ( numPendingBlocks > 0 )
+				writeChunk( n5, attributes, chunkIndex, bitmap );
+		}
+	}
+
+	/**
+	 * Removes the bitmap and marks the output dataset as complete. Should be called once all blocks have been completed.
+	 *
+	 * @param n5
+	 * @throws IOException
+	 */
+	public void remove( final N5Writer n5 ) throws IOException
+	{
+		n5.remove( progressDatasetPath );
+		n5.setAttribute( progressDatasetPath.substring( 0, progressDatasetPath.length() - PROGRESS_DATASET_SUFFIX.length() ), COMPLETE_ATTRIBUTE_KEY, true );
+	}
+
+	private byte[] readChunk( final N5Reader n5, final DatasetAttributes attributes, final long chunkIndex, final int chunkLength )
+	{
+		try
+		{
+			final DataBlock< ? > chunk = n5.readBlock( progressDatasetPath, attributes, new long[] { chunkIndex } );
+			if ( chunk != null && chunk.getData() instanceof byte[] && ( ( byte[] ) chunk.getData() ).length == chunkLength )
+				return ( byte[] ) chunk.getData();
+		}
+		catch ( final IOException e )
+		{
+			System.out.println( "Cannot read progress of chunk " + chunkIndex + " of " + progressDatasetPath + ", all its blocks will be processed again: " + e.getMessage() );
+		}
+		return new byte[ chunkLength ];
+	}
+
+	private void writeChunk( final N5Writer n5, final DatasetAttributes attributes, final long chunkIndex, final byte[] bitmap ) throws IOException
+	{
+		n5.writeBlock( progressDatasetPath, attributes, new ByteArrayDataBlock( new int[] { bitmap.length }, new long[] { chunkIndex }, bitmap ) );
+	}
+}
@@ -0,0 +1,29 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+
+/**
+ * {@link N5FSReader} that caches the parsed attributes of each dataset.
+ * The cached attributes are reloaded when the attributes file of the dataset has changed on disk,
+ * so the modifications done by other processes become visible on the next lookup.
+ */
+public class CachingN5FSReader extends N5FSReader
+{
+	private final DatasetAttributesCache datasetAttributesCache;
+
+	public CachingN5FSReader( final String basePath ) throws IOException
+	{
+		super( basePath );
+		datasetAttributesCache = new DatasetAttributesCache( Paths.get( basePath ) );
+	}
+
+	@Override
+	public DatasetAttributes getDatasetAttributes( final String pathName ) throws IOException
+	{
+		return datasetAttributesCache.get( pathName, super::getDatasetAttributes );
+	}
+}
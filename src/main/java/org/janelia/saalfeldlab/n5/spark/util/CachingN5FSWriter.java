@@ -0,0 +1,45 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+
+/**
+ * {@link N5FSWriter} that caches the parsed attributes of each dataset.
+ * The cached attributes are invalidated when they are modified or removed through this writer.
+ * They are also reloaded when the attributes file of the dataset has changed on disk,
+ * so the modifications done by other processes become visible on the next lookup.
+ */
+public class CachingN5FSWriter extends N5FSWriter
+{
+	private final DatasetAttributesCache datasetAttributesCache;
+
+	public CachingN5FSWriter( final String basePath ) throws IOException
+	{
+		super( basePath );
+		datasetAttributesCache = new DatasetAttributesCache( Paths.get( basePath ) );
+	}
+
+	@Override
+	public DatasetAttributes getDatasetAttributes( final String pathName ) throws IOException
+	{
+		return datasetAttributesCache.get( pathName, super::getDatasetAttributes );
+	}
+
+	@Override
+	public void setAttributes( final String pathName, final Map< String, ? > attributes ) throws IOException
+	{
+		datasetAttributesCache.invalidate( pathName );
+		super.setAttributes( pathName, attributes );
+	}
+
+	@Override
+	public boolean remove( final String pathName ) throws IOException
+	{
+		datasetAttributesCache.invalidate( pathName );
+		return super.remove( pathName );
+	}
+}
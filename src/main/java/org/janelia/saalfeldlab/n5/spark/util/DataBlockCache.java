@@ -0,0 +1,112 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils.DataBlockReader;
+
+/**
+ * Bounded least-recently-used cache of decoded {@link DataBlock}s of a single dataset.
+ * Intended to be shared by the tasks of a single Spark partition, so that source blocks used by several
+ * neighboring tasks (e.g. when the blocks are processed in Morton order) are read and decoded only once.
+ * Not thread-safe.
+ */
+public class DataBlockCache implements DataBlockReader
+{
+	private static final class GridPositionKey
+	{
+		private final long[] gridPosition;
+		private final int hashCode;
+
+		public GridPositionKey( final long[] gridPosition )
+		{
+			this.gridPosition = gridPosition;
+			this.hashCode = Arrays.hashCode( gridPosition );
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			return obj instanceof GridPositionKey && Arrays.equals( gridPosition, ( ( GridPositionKey ) obj ).gridPosition );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+	}
+
+	/**
+	 * Default memory budget for the decoded blocks that are kept in the cache of a single partition.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+	private final N5Reader n5;
+	private final String datasetPath;
+	private final DatasetAttributes attributes;
+	private final Map< GridPositionKey, DataBlock< ? > > cache;
+
+	/**
+	 * @param n5
+	 * @param datasetPath
+	 * @param attributes
+	 * @param maxNumBlocks
+	 * 			max number of blocks to be kept in the cache (0 disables caching)
+	 */
+	public DataBlockCache(
+			final N5Reader n5,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final int maxNumBlocks )
+	{
+		this.n5 = n5;
+		this.datasetPath = datasetPath;
+		this.attributes = attributes;
+		this.cache = new LinkedHashMap< GridPositionKey, DataBlock< ? > >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = -3493727498219581409L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< GridPositionKey, DataBlock< ? > > eldest )
+			{
+				return size() > maxNumBlocks;
+			}
+		};
+	}
+
+	/**
+	 * Limits the number of blocks to be kept in the cache, so that the decoded blocks fit into the given memory budget.
+	 *
+	 * @param numBlocks
+	 * 			number of blocks that are required for reusing all blocks
+	 * @param blockSize
+	 * @param dataType
+	 * @param maxBytes
+	 * @return max number of blocks to be kept in the cache
+	 */
+	public static int getMaxNumBlocks( final long numBlocks, final int[] blockSize, final DataType dataType, final long maxBytes )
+	{
+		final long blockBytes = Math.max( DataBlockUtils.numElements( blockSize ) * DataBlockUtils.getNumBytes( dataType ), 1 );
+		return ( int ) Math.min( numBlocks, maxBytes / blockBytes );
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final long[] gridPosition ) throws IOException
+	{
+		final GridPositionKey key = new GridPositionKey( gridPosition.clone() );
+		if ( cache.containsKey( key ) )
+			return cache.get( key );
+
+		// missing blocks are cached as well
+		final DataBlock< ? > block = n5.readBlock( datasetPath, attributes, gridPosition );
+		cache.put( key, block );
+		return block;
+	}
+}
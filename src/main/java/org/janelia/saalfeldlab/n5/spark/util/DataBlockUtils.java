@@ -0,0 +1,604 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+/**
+ * Helper methods for working with the primitive arrays of N5 {@link DataBlock}s directly,
+ * without wrapping them into imglib2 images.
+ * Regions are represented as flat primitive arrays where the first dimension is the fastest varying one.
+ */
+public class DataBlockUtils
+{
+	/**
+	 * Provides the blocks of a single dataset, returns null for the blocks that do not exist.
+	 */
+	@FunctionalInterface
+	public static interface DataBlockReader
+	{
+		public DataBlock< ? > readBlock( long[] gridPosition ) throws IOException;
+	}
+
+	private DataBlockUtils() { }
+
+	/**
+	 * Creates a primitive array that can hold the given number of elements of the given N5 data type.
+	 *
+	 * @param dataType
+	 * @param numElements
+	 * @return
+	 */
+	public static Object createArray( final DataType dataType, final int numElements )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+			return new byte[ numElements ];
+		case INT16:
+		case UINT16:
+			return new short[ numElements ];
+		case INT32:
+		case UINT32:
+			return new int[ numElements ];
+		case INT64:
+		case UINT64:
+			return new long[ numElements ];
+		case FLOAT32:
+			return new float[ numElements ];
+		case FLOAT64:
+			return new double[ numElements ];
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	/**
+	 * Wraps the given primitive array into a {@link DataBlock} of the given N5 data type.
+	 *
+	 * @param dataType
+	 * @param blockSize
+	 * @param gridPosition
+	 * @param data
+	 * @return
+	 */
+	public static DataBlock< ? > createDataBlock( final DataType dataType, final int[] blockSize, final long[] gridPosition, final Object data )
+	{
+		switch ( dataType )
+		{
+		case INT8:
+		case UINT8:
+			return new ByteArrayDataBlock( blockSize, gridPosition, ( byte[] ) data );
+		case INT16:
+		case UINT16:
+			return new ShortArrayDataBlock( blockSize, gridPosition, ( short[] ) data );
+		case INT32:
+		case UINT32:
+			return new IntArrayDataBlock( blockSize, gridPosition, ( int[] ) data );
+		case INT64:
+		case UINT64:
+			return new LongArrayDataBlock( blockSize, gridPosition, ( long[] ) data );
+		case FLOAT32:
+			return new FloatArrayDataBlock( blockSize, gridPosition, ( float[] ) data );
+		case FLOAT64:
+			return new DoubleArrayDataBlock( blockSize, gridPosition, ( double[] ) data );
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
+
+	/**
+	 * Reads the given region of an N5 dataset into a flat primitive array.
+	 * The elements that belong to blocks that do not exist are left zero.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param attributes
+	 * @param min
+	 * 			min of the region in pixel coordinates
+	 * @param dimensions
+	 * 			dimensions of the region
+	 * @return
+	 * @throws IOException
+	 */
+	public static Object readRegion(
+			final N5Reader n5,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] min,
+			final int[] dimensions ) throws IOException
+	{
+		return readRegion( gridPosition -> n5.readBlock( datasetPath, attributes, gridPosition ), attributes, min, dimensions );
+	}
+
+	/**
+	 * Reads the given region of an N5 dataset into a flat primitive array obtaining the blocks from the given {@link DataBlockReader}.
+	 * The elements that belong to blocks that do not exist are left zero.
+	 *
+	 * @param blockReader
+	 * @param attributes
+	 * @param min
+	 * 			min of the region in pixel coordinates
+	 * @param dimensions
+	 * 			dimensions of the region
+	 * @return
+	 * @throws IOException
+	 */
+	public static Object readRegion(
+			final DataBlockReader blockReader,
+			final DatasetAttributes attributes,
+			final long[] min,
+			final int[] dimensions ) throws IOException
+	{
+		final int n = dimensions.length;
+		final int[] blockSize = attributes.getBlockSize();
+		final Object region = createArray( attributes.getDataType(), ( int ) numElements( dimensions ) );
+		if ( numElements( dimensions ) == 0 )
+			return region;
+
+		final long[] gridMin = new long[ n ], gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			gridMin[ d ] = min[ d ] / blockSize[ d ];
+			gridMax[ d ] = ( min[ d ] + dimensions[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		final long[] gridPosition = gridMin.clone();
+		final int[] blockOffset = new int[ n ], regionOffset = new int[ n ], size = new int[ n ];
+		while ( true )
+		{
+			final DataBlock< ? > block = blockReader.readBlock( gridPosition );
+			if ( block != null )
+			{
+				final int[] blockDimensions = block.getSize();
+				for ( int d = 0; d < n; ++d )
+				{
+					final long blockMin = gridPosition[ d ] * blockSize[ d ];
+					final long intersectionMin = Math.max( blockMin, min[ d ] );
+					final long intersectionMax = Math.min( blockMin + blockDimensions[ d ], min[ d ] + dimensions[ d ] ) - 1;
+					blockOffset[ d ] = ( int ) ( intersectionMin - blockMin );
+					regionOffset[ d ] = ( int ) ( intersectionMin - min[ d ] );
+					size[ d ] = ( int ) ( intersectionMax - intersectionMin + 1 );
+				}
+				copyRegion( block.getData(), blockDimensions, blockOffset, region, dimensions, regionOffset, size );
+			}
+
+			if ( !nextGridPosition( gridPosition, gridMin, gridMax ) )
+				break;
+		}
+
+		return region;
+	}
+
+	/**
+	 * Checks if the block at the given grid position exists.
+	 * For filesystem-based containers this does not read the block, otherwise the block is read and discarded.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param attributes
+	 * @param gridPosition
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean blockExists(
+			final N5Reader n5,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] gridPosition ) throws IOException
+	{
+		if ( n5 instanceof N5FSReader )
+		{
+			final StringBuilder blockPath = new StringBuilder( datasetPath );
+			for ( final long p : gridPosition )
+				blockPath.append( '/' ).append( p );
+			return n5.exists( blockPath.toString() );
+		}
+		return n5.readBlock( datasetPath, attributes, gridPosition ) != null;
+	}
+
+	/**
+	 * Checks if at least one of the blocks covering the given region exists.
+	 * Can be used to skip empty regions of sparse datasets without reading any data.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param attributes
+	 * @param min
+	 * 			min of the region in pixel coordinates
+	 * @param max
+	 * 			max of the region in pixel coordinates
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean anyBlockExists(
+			final N5Reader n5,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final long[] min,
+			final long[] max ) throws IOException
+	{
+		final int n = min.length;
+		final int[] blockSize = attributes.getBlockSize();
+		final long[] gridMin = new long[ n ], gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( max[ d ] < min[ d ] )
+				return false;
+			gridMin[ d ] = min[ d ] / blockSize[ d ];
+			gridMax[ d ] = max[ d ] / blockSize[ d ];
+		}
+
+		final long[] gridPosition = gridMin.clone();
+		do
+		{
+			if ( blockExists( n5, datasetPath, attributes, gridPosition ) )
+				return true;
+		}
+		while ( nextGridPosition( gridPosition, gridMin, gridMax ) );
+
+		return false;
+	}
+
+	/**
+	 * Writes the given region into an N5 dataset splitting it into blocks.
+	 * The min of the region is expected to be aligned with the block grid of the dataset.
+	 *
+	 * @param n5
+	 * @param datasetPath
+	 * @param attributes
+	 * @param region
+	 * 			flat primitive array
+	 * @param min
+	 * 			min of the region in pixel coordinates
+	 * @param dimensions
+	 * 			dimensions of the region
+	 * @param skipEmpty
+	 * 			if true, the blocks that contain only zeros are not written
+	 * @throws IOException
+	 */
+	public static void writeRegion(
+			final N5Writer n5,
+			final String datasetPath,
+			final DatasetAttributes attributes,
+			final Object region,
+			final long[] min,
+			final int[] dimensions,
+			final boolean skipEmpty ) throws IOException
+	{
+		final int n = dimensions.length;
+		final int[] blockSize = attributes.getBlockSize();
+		final long[] datasetDimensions = attributes.getDimensions();
+		if ( numElements( dimensions ) == 0 )
+			return;
+
+		final long[] gridMin = new long[ n ], gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( min[ d ] % blockSize[ d ] != 0 )
+				throw new IllegalArgumentException( "Region is not aligned with the block grid: " + min[ d ] + " in dimension " + d );
+			gridMin[ d ] = min[ d ] / blockSize[ d ];
+			gridMax[ d ] = ( min[ d ] + dimensions[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		final long[] gridPosition = gridMin.clone();
+		final int[] blockOffset = new int[ n ], regionOffset = new int[ n ];
+		while ( true )
+		{
+			final int[] blockDimensions = new int[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				final long blockMin = gridPosition[ d ] * blockSize[ d ];
+				blockDimensions[ d ] = ( int ) Math.min( Math.min( blockSize[ d ], datasetDimensions[ d ] - blockMin ), min[ d ] + dimensions[ d ] - blockMin );
+				regionOffset[ d ] = ( int ) ( blockMin - min[ d ] );
+			}
+
+			final Object blockData = createArray( attributes.getDataType(), ( int ) numElements( blockDimensions ) );
+			copyRegion( region, dimensions, regionOffset, blockData, blockDimensions, blockOffset, blockDimensions );
+			if ( !skipEmpty || !isEmpty( blockData ) )
+				n5.writeBlock( datasetPath, attributes, createDataBlock( attributes.getDataType(), blockDimensions, gridPosition.clone(), blockData ) );
+
+			if ( !nextGridPosition( gridPosition, gridMin, gridMax ) )
+				break;
+		}
+	}
+
+	/**
+	 * Copies a box from one flat primitive array into another one.
+	 *
+	 * @param src
+	 * @param srcDimensions
+	 * @param srcMin
+	 * @param dst
+	 * @param dstDimensions
+	 * @param dstMin
+	 * @param size
+	 */
+	public static void copyRegion(
+			final Object src,
+			final int[] srcDimensions,
+			final int[] srcMin,
+			final Object dst,
+			final int[] dstDimensions,
+			final int[] dstMin,
+			final int[] size )
+	{
+		final int n = size.length;
+		for ( int d = 0; d < n; ++d )
+			if ( size[ d ] <= 0 )
+				return;
+
+		final int[] position = new int[ n ];
+		while ( true )
+		{
+			int srcIndex = 0, dstIndex = 0;
+			for ( int d = n - 1; d >= 0; --d )
+			{
+				srcIndex = srcIndex * srcDimensions[ d ] + srcMin[ d ] + position[ d ];
+				dstIndex = dstIndex * dstDimensions[ d ] + dstMin[ d ] + position[ d ];
+			}
+			System.arraycopy( src, srcIndex, dst, dstIndex, size[ 0 ] );
+
+			int d = 1;
+			for ( ; d < n; ++d )
+			{
+				if ( ++position[ d ] < size[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+			if ( d == n )
+				break;
+		}
+	}
+
+	/**
+	 * Checks if the given flat primitive array contains only zeros.
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean isEmpty( final Object data )
+	{
+		if ( data instanceof byte[] )
+		{
+			for ( final byte value : ( byte[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof short[] )
+		{
+			for ( final short value : ( short[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof int[] )
+		{
+			for ( final int value : ( int[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof long[] )
+		{
+			for ( final long value : ( long[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof float[] )
+		{
+			for ( final float value : ( float[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else if ( data instanceof double[] )
+		{
+			for ( final double value : ( double[] ) data )
+				if ( value != 0 )
+					return false;
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Not a primitive array: " + data.getClass().getName() );
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if all elements of the given flat primitive array are equal (bitwise for floating point types).
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean isUniform( final Object data )
+	{
+		if ( data instanceof byte[] )
+		{
+			final byte[] array = ( byte[] ) data;
+			for ( final byte value : array )
+				if ( value != array[ 0 ] )
+					return false;
+		}
+		else if ( data instanceof short[] )
+		{
+			final short[] array = ( short[] ) data;
+			for ( final short value : array )
+				if ( value != array[ 0 ] )
+					return false;
+		}
+		else if ( data instanceof int[] )
+		{
+			final int[] array = ( int[] ) data;
+			for ( final int value : array )
+				if ( value != array[ 0 ] )
+					return false;
+		}
+		else if ( data instanceof long[] )
+		{
+			final long[] array = ( long[] ) data;
+			for ( final long value : array )
+				if ( value != array[ 0 ] )
+					return false;
+		}
+		else if ( data instanceof float[] )
+		{
+			final float[] array = ( float[] ) data;
+			for ( final float value : array )
+				if ( Float.floatToRawIntBits( value ) != Float.floatToRawIntBits( array[ 0 ] ) )
+					return false;
+		}
+		else if ( data instanceof double[] )
+		{
+			final double[] array = ( double[] ) data;
+			for ( final double value : array )
+				if ( Double.doubleToRawLongBits( value ) != Double.doubleToRawLongBits( array[ 0 ] ) )
+					return false;
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Not a primitive array: " + data.getClass().getName() );
+		}
+		return true;
+	}
+
+	/**
+	 * Sets all elements of the given flat primitive array to the element at the given index of another array of the same type.
+	 *
+	 * @param data
+	 * @param source
+	 * @param sourceIndex
+	 */
+	public static void fill( final Object data, final Object source, final int sourceIndex )
+	{
+		final int length = Array.getLength( data );
+		if ( length == 0 )
+			return;
+
+		System.arraycopy( source, sourceIndex, data, 0, 1 );
+		for ( int filled = 1; filled < length; filled *= 2 )
+			System.arraycopy( data, 0, data, filled, Math.min( filled, length - filled ) );
+	}
+
+	/**
+	 * Checks if the given region of an N5 dataset contains a single value by looking only at the blocks that cover it,
+	 * without copying them into a region array. The blocks that do not exist are treated as zeros.
+	 * A covering block that is not uniform as a whole makes the check fail even if its intersection with the region is uniform.
+	 *
+	 * @param blockReader
+	 * @param attributes
+	 * @param min
+	 * 			min of the region in pixel coordinates
+	 * @param dimensions
+	 * 			dimensions of the region
+	 * @return single-element primitive array holding the value of the region, or null if the covering blocks are not uniform
+	 * @throws IOException
+	 */
+	public static Object getUniformValue(
+			final DataBlockReader blockReader,
+			final DatasetAttributes attributes,
+			final long[] min,
+			final int[] dimensions ) throws IOException
+	{
+		final int n = dimensions.length;
+		final int[] blockSize = attributes.getBlockSize();
+		if ( numElements( dimensions ) == 0 )
+			return null;
+
+		final long[] gridMin = new long[ n ], gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			gridMin[ d ] = min[ d ] / blockSize[ d ];
+			gridMax[ d ] = ( min[ d ] + dimensions[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		// the value of the first block is kept at index 0, the value of the current block is compared at index 1
+		final Object values = createArray( attributes.getDataType(), 2 );
+		final Object zero = createArray( attributes.getDataType(), 1 );
+		final long[] gridPosition = gridMin.clone();
+		boolean first = true;
+		while ( true )
+		{
+			final DataBlock< ? > block = blockReader.readBlock( gridPosition );
+			final Object data = block != null ? block.getData() : zero;
+			if ( block != null && !isUniform( data ) )
+				return null;
+
+			System.arraycopy( data, 0, values, 1, 1 );
+			if ( first )
+				System.arraycopy( data, 0, values, 0, 1 );
+			else if ( !isUniform( values ) )
+				return null;
+			first = false;
+
+			if ( !nextGridPosition( gridPosition, gridMin, gridMax ) )
+				break;
+		}
+
+		final Object value = createArray( attributes.getDataType(), 1 );
+		System.arraycopy( values, 0, value, 0, 1 );
+		return value;
+	}
+
+	/**
+	 * Returns the number of bytes of a single element of the given N5 data type in its decoded form.
+	 *
+	 * @param dataType
+	 * @return
+	 */
+	public static int getNumBytes( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+		case UINT8:
+		case INT8:
+			return 1;
+		case UINT16:
+		case INT16:
+			return 2;
+		case UINT32:
+		case INT32:
+		case FLOAT32:
+			return 4;
+		default:
+			return 8;
+		}
+	}
+
+	public static long numElements( final int[] dimensions )
+	{
+		long numElements = 1;
+		for ( final int dimension : dimensions )
+			numElements *= dimension;
+		return numElements;
+	}
+
+	/**
+	 * Moves to the next position within the given box of the block grid iterating in flat order.
+	 *
+	 * @param gridPosition
+	 * @param gridMin
+	 * @param gridMax
+	 * @return false if the iteration is finished
+	 */
+	public static boolean nextGridPosition( final long[] gridPosition, final long[] gridMin, final long[] gridMax )
+	{
+		for ( int d = 0; d < gridPosition.length; ++d )
+		{
+			if ( ++gridPosition[ d ] <= gridMax[ d ] )
+				return true;
+			gridPosition[ d ] = gridMin[ d ];
+		}
+		return false;
+	}
+}
@@ -0,0 +1,114 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+/**
+ * Thread-safe cache of parsed {@link DatasetAttributes} keyed by dataset path.
+ * Missing datasets are not cached, so that the datasets created later become visible.
+ *
+ * Each cached entry is tagged with the identity, modification time, and size of the attributes file it was parsed from,
+ * and is reloaded when any of them has changed. This makes the changes done by other N5 instances and processes
+ * (e.g. a dataset recreated on the driver) visible to the executors at the cost of a single file stat per lookup.
+ */
+class DatasetAttributesCache
+{
+	@FunctionalInterface
+	static interface DatasetAttributesLoader
+	{
+		public DatasetAttributes load( String pathName ) throws IOException;
+	}
+
+	private static final String ATTRIBUTES_FILE = "attributes.json";
+
+	private static class Entry
+	{
+		public final DatasetAttributes attributes;
+		public final List< Object > version;
+
+		public Entry( final DatasetAttributes attributes, final List< Object > version )
+		{
+			this.attributes = attributes;
+			this.version = version;
+		}
+	}
+
+	private final Path basePath;
+	private final Map< String, Entry > cache = new ConcurrentHashMap<>();
+
+	public DatasetAttributesCache( final Path basePath )
+	{
+		this.basePath = basePath;
+	}
+
+	public DatasetAttributes get( final String pathName, final DatasetAttributesLoader loader ) throws IOException
+	{
+		final String key = normalize( pathName );
+
+		// the version is obtained before loading, so a concurrent modification results in a reload on the next lookup
+		final List< Object > version = getVersion( key );
+		if ( version == null )
+		{
+			cache.remove( key );
+			return loader.load( pathName );
+		}
+
+		final Entry cachedEntry = cache.get( key );
+		if ( cachedEntry != null && cachedEntry.version.equals( version ) )
+			return cachedEntry.attributes;
+
+		final DatasetAttributes attributes = loader.load( pathName );
+		if ( attributes != null )
+			cache.put( key, new Entry( attributes, version ) );
+		else
+			cache.remove( key );
+		return attributes;
+	}
+
+	/**
+	 * Invalidates the given path and all its descendants.
+	 *
+	 * @param pathName
+	 */
+	public void invalidate( final String pathName )
+	{
+		final String key = normalize( pathName );
+		if ( key.isEmpty() )
+			cache.clear();
+		else
+			cache.keySet().removeIf( cachedKey -> cachedKey.equals( key ) || cachedKey.startsWith( key + "/" ) );
+	}
+
+	private List< Object > getVersion( final String key ) throws IOException
+	{
+		final BasicFileAttributes fileAttributes;
+		try
+		{
+			fileAttributes = Files.readAttributes( basePath.resolve( key ).resolve( ATTRIBUTES_FILE ), BasicFileAttributes.class );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			return null;
+		}
+		return Arrays.asList( fileAttributes.fileKey(), fileAttributes.lastModifiedTime(), fileAttributes.size() );
+	}
+
+	private static String normalize( final String pathName )
+	{
+		String key = pathName.replaceAll( "/+", "/" );
+		if ( key.startsWith( "/" ) )
+			key = key.substring( 1 );
+		if ( key.endsWith( "/" ) )
+			key = key.substring( 0, key.length() - 1 );
+		return key;
+	}
+}
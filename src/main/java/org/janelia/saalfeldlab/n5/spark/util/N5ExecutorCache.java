@@ -0,0 +1,111 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.spark.N5ReaderSupplier;
+import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+
+/**
+ * JVM-wide registry of filesystem-based N5 readers and writers keyed by the container path.
+ *
+ * The suppliers created by this class are serialized into the tasks as plain container paths
+ * and resolve into the registry of the executor that runs the task, so all tasks on the same executor share
+ * a single reader/writer instance per container together with its cache of parsed dataset attributes
+ * (see {@link CachingN5FSReader} and {@link CachingN5FSWriter}).
+ *
+ * The cached attributes of a dataset are validated against its attributes file on every lookup,
+ * so the suppliers can be safely used after the dataset has been removed or recreated with different attributes
+ * elsewhere in the same Spark application (e.g. on the driver).
+ */
+public class N5ExecutorCache
+{
+	private static final Map< String, N5Reader > readers = new ConcurrentHashMap<>();
+	private static final Map< String, N5Writer > writers = new ConcurrentHashMap<>();
+
+	private N5ExecutorCache() { }
+
+	/**
+	 * Returns a supplier of the shared {@link CachingN5FSReader} for the given container.
+	 *
+	 * @param basePath
+	 * @return
+	 */
+	public static N5ReaderSupplier fsReaderSupplier( final String basePath )
+	{
+		return () -> getFSReader( basePath );
+	}
+
+	/**
+	 * Returns a supplier of the shared {@link CachingN5FSWriter} for the given container.
+	 *
+	 * @param basePath
+	 * @return
+	 */
+	public static N5WriterSupplier fsWriterSupplier( final String basePath )
+	{
+		return () -> getFSWriter( basePath );
+	}
+
+	public static N5Reader getFSReader( final String basePath ) throws IOException
+	{
+		final String key = getKey( basePath );
+		N5Reader reader = readers.get( key );
+		if ( reader == null )
+		{
+			synchronized ( readers )
+			{
+				reader = readers.get( key );
+				if ( reader == null )
+				{
+					reader = new CachingN5FSReader( basePath );
+					readers.put( key, reader );
+				}
+			}
+		}
+		return reader;
+	}
+
+	public static N5Writer getFSWriter( final String basePath ) throws IOException
+	{
+		final String key = getKey( basePath );
+		N5Writer writer = writers.get( key );
+		if ( writer == null )
+		{
+			synchronized ( writers )
+			{
+				writer = writers.get( key );
+				if ( writer == null )
+				{
+					writer = new CachingN5FSWriter( basePath );
+					writers.put( key, writer );
+				}
+			}
+		}
+		return writer;
+	}
+
+	/**
+	 * Discards all readers and writers registered in this JVM.
+	 */
+	public static void clear()
+	{
+		synchronized ( readers )
+		{
+			readers.clear();
+		}
+		synchronized ( writers )
+		{
+			writers.clear();
+		}
+	}
+
+	private static String getKey( final String basePath )
+	{
+		return Paths.get( basePath ).toAbsolutePath().normalize().toString();
+	}
+}
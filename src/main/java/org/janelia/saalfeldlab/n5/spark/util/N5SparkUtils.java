@@ -9,10 +9,12 @@ import static net.imglib2.cache.img.PrimitiveType.SHORT;
 
 import java.io.IOException;
 
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.imglib2.N5CellLoader;
 
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.cache.Cache;
 import net.imglib2.cache.CacheLoader;
 import net.imglib2.cache.LoaderCache;
@@ -20,10 +22,12 @@ import net.imglib2.cache.img.ArrayDataAccessFactory;
 import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.cache.img.LoadedCellCacheLoader;
 import net.imglib2.cache.ref.BoundedSoftRefLoaderCache;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.cell.LazyCellImg;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ByteType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.LongType;
@@ -126,4 +130,43 @@ public class N5SparkUtils
 
 		return img;
 	}
+
+	/**
+	 * Wraps a flat primitive array into an image of the corresponding type.
+	 *
+	 * @param dataType
+	 * @param data
+	 * 			flat primitive array of the given type
+	 * @param dimensions
+	 * @return
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends NativeType< T > & RealType< T > > RandomAccessibleInterval< T > wrapArray( final DataType dataType, final Object data, final long[] dimensions )
+	{
+		switch ( dataType )
+		{
+		case UINT8:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.unsignedBytes( ( byte[] ) data, dimensions );
+		case INT8:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.bytes( ( byte[] ) data, dimensions );
+		case UINT16:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.unsignedShorts( ( short[] ) data, dimensions );
+		case INT16:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.shorts( ( short[] ) data, dimensions );
+		case UINT32:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.unsignedInts( ( int[] ) data, dimensions );
+		case INT32:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.ints( ( int[] ) data, dimensions );
+		case UINT64:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.unsignedLongs( ( long[] ) data, dimensions );
+		case INT64:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.longs( ( long[] ) data, dimensions );
+		case FLOAT32:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.floats( ( float[] ) data, dimensions );
+		case FLOAT64:
+			return ( RandomAccessibleInterval< T > ) ArrayImgs.doubles( ( double[] ) data, dimensions );
+		default:
+			throw new IllegalArgumentException( "Type " + dataType.name() + " not supported!" );
+		}
+	}
 }
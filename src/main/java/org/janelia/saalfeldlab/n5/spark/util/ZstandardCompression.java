@@ -0,0 +1,71 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.Compression.CompressionType;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Zstandard compression for N5 datasets.
+ *
+ * The class is registered under the type "zstd" through the {@link CompressionType} annotation,
+ * so the datasets that use it can be read and written by any N5 reader or writer that has this class on the classpath.
+ * Lower levels favor the encoding speed, higher levels (up to 22) favor the compression ratio,
+ * the decoding speed is similar for all levels.
+ */
+@CompressionType( "zstd" )
+public class ZstandardCompression implements DefaultBlockReader, DefaultBlockWriter, Compression
+{
+	private static final long serialVersionUID = 4571652285283764591L;
+
+	public static final int DEFAULT_LEVEL = 3;
+
+	@CompressionParameter
+	private final int level;
+
+	public ZstandardCompression( final int level )
+	{
+		this.level = level;
+	}
+
+	public ZstandardCompression()
+	{
+		this( DEFAULT_LEVEL );
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
+	@Override
+	public InputStream getInputStream( final InputStream in ) throws IOException
+	{
+		return new ZstdInputStream( in );
+	}
+
+	@Override
+	public OutputStream getOutputStream( final OutputStream out ) throws IOException
+	{
+		return new ZstdOutputStream( out, level );
+	}
+
+	@Override
+	public ZstandardCompression getReader()
+	{
+		return this;
+	}
+
+	@Override
+	public ZstandardCompression getWriter()
+	{
+		return this;
+	}
+}
@@ -0,0 +1,63 @@
+package org.janelia.saalfeldlab.n5.spark;
+
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MaxIntensityProjectionKernelTest
+{
+	@Test
+	public void testProjections()
+	{
+		final int[] dims = new int[] { 5, 4, 3 };
+		final int[] data = new int[ 5 * 4 * 3 ];
+		final Random rnd = new Random( 42 );
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = rnd.nextInt( 1000 ) - 500;
+
+		final Object[] mips = MaxIntensityProjectionKernel.createProjections( DataType.INT32, dims );
+		MaxIntensityProjectionKernel.project( DataType.INT32, data, dims, mips );
+
+		final int[] expectedX = new int[ 4 * 3 ], expectedY = new int[ 5 * 3 ], expectedZ = new int[ 5 * 4 ];
+		for ( int z = 0; z < 3; ++z )
+		{
+			for ( int y = 0; y < 4; ++y )
+			{
+				for ( int x = 0; x < 5; ++x )
+				{
+					final int value = data[ x + 5 * ( y + 4 * z ) ];
+					expectedX[ y + 4 * z ] = Math.max( expectedX[ y + 4 * z ], value );
+					expectedY[ x + 5 * z ] = Math.max( expectedY[ x + 5 * z ], value );
+					expectedZ[ x + 5 * y ] = Math.max( expectedZ[ x + 5 * y ], value );
+				}
+			}
+		}
+
+		Assert.assertArrayEquals( expectedX, ( int[] ) mips[ 0 ] );
+		Assert.assertArrayEquals( expectedY, ( int[] ) mips[ 1 ] );
+		Assert.assertArrayEquals( expectedZ, ( int[] ) mips[ 2 ] );
+	}
+
+	@Test
+	public void testUnsigned()
+	{
+		final int[] dims = new int[] { 2, 2 };
+
+		final Object[] uint8Mips = MaxIntensityProjectionKernel.createProjections( DataType.UINT8, dims );
+		MaxIntensityProjectionKernel.project( DataType.UINT8, new byte[] { ( byte ) 200, 1, 2, 3 }, dims, uint8Mips );
+		Assert.assertArrayEquals( new byte[] { ( byte ) 200, 3 }, ( byte[] ) uint8Mips[ 0 ] );
+		Assert.assertArrayEquals( new byte[] { ( byte ) 200, 3 }, ( byte[] ) uint8Mips[ 1 ] );
+
+		final Object[] int8Mips = MaxIntensityProjectionKernel.createProjections( DataType.INT8, dims );
+		MaxIntensityProjectionKernel.project( DataType.INT8, new byte[] { ( byte ) 200, 1, 2, 3 }, dims, int8Mips );
+		Assert.assertArrayEquals( new byte[] { 1, 3 }, ( byte[] ) int8Mips[ 0 ] );
+		Assert.assertArrayEquals( new byte[] { 2, 3 }, ( byte[] ) int8Mips[ 1 ] );
+
+		final Object[] uint64Mips = MaxIntensityProjectionKernel.createProjections( DataType.UINT64, dims );
+		MaxIntensityProjectionKernel.project( DataType.UINT64, new long[] { -1, 1, 2, 3 }, dims, uint64Mips );
+		Assert.assertArrayEquals( new long[] { -1, 3 }, ( long[] ) uint64Mips[ 0 ] );
+		Assert.assertArrayEquals( new long[] { -1, 3 }, ( long[] ) uint64Mips[ 1 ] );
+	}
+}
@@ -0,0 +1,100 @@
+package org.janelia.saalfeldlab.n5.spark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.N5CompressionAdvisorSpark.CompressionStats;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+
+public class N5CompressionAdvisorSparkTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-compression-advisor-test";
+	static private final String datasetPath = "data";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	private JavaSparkContext sparkContext;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "N5CompressionAdvisorTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+
+		if ( Files.exists( Paths.get( basePath ) ) )
+			cleanup( n5Supplier.get() );
+	}
+
+	private void cleanup( final N5Writer n5 ) throws IOException
+	{
+		Assert.assertTrue( n5.remove() );
+	}
+
+	@Test
+	public void testBenchmark() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 64, 64, 64 };
+
+		// the first half of the volume is empty, the rest is a smooth ramp that compresses well
+		final short[] data = new short[ 64 * 64 * 64 ];
+		for ( int i = data.length / 2; i < data.length; ++i )
+			data[ i ] = ( short ) ( i / 64 );
+		N5Utils.save( ArrayImgs.unsignedShorts( data, dimensions ), n5, datasetPath, new int[] { 16, 16, 16 }, new GzipCompression() );
+
+		final Map< String, CompressionStats > stats = N5CompressionAdvisorSpark.benchmark( sparkContext, n5Supplier, datasetPath, 10 );
+		Assert.assertEquals( N5CompressionAdvisorSpark.getCandidateCompressions().keySet(), stats.keySet() );
+
+		for ( final CompressionStats compressionStats : stats.values() )
+		{
+			Assert.assertTrue( compressionStats.getEncodingThroughput() > 0 );
+			Assert.assertTrue( compressionStats.getDecodingThroughput() > 0 );
+		}
+
+		// raw blocks only add the block header
+		Assert.assertEquals( 1, stats.get( "raw" ).getRatio(), 0.01 );
+		Assert.assertTrue( stats.get( "gzip-6" ).getRatio() > 2 );
+
+		String smallest = null, fastest = null;
+		for ( final Map.Entry< String, CompressionStats > entry : stats.entrySet() )
+		{
+			if ( smallest == null || entry.getValue().getRatio() > stats.get( smallest ).getRatio() )
+				smallest = entry.getKey();
+			if ( fastest == null || entry.getValue().getDecodingThroughput() > stats.get( fastest ).getDecodingThroughput() )
+				fastest = entry.getKey();
+		}
+		Assert.assertEquals( fastest, N5CompressionAdvisorSpark.selectCompression( stats, 0 ) );
+		Assert.assertEquals( smallest, N5CompressionAdvisorSpark.selectCompression( stats, Double.POSITIVE_INFINITY ) );
+
+		final String selected = N5CompressionAdvisorSpark.selectCompression( stats, 2 );
+		Assert.assertTrue( stats.get( selected ).getRatio() >= 2 );
+
+		cleanup( n5 );
+	}
+}
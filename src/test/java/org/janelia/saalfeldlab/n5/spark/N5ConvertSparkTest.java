@@ -3,11 +3,15 @@ package org.janelia.saalfeldlab.n5.spark;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
@@ -19,6 +23,8 @@ import org.janelia.saalfeldlab.n5.RawCompression;
 import org.janelia.saalfeldlab.n5.XzCompression;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.N5ConvertSpark.ClampingConverter;
+import org.janelia.saalfeldlab.n5.spark.util.BlockProgress;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -32,9 +38,13 @@ import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
@@ -198,6 +208,305 @@ public class N5ConvertSparkTest
 			);
 	}
 
+	@Test
+	public void testRecompression() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 30, 30, 30 };
+
+		// the first layer of blocks is empty
+		final short[] inputData = new short[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 30 * 30 * 8; i < inputData.length; ++i )
+			inputData[ i ] = ( short ) ( i + 1 );
+
+		N5Utils.save( ArrayImgs.shorts( inputData, dimensions ), n5, datasetPath, new int[] { 8, 8, 8 }, new RawCompression() );
+
+		N5ConvertSpark.convert(
+				sparkContext,
+				() -> new N5FSReader( basePath ),
+				datasetPath,
+				n5Supplier,
+				convertedDatasetPath,
+				Optional.empty(),
+				Optional.of( new GzipCompression() ),
+				Optional.empty(),
+				Optional.empty()
+			);
+
+		final DatasetAttributes convertedAttributes = n5.getDatasetAttributes( convertedDatasetPath );
+		Assert.assertArrayEquals( new int[] { 8, 8, 8 }, convertedAttributes.getBlockSize() );
+		Assert.assertEquals( new GzipCompression().getType(), convertedAttributes.getCompression().getType() );
+		Assert.assertEquals( DataType.INT16, convertedAttributes.getDataType() );
+		Assert.assertNull( n5.readBlock( convertedDatasetPath, convertedAttributes, new long[] { 0, 0, 0 } ) );
+
+		Assert.assertArrayEquals(
+				inputData,
+				( short[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5Supplier.get(), convertedDatasetPath ), new ShortType() ).update( null ) ).getCurrentStorageArray()
+			);
+	}
+
+	@Test
+	public void testCopyBlockFiles() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 30, 30, 30 };
+
+		final short[] inputData = new short[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < inputData.length; ++i )
+			inputData[ i ] = ( short ) ( i + 1 );
+
+		N5Utils.save( ArrayImgs.shorts( inputData, dimensions ), n5, datasetPath, new int[] { 8, 7, 6 }, new GzipCompression() );
+		Files.delete( Paths.get( basePath, datasetPath, "1", "2", "3" ) );
+
+		N5ConvertSpark.copyBlockFiles( sparkContext, basePath, datasetPath, basePath, convertedDatasetPath, false );
+
+		final DatasetAttributes inputAttributes = n5.getDatasetAttributes( datasetPath );
+		final DatasetAttributes convertedAttributes = n5.getDatasetAttributes( convertedDatasetPath );
+		Assert.assertArrayEquals( dimensions, convertedAttributes.getDimensions() );
+		Assert.assertArrayEquals( new int[] { 8, 7, 6 }, convertedAttributes.getBlockSize() );
+		Assert.assertEquals( new GzipCompression().getType(), convertedAttributes.getCompression().getType() );
+		Assert.assertEquals( DataType.INT16, convertedAttributes.getDataType() );
+
+		final long[] gridPosition = new long[ 3 ];
+		for ( gridPosition[ 2 ] = 0; gridPosition[ 2 ] < 5; ++gridPosition[ 2 ] )
+			for ( gridPosition[ 1 ] = 0; gridPosition[ 1 ] < 5; ++gridPosition[ 1 ] )
+				for ( gridPosition[ 0 ] = 0; gridPosition[ 0 ] < 4; ++gridPosition[ 0 ] )
+				{
+					final DataBlock< ? > inputBlock = n5.readBlock( datasetPath, inputAttributes, gridPosition );
+					final DataBlock< ? > convertedBlock = n5.readBlock( convertedDatasetPath, convertedAttributes, gridPosition );
+					if ( inputBlock == null )
+					{
+						Assert.assertNull( convertedBlock );
+					}
+					else
+					{
+						Assert.assertArrayEquals( inputBlock.getSize(), convertedBlock.getSize() );
+						Assert.assertArrayEquals( ( short[] ) inputBlock.getData(), ( short[] ) convertedBlock.getData() );
+					}
+				}
+	}
+
+	@Test
+	public void testGroup() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final String[] datasets = new String[] { "s0", "s1", "nested/s0" };
+		final long[][] dimensions = new long[][] { { 30, 30, 30 }, { 15, 15, 15 }, { 7, 6, 5 } };
+
+		final short[][] inputData = new short[ datasets.length ][];
+		for ( int i = 0; i < datasets.length; ++i )
+		{
+			inputData[ i ] = new short[ ( int ) Intervals.numElements( dimensions[ i ] ) ];
+			for ( int j = 0; j < inputData[ i ].length; ++j )
+				inputData[ i ][ j ] = ( short ) ( j * ( i + 1 ) );
+			N5Utils.save( ArrayImgs.unsignedShorts( inputData[ i ], dimensions[ i ] ), n5, Paths.get( datasetPath, datasets[ i ] ).toString(), new int[] { 6, 7, 8 }, new GzipCompression() );
+		}
+
+		// the bitmap of an interrupted resumable job is not converted
+		BlockProgress.create( n5, Paths.get( datasetPath, "s1" ).toString(), 100 );
+
+		// the custom attributes are copied
+		n5.setAttribute( Paths.get( datasetPath, "s1" ).toString(), "downsamplingFactors", new long[] { 2, 2, 2 } );
+		n5.setAttribute( Paths.get( datasetPath, "nested" ).toString(), "description", "nested group" );
+
+		final List< String > convertedDatasets = N5ConvertSpark.convertGroup(
+				sparkContext,
+				() -> new N5FSReader( basePath ),
+				datasetPath,
+				n5Supplier,
+				convertedDatasetPath,
+				Optional.of( new int[] { 5, 3, 3 } ),
+				Optional.of( new RawCompression() ),
+				Optional.of( DataType.FLOAT32 ),
+				Optional.of( new ValuePair<>( new Double( 0 ), new Double( 65535 ) ) ),
+				false
+			);
+		Assert.assertEquals( Arrays.asList( "nested/s0", "s0", "s1" ), convertedDatasets );
+		Assert.assertArrayEquals( new long[] { 2, 2, 2 }, n5.getAttribute( Paths.get( convertedDatasetPath, "s1" ).toString(), "downsamplingFactors", long[].class ) );
+		Assert.assertEquals( "nested group", n5.getAttribute( Paths.get( convertedDatasetPath, "nested" ).toString(), "description", String.class ) );
+
+		for ( int i = 0; i < datasets.length; ++i )
+		{
+			final String convertedPath = Paths.get( convertedDatasetPath, datasets[ i ] ).toString();
+			final DatasetAttributes convertedAttributes = n5.getDatasetAttributes( convertedPath );
+			Assert.assertArrayEquals( dimensions[ i ], convertedAttributes.getDimensions() );
+			Assert.assertArrayEquals( new int[] { 5, 3, 3 }, convertedAttributes.getBlockSize() );
+			Assert.assertEquals( new RawCompression().getType(), convertedAttributes.getCompression().getType() );
+			Assert.assertEquals( DataType.FLOAT32, convertedAttributes.getDataType() );
+
+			final float[] expectedData = new float[ inputData[ i ].length ];
+			for ( int j = 0; j < expectedData.length; ++j )
+				expectedData[ j ] = ( inputData[ i ][ j ] & 0xffff ) / 65535.0f;
+
+			Assert.assertArrayEquals(
+					expectedData,
+					( float[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5Supplier.get(), convertedPath ), new FloatType() ).update( null ) ).getCurrentStorageArray(),
+					1e-6f
+				);
+		}
+	}
+
+	@Test
+	public void testShuffle() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 30, 30, 30 };
+
+		final int[] inputData = new int[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < inputData.length; ++i )
+			inputData[ i ] = i + 1;
+
+		N5Utils.save( ArrayImgs.ints( inputData, dimensions ), n5, datasetPath, new int[] { 6, 7, 8 }, new Lz4Compression() );
+
+		N5ConvertSpark.convert(
+				sparkContext,
+				() -> new N5FSReader( basePath ),
+				datasetPath,
+				n5Supplier,
+				convertedDatasetPath,
+				Optional.of( new int[] { 16, 30, 1 } ),
+				Optional.empty(),
+				Optional.empty(),
+				Optional.empty(),
+				false,
+				false,
+				false,
+				true,
+				4096
+			);
+
+		final DatasetAttributes convertedAttributes = n5.getDatasetAttributes( convertedDatasetPath );
+		Assert.assertArrayEquals( dimensions, convertedAttributes.getDimensions() );
+		Assert.assertArrayEquals( new int[] { 16, 30, 1 }, convertedAttributes.getBlockSize() );
+		Assert.assertEquals( DataType.INT32, convertedAttributes.getDataType() );
+
+		Assert.assertArrayEquals(
+				inputData,
+				( int[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5Supplier.get(), convertedDatasetPath ), new IntType() ).update( null ) ).getCurrentStorageArray()
+			);
+
+		// type conversion after the shuffle
+		final String floatDatasetPath = convertedDatasetPath + "-float";
+		N5ConvertSpark.convert(
+				sparkContext,
+				() -> new N5FSReader( basePath ),
+				datasetPath,
+				n5Supplier,
+				floatDatasetPath,
+				Optional.of( new int[] { 16, 30, 1 } ),
+				Optional.empty(),
+				Optional.of( DataType.FLOAT32 ),
+				Optional.of( new ValuePair<>( new Double( 0 ), new Double( inputData.length ) ) ),
+				false,
+				false,
+				false,
+				true,
+				N5ConvertSpark.DEFAULT_MAX_SHUFFLE_PARTITION_BYTES
+			);
+
+		final float[] expectedData = new float[ inputData.length ];
+		for ( int i = 0; i < inputData.length; ++i )
+			expectedData[ i ] = ( float ) inputData[ i ] / inputData.length;
+
+		Assert.assertArrayEquals(
+				expectedData,
+				( float[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5Supplier.get(), floatDatasetPath ), new FloatType() ).update( null ) ).getCurrentStorageArray(),
+				1e-6f
+			);
+	}
+
+	@Test
+	public void testLookupTable()
+	{
+		testLookupTable( DataType.UINT8, DataType.FLOAT32, new UnsignedByteType(), new FloatType(), 10, 200, 0, 1 );
+		testLookupTable( DataType.INT8, DataType.UINT16, new ByteType(), new UnsignedShortType(), -128, 127, 0, 65535 );
+		testLookupTable( DataType.UINT16, DataType.UINT8, new UnsignedShortType(), new UnsignedByteType(), 1000, 40000, 0, 255 );
+		testLookupTable( DataType.INT16, DataType.INT64, new ShortType(), new LongType(), -32768, 32767, Long.MIN_VALUE, Long.MAX_VALUE );
+	}
+
+	@Test
+	public void testLookupTableAdjustedInputBlocks() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 30, 30, 30 };
+
+		final short[] inputData = new short[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < inputData.length; ++i )
+			inputData[ i ] = ( short ) ( i * 7 );
+
+		N5Utils.save( ArrayImgs.unsignedShorts( inputData, dimensions ), n5, datasetPath, new int[] { 6, 7, 8 }, new GzipCompression() );
+
+		N5ConvertSpark.convert(
+				sparkContext,
+				() -> new N5FSReader( basePath ),
+				datasetPath,
+				n5Supplier,
+				convertedDatasetPath,
+				Optional.of( new int[] { 5, 3, 3 } ),
+				Optional.empty(),
+				Optional.of( DataType.UINT8 ),
+				Optional.of( new ValuePair<>( new Double( 1000 ), new Double( 60000 ) ) )
+			);
+
+		final DatasetAttributes convertedAttributes = n5.getDatasetAttributes( convertedDatasetPath );
+		Assert.assertArrayEquals( new int[] { 5, 3, 3 }, convertedAttributes.getBlockSize() );
+		Assert.assertEquals( DataType.UINT8, convertedAttributes.getDataType() );
+
+		final ClampingConverter< UnsignedShortType, UnsignedByteType > converter = new ClampingConverter<>( 1000, 60000, 0, 255 );
+		final UnsignedShortType input = new UnsignedShortType();
+		final UnsignedByteType output = new UnsignedByteType();
+		final int[] expectedData = new int[ inputData.length ];
+		for ( int i = 0; i < inputData.length; ++i )
+		{
+			input.set( inputData[ i ] & 0xffff );
+			converter.convert( input, output );
+			expectedData[ i ] = output.get();
+		}
+
+		Assert.assertArrayEquals(
+				expectedData,
+				( int[] ) ( ( ArrayDataAccess< ? > ) getImgFromRandomAccessibleInterval( N5Utils.open( n5Supplier.get(), convertedDatasetPath ), new IntType() ).update( null ) ).getCurrentStorageArray()
+			);
+	}
+
+	private < I extends NativeType< I > & RealType< I >, O extends NativeType< O > & RealType< O > > void testLookupTable(
+			final DataType inputDataType,
+			final DataType outputDataType,
+			final I input,
+			final O output,
+			final double minInputValue, final double maxInputValue,
+			final double minOutputValue, final double maxOutputValue )
+	{
+		final ClampingConverter< I, O > converter = new ClampingConverter<>( minInputValue, maxInputValue, minOutputValue, maxOutputValue );
+		final LookupTableConverter lookupTableConverter = new LookupTableConverter( inputDataType, outputDataType, converter );
+
+		// every possible input value
+		final int numValues = inputDataType == DataType.UINT8 || inputDataType == DataType.INT8 ? 1 << 8 : 1 << 16;
+		final Object source = DataBlockUtils.createArray( inputDataType, numValues );
+		for ( int i = 0; i < numValues; ++i )
+		{
+			if ( source instanceof byte[] )
+				( ( byte[] ) source )[ i ] = ( byte ) i;
+			else
+				( ( short[] ) source )[ i ] = ( short ) i;
+		}
+
+		final Object target = DataBlockUtils.createArray( outputDataType, numValues );
+		lookupTableConverter.convert( source, target );
+
+		final ArrayImg< O, ? > convertedImg = new ArrayImgFactory< O >().create( new long[] { numValues }, output.createVariable() );
+		final Cursor< O > convertedImgCursor = convertedImg.cursor();
+		for ( int i = 0; i < numValues; ++i )
+		{
+			final long value = source instanceof byte[] ? ( ( byte[] ) source )[ i ] : ( ( short[] ) source )[ i ];
+			input.setReal( inputDataType == DataType.UINT8 ? value & 0xff : inputDataType == DataType.UINT16 ? value & 0xffff : value );
+			converter.convert( input, convertedImgCursor.next() );
+		}
+
+		final Object expected = ( ( ArrayDataAccess< ? > ) convertedImg.update( null ) ).getCurrentStorageArray();
+		Assert.assertTrue( inputDataType + " -> " + outputDataType, Objects.deepEquals( expected, target ) );
+	}
+
 	private < T extends NativeType< T > & RealType< T > > ArrayImg< T, ? > createImage( final T value, final long... dimensions )
 	{
 		final ArrayImg< T, ? > img = new ArrayImgFactory< T >().create( dimensions, value.createVariable() );
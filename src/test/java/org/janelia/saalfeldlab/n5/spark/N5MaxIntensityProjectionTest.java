@@ -0,0 +1,185 @@
+package org.janelia.saalfeldlab.n5.spark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.janelia.saalfeldlab.n5.spark.util.TiffUtils.TiffCompression;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+
+public class N5MaxIntensityProjectionTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-mip-test";
+	static private final String tiffPath = System.getProperty( "user.home" ) + "/tmp/n5-mip-test-tiff";
+	static private final String datasetPath = "data";
+	static private final String mipGroupPath = "mips";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	static private final long[] dimensions = new long[] { 20, 18, 15 };
+	static private final int[] blockSize = new int[] { 8, 8, 4 };
+
+	private JavaSparkContext sparkContext;
+	private short[] data;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "N5MaxIntensityProjectionTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+
+		data = new short[ ( int ) ( dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ) ];
+		final Random rnd = new Random( 42 );
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) rnd.nextInt( 1 << 16 );
+		N5Utils.save( ArrayImgs.unsignedShorts( data, dimensions ), n5Supplier.get(), datasetPath, blockSize, new GzipCompression() );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+
+		if ( Files.exists( Paths.get( basePath ) ) )
+			cleanup( n5Supplier.get() );
+
+		if ( Files.exists( Paths.get( tiffPath ) ) )
+			Files.walk( Paths.get( tiffPath ) ).sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+	}
+
+	private void cleanup( final N5Writer n5 ) throws IOException
+	{
+		Assert.assertTrue( n5.remove() );
+	}
+
+	@Test
+	public void testN5Output() throws IOException
+	{
+		final List< String > mipDatasetPaths = N5MaxIntensityProjection.createMaxIntensityProjection(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				null,
+				n5Supplier,
+				mipGroupPath
+			);
+		Assert.assertEquals( Arrays.asList( "mips/x/0", "mips/y/0", "mips/z/0" ), mipDatasetPaths );
+
+		for ( int d = 0; d < 3; ++d )
+			Assert.assertArrayEquals( getExpectedMip( d, 0, dimensions[ d ] ), readMip( mipDatasetPaths.get( d ) ) );
+	}
+
+	@Test
+	public void testMipStepAndTiffExport() throws IOException
+	{
+		final List< String > mipDatasetPaths = N5MaxIntensityProjection.createMaxIntensityProjection(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				new int[] { 3, 3, 2 },
+				n5Supplier,
+				mipGroupPath
+			);
+		Assert.assertEquals( Arrays.asList( "mips/x/0", "mips/y/0", "mips/z/0", "mips/z/8" ), mipDatasetPaths );
+
+		Assert.assertArrayEquals( getExpectedMip( 2, 0, 8 ), readMip( "mips/z/0" ) );
+		Assert.assertArrayEquals( getExpectedMip( 2, 8, 15 ), readMip( "mips/z/8" ) );
+
+		N5MaxIntensityProjection.saveMaxIntensityProjectionsAsTiff( sparkContext, n5Supplier, mipGroupPath, tiffPath, TiffCompression.NONE );
+		for ( final String mipTiff : new String[] { "x/0.tif", "y/0.tif", "z/0.tif", "z/8.tif" } )
+			Assert.assertTrue( Files.exists( Paths.get( tiffPath, mipTiff ) ) );
+	}
+
+	@Test
+	public void testTiffOutput() throws IOException
+	{
+		// existing data in the output folder is left untouched
+		final Path existingN5Path = Paths.get( tiffPath, "mips.n5" );
+		Files.createDirectories( existingN5Path );
+		Files.write( existingN5Path.resolve( "attributes.json" ), "{}".getBytes() );
+
+		N5MaxIntensityProjection.createMaxIntensityProjection( sparkContext, n5Supplier, datasetPath, tiffPath, TiffCompression.LZW );
+
+		for ( final String mipTiff : new String[] { "x/0.tif", "y/0.tif", "z/0.tif" } )
+			Assert.assertTrue( Files.exists( Paths.get( tiffPath, mipTiff ) ) );
+		Assert.assertTrue( Files.exists( existingN5Path.resolve( "attributes.json" ) ) );
+
+		// the intermediate N5 container is removed
+		try ( final Stream< Path > outputEntries = Files.list( Paths.get( tiffPath ) ) )
+		{
+			Assert.assertEquals(
+					new HashSet<>( Arrays.asList( "mips.n5", "x", "y", "z" ) ),
+					outputEntries.map( entry -> entry.getFileName().toString() ).collect( Collectors.toSet() ) );
+		}
+	}
+
+	private short[] readMip( final String mipDatasetPath ) throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final DatasetAttributes mipAttributes = n5.getDatasetAttributes( mipDatasetPath );
+		final int[] mipDimensions = Arrays.stream( mipAttributes.getDimensions() ).mapToInt( dim -> ( int ) dim ).toArray();
+		return ( short[] ) DataBlockUtils.readRegion( n5, mipDatasetPath, mipAttributes, new long[ mipDimensions.length ], mipDimensions );
+	}
+
+	private short[] getExpectedMip( final int mipDimension, final long from, final long to )
+	{
+		final int[] dims = Arrays.stream( dimensions ).mapToInt( dim -> ( int ) dim ).toArray();
+		final int[] mipDims = new int[ 2 ];
+		for ( int i = 0, d = 0; d < 3; ++d )
+			if ( d != mipDimension )
+				mipDims[ i++ ] = dims[ d ];
+
+		final short[] mip = new short[ mipDims[ 0 ] * mipDims[ 1 ] ];
+		final int[] pos = new int[ 3 ];
+		for ( pos[ 2 ] = 0; pos[ 2 ] < dims[ 2 ]; ++pos[ 2 ] )
+		{
+			for ( pos[ 1 ] = 0; pos[ 1 ] < dims[ 1 ]; ++pos[ 1 ] )
+			{
+				for ( pos[ 0 ] = 0; pos[ 0 ] < dims[ 0 ]; ++pos[ 0 ] )
+				{
+					if ( pos[ mipDimension ] < from || pos[ mipDimension ] >= to )
+						continue;
+
+					final short value = data[ pos[ 0 ] + dims[ 0 ] * ( pos[ 1 ] + dims[ 1 ] * pos[ 2 ] ) ];
+					final int[] mipPos = new int[ 2 ];
+					for ( int i = 0, d = 0; d < 3; ++d )
+						if ( d != mipDimension )
+							mipPos[ i++ ] = pos[ d ];
+					final int mipIndex = mipPos[ 0 ] + mipDims[ 0 ] * mipPos[ 1 ];
+					if ( ( value & 0xffff ) > ( mip[ mipIndex ] & 0xffff ) )
+						mip[ mipIndex ] = value;
+				}
+			}
+		}
+		return mip;
+	}
+}
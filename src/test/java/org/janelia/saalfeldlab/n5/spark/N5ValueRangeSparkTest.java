@@ -0,0 +1,143 @@
+package org.janelia.saalfeldlab.n5.spark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.N5ValueRangeSpark.Histogram;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.util.Pair;
+
+public class N5ValueRangeSparkTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-value-range-test";
+	static private final String datasetPath = "data";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	private JavaSparkContext sparkContext;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "N5ValueRangeTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+
+		if ( Files.exists( Paths.get( basePath ) ) )
+			cleanup( n5Supplier.get() );
+	}
+
+	private void cleanup( final N5Writer n5 ) throws IOException
+	{
+		Assert.assertTrue( n5.remove() );
+	}
+
+	@Test
+	public void testHistogram()
+	{
+		final Histogram histogram = new Histogram( 0, 99, true );
+		final Histogram other = new Histogram( 0, 99, true );
+		for ( int i = 0; i < 100; ++i )
+			( i % 2 == 0 ? histogram : other ).add( i );
+		histogram.merge( other );
+
+		Assert.assertEquals( 100, histogram.getTotalCount() );
+		Assert.assertEquals( 0, histogram.getLowerPercentile( 0 ), 0 );
+		Assert.assertEquals( 10, histogram.getLowerPercentile( 10 ), 0 );
+		Assert.assertEquals( 89, histogram.getUpperPercentile( 90 ), 0 );
+		Assert.assertEquals( 99, histogram.getUpperPercentile( 100 ), 0 );
+
+		// wide integer range is split into bins that contain several values
+		final Histogram wideHistogram = new Histogram( 0, ( 1 << 20 ) - 1, true );
+		wideHistogram.add( 5 );
+		wideHistogram.add( 1000000 );
+		Assert.assertEquals( 0, wideHistogram.getLowerPercentile( 0 ), 0 );
+		Assert.assertEquals( ( 1000000 / 16 + 1 ) * 16 - 1, wideHistogram.getUpperPercentile( 100 ), 0 );
+	}
+
+	@Test
+	public void testUnsignedShort() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 100, 50, 10 };
+		final short[] data = new short[ 100 * 50 * 10 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) ( 1000 + i );
+		shuffle( data );
+		N5Utils.save( ArrayImgs.unsignedShorts( data, dimensions ), n5, datasetPath, new int[] { 16, 16, 8 }, new GzipCompression() );
+
+		// every value occurs once, so the percentiles are exact
+		final Pair< Double, Double > valueRange = N5ValueRangeSpark.estimateValueRange( sparkContext, n5Supplier, datasetPath, 1, 99, 1 );
+		Assert.assertEquals( 1000 + 500, valueRange.getA(), 0 );
+		Assert.assertEquals( 1000 + 49499, valueRange.getB(), 0 );
+
+		// a sample of the blocks gives a similar range
+		final Pair< Double, Double > sampledValueRange = N5ValueRangeSpark.estimateValueRange( sparkContext, n5Supplier, datasetPath, 1, 99, 0.5 );
+		Assert.assertEquals( valueRange.getA(), sampledValueRange.getA(), 1000 );
+		Assert.assertEquals( valueRange.getB(), sampledValueRange.getB(), 1000 );
+
+		Assert.assertNull( N5ValueRangeSpark.getStoredValueRange( n5, datasetPath, 1, 99 ) );
+		N5ValueRangeSpark.storeValueRange( n5, datasetPath, valueRange, 1, 99 );
+		Assert.assertNull( N5ValueRangeSpark.getStoredValueRange( n5, datasetPath, 0.5, 99.5 ) );
+		final Pair< Double, Double > storedValueRange = N5ValueRangeSpark.getStoredValueRange( n5, datasetPath, 1, 99 );
+		Assert.assertEquals( valueRange.getA(), storedValueRange.getA() );
+		Assert.assertEquals( valueRange.getB(), storedValueRange.getB() );
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testFloat() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 64, 64, 10 };
+		final float[] data = new float[ 64 * 64 * 10 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = -5 + 10.0f * i / data.length;
+		N5Utils.save( ArrayImgs.floats( data, dimensions ), n5, datasetPath, new int[] { 32, 32, 4 }, new GzipCompression() );
+
+		final Pair< Double, Double > valueRange = N5ValueRangeSpark.estimateValueRange( sparkContext, n5Supplier, datasetPath, 5, 95, 1 );
+		final double binWidth = 10.0 / Histogram.NUM_BINS;
+		Assert.assertEquals( -4.5, valueRange.getA(), 2 * binWidth );
+		Assert.assertEquals( 4.5, valueRange.getB(), 2 * binWidth );
+
+		cleanup( n5 );
+	}
+
+	private static void shuffle( final short[] data )
+	{
+		final Random rnd = new Random( 42 );
+		for ( int i = data.length - 1; i > 0; --i )
+		{
+			final int j = rnd.nextInt( i + 1 );
+			final short tmp = data[ i ];
+			data[ i ] = data[ j ];
+			data[ j ] = tmp;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.export.Downsample;
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+public class AveragingKernelsTest
+{
+	private static final long[] sourceDimensions = new long[] { 13, 10, 7 };
+	private static final long[] targetDimensions = new long[] { 4, 5, 2 };
+	private static final int[] downsamplingFactors = new int[] { 3, 2, 3 };
+
+	private final Random rnd = new Random( 42 );
+
+	@Test
+	public void testUnsignedByte()
+	{
+		final byte[] data = new byte[ numElements( sourceDimensions ) ];
+		rnd.nextBytes( data );
+		test( DataType.UINT8, ArrayImgs.unsignedBytes( data, sourceDimensions ), ArrayImgs.unsignedBytes( targetDimensions ), ArrayImgs.unsignedBytes( targetDimensions ) );
+	}
+
+	@Test
+	public void testByte()
+	{
+		final byte[] data = new byte[ numElements( sourceDimensions ) ];
+		rnd.nextBytes( data );
+		test( DataType.INT8, ArrayImgs.bytes( data, sourceDimensions ), ArrayImgs.bytes( targetDimensions ), ArrayImgs.bytes( targetDimensions ) );
+	}
+
+	@Test
+	public void testUnsignedShort()
+	{
+		final short[] data = new short[ numElements( sourceDimensions ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) rnd.nextInt();
+		test( DataType.UINT16, ArrayImgs.unsignedShorts( data, sourceDimensions ), ArrayImgs.unsignedShorts( targetDimensions ), ArrayImgs.unsignedShorts( targetDimensions ) );
+	}
+
+	@Test
+	public void testShort()
+	{
+		final short[] data = new short[ numElements( sourceDimensions ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) rnd.nextInt();
+		test( DataType.INT16, ArrayImgs.shorts( data, sourceDimensions ), ArrayImgs.shorts( targetDimensions ), ArrayImgs.shorts( targetDimensions ) );
+	}
+
+	@Test
+	public void testUnsignedInt()
+	{
+		final int[] data = new int[ numElements( sourceDimensions ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = rnd.nextInt();
+		test( DataType.UINT32, ArrayImgs.unsignedInts( data, sourceDimensions ), ArrayImgs.unsignedInts( targetDimensions ), ArrayImgs.unsignedInts( targetDimensions ) );
+	}
+
+	@Test
+	public void testInt()
+	{
+		final int[] data = new int[ numElements( sourceDimensions ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = rnd.nextInt();
+		test( DataType.INT32, ArrayImgs.ints( data, sourceDimensions ), ArrayImgs.ints( targetDimensions ), ArrayImgs.ints( targetDimensions ) );
+	}
+
+	@Test
+	public void testFloat()
+	{
+		final float[] data = new float[ numElements( sourceDimensions ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( float ) rnd.nextGaussian() * 1000;
+		test( DataType.FLOAT32, ArrayImgs.floats( data, sourceDimensions ), ArrayImgs.floats( targetDimensions ), ArrayImgs.floats( targetDimensions ) );
+	}
+
+	@Test
+	public void testDouble()
+	{
+		final double[] data = new double[ numElements( sourceDimensions ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = rnd.nextGaussian() * 1000;
+		test( DataType.FLOAT64, ArrayImgs.doubles( data, sourceDimensions ), ArrayImgs.doubles( targetDimensions ), ArrayImgs.doubles( targetDimensions ) );
+	}
+
+	@Test
+	public void testClipped()
+	{
+		// the source array covers only a part of the neighborhoods at the borders
+		final int[] clippedSourceDimensions = new int[] { 11, 9, 5 };
+		final int[] sourceMin = new int[] { 2, 1, 3 };
+		final int numSourceElements = numElements( toLong( clippedSourceDimensions ) );
+
+		final double[] doubles = new double[ numSourceElements ];
+		final byte[] bytes = new byte[ numSourceElements ];
+		for ( int i = 0; i < numSourceElements; ++i )
+			doubles[ i ] = rnd.nextGaussian() * 1000;
+		rnd.nextBytes( bytes );
+
+		final double[] actualDoubles = new double[ numElements( targetDimensions ) ];
+		final byte[] actualBytes = new byte[ actualDoubles.length ];
+		AveragingKernels.downsampleClipped( DataType.FLOAT64, doubles, clippedSourceDimensions, sourceMin, actualDoubles, toInt( targetDimensions ), downsamplingFactors );
+		AveragingKernels.downsampleClipped( DataType.UINT8, bytes, clippedSourceDimensions, sourceMin, actualBytes, toInt( targetDimensions ), downsamplingFactors );
+
+		final int[] position = new int[ 3 ];
+		for ( int t = 0; t < actualDoubles.length; ++t )
+		{
+			position[ 0 ] = t % ( int ) targetDimensions[ 0 ];
+			position[ 1 ] = t / ( int ) targetDimensions[ 0 ] % ( int ) targetDimensions[ 1 ];
+			position[ 2 ] = t / ( int ) ( targetDimensions[ 0 ] * targetDimensions[ 1 ] );
+
+			// sum up the covered elements of the neighborhood in flat order
+			double doubleSum = 0;
+			long byteSum = 0, count = 0;
+			for ( int z = 0; z < clippedSourceDimensions[ 2 ]; ++z )
+				for ( int y = 0; y < clippedSourceDimensions[ 1 ]; ++y )
+					for ( int x = 0; x < clippedSourceDimensions[ 0 ]; ++x )
+					{
+						if ( ( x + sourceMin[ 0 ] ) / downsamplingFactors[ 0 ] == position[ 0 ] &&
+								( y + sourceMin[ 1 ] ) / downsamplingFactors[ 1 ] == position[ 1 ] &&
+								( z + sourceMin[ 2 ] ) / downsamplingFactors[ 2 ] == position[ 2 ] )
+						{
+							final int i = x + clippedSourceDimensions[ 0 ] * ( y + clippedSourceDimensions[ 1 ] * z );
+							doubleSum += doubles[ i ];
+							byteSum += bytes[ i ] & 0xff;
+							++count;
+						}
+					}
+
+			final double scale = count == 0 ? 0 : 1.0 / count;
+			Assert.assertEquals( doubleSum * scale, actualDoubles[ t ], 0 );
+			Assert.assertEquals( ( byte ) Util.round( byteSum * scale ), actualBytes[ t ] );
+		}
+	}
+
+	@Test
+	public void testUnsupportedTypes()
+	{
+		Assert.assertFalse( AveragingKernels.isSupported( DataType.INT64 ) );
+		Assert.assertFalse( AveragingKernels.isSupported( DataType.UINT64 ) );
+	}
+
+	private < T extends NativeType< T > & RealType< T >, A extends ArrayDataAccess< A > > void test(
+			final DataType dataType,
+			final ArrayImg< T, A > source,
+			final ArrayImg< T, A > expected,
+			final ArrayImg< T, A > actual )
+	{
+		Downsample.downsample( source, expected, downsamplingFactors );
+
+		AveragingKernels.downsample(
+				dataType,
+				source.update( null ).getCurrentStorageArray(),
+				toInt( sourceDimensions ),
+				actual.update( null ).getCurrentStorageArray(),
+				toInt( targetDimensions ),
+				downsamplingFactors );
+
+		final Cursor< T > expectedCursor = expected.cursor(), actualCursor = actual.cursor();
+		while ( expectedCursor.hasNext() )
+			Assert.assertTrue( expectedCursor.next().valueEquals( actualCursor.next() ) );
+	}
+
+	private static int numElements( final long[] dimensions )
+	{
+		int numElements = 1;
+		for ( final long dimension : dimensions )
+			numElements *= dimension;
+		return numElements;
+	}
+
+	private static long[] toLong( final int[] dimensions )
+	{
+		final long[] longDimensions = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			longDimensions[ d ] = dimensions[ d ];
+		return longDimensions;
+	}
+
+	private static int[] toInt( final long[] dimensions )
+	{
+		final int[] intDimensions = new int[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			intDimensions[ d ] = ( int ) dimensions[ d ];
+		return intDimensions;
+	}
+}
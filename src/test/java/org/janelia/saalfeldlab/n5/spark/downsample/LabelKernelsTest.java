@@ -0,0 +1,135 @@
+package org.janelia.saalfeldlab.n5.spark.downsample;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.spark.util.DataBlockUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LabelKernelsTest
+{
+	private static final int[] sourceDimensions = new int[] { 13, 10, 7 };
+
+	private final Random rnd = new Random( 42 );
+
+	@Test
+	public void testSmallNeighborhood()
+	{
+		// 2x2x2 neighborhoods are sorted
+		for ( final DataType dataType : new DataType[] { DataType.UINT8, DataType.INT8, DataType.UINT16, DataType.INT32, DataType.UINT32, DataType.INT64 } )
+			test( dataType, new int[] { 2, 2, 2 } );
+	}
+
+	@Test
+	public void testLargeNeighborhood()
+	{
+		// 3x2x3 neighborhoods are counted in the hash table
+		for ( final DataType dataType : new DataType[] { DataType.UINT8, DataType.INT8, DataType.INT16, DataType.UINT32, DataType.UINT64 } )
+			test( dataType, new int[] { 3, 2, 3 } );
+	}
+
+	@Test
+	public void testLabelCounts()
+	{
+		// starts with a tiny table that has to grow
+		final LabelCounts labelCounts = new LabelCounts( 1 );
+		for ( int k = 0; k < 3; ++k )
+		{
+			labelCounts.clear();
+			final Map< Long, Integer > reference = new HashMap<>();
+			for ( int i = 0; i < 1000; ++i )
+			{
+				final long label = rnd.nextInt( 100 ) * 0x100000000L - 50;
+				labelCounts.add( label );
+				reference.put( label, reference.getOrDefault( label, 0 ) + 1 );
+			}
+			Assert.assertEquals( reference.size(), labelCounts.size() );
+			for ( int i = 0; i < labelCounts.size(); ++i )
+				Assert.assertEquals( reference.get( labelCounts.getLabel( i ) ).intValue(), labelCounts.getCount( i ) );
+			Assert.assertEquals( mostFrequentLabel( reference ), labelCounts.getMostFrequentLabel() );
+		}
+	}
+
+	private void test( final DataType dataType, final int[] downsamplingFactors )
+	{
+		final int[] targetDimensions = new int[ sourceDimensions.length ];
+		for ( int d = 0; d < targetDimensions.length; ++d )
+			targetDimensions[ d ] = sourceDimensions[ d ] / downsamplingFactors[ d ];
+
+		// a few labels with negative values to produce ties and exercise sign handling
+		final int numSourceElements = ( int ) DataBlockUtils.numElements( sourceDimensions );
+		final Object source = DataBlockUtils.createArray( dataType, numSourceElements );
+		for ( int i = 0; i < numSourceElements; ++i )
+			set( source, i, rnd.nextInt( 5 ) - 2 );
+
+		final Object target = DataBlockUtils.createArray( dataType, ( int ) DataBlockUtils.numElements( targetDimensions ) );
+		LabelKernels.downsample( dataType, source, sourceDimensions, target, targetDimensions, downsamplingFactors );
+
+		final int[] position = new int[ 3 ];
+		for ( position[ 2 ] = 0; position[ 2 ] < targetDimensions[ 2 ]; ++position[ 2 ] )
+			for ( position[ 1 ] = 0; position[ 1 ] < targetDimensions[ 1 ]; ++position[ 1 ] )
+				for ( position[ 0 ] = 0; position[ 0 ] < targetDimensions[ 0 ]; ++position[ 0 ] )
+				{
+					final Map< Long, Integer > labelCount = new HashMap<>();
+					for ( int z = 0; z < downsamplingFactors[ 2 ]; ++z )
+						for ( int y = 0; y < downsamplingFactors[ 1 ]; ++y )
+							for ( int x = 0; x < downsamplingFactors[ 0 ]; ++x )
+							{
+								final int i =
+										position[ 0 ] * downsamplingFactors[ 0 ] + x + sourceDimensions[ 0 ] * (
+										position[ 1 ] * downsamplingFactors[ 1 ] + y + sourceDimensions[ 1 ] * (
+										position[ 2 ] * downsamplingFactors[ 2 ] + z ) );
+								final long label = get( dataType, source, i );
+								labelCount.put( label, labelCount.getOrDefault( label, 0 ) + 1 );
+							}
+
+					final int t = position[ 0 ] + targetDimensions[ 0 ] * ( position[ 1 ] + targetDimensions[ 1 ] * position[ 2 ] );
+					Assert.assertEquals( dataType.name(), mostFrequentLabel( labelCount ), get( dataType, target, t ) );
+				}
+	}
+
+	private static long mostFrequentLabel( final Map< Long, Integer > labelCount )
+	{
+		int maxCount = Integer.MIN_VALUE;
+		long labelWithMaxCount = Long.MIN_VALUE;
+		for ( final Entry< Long, Integer > entry : labelCount.entrySet() )
+		{
+			if ( maxCount < entry.getValue() || ( maxCount == entry.getValue() && labelWithMaxCount > entry.getKey() ) )
+			{
+				maxCount = entry.getValue();
+				labelWithMaxCount = entry.getKey();
+			}
+		}
+		return labelWithMaxCount;
+	}
+
+	private static void set( final Object data, final int i, final long value )
+	{
+		if ( data instanceof byte[] )
+			( ( byte[] ) data )[ i ] = ( byte ) value;
+		else if ( data instanceof short[] )
+			( ( short[] ) data )[ i ] = ( short ) value;
+		else if ( data instanceof int[] )
+			( ( int[] ) data )[ i ] = ( int ) value;
+		else
+			( ( long[] ) data )[ i ] = value;
+	}
+
+	private static long get( final DataType dataType, final Object data, final int i )
+	{
+		switch ( dataType )
+		{
+		case INT8: return ( ( byte[] ) data )[ i ];
+		case UINT8: return ( ( byte[] ) data )[ i ] & 0xff;
+		case INT16: return ( ( short[] ) data )[ i ];
+		case UINT16: return ( ( short[] ) data )[ i ] & 0xffff;
+		case INT32: return ( ( int[] ) data )[ i ];
+		case UINT32: return ( ( int[] ) data )[ i ] & 0xffffffffL;
+		default: return ( ( long[] ) data )[ i ];
+		}
+	}
+}
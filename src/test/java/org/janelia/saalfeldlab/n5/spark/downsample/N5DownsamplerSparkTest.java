@@ -8,20 +8,28 @@ import java.util.Random;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.util.BlockProgress;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import bdv.export.Downsample;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
@@ -133,6 +141,33 @@ public class N5DownsamplerSparkTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testDownsamplingMortonOrder() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		createDataset( n5, new long[] { 12, 10, 8 }, new int[] { 3, 4, 2 } );
+
+		N5DownsamplerSpark.downsample(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				downsampledDatasetPath,
+				new int[] { 2, 2, 2 },
+				new int[] { 2, 3, 3 },
+				true
+			);
+
+		final RandomAccessibleInterval< IntType > expected = new ArrayImgFactory< IntType >().create( new long[] { 6, 5, 4 }, new IntType() );
+		Downsample.downsample( N5Utils.< IntType >open( n5, datasetPath ), expected, new int[] { 2, 2, 2 } );
+
+		Assert.assertArrayEquals(
+				getArrayFromRandomAccessibleInterval( expected ),
+				getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasetPath ) )
+			);
+
+		cleanup( n5 );
+	}
+
 	@Test
 	public void testDownsamplingNDRandomized() throws IOException
 	{
@@ -176,6 +211,99 @@ public class N5DownsamplerSparkTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testDownsamplingSparse() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		n5.createDataset( datasetPath, new long[] { 8, 8 }, new int[] { 2, 2 }, DataType.INT32, new GzipCompression() );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+		n5.writeBlock( datasetPath, attributes, new IntArrayDataBlock( new int[] { 2, 2 }, new long[] { 0, 0 }, new int[] { 1, 2, 3, 4 } ) );
+		n5.writeBlock( datasetPath, attributes, new IntArrayDataBlock( new int[] { 2, 2 }, new long[] { 3, 3 }, new int[] { 5, 6, 7, 8 } ) );
+
+		N5DownsamplerSpark.downsample(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				downsampledDatasetPath,
+				new int[] { 2, 2 }
+			);
+
+		final DatasetAttributes downsampledAttributes = n5.getDatasetAttributes( downsampledDatasetPath );
+		Assert.assertArrayEquals( new long[] { 4, 4 }, downsampledAttributes.getDimensions() );
+
+		Assert.assertArrayEquals( new int[] { ( int ) Util.round( ( 1 + 2 + 3 + 4 ) / 4. ), 0, 0, 0 }, ( int[] ) n5.readBlock( downsampledDatasetPath, downsampledAttributes, new long[] { 0, 0 } ).getData() );
+		Assert.assertArrayEquals( new int[] { 0, 0, 0, ( int ) Util.round( ( 5 + 6 + 7 + 8 ) / 4. ) }, ( int[] ) n5.readBlock( downsampledDatasetPath, downsampledAttributes, new long[] { 1, 1 } ).getData() );
+		Assert.assertNull( n5.readBlock( downsampledDatasetPath, downsampledAttributes, new long[] { 1, 0 } ) );
+		Assert.assertNull( n5.readBlock( downsampledDatasetPath, downsampledAttributes, new long[] { 0, 1 } ) );
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testDownsamplingResume() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		createDataset( n5, new long[] { 12, 10, 8 }, new int[] { 3, 4, 2 } );
+
+		// simulate an interrupted job: the first three blocks have been recorded as completed (but are not written for testing purposes),
+		// and another block has been written partially
+		final BlockProgress progress = BlockProgress.create( n5, downsampledDatasetPath, 8 );
+		Assert.assertEquals( 1, progress.getNumChunks() );
+		final String progressDatasetPath = BlockProgress.getProgressDatasetPath( downsampledDatasetPath );
+		n5.writeBlock( progressDatasetPath, n5.getDatasetAttributes( progressDatasetPath ), new ByteArrayDataBlock( new int[] { 1 }, new long[] { 0 }, new byte[] { 0b111 } ) );
+
+		n5.createDataset( downsampledDatasetPath, new long[] { 6, 5, 4 }, new int[] { 3, 4, 2 }, DataType.INT32, new GzipCompression() );
+		final DatasetAttributes downsampledAttributes = n5.getDatasetAttributes( downsampledDatasetPath );
+		n5.writeBlock( downsampledDatasetPath, downsampledAttributes, new IntArrayDataBlock( new int[] { 3, 1, 2 }, new long[] { 1, 0, 1 }, new int[ 6 ] ) );
+
+		N5DownsamplerSpark.downsample(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				downsampledDatasetPath,
+				new int[] { 2, 2, 2 },
+				null,
+				false,
+				true
+			);
+		Assert.assertFalse( n5.exists( progressDatasetPath ) );
+		Assert.assertTrue( BlockProgress.isComplete( n5, downsampledDatasetPath ) );
+
+		final RandomAccessibleInterval< IntType > expected = new ArrayImgFactory< IntType >().create( new long[] { 6, 5, 4 }, new IntType() );
+		Downsample.downsample( N5Utils.< IntType >open( n5, datasetPath ), expected, new int[] { 2, 2, 2 } );
+
+		final CellGrid cellGrid = new CellGrid( new long[] { 6, 5, 4 }, new int[] { 3, 4, 2 } );
+		for ( int blockIndex = 0; blockIndex < 8; ++blockIndex )
+		{
+			final long[] gridPosition = new long[ 3 ], min = new long[ 3 ], max = new long[ 3 ];
+			final int[] blockDimensions = new int[ 3 ];
+			cellGrid.getCellGridPositionFlat( blockIndex, gridPosition );
+			cellGrid.getCellDimensions( gridPosition, min, blockDimensions );
+			for ( int d = 0; d < 3; ++d )
+				max[ d ] = min[ d ] + blockDimensions[ d ] - 1;
+
+			final DataBlock< ? > block = n5.readBlock( downsampledDatasetPath, downsampledAttributes, gridPosition );
+			if ( blockIndex < 3 )
+				Assert.assertNull( block );
+			else
+				Assert.assertArrayEquals( getArrayFromRandomAccessibleInterval( Views.interval( expected, min, max ) ), ( int[] ) block.getData() );
+		}
+
+		// the output dataset is complete now, the job should not fail
+		N5DownsamplerSpark.downsample(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				downsampledDatasetPath,
+				new int[] { 2, 2, 2 },
+				null,
+				false,
+				true
+			);
+
+		cleanup( n5 );
+	}
+
 
 	private void createDataset( final N5Writer n5, final long[] dimensions, final int[] blockSize ) throws IOException
 	{
@@ -103,6 +103,49 @@ public class N5LabelDownsamplerSparkTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testUniformBlocks() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+
+		// the first output block is computed from uniform source blocks, the third one from empty source blocks
+		N5Utils.save(
+				ArrayImgs.unsignedLongs(
+						new long[] {
+								7, 7, 7, 7, 1, 1, 2, 2, 0, 0, 0, 0,
+								7, 7, 7, 7, 1, 3, 2, 2, 0, 0, 0, 0,
+								7, 7, 7, 7, 0, 0, 0, 0, 0, 0, 0, 0,
+								7, 7, 7, 7, 0, 0, 0, 5, 0, 0, 0, 0
+							},
+						new long[] { 12, 4 }
+					),
+				n5,
+				datasetPath,
+				new int[] { 2, 2 },
+				new GzipCompression()
+			);
+
+		N5LabelDownsamplerSpark.downsampleLabel(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				downsampledDatasetPath,
+				new int[] { 2, 2 },
+				new int[] { 2, 2 }
+			);
+		final DatasetAttributes downsampledAttributes = n5.getDatasetAttributes( downsampledDatasetPath );
+		Assert.assertArrayEquals( new long[] { 6, 2 }, downsampledAttributes.getDimensions() );
+		Assert.assertArrayEquals(
+				new long[] {
+						7, 7, 1, 2, 0, 0,
+						7, 7, 0, 0, 0, 0
+					},
+				getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasetPath ) ) );
+		Assert.assertNull( n5.readBlock( downsampledDatasetPath, downsampledAttributes, new long[] { 2, 0 } ) );
+
+		cleanup( n5 );
+	}
+
 	private long[] getArrayFromRandomAccessibleInterval( final RandomAccessibleInterval< UnsignedLongType > rai )
 	{
 		final long[] arr = new long[ ( int ) Intervals.numElements( rai ) ];
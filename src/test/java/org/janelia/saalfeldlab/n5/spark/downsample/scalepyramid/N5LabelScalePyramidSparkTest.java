@@ -0,0 +1,359 @@
+package org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.downsample.LabelMultisets;
+import org.janelia.saalfeldlab.n5.spark.downsample.scalepyramid.N5NonIsotropicScalePyramidSpark3D.NonIsotropicScalePyramidMetadata;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class N5LabelScalePyramidSparkTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-label-scale-pyramid-test";
+	static private final String datasetPath = "data";
+
+	static private final N5WriterSupplier n5Supplier = () -> new N5FSWriter( basePath );
+
+	private JavaSparkContext sparkContext;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+
+		sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "N5LabelScalePyramidTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( sparkContext != null )
+			sparkContext.close();
+
+		if ( Files.exists( Paths.get( basePath ) ) )
+			cleanup( n5Supplier.get() );
+	}
+
+	private void cleanup( final N5Writer n5 ) throws IOException
+	{
+		Assert.assertTrue( n5.remove() );
+	}
+
+	private long[] createDataset( final N5Writer n5, final long[] dimensions, final int[] blockSize ) throws IOException
+	{
+		// a few labels to produce ties, and a uniform region in the first half of the first dimension
+		final Random rnd = new Random( 42 );
+		final long[] data = new long[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = i % dimensions[ 0 ] < dimensions[ 0 ] / 2 ? 7 : rnd.nextInt( 4 );
+		N5Utils.save( ArrayImgs.unsignedLongs( data, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+		return data;
+	}
+
+	@Test
+	public void testLabelScalePyramid() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 32, 24, 16 };
+		final long[] data = createDataset( n5, dimensions, new int[] { 4, 4, 4 } );
+
+		final List< String > scalePyramid = N5LabelScalePyramidSpark.downsampleLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				new int[] { 2, 2, 2 }
+			);
+		Assert.assertEquals( 4, scalePyramid.size() );
+
+		// every scale level is generated from the previous one
+		long[] expected = data, expectedDimensions = dimensions;
+		for ( int scale = 1; scale <= scalePyramid.size(); ++scale )
+		{
+			final String downsampledDatasetPath = scalePyramid.get( scale - 1 );
+			final DatasetAttributes downsampledAttributes = n5.getDatasetAttributes( downsampledDatasetPath );
+			final long[] downsampledDimensions = getDownsampledDimensions( expectedDimensions, new int[] { 2, 2, 2 } );
+			expected = downsampleReference( expected, expectedDimensions, new int[] { 2, 2, 2 }, downsampledDimensions );
+			expectedDimensions = downsampledDimensions;
+
+			Assert.assertEquals( "s" + scale, Paths.get( downsampledDatasetPath ).getFileName().toString() );
+			Assert.assertArrayEquals( expectedDimensions, downsampledAttributes.getDimensions() );
+			Assert.assertArrayEquals( new int[] { 4, 4, 4 }, downsampledAttributes.getBlockSize() );
+			Assert.assertArrayEquals( new int[] { 1 << scale, 1 << scale, 1 << scale }, n5.getAttribute( downsampledDatasetPath, "downsamplingFactors", int[].class ) );
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasetPath ) ) );
+		}
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testFusedLabelScalePyramid() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 32, 24, 16 };
+		final long[] data = createDataset( n5, dimensions, new int[] { 4, 4, 4 } );
+
+		final List< String > scalePyramid = N5LabelScalePyramidSpark.downsampleLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"",
+				new int[] { 2, 2, 2 },
+				3
+			);
+		Assert.assertEquals( 4, scalePyramid.size() );
+
+		// the first three scale levels are voted from the full resolution data, the last one is generated from s3
+		for ( int scale = 1; scale <= 3; ++scale )
+		{
+			final int[] factors = new int[] { 1 << scale, 1 << scale, 1 << scale };
+			final long[] expected = downsampleReference( data, dimensions, factors, getDownsampledDimensions( dimensions, factors ) );
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, scalePyramid.get( scale - 1 ) ) ) );
+		}
+		final long[] s3Dimensions = getDownsampledDimensions( dimensions, new int[] { 8, 8, 8 } );
+		final long[] s3 = downsampleReference( data, dimensions, new int[] { 8, 8, 8 }, s3Dimensions );
+		final long[] expected = downsampleReference( s3, s3Dimensions, new int[] { 2, 2, 2 }, getDownsampledDimensions( s3Dimensions, new int[] { 2, 2, 2 } ) );
+		Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, scalePyramid.get( 3 ) ) ) );
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testNonIsotropicLabelScalePyramid() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 64, 64, 32 };
+		final int[] blockSize = new int[] { 8, 8, 8 };
+		final double[] pixelResolution = new double[] { 0.1, 0.1, 0.2 };
+		final long[] data = createDataset( n5, dimensions, blockSize );
+
+		final List< String > scalePyramid = N5LabelScalePyramidSpark.downsampleNonIsotropicLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"",
+				pixelResolution,
+				false,
+				Integer.MAX_VALUE
+			);
+
+		// power-of-two scale pyramid, all scale levels are voted from the full resolution data
+		final NonIsotropicScalePyramidMetadata scalePyramidMetadata = new NonIsotropicScalePyramidMetadata( dimensions, blockSize, pixelResolution, false );
+		Assert.assertEquals( scalePyramidMetadata.getNumScales() - 1, scalePyramid.size() );
+		for ( int scale = 1; scale < scalePyramidMetadata.getNumScales(); ++scale )
+		{
+			final String downsampledDatasetPath = scalePyramid.get( scale - 1 );
+			final DatasetAttributes downsampledAttributes = n5.getDatasetAttributes( downsampledDatasetPath );
+			final int[] factors = scalePyramidMetadata.getScaleMetadata( scale ).downsamplingFactors;
+
+			Assert.assertArrayEquals( scalePyramidMetadata.getScaleMetadata( scale ).dimensions, downsampledAttributes.getDimensions() );
+			Assert.assertArrayEquals( scalePyramidMetadata.getScaleMetadata( scale ).cellSize, downsampledAttributes.getBlockSize() );
+			Assert.assertArrayEquals( factors, n5.getAttribute( downsampledDatasetPath, "downsamplingFactors", int[].class ) );
+			Assert.assertArrayEquals( pixelResolution, n5.getAttribute( downsampledDatasetPath, "pixelResolution", double[].class ), 1e-10 );
+
+			final long[] expected = downsampleReference( data, dimensions, factors, getDownsampledDimensions( dimensions, factors ) );
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasetPath ) ) );
+		}
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testNonIsotropicLabelScalePyramidWithIntermediateDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 64, 64, 32 };
+		final int[] blockSize = new int[] { 8, 8, 8 };
+		final double[] pixelResolution = new double[] { 0.1, 0.1, 0.3 };
+		final long[] data = createDataset( n5, dimensions, blockSize );
+
+		final List< String > scalePyramid = N5LabelScalePyramidSpark.downsampleNonIsotropicLabelScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"",
+				pixelResolution,
+				false,
+				Integer.MAX_VALUE
+			);
+
+		// the scale levels that require intermediate downsampling are voted from the last scale level before them
+		final NonIsotropicScalePyramidMetadata scalePyramidMetadata = new NonIsotropicScalePyramidMetadata( dimensions, blockSize, pixelResolution, false );
+		final int baseScale = scalePyramidMetadata.getFirstIntermediateScale() - 1;
+		Assert.assertTrue( baseScale + 1 < scalePyramidMetadata.getNumScales() );
+		final int[] baseFactors = scalePyramidMetadata.getScaleMetadata( baseScale ).downsamplingFactors;
+		final long[] baseDimensions = getDownsampledDimensions( dimensions, baseFactors );
+		final long[] baseData = downsampleReference( data, dimensions, baseFactors, baseDimensions );
+
+		Assert.assertEquals( scalePyramidMetadata.getNumScales() - 1, scalePyramid.size() );
+		for ( int scale = 1; scale < scalePyramidMetadata.getNumScales(); ++scale )
+		{
+			final String downsampledDatasetPath = scalePyramid.get( scale - 1 );
+			final DatasetAttributes downsampledAttributes = n5.getDatasetAttributes( downsampledDatasetPath );
+			final int[] factors = scalePyramidMetadata.getScaleMetadata( scale ).downsamplingFactors;
+
+			Assert.assertArrayEquals( scalePyramidMetadata.getScaleMetadata( scale ).dimensions, downsampledAttributes.getDimensions() );
+			Assert.assertArrayEquals( scalePyramidMetadata.getScaleMetadata( scale ).cellSize, downsampledAttributes.getBlockSize() );
+			Assert.assertArrayEquals( factors, n5.getAttribute( downsampledDatasetPath, "downsamplingFactors", int[].class ) );
+
+			final long[] expected;
+			if ( scale <= baseScale )
+			{
+				expected = downsampleReference( data, dimensions, factors, getDownsampledDimensions( dimensions, factors ) );
+			}
+			else
+			{
+				final int[] relativeFactors = new int[ factors.length ];
+				for ( int d = 0; d < factors.length; ++d )
+					relativeFactors[ d ] = factors[ d ] / baseFactors[ d ];
+				expected = downsampleReference( baseData, baseDimensions, relativeFactors, getDownsampledDimensions( baseDimensions, relativeFactors ) );
+			}
+			Assert.assertArrayEquals( expected, getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasetPath ) ) );
+		}
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testLabelMultisetScalePyramid() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 32, 24, 16 };
+		final long[] data = createDataset( n5, dimensions, new int[] { 4, 4, 4 } );
+
+		final List< String > scalePyramid = N5LabelScalePyramidSpark.downsampleLabelMultisetScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"",
+				new int[] { 2, 2, 2 }
+			);
+		Assert.assertEquals( 4, scalePyramid.size() );
+
+		// the counts are exact at every scale level even though each one is generated from the previous one
+		for ( int scale = 1; scale <= scalePyramid.size(); ++scale )
+		{
+			final String downsampledDatasetPath = scalePyramid.get( scale - 1 );
+			final DatasetAttributes downsampledAttributes = n5.getDatasetAttributes( downsampledDatasetPath );
+			Assert.assertTrue( n5.getAttribute( downsampledDatasetPath, "n5SparkLabelMultiset", Boolean.class ) );
+
+			final int[] factors = new int[] { 1 << scale, 1 << scale, 1 << scale };
+			final long[] downsampledDimensions = getDownsampledDimensions( dimensions, factors );
+			Assert.assertArrayEquals( downsampledDimensions, downsampledAttributes.getDimensions() );
+
+			final LabelMultisets multisets = LabelMultisets.readRegion(
+					gridPosition -> n5.readBlock( downsampledDatasetPath, downsampledAttributes, gridPosition ),
+					downsampledAttributes,
+					new long[ 3 ],
+					Arrays.stream( downsampledDimensions ).mapToInt( d -> ( int ) d ).toArray(),
+					factors[ 0 ] * factors[ 1 ] * factors[ 2 ] );
+
+			for ( int z = 0, i = 0; z < downsampledDimensions[ 2 ]; ++z )
+			{
+				for ( int y = 0; y < downsampledDimensions[ 1 ]; ++y )
+				{
+					for ( int x = 0; x < downsampledDimensions[ 0 ]; ++x, ++i )
+					{
+						final TreeMap< Long, Integer > labelCount = new TreeMap<>();
+						for ( int dz = 0; dz < factors[ 2 ]; ++dz )
+							for ( int dy = 0; dy < factors[ 1 ]; ++dy )
+								for ( int dx = 0; dx < factors[ 0 ]; ++dx )
+									labelCount.merge( data[ ( int ) ( ( ( ( long ) z * factors[ 2 ] + dz ) * dimensions[ 1 ] + ( long ) y * factors[ 1 ] + dy ) * dimensions[ 0 ] + ( long ) x * factors[ 0 ] + dx ) ], 1, Integer::sum );
+
+						// sorted by label
+						Assert.assertEquals( labelCount.size(), multisets.size( i ) );
+						int j = 0;
+						for ( final Entry< Long, Integer > entry : labelCount.entrySet() )
+						{
+							Assert.assertEquals( entry.getKey().longValue(), multisets.getLabel( i, j ) );
+							Assert.assertEquals( entry.getValue().intValue(), multisets.getCount( i, j ) );
+							++j;
+						}
+					}
+				}
+			}
+		}
+
+		cleanup( n5 );
+	}
+
+	private static long[] getDownsampledDimensions( final long[] dimensions, final int[] factors )
+	{
+		final long[] downsampledDimensions = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			downsampledDimensions[ d ] = dimensions[ d ] / factors[ d ];
+		return downsampledDimensions;
+	}
+
+	private static long[] downsampleReference( final long[] data, final long[] dimensions, final int[] factors, final long[] downsampledDimensions )
+	{
+		final long[] downsampled = new long[ ( int ) Intervals.numElements( downsampledDimensions ) ];
+		for ( int z = 0, i = 0; z < downsampledDimensions[ 2 ]; ++z )
+		{
+			for ( int y = 0; y < downsampledDimensions[ 1 ]; ++y )
+			{
+				for ( int x = 0; x < downsampledDimensions[ 0 ]; ++x, ++i )
+				{
+					final Map< Long, Integer > labelCount = new HashMap<>();
+					for ( int dz = 0; dz < factors[ 2 ]; ++dz )
+						for ( int dy = 0; dy < factors[ 1 ]; ++dy )
+							for ( int dx = 0; dx < factors[ 0 ]; ++dx )
+								labelCount.merge( data[ ( int ) ( ( ( ( long ) z * factors[ 2 ] + dz ) * dimensions[ 1 ] + ( long ) y * factors[ 1 ] + dy ) * dimensions[ 0 ] + ( long ) x * factors[ 0 ] + dx ) ], 1, Integer::sum );
+
+					int maxCount = Integer.MIN_VALUE;
+					long labelWithMaxCount = Long.MIN_VALUE;
+					for ( final Entry< Long, Integer > entry : labelCount.entrySet() )
+					{
+						if ( maxCount < entry.getValue() || ( maxCount == entry.getValue() && labelWithMaxCount > entry.getKey() ) )
+						{
+							maxCount = entry.getValue();
+							labelWithMaxCount = entry.getKey();
+						}
+					}
+					downsampled[ i ] = labelWithMaxCount;
+				}
+			}
+		}
+		return downsampled;
+	}
+
+	private long[] getArrayFromRandomAccessibleInterval( final RandomAccessibleInterval< UnsignedLongType > rai )
+	{
+		final long[] arr = new long[ ( int ) Intervals.numElements( rai ) ];
+		final Cursor< UnsignedLongType > cursor = Views.flatIterable( rai ).cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+			arr[ i++ ] = cursor.next().get();
+		return arr;
+	}
+}
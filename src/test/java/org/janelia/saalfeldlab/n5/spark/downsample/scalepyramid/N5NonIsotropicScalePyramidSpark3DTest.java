@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.spark.SparkConf;
@@ -21,7 +22,10 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import bdv.export.Downsample;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.integer.IntType;
@@ -164,6 +168,132 @@ public class N5NonIsotropicScalePyramidSpark3DTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testNonIsotropicDownsamplingInMemoryIntermediate() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 64, 64, 40 };
+		final int[] blockSize = new int[] { 8, 8, 4 };
+		final double[] pixelResolution = new double[] { 0.1, 0.1, 0.3 };
+		createDataset( n5, dimensions, blockSize );
+
+		final List< String > downsampledDatasets = N5NonIsotropicScalePyramidSpark3D.downsampleNonIsotropicScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				pixelResolution,
+				false
+			);
+
+		// no intermediate datasets are written
+		Assert.assertEquals( downsampledDatasets.size() + 1, Paths.get( basePath ).toFile().listFiles( File::isDirectory ).length );
+
+		final NonIsotropicScalePyramidMetadata scalePyramidMetadata = new NonIsotropicScalePyramidMetadata( dimensions, blockSize, pixelResolution, false );
+		Assert.assertEquals( 3, scalePyramidMetadata.getFirstIntermediateScale() );
+		Assert.assertArrayEquals( new int[] { 2, 2, 1 }, scalePyramidMetadata.getIntermediateDownsamplingFactors( 4 ) );
+		Assert.assertArrayEquals(
+				new int[][] { { 1, 1, 3 }, { 1, 1, 5 } },
+				IntermediateDownsampling.getOutputFactors(
+						scalePyramidMetadata.getScaleMetadata( 2 ).downsamplingFactors,
+						Arrays.asList( scalePyramidMetadata.getIntermediateDownsamplingFactors( 3 ), scalePyramidMetadata.getIntermediateDownsamplingFactors( 4 ) ),
+						Arrays.asList( scalePyramidMetadata.getScaleMetadata( 3 ).downsamplingFactors, scalePyramidMetadata.getScaleMetadata( 4 ).downsamplingFactors )
+					).toArray( new int[ 0 ][] )
+			);
+
+		// reference: the intermediate scale levels are downsampled in X/Y one after another, and each of them is downsampled in Z
+		RandomAccessibleInterval< IntType > previous = N5Utils.open( n5, datasetPath ), intermediate = null;
+		for ( int scale = 1; scale < scalePyramidMetadata.getNumScales(); ++scale )
+		{
+			final int[] downsamplingFactors = scalePyramidMetadata.getScaleMetadata( scale ).downsamplingFactors;
+			final RandomAccessibleInterval< IntType > expected;
+			if ( scalePyramidMetadata.getDependentDownsamplingFactor( scale ) == 1 )
+			{
+				final int[] previousDownsamplingFactors = scalePyramidMetadata.getScaleMetadata( scale - 1 ).downsamplingFactors;
+				expected = downsample( previous, new int[] { downsamplingFactors[ 0 ] / previousDownsamplingFactors[ 0 ], downsamplingFactors[ 1 ] / previousDownsamplingFactors[ 1 ], 1 } );
+			}
+			else
+			{
+				intermediate = downsample( intermediate != null ? intermediate : previous, scalePyramidMetadata.getIntermediateDownsamplingFactors( scale ) );
+				expected = downsample( intermediate, new int[] { 1, 1, downsamplingFactors[ 2 ] } );
+			}
+
+			Assert.assertArrayEquals(
+					getArrayFromRandomAccessibleInterval( expected ),
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasets.get( scale - 1 ) ) )
+				);
+			previous = expected;
+		}
+
+		cleanup( n5 );
+	}
+
+	private RandomAccessibleInterval< IntType > downsample( final RandomAccessibleInterval< IntType > source, final int[] downsamplingFactors )
+	{
+		final long[] downsampledDimensions = new long[ source.numDimensions() ];
+		for ( int d = 0; d < downsampledDimensions.length; ++d )
+			downsampledDimensions[ d ] = source.dimension( d ) / downsamplingFactors[ d ];
+		final RandomAccessibleInterval< IntType > downsampled = ArrayImgs.ints( downsampledDimensions );
+		Downsample.downsample( source, downsampled, downsamplingFactors );
+		return downsampled;
+	}
+
+	@Test
+	public void testNonIsotropicUpdate() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 64, 64, 40 };
+		final int[] blockSize = new int[] { 8, 8, 4 };
+		final double[] pixelResolution = new double[] { 0.1, 0.1, 0.3 };
+		createDataset( n5, dimensions, blockSize );
+
+		N5NonIsotropicScalePyramidSpark3D.downsampleNonIsotropicScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"updated",
+				pixelResolution,
+				false
+			);
+
+		// clear a region of the full scale dataset
+		final Interval modifiedRegion = new FinalInterval( new long[] { 10, 3, 5 }, new long[] { 29, 40, 21 } );
+		final RandomAccessibleInterval< IntType > modifiedImg = ArrayImgs.ints( getArrayFromRandomAccessibleInterval( N5Utils.open( n5, datasetPath ) ), dimensions );
+		for ( final IntType val : Views.interval( modifiedImg, modifiedRegion ) )
+			val.setZero();
+		N5Utils.save( modifiedImg, n5, datasetPath, blockSize, new GzipCompression() );
+
+		final List< String > updatedDatasets = N5NonIsotropicScalePyramidSpark3D.updateNonIsotropicScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"updated",
+				pixelResolution,
+				false,
+				modifiedRegion
+			);
+		Assert.assertFalse( n5.exists( Paths.get( "updated", "intermediate-downsampling-XY" ).toString() ) );
+
+		final List< String > downsampledDatasets = N5NonIsotropicScalePyramidSpark3D.downsampleNonIsotropicScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"reference",
+				pixelResolution,
+				false
+			);
+
+		Assert.assertEquals( downsampledDatasets.size(), updatedDatasets.size() );
+		for ( int i = 0; i < downsampledDatasets.size(); ++i )
+		{
+			Assert.assertArrayEquals(
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasets.get( i ) ) ),
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, updatedDatasets.get( i ) ) )
+				);
+		}
+
+		cleanup( n5 );
+	}
+
 	@Test
 	public void testScalePyramidMetadata_Isotropic()
 	{
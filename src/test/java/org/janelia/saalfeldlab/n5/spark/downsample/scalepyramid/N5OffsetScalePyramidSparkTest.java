@@ -4,7 +4,10 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -14,6 +17,7 @@ import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.spark.N5WriterSupplier;
+import org.janelia.saalfeldlab.n5.spark.downsample.N5OffsetDownsamplerSpark;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -104,6 +108,78 @@ public class N5OffsetScalePyramidSparkTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testFusedDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 37, 29, 19 };
+		final int[] blockSize = new int[] { 4, 5, 3 };
+		final int[] downsamplingFactors = new int[] { 2, 2, 2 };
+		final boolean[] dimensionsWithOffset = new boolean[] { true, true, false };
+
+		final Random rnd = new Random( 42 );
+		final int[] data = new int[ ( int ) Intervals.numElements( dimensions ) ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = rnd.nextInt( 1000 );
+		N5Utils.save( ArrayImgs.ints( data, dimensions ), n5, datasetPath, blockSize, new GzipCompression() );
+
+		// reference: every offset scale level is downsampled from the corresponding level of the regular scale pyramid
+		final List< String > regularDatasets = N5ScalePyramidSpark.downsampleScalePyramid( sparkContext, n5Supplier, datasetPath, "regular", downsamplingFactors );
+		final List< String > referenceDatasets = new ArrayList<>();
+		for ( int scale = 1; ; ++scale )
+		{
+			final long[] downsampledDimensions = new long[ dimensions.length ];
+			for ( int d = 0; d < dimensions.length; ++d )
+				downsampledDimensions[ d ] = ( dimensions[ d ] + ( dimensionsWithOffset[ d ] ? 1 : 0 ) ) / ( long ) Math.pow( downsamplingFactors[ d ], scale );
+			if ( Arrays.stream( downsampledDimensions ).min().getAsLong() < 1 || scale - 1 > regularDatasets.size() )
+				break;
+
+			final String referenceDatasetPath = Paths.get( "reference", "s" + scale ).toString();
+			N5OffsetDownsamplerSpark.downsampleWithOffset(
+					sparkContext,
+					n5Supplier,
+					scale == 1 ? datasetPath : regularDatasets.get( scale - 2 ),
+					referenceDatasetPath,
+					downsamplingFactors,
+					new long[] { 1, 1, 0 }
+				);
+			referenceDatasets.add( referenceDatasetPath );
+		}
+		Assert.assertEquals( 4, referenceDatasets.size() );
+
+		for ( int numFusedLevels = 1; numFusedLevels <= 3; ++numFusedLevels )
+		{
+			final String outputGroupPath = "fused-" + numFusedLevels;
+			final List< String > scalePyramidDatasets = N5OffsetScalePyramidSpark.downsampleOffsetScalePyramid(
+					sparkContext,
+					n5Supplier,
+					datasetPath,
+					outputGroupPath,
+					downsamplingFactors,
+					dimensionsWithOffset,
+					numFusedLevels
+				);
+
+			Assert.assertEquals( referenceDatasets.size(), scalePyramidDatasets.size() );
+			Assert.assertFalse( n5.exists( Paths.get( outputGroupPath, "intermediate-downsampling" ).toString() ) );
+
+			for ( int i = 0; i < scalePyramidDatasets.size(); ++i )
+			{
+				final DatasetAttributes referenceAttributes = n5.getDatasetAttributes( referenceDatasets.get( i ) );
+				final DatasetAttributes attributes = n5.getDatasetAttributes( scalePyramidDatasets.get( i ) );
+				Assert.assertArrayEquals( referenceAttributes.getDimensions(), attributes.getDimensions() );
+				Assert.assertArrayEquals( blockSize, attributes.getBlockSize() );
+
+				Assert.assertArrayEquals(
+						"numFusedLevels=" + numFusedLevels + ", scale level " + ( i + 1 ),
+						getArrayFromRandomAccessibleInterval( N5Utils.open( n5, referenceDatasets.get( i ) ) ),
+						getArrayFromRandomAccessibleInterval( N5Utils.open( n5, scalePyramidDatasets.get( i ) ) ) );
+			}
+		}
+
+		cleanup( n5 );
+	}
+
 	private void createDataset( final N5Writer n5, final long[] dimensions, final int[] blockSize ) throws IOException
 	{
 		final int[] data = new int[ ( int ) Intervals.numElements( dimensions ) ];
@@ -20,6 +20,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.integer.IntType;
@@ -97,6 +99,102 @@ public class N5ScalePyramidSparkTest
 		cleanup( n5 );
 	}
 
+	@Test
+	public void testFusedDownsampling() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		createDataset( n5, new long[] { 37, 21, 18 }, new int[] { 3, 2, 2 } );
+
+		final List< String > downsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"level-by-level",
+				new int[] { 2, 2, 2 }
+			);
+
+		final List< String > fusedDownsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"fused",
+				new int[] { 2, 2, 2 },
+				3
+			);
+
+		Assert.assertEquals( 4, downsampledDatasets.size() );
+		Assert.assertEquals( downsampledDatasets.size(), fusedDownsampledDatasets.size() );
+
+		for ( int i = 0; i < downsampledDatasets.size(); ++i )
+		{
+			final DatasetAttributes attributes = n5.getDatasetAttributes( downsampledDatasets.get( i ) );
+			final DatasetAttributes fusedAttributes = n5.getDatasetAttributes( fusedDownsampledDatasets.get( i ) );
+			Assert.assertArrayEquals( attributes.getDimensions(), fusedAttributes.getDimensions() );
+			Assert.assertArrayEquals( attributes.getBlockSize(), fusedAttributes.getBlockSize() );
+			Assert.assertArrayEquals(
+					n5.getAttribute( downsampledDatasets.get( i ), N5ScalePyramidSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class ),
+					n5.getAttribute( fusedDownsampledDatasets.get( i ), N5ScalePyramidSpark.DOWNSAMPLING_FACTORS_ATTRIBUTE_KEY, int[].class )
+				);
+			Assert.assertArrayEquals(
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasets.get( i ) ) ),
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, fusedDownsampledDatasets.get( i ) ) )
+				);
+		}
+
+		cleanup( n5 );
+	}
+
+	@Test
+	public void testUpdate() throws IOException
+	{
+		final N5Writer n5 = n5Supplier.get();
+		final long[] dimensions = new long[] { 37, 21, 18 };
+		final int[] blockSize = new int[] { 3, 2, 2 };
+		createDataset( n5, dimensions, blockSize );
+
+		N5ScalePyramidSpark.downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"updated",
+				new int[] { 2, 2, 2 }
+			);
+
+		// clear a region of the full scale dataset
+		final Interval modifiedRegion = new FinalInterval( new long[] { 6, 4, 2 }, new long[] { 14, 9, 7 } );
+		final RandomAccessibleInterval< IntType > modifiedImg = ArrayImgs.ints( getArrayFromRandomAccessibleInterval( N5Utils.open( n5, datasetPath ) ), dimensions );
+		for ( final IntType val : Views.interval( modifiedImg, modifiedRegion ) )
+			val.setZero();
+		N5Utils.save( modifiedImg, n5, datasetPath, blockSize, new GzipCompression() );
+
+		final List< String > updatedDatasets = N5ScalePyramidSpark.updateScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"updated",
+				modifiedRegion
+			);
+
+		final List< String > downsampledDatasets = N5ScalePyramidSpark.downsampleScalePyramid(
+				sparkContext,
+				n5Supplier,
+				datasetPath,
+				"reference",
+				new int[] { 2, 2, 2 }
+			);
+
+		Assert.assertEquals( downsampledDatasets.size(), updatedDatasets.size() );
+		for ( int i = 0; i < downsampledDatasets.size(); ++i )
+		{
+			Assert.assertArrayEquals(
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, downsampledDatasets.get( i ) ) ),
+					getArrayFromRandomAccessibleInterval( N5Utils.open( n5, updatedDatasets.get( i ) ) )
+				);
+		}
+
+		cleanup( n5 );
+	}
+
 	private void createDataset( final N5Writer n5, final long[] dimensions, final int[] blockSize ) throws IOException
 	{
 		final int[] data = new int[ ( int ) Intervals.numElements( dimensions ) ];
@@ -0,0 +1,70 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlockIndexRDDTest
+{
+	@Test
+	public void testRanges()
+	{
+		final List< long[] > ranges = BlockIndexRDD.getRanges( 10, 4 );
+		Assert.assertEquals( 4, ranges.size() );
+		Assert.assertEquals( 0, ranges.get( 0 )[ 0 ] );
+		Assert.assertEquals( 10, ranges.get( ranges.size() - 1 )[ 1 ] );
+		for ( int i = 1; i < ranges.size(); ++i )
+			Assert.assertEquals( ranges.get( i - 1 )[ 1 ], ranges.get( i )[ 0 ] );
+
+		Assert.assertEquals( 3, BlockIndexRDD.getRanges( 3, 15000 ).size() );
+		Assert.assertTrue( BlockIndexRDD.getRanges( 0, 15000 ).isEmpty() );
+	}
+
+	@Test
+	public void testIndexes()
+	{
+		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "BlockIndexRDDTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			) )
+		{
+			final JavaRDD< Long > rdd = BlockIndexRDD.create( sparkContext, 1000, 7 );
+			Assert.assertEquals( 7, rdd.getNumPartitions() );
+
+			final List< Long > indexes = rdd.collect();
+			Assert.assertEquals( 1000, indexes.size() );
+			for ( int i = 0; i < indexes.size(); ++i )
+				Assert.assertEquals( i, indexes.get( i ).longValue() );
+
+			Assert.assertEquals( 0, BlockIndexRDD.create( sparkContext, 0 ).count() );
+		}
+	}
+
+	@Test
+	public void testMortonOrder()
+	{
+		try ( final JavaSparkContext sparkContext = new JavaSparkContext( new SparkConf()
+				.setMaster( "local[*]" )
+				.setAppName( "BlockIndexRDDTest" )
+				.set( "spark.serializer", "org.apache.spark.serializer.KryoSerializer" )
+			) )
+		{
+			final long[] gridDimensions = new long[] { 5, 3, 7 };
+			final List< Long > indexes = BlockIndexRDD.create( sparkContext, gridDimensions, true ).collect();
+			Assert.assertEquals( 5 * 3 * 7, indexes.size() );
+			Assert.assertEquals( 5 * 3 * 7, new HashSet<>( indexes ).size() );
+			for ( final long index : indexes )
+				Assert.assertTrue( index >= 0 && index < 5 * 3 * 7 );
+
+			// the first 2x2x2 Morton cell
+			Assert.assertEquals( Arrays.asList( 0L, 1L, 5L, 6L, 15L, 16L, 20L, 21L ), indexes.subList( 0, 8 ) );
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class N5ExecutorCacheTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-executor-cache-test";
+	static private final String datasetPath = "data";
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( Files.exists( Paths.get( basePath ) ) )
+			Assert.assertTrue( N5ExecutorCache.getFSWriter( basePath ).remove() );
+		N5ExecutorCache.clear();
+	}
+
+	@Test
+	public void testSharedInstances() throws IOException
+	{
+		Assert.assertSame( N5ExecutorCache.getFSWriter( basePath ), N5ExecutorCache.fsWriterSupplier( basePath ).get() );
+		Assert.assertSame( N5ExecutorCache.getFSWriter( basePath ), N5ExecutorCache.fsWriterSupplier( basePath + "/" ).get() );
+		Assert.assertSame( N5ExecutorCache.getFSReader( basePath ), N5ExecutorCache.fsReaderSupplier( basePath ).get() );
+	}
+
+	@Test
+	public void testDatasetAttributesCache() throws IOException
+	{
+		final N5Writer n5 = N5ExecutorCache.getFSWriter( basePath );
+		Assert.assertFalse( n5.datasetExists( datasetPath ) );
+
+		n5.createDataset( datasetPath, new long[] { 10, 20 }, new int[] { 5, 5 }, DataType.UINT8, new RawCompression() );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+		Assert.assertArrayEquals( new long[] { 10, 20 }, attributes.getDimensions() );
+		Assert.assertSame( attributes, n5.getDatasetAttributes( "/" + datasetPath + "/" ) );
+
+		n5.setAttribute( datasetPath, "dimensions", new long[] { 30, 40 } );
+		Assert.assertArrayEquals( new long[] { 30, 40 }, n5.getDatasetAttributes( datasetPath ).getDimensions() );
+
+		Assert.assertTrue( n5.remove( datasetPath ) );
+		Assert.assertFalse( n5.datasetExists( datasetPath ) );
+
+		n5.createDataset( datasetPath, new long[] { 50, 60 }, new int[] { 5, 5 }, DataType.UINT8, new RawCompression() );
+		Assert.assertArrayEquals( new long[] { 50, 60 }, n5.getDatasetAttributes( datasetPath ).getDimensions() );
+	}
+
+	@Test
+	public void testExternalModification() throws IOException
+	{
+		final N5Reader n5 = N5ExecutorCache.getFSReader( basePath );
+		final N5Writer otherN5 = new N5FSWriter( basePath );
+
+		otherN5.createDataset( datasetPath, new long[] { 10, 20 }, new int[] { 5, 5 }, DataType.UINT8, new RawCompression() );
+		Assert.assertArrayEquals( new long[] { 10, 20 }, n5.getDatasetAttributes( datasetPath ).getDimensions() );
+
+		// recreated by a different writer instance, as done on the driver while the executors keep their cached readers
+		Assert.assertTrue( otherN5.remove( datasetPath ) );
+		otherN5.createDataset( datasetPath, new long[] { 100, 200 }, new int[] { 50, 50 }, DataType.UINT16, new RawCompression() );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( datasetPath );
+		Assert.assertArrayEquals( new long[] { 100, 200 }, attributes.getDimensions() );
+		Assert.assertEquals( DataType.UINT16, attributes.getDataType() );
+
+		Assert.assertTrue( otherN5.remove( datasetPath ) );
+		Assert.assertNull( n5.getDatasetAttributes( datasetPath ) );
+	}
+}
@@ -0,0 +1,56 @@
+package org.janelia.saalfeldlab.n5.spark.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZstandardCompressionTest
+{
+	static private final String basePath = System.getProperty( "user.home" ) + "/tmp/n5-zstd-test";
+	static private final String datasetPath = "data";
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// cleanup in case the test has failed
+		tearDown();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if ( Files.exists( Paths.get( basePath ) ) )
+			Assert.assertTrue( new N5FSWriter( basePath ).remove() );
+	}
+
+	@Test
+	public void testReadWrite() throws IOException
+	{
+		final N5Writer n5 = new N5FSWriter( basePath );
+		n5.createDataset( datasetPath, new long[] { 64, 64 }, new int[] { 32, 32 }, DataType.UINT16, new ZstandardCompression( 9 ) );
+
+		final short[] data = new short[ 32 * 32 ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( short ) ( i / 10 );
+		n5.writeBlock( datasetPath, n5.getDatasetAttributes( datasetPath ), new ShortArrayDataBlock( new int[] { 32, 32 }, new long[] { 1, 0 }, data ) );
+
+		// the compression type is resolved from the attributes by a fresh reader
+		final DatasetAttributes attributes = new N5FSReader( basePath ).getDatasetAttributes( datasetPath );
+		Assert.assertEquals( "zstd", attributes.getCompression().getType() );
+		Assert.assertEquals( 9, ( ( ZstandardCompression ) attributes.getCompression() ).getLevel() );
+
+		Assert.assertArrayEquals( data, ( short[] ) new N5FSReader( basePath ).readBlock( datasetPath, attributes, new long[] { 1, 0 } ).getData() );
+		Assert.assertTrue( Files.size( Paths.get( basePath, datasetPath, "1", "0" ) ) < data.length * 2 / 4 );
+	}
+}